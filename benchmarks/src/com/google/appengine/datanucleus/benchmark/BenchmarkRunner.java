@@ -0,0 +1,42 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the gc profiler (allocation rate) and the {@link RpcCountProfiler} enabled.
+ * <pre>
+ * java -cp target/benchmarks.jar com.google.appengine.datanucleus.benchmark.BenchmarkRunner [regexp]
+ * </pre>
+ * The optional argument restricts the benchmarks run, e.g. "InsertBenchmark". For other JMH options
+ * use "java -jar target/benchmarks.jar" directly.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    Options opts = new OptionsBuilder()
+        .include(args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*")
+        .addProfiler(GCProfiler.class)
+        .addProfiler(RpcCountProfiler.class)
+        .build();
+    new Runner(opts).run();
+  }
+}
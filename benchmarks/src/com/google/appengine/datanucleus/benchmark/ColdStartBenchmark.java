@@ -0,0 +1,133 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.MetaDataSnapshot;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasKeyAncestorKeyPkJDO;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.datanucleus.NucleusContext;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+/**
+ * Benchmark of the first use of persistent classes by a new PMF, as on a cold instance, with and without
+ * a {@link MetaDataSnapshot} of the classes. Each invocation creates a PMF, then persists and queries
+ * an object of each class.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class ColdStartBenchmark {
+
+  private static final List<String> CLASS_NAMES = Arrays.asList(Flight.class.getName(),
+      HasKeyAncestorKeyPkJDO.class.getName(), HasOneToManyListJDO.class.getName());
+
+  @Param({"false", "true"})
+  public boolean snapshot;
+
+  private LocalServiceTestHelper helper;
+
+  private File snapshotFile;
+
+  private PersistenceManagerFactory pmf;
+
+  @Setup(Level.Trial)
+  public void setUpDatastore() throws Exception {
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()).setEnvAppId("DNTest");
+    helper.setUp();
+    if (snapshot) {
+      PersistenceManagerFactory snapshotPmf = newPersistenceManagerFactory();
+      NucleusContext nucCtx = ((JDOPersistenceManagerFactory) snapshotPmf).getNucleusContext();
+      MetaDataSnapshot metadataSnapshot = MetaDataSnapshot.create((DatastoreManager) nucCtx.getStoreManager(),
+          CLASS_NAMES, nucCtx.getClassLoaderResolver(null));
+      snapshotFile = File.createTempFile("metadata", ".ser");
+      OutputStream out = new FileOutputStream(snapshotFile);
+      try {
+        metadataSnapshot.write(out);
+      } finally {
+        out.close();
+      }
+      snapshotPmf.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownDatastore() throws Exception {
+    if (snapshotFile != null) {
+      snapshotFile.delete();
+    }
+    helper.tearDown();
+  }
+
+  @TearDown(Level.Invocation)
+  public void closePersistenceManagerFactory() {
+    pmf.close();
+  }
+
+  private PersistenceManagerFactory newPersistenceManagerFactory() {
+    Map<String, String> props = snapshotFile != null ?
+        Collections.singletonMap(DatastoreManager.METADATA_SNAPSHOT_PROPERTY, snapshotFile.getAbsolutePath()) :
+        Collections.<String, String>emptyMap();
+    return JDOHelper.getPersistenceManagerFactory(props, "nontransactional");
+  }
+
+  @Benchmark
+  public Object firstUse() {
+    pmf = newPersistenceManagerFactory();
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+      pm.makePersistent(new HasKeyAncestorKeyPkJDO());
+      pm.makePersistent(new HasOneToManyListJDO());
+      return pm.newQuery(Flight.class, "origin == 'bos'").execute();
+    } finally {
+      pm.close();
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.EntityUtils;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.metadata.AbstractClassMetaData;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Benchmark of EntityUtils.entityToPojo, converting an Entity already read from the datastore
+ * into its object.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntityToPojoBenchmark extends LocalDatastoreBenchmark {
+
+  private PersistenceManager pm;
+  private ExecutionContext ec;
+  private AbstractClassMetaData cmd;
+  private ClassLoaderResolver clr;
+  private Entity entity;
+
+  @Override
+  protected void setUpData() throws Exception {
+    String id = persistFlights(1).get(0);
+    entity = ds.get(KeyFactory.stringToKey(id));
+    pm = pmf.getPersistenceManager();
+    ec = ((JDOPersistenceManager) pm).getExecutionContext();
+    clr = ec.getClassLoaderResolver();
+    cmd = ec.getMetaDataManager().getMetaDataForClass(Flight.class, clr);
+  }
+
+  @Benchmark
+  public Object entityToPojo() {
+    return EntityUtils.entityToPojo(entity, cmd, clr, ec, true, ec.getFetchPlan());
+  }
+}
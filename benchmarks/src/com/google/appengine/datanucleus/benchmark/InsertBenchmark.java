@@ -0,0 +1,74 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Benchmarks of DatastorePersistenceHandler.insertObject(s), persisting new objects one at a time and
+ * as a batch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InsertBenchmark extends LocalDatastoreBenchmark {
+
+  static final int BATCH_SIZE = 10;
+
+  private int counter = 0;
+
+  @Benchmark
+  public Object insertSingle() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      return pm.makePersistent(newFlight(counter++));
+    } finally {
+      pm.close();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public Object insertBatch() {
+    List<Flight> flights = new ArrayList<Flight>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      flights.add(newFlight(counter++));
+    }
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      return pm.makePersistentAll(flights);
+    } finally {
+      pm.close();
+    }
+  }
+}
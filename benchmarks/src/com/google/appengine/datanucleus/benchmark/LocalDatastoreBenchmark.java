@@ -0,0 +1,94 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+/**
+ * Base class for benchmarks run against the local (in-process) datastore.
+ * The ApiProxy environment is thread specific, so the state is per thread and the datastore is set up
+ * on the thread that runs the benchmark.
+ * Uses the "nontransactional" PMF of the test jdoconfig.xml, so each operation is a plain datastore call.
+ */
+@State(Scope.Thread)
+public abstract class LocalDatastoreBenchmark {
+
+  private LocalServiceTestHelper helper;
+
+  protected PersistenceManagerFactory pmf;
+
+  protected DatastoreService ds;
+
+  @Setup(Level.Trial)
+  public void setUpDatastore() throws Exception {
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()).setEnvAppId("DNTest");
+    helper.setUp();
+    RpcCounter.install();
+    pmf = JDOHelper.getPersistenceManagerFactory("nontransactional");
+    ds = DatastoreServiceFactory.getDatastoreService();
+    setUpData();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownDatastore() throws Exception {
+    pmf.close();
+    helper.tearDown();
+  }
+
+  /**
+   * Hook for subclasses to create the data they operate on.
+   */
+  protected void setUpData() throws Exception {
+  }
+
+  protected static Flight newFlight(int i) {
+    return new Flight(i % 2 == 0 ? "bos" : "mia", "sfo", "flight" + i, i, i * 2);
+  }
+
+  /**
+   * Persist the provided number of flights.
+   * @return The ids of the flights
+   */
+  protected List<String> persistFlights(int num) {
+    List<String> ids = new ArrayList<String>(num);
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      for (int i = 0; i < num; i++) {
+        ids.add(pm.makePersistent(newFlight(i)).getId());
+      }
+    } finally {
+      pm.close();
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,82 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Benchmark of reading an owned 1-N List through FKListStore, loading the owner in a new
+ * PersistenceManager and iterating over its elements.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OneToManyListBenchmark extends LocalDatastoreBenchmark {
+
+  @Param({"5", "50"})
+  public int numChildren;
+
+  private String parentId;
+
+  @Override
+  protected void setUpData() {
+    HasOneToManyListJDO parent = new HasOneToManyListJDO();
+    parent.setVal("parent");
+    for (int i = 0; i < numChildren; i++) {
+      parent.addFlight(newFlight(i));
+    }
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      pm.currentTransaction().begin();
+      pm.makePersistent(parent);
+      pm.currentTransaction().commit();
+      parentId = parent.getId();
+    } finally {
+      pm.close();
+    }
+  }
+
+  @Benchmark
+  public int readList() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      HasOneToManyListJDO parent = pm.getObjectById(HasOneToManyListJDO.class, parentId);
+      int sum = 0;
+      for (Flight flight : parent.getFlights()) {
+        sum += flight.getYou();
+      }
+      return sum;
+    } finally {
+      pm.close();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.datanucleus.api.jdo.JDOQuery;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+/**
+ * Benchmarks of DatastoreQuery : compiling a JDOQL query (with the compilation cache bypassed), and
+ * executing it (compile from cache, then performExecute and reading the results).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark extends LocalDatastoreBenchmark {
+
+  static final int NUM_OBJECTS = 100;
+
+  private static final String FILTER = "origin == o && you > y";
+
+  private PersistenceManager pm;
+
+  @Override
+  protected void setUpData() {
+    persistFlights(NUM_OBJECTS);
+    pm = pmf.getPersistenceManager();
+  }
+
+  private Query newQuery() {
+    Query q = pm.newQuery(Flight.class, FILTER);
+    q.declareParameters("String o, int y");
+    q.setOrdering("you desc");
+    return q;
+  }
+
+  @Benchmark
+  public Object compile() {
+    Query q = newQuery();
+    q.addExtension("datanucleus.query.compilation.cached", "false");
+    org.datanucleus.store.query.Query internalQuery = ((JDOQuery) q).getInternalQuery();
+    internalQuery.compile();
+    return internalQuery;
+  }
+
+  @Benchmark
+  public int execute() {
+    Query q = newQuery();
+    try {
+      int sum = 0;
+      for (Object flight : (List<?>) q.execute("bos", NUM_OBJECTS / 2)) {
+        sum += ((Flight) flight).getYou();
+      }
+      return sum;
+    } finally {
+      q.closeAll();
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMH profiler reporting the number of datastore RPCs per benchmark operation, in total and by method
+ * (e.g. "rpc.Put"). Relies on the benchmark having installed a {@link RpcCounter}.
+ * Use with "-prof com.google.appengine.datanucleus.benchmark.RpcCountProfiler".
+ */
+public class RpcCountProfiler implements InternalProfiler {
+
+  public String getDescription() {
+    return "Datastore RPCs per operation";
+  }
+
+  public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    RpcCounter.reset();
+  }
+
+  public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+      IterationParams iterationParams, IterationResult result) {
+    long ops = result.getMetadata().getMeasuredOps();
+    List<Result> results = new ArrayList<Result>();
+    if (ops == 0) {
+      return results;
+    }
+    long total = 0;
+    for (Map.Entry<String, Long> entry : RpcCounter.getCounts().entrySet()) {
+      total += entry.getValue();
+      results.add(new ScalarResult("rpc." + entry.getKey(), entry.getValue() / (double) ops, "rpcs/op",
+          AggregationPolicy.AVG));
+    }
+    results.add(new ScalarResult("rpc.total", total / (double) ops, "rpcs/op", AggregationPolicy.AVG));
+    return results;
+  }
+}
@@ -0,0 +1,108 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ApiProxy.Delegate} that counts the datastore RPCs made through it, by method, before passing
+ * them on to the real delegate. Counts are static so that {@link RpcCountProfiler} can read them.
+ */
+public class RpcCounter implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+  static final String DATASTORE_PACKAGE = "datastore_v3";
+
+  private static final ConcurrentMap<String, AtomicLong> COUNTS = new ConcurrentHashMap<String, AtomicLong>();
+
+  private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+  RpcCounter(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Wrap the current ApiProxy delegate (typically that of the local datastore) with a counter.
+   */
+  @SuppressWarnings("unchecked")
+  static void install() {
+    ApiProxy.Delegate current = ApiProxy.getDelegate();
+    if (!(current instanceof RpcCounter)) {
+      ApiProxy.setDelegate(new RpcCounter(current));
+    }
+  }
+
+  static void reset() {
+    COUNTS.clear();
+  }
+
+  /**
+   * @return The number of datastore RPCs made since the last reset, keyed by method
+   */
+  static Map<String, Long> getCounts() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : COUNTS.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return counts;
+  }
+
+  private static void count(String packageName, String methodName) {
+    if (!DATASTORE_PACKAGE.equals(packageName)) {
+      return;
+    }
+    AtomicLong count = COUNTS.get(methodName);
+    if (count == null) {
+      AtomicLong newCount = new AtomicLong();
+      count = COUNTS.putIfAbsent(methodName, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  public byte[] makeSyncCall(ApiProxy.Environment env, String packageName, String methodName, byte[] request)
+      throws ApiProxy.ApiProxyException {
+    count(packageName, methodName);
+    return delegate.makeSyncCall(env, packageName, methodName, request);
+  }
+
+  public Future<byte[]> makeAsyncCall(ApiProxy.Environment env, String packageName, String methodName,
+      byte[] request, ApiProxy.ApiConfig apiConfig) {
+    count(packageName, methodName);
+    return delegate.makeAsyncCall(env, packageName, methodName, request, apiConfig);
+  }
+
+  public void log(ApiProxy.Environment env, ApiProxy.LogRecord logRecord) {
+    delegate.log(env, logRecord);
+  }
+
+  public void flushLogs(ApiProxy.Environment env) {
+    delegate.flushLogs(env);
+  }
+
+  public List<Thread> getRequestThreads(ApiProxy.Environment env) {
+    return delegate.getRequestThreads(env);
+  }
+}
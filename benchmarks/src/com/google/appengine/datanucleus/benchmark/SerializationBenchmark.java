@@ -0,0 +1,103 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.datanucleus.CompactSerializationStrategy;
+import com.google.appengine.datanucleus.CompressedSerializationStrategy;
+import com.google.appengine.datanucleus.SerializationManager;
+import com.google.appengine.datanucleus.SerializationStrategy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the serialization strategies, writing and reading a list of strings and a long string.
+ * The size of the blobs written by the strategy is printed at the start of the trial. Needs no datastore.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+  @Param({"default", "compact", "compressed"})
+  public String strategyName;
+
+  private SerializationStrategy strategy;
+  private ArrayList<String> list;
+  private String text;
+  private Blob listBlob;
+  private Blob textBlob;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    if (strategyName.equals("compact")) {
+      strategy = new CompactSerializationStrategy();
+    } else if (strategyName.equals("compressed")) {
+      strategy = new CompressedSerializationStrategy();
+    } else {
+      strategy = SerializationManager.DEFAULT_SERIALIZATION_STRATEGY;
+    }
+    list = new ArrayList<String>();
+    StringBuilder str = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      list.add("tag" + (i % 20));
+      str.append("Some descriptive text about flight ").append(i).append(". ");
+    }
+    text = str.toString();
+    listBlob = strategy.serialize(list);
+    textBlob = strategy.serialize(text);
+    System.out.println(strategyName + " : list " + listBlob.getBytes().length + " bytes, string "
+        + textBlob.getBytes().length + " bytes");
+  }
+
+  @Benchmark
+  public Blob serializeList() {
+    return strategy.serialize(list);
+  }
+
+  @Benchmark
+  public Object deserializeList() {
+    return strategy.deserialize(listBlob, List.class);
+  }
+
+  @Benchmark
+  public Blob serializeString() {
+    return strategy.serialize(text);
+  }
+
+  @Benchmark
+  public Object deserializeString() {
+    return strategy.deserialize(textBlob, String.class);
+  }
+}
@@ -0,0 +1,67 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Benchmark of DatastorePersistenceHandler.updateObject, changing a field of an object loaded by id.
+ * The PMF is nontransactional, so the update is written when the field is set; the fetch of the object
+ * is included in each operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateBenchmark extends LocalDatastoreBenchmark {
+
+  static final int NUM_OBJECTS = 100;
+
+  private List<String> ids;
+
+  private int counter = 0;
+
+  @Override
+  protected void setUpData() {
+    ids = persistFlights(NUM_OBJECTS);
+  }
+
+  @Benchmark
+  public Flight updateObject() {
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      Flight flight = pm.getObjectById(Flight.class, ids.get(counter % ids.size()));
+      flight.setYou(counter++);
+      return flight;
+    } finally {
+      pm.close();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.benchmark;
+
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import org.datanucleus.NucleusContext;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManagerFactory;
+
+/**
+ * Benchmark of DatastoreManager.validateMetaDataForClass for an already validated class, which every
+ * persistence operation makes, from 32 threads sharing one PMF. The "synchronizedSet" benchmark is the
+ * check as previously made (a synchronized set of validated class names) for comparison.
+ * Makes no datastore calls so needs no datastore.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class ValidateMetaDataBenchmark {
+
+  private PersistenceManagerFactory pmf;
+  private DatastoreManager storeMgr;
+  private AbstractClassMetaData cmd;
+  private final Set<String> synchronizedSet = Collections.synchronizedSet(new HashSet<String>());
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    pmf = JDOHelper.getPersistenceManagerFactory("nontransactional");
+    NucleusContext nucContext = ((JDOPersistenceManagerFactory) pmf).getNucleusContext();
+    storeMgr = (DatastoreManager) nucContext.getStoreManager();
+    cmd = nucContext.getMetaDataManager().getMetaDataForClass(Flight.class,
+        nucContext.getClassLoaderResolver(Flight.class.getClassLoader()));
+    storeMgr.validateMetaDataForClass(cmd);
+    synchronizedSet.add(cmd.getFullClassName());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pmf.close();
+  }
+
+  @Benchmark
+  public void validateMetaDataForClass() {
+    storeMgr.validateMetaDataForClass(cmd);
+  }
+
+  @Benchmark
+  public boolean synchronizedSet() {
+    return synchronizedSet.add(cmd.getFullClassName());
+  }
+}
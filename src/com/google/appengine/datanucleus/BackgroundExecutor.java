@@ -0,0 +1,211 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs datastore work off the calling thread.
+ * The datastore api locates its {@link ApiProxy.Environment} through a thread local, so every task
+ * submitted here runs with the environment of the thread that submitted it.
+ * <p>
+ * By default work runs on a bounded pool of daemon threads. On App Engine, where such threads can't be
+ * created by a frontend, work submitted by a request runs instead on threads of that request, created by
+ * the ThreadManager of the runtime ({@code ThreadManager.currentRequestThreadFactory()}). These threads
+ * only run work of their request, and end as soon as there is none left, since they can't outlive it.
+ * The user can also supply their own {@link ExecutorService}.
+ * </p>
+ */
+public class BackgroundExecutor {
+
+  private final ExecutorService executor;
+
+  private final boolean ownsExecutor;
+
+  /** Maximum number of threads running the work of a request, when run on request threads. */
+  private final int numRequestThreads;
+
+  /** Work of each request waiting for a request thread, keyed by the factory of its threads. Guarded by itself. */
+  private final Map<ThreadFactory, RequestWork> requestWork = new HashMap<ThreadFactory, RequestWork>();
+
+  /**
+   * Constructor for an executor backed by its own pool of daemon threads.
+   * @param name Prefix for the thread names
+   * @param numThreads Maximum number of threads in the pool
+   */
+  public BackgroundExecutor(String name, int numThreads) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(name));
+    pool.allowCoreThreadTimeOut(true);
+    this.executor = pool;
+    this.ownsExecutor = true;
+    this.numRequestThreads = numThreads;
+  }
+
+  /**
+   * Constructor for an executor delegating to a user-provided ExecutorService.
+   * The provided ExecutorService is not shut down by {@link #shutdown()}.
+   * @param executor The ExecutorService to run the tasks
+   */
+  public BackgroundExecutor(ExecutorService executor) {
+    this.executor = executor;
+    this.ownsExecutor = false;
+    this.numRequestThreads = 0;
+  }
+
+  /**
+   * Submit the provided task, running it with the ApiProxy environment of the calling thread.
+   * @param task The task
+   * @return Future for the result of the task
+   */
+  public <T> Future<T> submit(final Callable<T> task) {
+    final ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+      public T call() throws Exception {
+        ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+        if (env != null) {
+          ApiProxy.setEnvironmentForCurrentThread(env);
+        }
+        try {
+          return task.call();
+        } finally {
+          if (previous != null) {
+            ApiProxy.setEnvironmentForCurrentThread(previous);
+          } else {
+            ApiProxy.clearEnvironmentForCurrentThread();
+          }
+        }
+      }
+    });
+    ThreadFactory requestThreadFactory = ownsExecutor ? getRequestThreadFactory(env) : null;
+    if (requestThreadFactory != null) {
+      runOnRequestThread(requestThreadFactory, future);
+    } else {
+      executor.execute(future);
+    }
+    return future;
+  }
+
+  public void shutdown() {
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Accessor for the factory of the threads of the current request, when running on App Engine.
+   * @param env ApiProxy environment of the current thread
+   * @return The factory, or null if not on App Engine
+   */
+  private static ThreadFactory getRequestThreadFactory(ApiProxy.Environment env) {
+    if (env == null || env.getAttributes() == null) {
+      return null;
+    }
+    return ThreadManager.currentRequestThreadFactory();
+  }
+
+  private void runOnRequestThread(final ThreadFactory factory, FutureTask<?> task) {
+    if (executor.isShutdown()) {
+      throw new RejectedExecutionException("BackgroundExecutor has been shut down");
+    }
+    synchronized (requestWork) {
+      RequestWork work = requestWork.get(factory);
+      if (work == null) {
+        work = new RequestWork();
+        requestWork.put(factory, work);
+      }
+      work.pending.add(task);
+      if (work.numThreads >= numRequestThreads) {
+        // Run by one of the threads of the request once it's done with its current task
+        return;
+      }
+      work.numThreads++;
+    }
+
+    try {
+      factory.newThread(new Runnable() {
+        public void run() {
+          runRequestWork(factory);
+        }
+      }).start();
+    } catch (RuntimeException e) {
+      // Ran out of request threads for example. The task is left to the other threads of the request, if any
+      synchronized (requestWork) {
+        RequestWork work = requestWork.get(factory);
+        if (--work.numThreads == 0) {
+          requestWork.remove(factory);
+          work.pending.remove(task);
+          for (Runnable pending : work.pending) {
+            ((Future<?>) pending).cancel(false);
+          }
+          throw e;
+        }
+      }
+    }
+  }
+
+  private void runRequestWork(ThreadFactory factory) {
+    while (true) {
+      Runnable task;
+      synchronized (requestWork) {
+        RequestWork work = requestWork.get(factory);
+        task = work.pending.poll();
+        if (task == null) {
+          if (--work.numThreads == 0) {
+            requestWork.remove(factory);
+          }
+          return;
+        }
+      }
+      task.run();
+    }
+  }
+
+  private static final class RequestWork {
+    private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+    private int numThreads = 0;
+  }
+
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    DaemonThreadFactory(String name) {
+      this.name = name;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, name + "-" + threadNumber.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -16,6 +16,7 @@ limitations under the License.
 package com.google.appengine.datanucleus;
 
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
 
 import java.util.List;
 
@@ -57,6 +58,11 @@ public class BatchDeleteManager extends BatchManager<BatchDeleteManager.BatchDel
       }
       keyList.add(bds.key);
     }
-    EntityUtils.deleteEntitiesFromDatastore(ec, keyList);
+    Path previousPath = DatastoreMetrics.enterPath(Path.DELETE);
+    try {
+      EntityUtils.deleteEntitiesFromDatastore(ec, keyList);
+    } finally {
+      DatastoreMetrics.exitPath(previousPath);
+    }
   }
 }
\ No newline at end of file
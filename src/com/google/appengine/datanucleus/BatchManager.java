@@ -55,6 +55,13 @@ public abstract class BatchManager<T> {
     }
   }
 
+  /**
+   * Method to discard the batch in progress, without processing it.
+   */
+  void abandon() {
+    batchStateList.remove();
+  }
+
   void add(T batchState) {
     batchStateList.get().add(batchState);
   }
@@ -0,0 +1,68 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusOptimisticException;
+import org.datanucleus.flush.FlushProcess;
+import org.datanucleus.flush.OperationQueue;
+import org.datanucleus.state.ObjectProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flush process that runs another, collecting the updates of the objects flushed in a {@link BatchUpdateManager}
+ * so that they are put together once all objects are flushed, rather than with a put (and, for versioned objects,
+ * a get) each. This matters most when a detached graph is attached, all of its objects being updated by one flush.
+ * Inserts and deletes are still made as each object is flushed. The versions of the versioned objects to update are
+ * checked before any object is flushed, so an object whose version changed fails before it is written.
+ */
+public class BatchUpdateFlushProcess implements FlushProcess {
+
+  private final FlushProcess delegate;
+
+  public BatchUpdateFlushProcess(FlushProcess delegate) {
+    this.delegate = delegate;
+  }
+
+  public List<NucleusOptimisticException> execute(ExecutionContext ec, List<ObjectProvider> primaryOPs,
+      List<ObjectProvider> secondaryOPs, OperationQueue opQueue) {
+    DatastorePersistenceHandler handler = (DatastorePersistenceHandler) ec.getStoreManager().getPersistenceHandler();
+    if (!handler.updateBatchStart(ec)) {
+      // Flush within a flush, whose updates are put with those of the outer one
+      return delegate.execute(ec, primaryOPs, secondaryOPs, opQueue);
+    }
+
+    List<NucleusOptimisticException> optimisticFailures;
+    try {
+      // Versions are checked before any object is flushed, so an object whose check fails fails its flush before
+      // it, or its relations, are written
+      List<ObjectProvider> ops = new ArrayList<ObjectProvider>(primaryOPs);
+      if (secondaryOPs != null) {
+        ops.addAll(secondaryOPs);
+      }
+      handler.updateBatchCheckVersions(ec, ops);
+      optimisticFailures = delegate.execute(ec, primaryOPs, secondaryOPs, opQueue);
+    } catch (RuntimeException e) {
+      handler.updateBatchAbandon(ec);
+      throw e;
+    }
+
+    handler.updateBatchEnd(ec);
+    return optimisticFailures;
+  }
+}
@@ -0,0 +1,70 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+
+import org.datanucleus.exceptions.NucleusOptimisticException;
+import org.datanucleus.state.ObjectProvider;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manages the updates made by a flush (see {@link BatchUpdateFlushProcess}), so that the entities updated
+ * are put with one batch put. The versions of those that are versioned are checked with one batch get when
+ * the flush starts, and the outcome is recorded so they aren't checked again.
+ */
+public class BatchUpdateManager extends BatchManager<BatchUpdateManager.BatchUpdateState> {
+
+  static final class BatchUpdateState {
+    final ObjectProvider op;
+    final Entity entity;
+
+    BatchUpdateState(ObjectProvider op, Entity entity) {
+      this.op = op;
+      this.entity = entity;
+    }
+  }
+
+  /**
+   * The objects whose version was checked when the flush started, with the failure of the check, or null if it
+   * passed.
+   */
+  private final Map<ObjectProvider, NucleusOptimisticException> versionChecks =
+      new IdentityHashMap<ObjectProvider, NucleusOptimisticException>();
+
+  void versionChecked(ObjectProvider op, NucleusOptimisticException failure) {
+    versionChecks.put(op, failure);
+  }
+
+  boolean isVersionChecked(ObjectProvider op) {
+    return versionChecks.containsKey(op);
+  }
+
+  NucleusOptimisticException getVersionFailure(ObjectProvider op) {
+    return versionChecks.get(op);
+  }
+
+  String getOperation() {
+    return "update";
+  }
+
+  void processBatchState(DatastorePersistenceHandler handler, List<BatchUpdateState> batchUpdateStateList) {
+    handler.updateObjectsInternal(batchUpdateStateList);
+  }
+}
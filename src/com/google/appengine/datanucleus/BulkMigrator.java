@@ -0,0 +1,422 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.NucleusContext;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.RelationType;
+import org.datanucleus.util.NucleusLogger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+
+/**
+ * Bulk version of the {@link Migrator}, for migrating all entities of a class from GAE v1 StorageVersion
+ * (children identified by parent key) to GAE v2 StorageVersion (child keys stored in parents).
+ * <pre>
+ * NucleusContext nucCtx = ((JDOPersistenceManagerFactory)pmf).getNucleusContext(); // For JDO
+ * BulkMigrator migrator = new BulkMigrator(nucCtx, MyEntity.class);
+ * ParallelKindScan.Checkpoint checkpoint = migrator.split(8);
+ * migrator.migrate(checkpoint);
+ * </pre>
+ * The entities of the class are read by a {@link ParallelKindScan}, in cursor-delimited pages that are
+ * processed in parallel. Rather than issuing an ancestor query per entity, the children of all entities
+ * of a page are found with one query per relation : since a child key sorts directly after the key of its
+ * parent, the children of a page of parents (read in key order) are the entities of the child kind with
+ * keys between the first and last parent of the page. These queries are keys-only unless the children of
+ * a List have to be ordered by a property. Changed entities are then PUT in chunks.
+ * <p>
+ * The checkpoint is updated after each page has been PUT, so if the migration fails it can be resumed by
+ * passing the (persisted) checkpoint to {@link #migrate(ParallelKindScan.Checkpoint)} again. Entities
+ * that already have their child keys are left alone, so pages processed twice are harmless.
+ * Progress of the migration is available from {@link #getProgress()} while it runs.
+ * </p>
+ */
+public class BulkMigrator {
+
+  private final Class cls;
+  private final AbstractClassMetaData cmd;
+  private final DatastoreManager storeMgr;
+  private final ParallelKindScan scan;
+  private final DatastoreService datastore;
+
+  /** Owned relations of the class whose child keys need storing in the owner. */
+  private final List<OwnedRelation> relations = new ArrayList<OwnedRelation>();
+
+  private int putBatchSize = 500;
+
+  private final Progress progress = new Progress();
+
+  /**
+   * Constructor.
+   * @param nucCtx NucleusContext
+   * @param cls The pojo class whose entities are to be migrated
+   */
+  public BulkMigrator(NucleusContext nucCtx, Class cls) {
+    this.cls = cls;
+    this.storeMgr = (DatastoreManager) nucCtx.getStoreManager();
+    ClassLoaderResolver clr = nucCtx.getClassLoaderResolver(null);
+    this.cmd = nucCtx.getMetaDataManager().getMetaDataForClass(cls, clr);
+    Collection<String> mdClasses = nucCtx.getMetaDataManager().getClassesWithMetaData();
+    storeMgr.addClasses(mdClasses.toArray(new String[mdClasses.size()]), clr); // Make sure all classes are in store
+    this.scan = storeMgr.newParallelKindScan(cls, clr);
+    this.datastore = DatastoreServiceFactoryInternal.getDatastoreService(
+        storeMgr.getDefaultDatastoreServiceConfigForWrites(), storeMgr.getDatastoreMetrics(), null);
+
+    int[] relationFieldNumbers = cmd.getRelationMemberPositions(clr, nucCtx.getMetaDataManager());
+    if (relationFieldNumbers != null) {
+      for (int i = 0; i < relationFieldNumbers.length; i++) {
+        AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(relationFieldNumbers[i]);
+        if (MetaDataUtils.isOwnedRelation(mmd, storeMgr)) {
+          RelationType relationType = mmd.getRelationType(clr);
+          String propName = EntityUtils.getPropertyName(storeMgr.getIdentifierFactory(), mmd);
+          if (relationType == RelationType.ONE_TO_ONE_UNI ||
+              (relationType == RelationType.ONE_TO_ONE_BI && mmd.getMappedBy() == null)) {
+            AbstractClassMetaData relCmd = nucCtx.getMetaDataManager().getMetaDataForClass(mmd.getTypeName(), clr);
+            relations.add(new OwnedRelation(propName,
+                EntityUtils.getKindName(storeMgr.getIdentifierFactory(), relCmd), true,
+                Collections.<SortPredicate>emptyList()));
+          } else if (relationType == RelationType.ONE_TO_MANY_UNI || relationType == RelationType.ONE_TO_MANY_BI) {
+            AbstractClassMetaData childCmd = mmd.getCollection().getElementClassMetaData(clr, nucCtx.getMetaDataManager());
+            relations.add(new OwnedRelation(propName,
+                EntityUtils.getKindName(storeMgr.getIdentifierFactory(), childCmd), false,
+                Migrator.getChildSortPredicates(mmd, childCmd, storeMgr)));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param batchSize Number of entities per page
+   * @return This migrator
+   */
+  public BulkMigrator setBatchSize(int batchSize) {
+    scan.setBatchSize(batchSize);
+    return this;
+  }
+
+  /**
+   * @param parallelism Number of pages to process concurrently
+   * @return This migrator
+   */
+  public BulkMigrator setParallelism(int parallelism) {
+    scan.setParallelism(parallelism);
+    return this;
+  }
+
+  /**
+   * @param putBatchSize Maximum number of entities to PUT in one call
+   * @return This migrator
+   */
+  public BulkMigrator setPutBatchSize(int putBatchSize) {
+    this.putBatchSize = putBatchSize;
+    return this;
+  }
+
+  /**
+   * @param listener Listener to be passed the checkpoint after each page, for persisting
+   * @return This migrator
+   */
+  public BulkMigrator setCheckpointListener(ParallelKindScan.CheckpointListener listener) {
+    scan.setCheckpointListener(listener);
+    return this;
+  }
+
+  /**
+   * Method to split the entities of the class into (up to) the specified number of key ranges.
+   * @param numRanges Number of ranges required
+   * @return Checkpoint for the start of the migration
+   */
+  public ParallelKindScan.Checkpoint split(int numRanges) {
+    return scan.split(numRanges);
+  }
+
+  /**
+   * Method to migrate all entities of the class not yet processed according to the provided checkpoint,
+   * blocking until complete.
+   * @param checkpoint The checkpoint (from {@link #split(int)} or from a previous, failed, migration)
+   * @return The checkpoint, updated with the progress made
+   */
+  public ParallelKindScan.Checkpoint migrate(ParallelKindScan.Checkpoint checkpoint) {
+    progress.start();
+    if (relations.isEmpty()) {
+      NucleusLogger.DATASTORE.info("Class " + cls.getName() + " has no owned relations so needs no migration");
+      return checkpoint;
+    }
+
+    NucleusLogger.DATASTORE.info("Migrating entities of kind " + scan.getKind() + " for class=" + cls.getName());
+    scan.execute(checkpoint, new ParallelKindScan.EntityBatchConsumer() {
+      public void consume(List<Entity> batch) {
+        migratePage(batch);
+      }
+    });
+    NucleusLogger.DATASTORE.info("Migration of kind " + scan.getKind() + " complete : " + progress);
+    return checkpoint;
+  }
+
+  public Progress getProgress() {
+    return progress;
+  }
+
+  /**
+   * Method to migrate a page of entities, in key order.
+   * @param page The entities
+   */
+  void migratePage(List<Entity> page) {
+    List<Entity> candidates = new ArrayList<Entity>(page.size());
+    for (Entity entity : page) {
+      if (Migrator.isOfClass(entity, cls, cmd, storeMgr)) {
+        candidates.add(entity);
+      }
+    }
+
+    Map<Key, Entity> changedEntities = new HashMap<Key, Entity>();
+    for (OwnedRelation relation : relations) {
+      List<Entity> owners = new ArrayList<Entity>();
+      for (Entity entity : candidates) {
+        if (!entity.hasProperty(relation.propName)) {
+          owners.add(entity);
+        }
+      }
+      if (owners.isEmpty()) {
+        continue;
+      }
+
+      Map<Key, List<Key>> childKeysByParent = getChildKeys(relation, owners);
+      for (Entity owner : owners) {
+        List<Key> childKeys = childKeysByParent.get(owner.getKey());
+        if (relation.oneToOne) {
+          owner.setProperty(relation.propName, childKeys != null ? childKeys.get(0) : null);
+        } else {
+          owner.setProperty(relation.propName, childKeys != null ? childKeys : new ArrayList<Key>());
+        }
+        changedEntities.put(owner.getKey(), owner);
+      }
+    }
+
+    List<Entity> toPut = new ArrayList<Entity>(changedEntities.values());
+    for (int i = 0; i < toPut.size(); i += putBatchSize) {
+      List<Entity> chunk = toPut.subList(i, Math.min(toPut.size(), i + putBatchSize));
+      if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_NATIVE.debug("Putting " + chunk.size() + " entities of class " + cls.getName());
+      }
+      datastore.put(chunk);
+      progress.numPuts.incrementAndGet();
+    }
+    progress.numEntitiesRead.addAndGet(page.size());
+    progress.numEntitiesMigrated.addAndGet(toPut.size());
+  }
+
+  /**
+   * Method to find the direct children of the relation for all of the provided owners with a single query.
+   * The owners must be in key order.
+   * @return The child keys keyed by the key of their parent, in the order required by the relation
+   */
+  private Map<Key, List<Key>> getChildKeys(OwnedRelation relation, List<Entity> owners) {
+    Map<Key, List<Key>> childKeysByParent = new HashMap<Key, List<Key>>();
+    Map<Key, List<Entity>> childrenByParent = new HashMap<Key, List<Entity>>();
+    for (Entity owner : owners) {
+      childKeysByParent.put(owner.getKey(), null);
+    }
+    Key first = owners.get(0).getKey();
+    Key last = owners.get(owners.size() - 1).getKey();
+
+    boolean ordered = !relation.sortPredicates.isEmpty();
+    Query q = new Query(relation.childKindName)
+        .addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN, first)
+        .addSort(Entity.KEY_RESERVED_PROPERTY);
+    if (!ordered) {
+      q.setKeysOnly();
+    }
+    progress.numChildQueries.incrementAndGet();
+    for (Entity child : datastore.prepare(q).asIterable(FetchOptions.Builder.withChunkSize(500))) {
+      Key childKey = child.getKey();
+      if (childKey.compareTo(last) > 0 && !isDescendant(childKey, last)) {
+        // Passed the last child of the last owner
+        break;
+      }
+      Key parentKey = childKey.getParent();
+      if (parentKey == null || !childKeysByParent.containsKey(parentKey)) {
+        // Not a direct child of an owner in this page
+        continue;
+      }
+      if (ordered) {
+        List<Entity> children = childrenByParent.get(parentKey);
+        if (children == null) {
+          children = new ArrayList<Entity>();
+          childrenByParent.put(parentKey, children);
+        }
+        children.add(child);
+      } else {
+        List<Key> childKeys = childKeysByParent.get(parentKey);
+        if (childKeys == null) {
+          childKeys = new ArrayList<Key>();
+          childKeysByParent.put(parentKey, childKeys);
+        }
+        childKeys.add(childKey);
+      }
+    }
+
+    if (ordered) {
+      Comparator<Entity> comparator = new SortPredicateComparator(relation.sortPredicates);
+      for (Map.Entry<Key, List<Entity>> entry : childrenByParent.entrySet()) {
+        List<Entity> children = entry.getValue();
+        Collections.sort(children, comparator);
+        List<Key> childKeys = new ArrayList<Key>(children.size());
+        for (Entity child : children) {
+          childKeys.add(child.getKey());
+        }
+        childKeysByParent.put(entry.getKey(), childKeys);
+      }
+    }
+    return childKeysByParent;
+  }
+
+  private static boolean isDescendant(Key key, Key ancestor) {
+    for (Key parent = key.getParent(); parent != null; parent = parent.getParent()) {
+      if (parent.equals(ancestor)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Owned relation of the class being migrated, where the owner is to store the keys of its children.
+   */
+  private static final class OwnedRelation {
+    final String propName;
+    final String childKindName;
+    final boolean oneToOne;
+    final List<SortPredicate> sortPredicates;
+
+    OwnedRelation(String propName, String childKindName, boolean oneToOne, List<SortPredicate> sortPredicates) {
+      this.propName = propName;
+      this.childKindName = childKindName;
+      this.oneToOne = oneToOne;
+      this.sortPredicates = sortPredicates;
+    }
+  }
+
+  /**
+   * Comparator ordering the child entities of a single parent as the equivalent ancestor query would,
+   * with nulls before other values and ties broken by key.
+   */
+  private static final class SortPredicateComparator implements Comparator<Entity> {
+    private final List<SortPredicate> sortPredicates;
+
+    SortPredicateComparator(List<SortPredicate> sortPredicates) {
+      this.sortPredicates = sortPredicates;
+    }
+
+    public int compare(Entity e1, Entity e2) {
+      for (SortPredicate sp : sortPredicates) {
+        int result;
+        if (Entity.KEY_RESERVED_PROPERTY.equals(sp.getPropertyName())) {
+          result = e1.getKey().compareTo(e2.getKey());
+        } else {
+          result = compareValues(e1.getProperty(sp.getPropertyName()), e2.getProperty(sp.getPropertyName()));
+        }
+        if (result != 0) {
+          return sp.getDirection() == Query.SortDirection.ASCENDING ? result : -result;
+        }
+      }
+      return e1.getKey().compareTo(e2.getKey());
+    }
+
+    private static int compareValues(Object v1, Object v2) {
+      if (v1 == null || v2 == null) {
+        return v1 == null ? (v2 == null ? 0 : -1) : 1;
+      }
+      if (v1 instanceof Comparable && v1.getClass() == v2.getClass()) {
+        return ((Comparable) v1).compareTo(v2);
+      }
+      return v1.getClass().getName().compareTo(v2.getClass().getName());
+    }
+  }
+
+  /**
+   * Progress of a migration. All counts are updated as pages complete, so can be read while the
+   * migration is running.
+   */
+  public static final class Progress {
+    private final AtomicLong numEntitiesRead = new AtomicLong();
+    private final AtomicLong numEntitiesMigrated = new AtomicLong();
+    private final AtomicLong numChildQueries = new AtomicLong();
+    private final AtomicLong numPuts = new AtomicLong();
+    private volatile long startTime = System.currentTimeMillis();
+
+    void start() {
+      startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Number of entities read, including those that needed no changes
+     */
+    public long getNumberOfEntitiesRead() {
+      return numEntitiesRead.get();
+    }
+
+    /**
+     * @return Number of entities updated and PUT
+     */
+    public long getNumberOfEntitiesMigrated() {
+      return numEntitiesMigrated.get();
+    }
+
+    public long getNumberOfChildQueries() {
+      return numChildQueries.get();
+    }
+
+    public long getNumberOfPuts() {
+      return numPuts.get();
+    }
+
+    public long getElapsedMillis() {
+      return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * @return Number of entities read per second since the migration (most recently) started
+     */
+    public double getEntitiesReadPerSecond() {
+      long elapsed = getElapsedMillis();
+      return elapsed > 0 ? getNumberOfEntitiesRead() * 1000.0 / elapsed : 0.0;
+    }
+
+    public String toString() {
+      return "read=" + getNumberOfEntitiesRead() + " migrated=" + getNumberOfEntitiesMigrated() +
+          " childQueries=" + getNumberOfChildQueries() + " puts=" + getNumberOfPuts() +
+          " elapsed=" + getElapsedMillis() + "ms (" + (long) getEntitiesReadPerSecond() + " entities/s)";
+    }
+  }
+}
@@ -0,0 +1,483 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the shapes (kind, ancestor, filters, sorts) of the queries sent to the datastore that need a
+ * composite index, and produces the minimal set of indexes serving them as a datastore-indexes.xml.
+ * A query with a shape missing from the indexes of the application fails when run in production (or, with
+ * "datanucleus.appengine.query.inMemoryWhenUnsupported", is evaluated in memory), so collecting the shapes
+ * while running the tests of an application finds the indexes it needs before it is deployed.
+ * Enabled by {@link DatastoreManager#COMPOSITE_INDEXES_PROPERTY}; the shapes can also be appended to a log
+ * when the StoreManager is closed (see {@link DatastoreManager#COMPOSITE_INDEXES_LOG_PROPERTY}) for the
+ * {@link CompositeIndexGenerator} to merge offline.
+ * <p>
+ * Queries needing no more than the built-in indexes aren't collected. Those are the queries on a kind with
+ * only equality filters, with filters and sorts on one property only, or with only an ancestor and key
+ * filters. The index for a shape has the equality filter properties first, then the inequality filter
+ * property, then the sort orders. Indexes whose properties are a prefix of another index (the equality
+ * properties of each being in any order) are served by that index, so are merged into it.
+ * </p>
+ */
+public class CompositeIndexCollector {
+
+  /** The shapes collected. */
+  private final Set<IndexShape> shapes =
+      Collections.newSetFromMap(new ConcurrentHashMap<IndexShape, Boolean>());
+
+  /**
+   * Method to record a query sent to the datastore.
+   * @param query The query
+   */
+  public void record(Query query) {
+    IndexShape shape = IndexShape.forQuery(query);
+    if (shape != null) {
+      shapes.add(shape);
+    }
+  }
+
+  /**
+   * @return The shapes of the queries recorded that need a composite index
+   */
+  public Set<IndexShape> getShapes() {
+    return Collections.unmodifiableSet(shapes);
+  }
+
+  /**
+   * Method to forget all shapes recorded so far.
+   */
+  public void reset() {
+    shapes.clear();
+  }
+
+  /**
+   * @return The composite indexes serving all shapes recorded, ordered by kind
+   */
+  public List<CompositeIndex> getIndexes() {
+    return mergeShapes(shapes);
+  }
+
+  /**
+   * Method to find the minimal indexes serving the provided shapes. Shapes are taken longest first, each
+   * becoming an index unless an index already chosen serves it. When the equality properties of a new index can
+   * be ordered in more than one way, the order serving the most of the remaining shapes is chosen.
+   * @param shapes The shapes
+   * @return The indexes, ordered by kind
+   */
+  static List<CompositeIndex> mergeShapes(Collection<IndexShape> shapes) {
+    List<IndexShape> pending = new ArrayList<IndexShape>(shapes);
+    Collections.sort(pending, new Comparator<IndexShape>() {
+      public int compare(IndexShape s1, IndexShape s2) {
+        if (s1.size() != s2.size()) {
+          return s2.size() - s1.size();
+        }
+        return s1.toString().compareTo(s2.toString());
+      }
+    });
+
+    List<CompositeIndex> indexes = new ArrayList<CompositeIndex>();
+    while (!pending.isEmpty()) {
+      IndexShape shape = pending.remove(0);
+      CompositeIndex best = null;
+      int bestServed = -1;
+      for (List<String> equalityOrder : candidateEqualityOrders(shape, pending)) {
+        CompositeIndex index = shape.toIndex(equalityOrder);
+        int served = 0;
+        for (IndexShape other : pending) {
+          if (index.serves(other)) {
+            served++;
+          }
+        }
+        if (served > bestServed) {
+          best = index;
+          bestServed = served;
+        }
+      }
+      for (Iterator<IndexShape> iter = pending.iterator(); iter.hasNext();) {
+        if (best.serves(iter.next())) {
+          iter.remove();
+        }
+      }
+      indexes.add(best);
+    }
+
+    Collections.sort(indexes, new Comparator<CompositeIndex>() {
+      public int compare(CompositeIndex i1, CompositeIndex i2) {
+        return i1.toString().compareTo(i2.toString());
+      }
+    });
+    return indexes;
+  }
+
+  /**
+   * Method to find the orders of the equality properties of a shape worth considering : in name order, and
+   * for each shorter shape of the same kind, its equality properties then its sort properties first.
+   */
+  private static Collection<List<String>> candidateEqualityOrders(IndexShape shape, List<IndexShape> others) {
+    Set<List<String>> orders = new LinkedHashSet<List<String>>();
+    orders.add(new ArrayList<String>(shape.equalityProperties));
+    if (shape.equalityProperties.size() > 1) {
+      for (IndexShape other : others) {
+        if (!other.kind.equals(shape.kind) || other.ancestor != shape.ancestor) {
+          continue;
+        }
+        List<String> order = new ArrayList<String>();
+        for (String propName : other.equalityProperties) {
+          if (shape.equalityProperties.contains(propName)) {
+            order.add(propName);
+          }
+        }
+        for (SortPredicate sort : other.postfix) {
+          if (shape.equalityProperties.contains(sort.getPropertyName()) && !order.contains(sort.getPropertyName())) {
+            order.add(sort.getPropertyName());
+          }
+        }
+        for (String propName : shape.equalityProperties) {
+          if (!order.contains(propName)) {
+            order.add(propName);
+          }
+        }
+        orders.add(order);
+      }
+    }
+    return orders;
+  }
+
+  /**
+   * Method to write the indexes serving all shapes recorded as a datastore-indexes.xml.
+   * @param writer Where to write
+   * @param autoGenerate Whether the datastore-indexes.xml allows the development server to add indexes
+   * @throws IOException If writing fails
+   */
+  public void writeDatastoreIndexes(Writer writer, boolean autoGenerate) throws IOException {
+    writeDatastoreIndexes(getIndexes(), writer, autoGenerate);
+  }
+
+  static void writeDatastoreIndexes(List<CompositeIndex> indexes, Writer writer, boolean autoGenerate)
+      throws IOException {
+    writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+    writer.write("<datastore-indexes autoGenerate=\"" + autoGenerate + "\">\n");
+    for (CompositeIndex index : indexes) {
+      writer.write("  <datastore-index kind=\"" + escapeXml(index.kind) + "\" ancestor=\"" + index.ancestor +
+          "\">\n");
+      for (SortPredicate property : index.properties) {
+        writer.write("    <property name=\"" + escapeXml(property.getPropertyName()) + "\" direction=\"" +
+            (property.getDirection() == SortDirection.ASCENDING ? "asc" : "desc") + "\"/>\n");
+      }
+      writer.write("  </datastore-index>\n");
+    }
+    writer.write("</datastore-indexes>\n");
+    writer.flush();
+  }
+
+  private static String escapeXml(String str) {
+    return str.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  /**
+   * Method to write the shapes recorded, one per line, for reading back by {@link #readShapes}.
+   * @param writer Where to write
+   * @throws IOException If writing fails
+   */
+  public void writeShapes(Writer writer) throws IOException {
+    for (IndexShape shape : shapes) {
+      writer.write(shape.toString());
+      writer.write("\n");
+    }
+    writer.flush();
+  }
+
+  /**
+   * Method to add the shapes written by {@link #writeShapes}.
+   * @param reader Where to read from
+   * @throws IOException If reading fails, or a line isn't a shape
+   */
+  public void readShapes(Reader reader) throws IOException {
+    BufferedReader br = new BufferedReader(reader);
+    String line;
+    while ((line = br.readLine()) != null) {
+      if (line.trim().length() > 0) {
+        shapes.add(IndexShape.parse(line));
+      }
+    }
+  }
+
+  /**
+   * Shape of a query needing a composite index : its kind, whether it has an ancestor, the properties of its
+   * equality filters, and then the properties its results are ordered by (any inequality filter property first,
+   * then its sort orders).
+   */
+  public static final class IndexShape {
+    private final String kind;
+    private final boolean ancestor;
+    private final SortedSet<String> equalityProperties;
+    private final List<SortPredicate> postfix;
+
+    IndexShape(String kind, boolean ancestor, SortedSet<String> equalityProperties, List<SortPredicate> postfix) {
+      this.kind = kind;
+      this.ancestor = ancestor;
+      this.equalityProperties = equalityProperties;
+      this.postfix = postfix;
+    }
+
+    /**
+     * @param query The query
+     * @return The shape of the query, or null if the built-in indexes serve it
+     */
+    @SuppressWarnings("deprecation")
+    static IndexShape forQuery(Query query) {
+      if (query.getKind() == null) {
+        return null;
+      }
+      SortedSet<String> equalityProperties = new TreeSet<String>();
+      String inequalityProperty = null;
+      for (FilterPredicate filter : query.getFilterPredicates()) {
+        FilterOperator op = filter.getOperator();
+        if (op == FilterOperator.EQUAL || op == FilterOperator.IN) {
+          if (!Entity.KEY_RESERVED_PROPERTY.equals(filter.getPropertyName())) {
+            equalityProperties.add(filter.getPropertyName());
+          }
+        } else {
+          inequalityProperty = filter.getPropertyName();
+        }
+      }
+
+      List<SortPredicate> postfix = new ArrayList<SortPredicate>();
+      List<SortPredicate> sorts = query.getSortPredicates();
+      if (inequalityProperty != null &&
+          (sorts.isEmpty() || !sorts.get(0).getPropertyName().equals(inequalityProperty))) {
+        postfix.add(new SortPredicate(inequalityProperty, SortDirection.ASCENDING));
+      }
+      for (SortPredicate sort : sorts) {
+        // Sorting on a property with an equality filter is dropped by the datastore
+        if (!equalityProperties.contains(sort.getPropertyName()) && !containsProperty(postfix, sort)) {
+          postfix.add(sort);
+        }
+      }
+      // Entities of an index are in key order after its properties
+      while (!postfix.isEmpty() && isKeyAscending(postfix.get(postfix.size() - 1))) {
+        postfix.remove(postfix.size() - 1);
+      }
+
+      boolean ancestor = query.getAncestor() != null;
+      if (isBuiltIn(ancestor, equalityProperties, postfix)) {
+        return null;
+      }
+      return new IndexShape(query.getKind(), ancestor, equalityProperties, postfix);
+    }
+
+    private static boolean containsProperty(List<SortPredicate> sorts, SortPredicate sort) {
+      for (SortPredicate other : sorts) {
+        if (other.getPropertyName().equals(sort.getPropertyName())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean isKeyAscending(SortPredicate sort) {
+      return Entity.KEY_RESERVED_PROPERTY.equals(sort.getPropertyName()) &&
+          sort.getDirection() == SortDirection.ASCENDING;
+    }
+
+    private static boolean isBuiltIn(boolean ancestor, Set<String> equalityProperties,
+        List<SortPredicate> postfix) {
+      if (postfix.isEmpty()) {
+        // Kind, ancestor and equality filters are served by merging the built-in indexes
+        return true;
+      }
+      // One property, in either direction, is served by its built-in index
+      return !ancestor && equalityProperties.isEmpty() && postfix.size() == 1;
+    }
+
+    int size() {
+      return equalityProperties.size() + postfix.size();
+    }
+
+    CompositeIndex toIndex(List<String> equalityOrder) {
+      List<SortPredicate> properties = new ArrayList<SortPredicate>();
+      for (String propName : equalityOrder) {
+        properties.add(new SortPredicate(propName, SortDirection.ASCENDING));
+      }
+      properties.addAll(postfix);
+      return new CompositeIndex(kind, ancestor, properties);
+    }
+
+    public String getKind() {
+      return kind;
+    }
+
+    public boolean isAncestor() {
+      return ancestor;
+    }
+
+    public Set<String> getEqualityProperties() {
+      return Collections.unmodifiableSet(equalityProperties);
+    }
+
+    public List<SortPredicate> getOrderProperties() {
+      return Collections.unmodifiableList(postfix);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof IndexShape)) {
+        return false;
+      }
+      IndexShape other = (IndexShape) o;
+      return kind.equals(other.kind) && ancestor == other.ancestor &&
+          equalityProperties.equals(other.equalityProperties) && postfix.equals(other.postfix);
+    }
+
+    @Override
+    public int hashCode() {
+      return ((kind.hashCode() * 31 + (ancestor ? 1 : 0)) * 31 + equalityProperties.hashCode()) * 31 +
+          postfix.hashCode();
+    }
+
+    /**
+     * @return The shape as "kind TAB ancestor TAB equality properties TAB order properties", the lists
+     *     separated by commas and each order property followed by " asc" or " desc"
+     */
+    @Override
+    public String toString() {
+      StringBuilder str = new StringBuilder();
+      str.append(kind).append('\t').append(ancestor).append('\t');
+      boolean first = true;
+      for (String propName : equalityProperties) {
+        str.append(first ? "" : ",").append(propName);
+        first = false;
+      }
+      str.append('\t');
+      first = true;
+      for (SortPredicate sort : postfix) {
+        str.append(first ? "" : ",").append(sort.getPropertyName())
+            .append(sort.getDirection() == SortDirection.ASCENDING ? " asc" : " desc");
+        first = false;
+      }
+      return str.toString();
+    }
+
+    static IndexShape parse(String str) throws IOException {
+      String[] parts = str.split("\t", -1);
+      if (parts.length != 4) {
+        throw new IOException("Invalid query shape : " + str);
+      }
+      SortedSet<String> equalityProperties = new TreeSet<String>();
+      if (parts[2].length() > 0) {
+        for (String propName : parts[2].split(",")) {
+          equalityProperties.add(propName);
+        }
+      }
+      List<SortPredicate> postfix = new ArrayList<SortPredicate>();
+      if (parts[3].length() > 0) {
+        for (String sort : parts[3].split(",")) {
+          int space = sort.lastIndexOf(' ');
+          if (space <= 0) {
+            throw new IOException("Invalid query shape : " + str);
+          }
+          postfix.add(new SortPredicate(sort.substring(0, space),
+              sort.substring(space + 1).equals("desc") ? SortDirection.DESCENDING : SortDirection.ASCENDING));
+        }
+      }
+      return new IndexShape(parts[0], Boolean.parseBoolean(parts[1]), equalityProperties, postfix);
+    }
+  }
+
+  /**
+   * A composite index : its kind, whether it includes the ancestors, and its properties in order.
+   */
+  public static final class CompositeIndex {
+    private final String kind;
+    private final boolean ancestor;
+    private final List<SortPredicate> properties;
+
+    CompositeIndex(String kind, boolean ancestor, List<SortPredicate> properties) {
+      this.kind = kind;
+      this.ancestor = ancestor;
+      this.properties = properties;
+    }
+
+    public String getKind() {
+      return kind;
+    }
+
+    public boolean isAncestor() {
+      return ancestor;
+    }
+
+    public List<SortPredicate> getProperties() {
+      return Collections.unmodifiableList(properties);
+    }
+
+    /**
+     * @param shape The shape of a query
+     * @return Whether this index serves queries of the shape, which is when the index starts with the equality
+     *     properties of the shape in some order (ascending), followed by its order properties
+     */
+    boolean serves(IndexShape shape) {
+      if (!kind.equals(shape.kind) || ancestor != shape.ancestor || properties.size() < shape.size()) {
+        return false;
+      }
+      int numEqualities = shape.equalityProperties.size();
+      Set<String> equalityProperties = new TreeSet<String>();
+      for (SortPredicate property : properties.subList(0, numEqualities)) {
+        if (property.getDirection() != SortDirection.ASCENDING) {
+          return false;
+        }
+        equalityProperties.add(property.getPropertyName());
+      }
+      return equalityProperties.equals(shape.equalityProperties) &&
+          properties.subList(numEqualities, shape.size()).equals(shape.postfix);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder str = new StringBuilder(kind);
+      if (ancestor) {
+        str.append(" (ancestor)");
+      }
+      for (SortPredicate property : properties) {
+        str.append(' ').append(property.getPropertyName())
+            .append(property.getDirection() == SortDirection.ASCENDING ? " asc" : " desc");
+      }
+      return str.toString();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Tool producing a datastore-indexes.xml from the query shapes logged by a {@link CompositeIndexCollector}.
+ * Run the tests of the application with {@link DatastoreManager#COMPOSITE_INDEXES_LOG_PROPERTY} set, so that
+ * the shapes of the queries they run are appended to the log as each StoreManager closes, then
+ * <pre>
+ * java com.google.appengine.datanucleus.CompositeIndexGenerator [-autoGenerate] war/WEB-INF/datastore-indexes.xml query-shapes.log ...
+ * </pre>
+ * The shapes of all logs are merged into the minimal indexes serving them. With -autoGenerate the file
+ * written lets the development server add further indexes.
+ */
+public class CompositeIndexGenerator {
+
+  private final CompositeIndexCollector collector = new CompositeIndexCollector();
+
+  /**
+   * Method to add the shapes of a log.
+   * @param log The log
+   * @throws IOException If reading the log fails
+   */
+  public void addLog(File log) throws IOException {
+    Reader reader = new InputStreamReader(new FileInputStream(log), "UTF-8");
+    try {
+      collector.readShapes(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Method to write the indexes serving all shapes added.
+   * @param file The datastore-indexes.xml to write
+   * @param autoGenerate Whether the development server may add indexes
+   * @throws IOException If writing fails
+   */
+  public void write(File file, boolean autoGenerate) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      collector.writeDatastoreIndexes(writer, autoGenerate);
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Accessor for the collector holding the shapes added.
+   * @return The collector
+   */
+  public CompositeIndexCollector getCollector() {
+    return collector;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int first = 0;
+    boolean autoGenerate = false;
+    if (args.length > 0 && args[0].equals("-autoGenerate")) {
+      autoGenerate = true;
+      first++;
+    }
+    if (args.length - first < 2) {
+      System.err.println("Usage : CompositeIndexGenerator [-autoGenerate] <datastore-indexes.xml> <log> ...");
+      System.exit(1);
+    }
+
+    CompositeIndexGenerator generator = new CompositeIndexGenerator();
+    for (int i = first + 1; i < args.length; i++) {
+      generator.addLog(new File(args[i]));
+    }
+    generator.write(new File(args[first]), autoGenerate);
+    System.out.println("Wrote " + generator.getCollector().getIndexes().size() + " indexes serving " +
+        generator.getCollector().getShapes().size() + " query shapes to " + args[first]);
+  }
+}
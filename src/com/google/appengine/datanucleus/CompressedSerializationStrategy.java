@@ -0,0 +1,304 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Text;
+
+import org.datanucleus.exceptions.NucleusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Serialization strategy that compresses values, using the JDK Deflater, once their serialized form reaches
+ * a size threshold. Strings, {@link Text} and byte arrays are stored as their bytes (UTF-8 for strings) rather
+ * than via java serialization, so a long String or Text member can be stored compressed by marking it
+ * as serialized with this strategy
+ * <pre>
+ * @Persistent(serialized = "true")
+ * @Extension(vendorName = "datanucleus", key="serialization-strategy",
+ *            value="com.google.appengine.datanucleus.CompressedSerializationStrategy")
+ * private String description;
+ * </pre>
+ * The threshold (in bytes) and the Deflater level (0-9, or -1 for the default) can be set on the member with
+ * the extensions "compression-threshold" and "compression-level".
+ * <p>
+ * Values are written with a header saying how the rest is encoded, so compressed and uncompressed values can
+ * be mixed, and values written by {@link SerializationManager#DEFAULT_SERIALIZATION_STRATEGY} (without
+ * the header) can still be read. This means a member can be switched to this strategy without migrating
+ * existing data. Since that strategy stores byte arrays as they are, the header ends with a checksum of the
+ * rest of the value, so that a legacy byte array that happens to start with the same bytes is not mistaken
+ * for one written with the header. Values are decompressed as they are read, without inflating into an
+ * intermediate array.
+ * </p>
+ */
+public class CompressedSerializationStrategy implements SerializationStrategy {
+
+  /** Default size in bytes at which values are compressed. */
+  public static final int DEFAULT_THRESHOLD = 1024;
+
+  /** Extension on the member defining the size in bytes at which values are compressed. */
+  public static final String COMPRESSION_THRESHOLD_KEY = "compression-threshold";
+
+  /** Extension on the member defining the Deflater level. */
+  public static final String COMPRESSION_LEVEL_KEY = "compression-level";
+
+  /** Start of the header. Standard java serialization starts with 0xACED so never matches. */
+  private static final byte MAGIC_0 = (byte) 0xD7;
+  private static final byte MAGIC_1 = (byte) 0x5A;
+
+  private static final byte VERSION = 1;
+
+  /** Magic, version, flags, then the CRC-32 of the rest of the value. */
+  private static final int HEADER_LENGTH = 8;
+
+  /** Flag in the last byte of the header for the payload being deflated. */
+  private static final int FLAG_DEFLATED = 0x80;
+
+  /** Payload types, in the low bits of the last byte of the header. */
+  private static final int PAYLOAD_SERIALIZED = 0;
+  private static final int PAYLOAD_UTF8 = 1;
+  private static final int PAYLOAD_BYTES = 2;
+  private static final int PAYLOAD_TYPE_MASK = 0x0F;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final int threshold;
+
+  private final int level;
+
+  public CompressedSerializationStrategy() {
+    this(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param threshold Size in bytes at which values are compressed
+   * @param level Deflater level, 0-9 or -1 for the default
+   */
+  public CompressedSerializationStrategy(int threshold, int level) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Compression threshold must not be negative : " + threshold);
+    }
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Compression level must be between -1 and 9 : " + level);
+    }
+    this.threshold = threshold;
+    this.level = level;
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public Blob serialize(Object obj) {
+    if (obj == null) {
+      throw new NullPointerException("Object cannot be null.");
+    }
+    SerializationBuffer buffer = SerializationBuffer.acquire();
+    try {
+      int payloadType;
+      if (obj instanceof String) {
+        payloadType = PAYLOAD_UTF8;
+        buffer.write(((String) obj).getBytes(UTF8));
+      } else if (obj instanceof Text) {
+        payloadType = PAYLOAD_UTF8;
+        buffer.write(((Text) obj).getValue().getBytes(UTF8));
+      } else if (obj instanceof byte[]) {
+        payloadType = PAYLOAD_BYTES;
+        buffer.write((byte[]) obj);
+      } else if (obj instanceof Byte[]) {
+        payloadType = PAYLOAD_BYTES;
+        buffer.write(PrimitiveArrays.toByteArray(Arrays.asList((Byte[]) obj)));
+      } else {
+        payloadType = PAYLOAD_SERIALIZED;
+        ObjectOutputStream oos = new ObjectOutputStream(buffer);
+        oos.writeObject(obj);
+        oos.flush();
+      }
+
+      if (buffer.size() >= threshold) {
+        byte[] deflated = deflate(buffer, payloadType);
+        if (deflated != null) {
+          return new Blob(deflated);
+        }
+      }
+      // Not worth compressing
+      byte[] bytes = new byte[HEADER_LENGTH + buffer.size()];
+      buffer.copyTo(bytes, HEADER_LENGTH);
+      writeHeader(bytes, payloadType);
+      return new Blob(bytes);
+    } catch (IOException ioe) {
+      throw new NucleusException("Received IOException serializing object of type "
+          + obj.getClass().getName(), ioe);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /**
+   * @return The header and deflated payload, or null if deflating doesn't make it any smaller
+   */
+  private byte[] deflate(SerializationBuffer payload, int payloadType) {
+    // Not cached per thread, since a Deflater holds native memory until ended
+    Deflater deflater = new Deflater(level);
+    try {
+      payload.deflate(deflater);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(payload.size() / 2 + HEADER_LENGTH);
+      // Space for the header, written once the rest is known
+      out.write(new byte[HEADER_LENGTH], 0, HEADER_LENGTH);
+      byte[] chunk = new byte[Math.min(payload.size(), 8192)];
+      while (!deflater.finished()) {
+        int num = deflater.deflate(chunk);
+        out.write(chunk, 0, num);
+        if (out.size() >= payload.size() + HEADER_LENGTH) {
+          return null;
+        }
+      }
+      byte[] bytes = out.toByteArray();
+      writeHeader(bytes, payloadType | FLAG_DEFLATED);
+      return bytes;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Write the header at the start of the provided bytes, the rest of which must already be written.
+   */
+  private static void writeHeader(byte[] bytes, int flags) {
+    bytes[0] = MAGIC_0;
+    bytes[1] = MAGIC_1;
+    bytes[2] = VERSION;
+    bytes[3] = (byte) flags;
+    int checksum = checksum(bytes);
+    bytes[4] = (byte) (checksum >>> 24);
+    bytes[5] = (byte) (checksum >>> 16);
+    bytes[6] = (byte) (checksum >>> 8);
+    bytes[7] = (byte) checksum;
+  }
+
+  /**
+   * @return The CRC-32 of the bytes following the header
+   */
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * @return Whether the bytes start with the header written by this strategy
+   */
+  static boolean hasHeader(byte[] bytes) {
+    if (bytes.length < HEADER_LENGTH || bytes[0] != MAGIC_0 || bytes[1] != MAGIC_1 || bytes[2] != VERSION) {
+      return false;
+    }
+    int flags = bytes[3] & 0xFF;
+    if ((flags & PAYLOAD_TYPE_MASK) > PAYLOAD_BYTES || (flags & ~(PAYLOAD_TYPE_MASK | FLAG_DEFLATED)) != 0) {
+      return false;
+    }
+    int checksum = ((bytes[4] & 0xFF) << 24) | ((bytes[5] & 0xFF) << 16) | ((bytes[6] & 0xFF) << 8) |
+        (bytes[7] & 0xFF);
+    return checksum == checksum(bytes);
+  }
+
+  public Object deserialize(Blob blob, Class<?> targetClass) {
+    if (blob == null) {
+      throw new NullPointerException("Blob cannot be null.");
+    }
+    byte[] bytes = blob.getBytes();
+    if (!hasHeader(bytes)) {
+      // Written before this strategy was used for the member
+      return SerializationManager.DEFAULT_SERIALIZATION_STRATEGY.deserialize(blob, targetClass);
+    }
+
+    int flags = bytes[3] & 0xFF;
+    Inflater inflater = null;
+    InputStream in = new ByteArrayInputStream(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+    try {
+      if ((flags & FLAG_DEFLATED) != 0) {
+        inflater = new Inflater();
+        in = new InflaterInputStream(in, inflater);
+      }
+      Object obj;
+      switch (flags & PAYLOAD_TYPE_MASK) {
+        case PAYLOAD_UTF8:
+          String str = readString(in);
+          obj = targetClass.equals(Text.class) ? new Text(str) : str;
+          break;
+        case PAYLOAD_BYTES:
+          byte[] payload = readBytes(in);
+          obj = targetClass.equals(Byte[].class) ?
+              PrimitiveArrays.asList(payload).toArray(new Byte[payload.length]) : payload;
+          break;
+        default:
+          obj = new ObjectInputStream(in).readObject();
+      }
+      if (!targetClass.isAssignableFrom(obj.getClass())) {
+        throw new NucleusException("Bytes in datastore comprise an object of type "
+            + obj.getClass().getName() + " but expected type is " + targetClass.getName());
+      }
+      return obj;
+    } catch (IOException ioe) {
+      throw new NucleusException("Received IOException deserializing a byte array.", ioe);
+    } catch (ClassNotFoundException cnfe) {
+      throw new NucleusException("Received ClassNotFoundException deserializing a byte array.", cnfe);
+    } finally {
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+  }
+
+  private static String readString(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, UTF8);
+    StringBuilder str = new StringBuilder();
+    char[] chunk = new char[4096];
+    int num;
+    while ((num = reader.read(chunk)) != -1) {
+      str.append(chunk, 0, num);
+    }
+    return str.toString();
+  }
+
+  private static byte[] readBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    int num;
+    while ((num = in.read(chunk)) != -1) {
+      out.write(chunk, 0, num);
+    }
+    return out.toByteArray();
+  }
+}
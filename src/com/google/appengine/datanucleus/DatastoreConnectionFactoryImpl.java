@@ -90,7 +90,7 @@ public class DatastoreConnectionFactoryImpl extends AbstractConnectionFactory {
    * {@inheritDoc}
    */
   public ManagedConnection createManagedConnection(ExecutionContext ec, Map transactionOptions) {
-    return new DatastoreManagedConnection(storeMgr, isAutoCreateTransaction());
+    return new DatastoreManagedConnection(storeMgr, ec, isAutoCreateTransaction());
   }
 
   boolean isAutoCreateTransaction() {
@@ -105,10 +105,13 @@ public class DatastoreConnectionFactoryImpl extends AbstractConnectionFactory {
         new ArrayList<ManagedConnectionResourceListener>();
     private final XAResource datastoreXAResource;
 
-    DatastoreManagedConnection(StoreManager storeMgr, boolean autoCreateTransaction) {
+    DatastoreManagedConnection(StoreManager storeMgr, ExecutionContext ec, boolean autoCreateTransaction) {
       DatastoreManager datastoreManager = (DatastoreManager) storeMgr;
+      DatastoreMetrics metrics = ec != null ?
+          datastoreManager.getDatastoreMetrics(ec) : datastoreManager.getDatastoreMetrics();
       DatastoreServiceConfig config = datastoreManager.getDefaultDatastoreServiceConfigForWrites();
-      DatastoreService datastoreService = DatastoreServiceFactoryInternal.getDatastoreService(config);
+      DatastoreService datastoreService = DatastoreServiceFactoryInternal.getDatastoreService(
+          config, metrics, null);
       if (NucleusLogger.CONNECTION.isDebugEnabled()) {
         if (datastoreService instanceof WrappedDatastoreService) {
           NucleusLogger.CONNECTION.debug("Created ManagedConnection using DatastoreService = " + 
@@ -117,11 +120,13 @@ public class DatastoreConnectionFactoryImpl extends AbstractConnectionFactory {
           NucleusLogger.CONNECTION.debug("Created ManagedConnection using DatastoreService = " + datastoreService);
         }
       }
+      KeyRegistry keyRegistry = new KeyRegistry(datastoreManager.getDatastoreOperationStatistics());
       if (autoCreateTransaction) {
-        datastoreXAResource = new DatastoreXAResource(
-            datastoreService, datastoreManager.getDefaultDatastoreTransactionOptions());
+        datastoreXAResource = new DatastoreXAResource(datastoreService,
+            datastoreManager.getDefaultDatastoreTransactionOptions(), keyRegistry,
+            datastoreManager.isBeginTransactionsEagerly(), metrics);
       } else {
-        datastoreXAResource = new EmulatedXAResource(datastoreService);
+        datastoreXAResource = new EmulatedXAResource(datastoreService, keyRegistry);
       }
     }
 
@@ -187,7 +187,7 @@ public abstract class DatastoreFieldManager extends AbstractFieldManager {
   }
 
   protected String getPropertyNameForMember(AbstractMemberMetaData mmd) {
-    String propName = EntityUtils.getPropertyName(getStoreManager().getIdentifierFactory(), mmd);
+    String propName = getStoreManager().getPropertyName(mmd);
 
     if (fieldManagerStateStack.getFirst().index != null) {
       // Embedded Collection uses property name with suffixed index
@@ -19,6 +19,7 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.ReadPolicy;
 import com.google.appengine.api.datastore.ReadPolicy.Consistency;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.datanucleus.mapping.DatastoreTable;
 import com.google.appengine.datanucleus.scostore.FKListStore;
@@ -31,10 +32,14 @@ import org.datanucleus.PersistenceConfiguration;
 import org.datanucleus.PropertyNames;
 import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusFatalUserException;
+import org.datanucleus.management.jmx.ManagementManager;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.ClassMetaData;
+import org.datanucleus.metadata.DiscriminatorStrategy;
 import org.datanucleus.metadata.InheritanceStrategy;
+import org.datanucleus.metadata.PersistenceFileMetaData;
+import org.datanucleus.metadata.PersistenceUnitMetaData;
 import org.datanucleus.metadata.RelationType;
 import org.datanucleus.store.DefaultCandidateExtent;
 import org.datanucleus.ExecutionContext;
@@ -59,13 +64,28 @@ import org.datanucleus.util.ClassUtils;
 import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * StoreManager for GAE/J with DataNucleus.
@@ -122,6 +142,28 @@ public class DatastoreManager extends MappedStoreManager {
   /** The name of the metadata extension that marks a field as unindexed. */
   public static final String UNINDEXED_PROPERTY = EXTENSION_PREFIX + "unindexed";
 
+  /** The name of the metadata extension that marks a class as having its entities cached (see {@link EntityCache}). */
+  public static final String ENTITY_CACHE = EXTENSION_PREFIX + "entity-cache";
+
+  /**
+   * The name of the metadata extension that marks a serialized member as deserialized on first access rather
+   * than when its object is created from a query result or relation (see {@link #isLazyDeserialized}).
+   * "false" overrides the persistence property.
+   */
+  public static final String LAZY_DESERIALIZE = EXTENSION_PREFIX + "lazy-deserialize";
+
+  /**
+   * The name of the metadata extension that marks a class as having the non-transactional puts of its entities
+   * from concurrent threads coalesced (see {@link GroupCommitter}).
+   */
+  public static final String GROUP_COMMIT = EXTENSION_PREFIX + "group-commit";
+
+  /**
+   * The name of the metadata extension that marks an array or collection of numbers as stored packed in a Blob
+   * rather than as a multi-valued property (see {@link PackedArrays}).
+   */
+  public static final String PACKED = EXTENSION_PREFIX + "packed";
+
   public static final String DATASTORE_READ_CONSISTENCY_PROPERTY =
       "datanucleus.appengine.datastoreReadConsistency";
 
@@ -178,17 +220,155 @@ public class DatastoreManager extends MappedStoreManager {
   /** Query extension to enable/disable use of in-memory evaluation when some syntax is unsupported in datastore. */
   public static final String QUERYEXT_INMEMORY_WHEN_UNSUPPORTED = EXTENSION_PREFIX + "inmemory-when-unsupported";
 
+  /** Query extension to override the number of result pages to fetch ahead of the one being read. */
+  public static final String QUERYEXT_PREFETCH_DEPTH = EXTENSION_PREFIX + "prefetch-depth";
+
+  /**
+   * Property defining how many pages of query results to fetch in the background ahead of the page
+   * currently being converted into objects. Default is 0, meaning the next page is only fetched once
+   * the current one is exhausted.
+   */
+  public static final String QUERY_PREFETCH_DEPTH_PROPERTY = "datanucleus.appengine.query.prefetchDepth";
+
+  /**
+   * Property defining the number of query results converted into objects together, their related objects
+   * in the fetch plan being retrieved with one batch get for the whole page (see {@link PrefetchedEntities}).
+   * Default is 100. 0 or 1 means that related objects are retrieved for each result in turn.
+   */
+  public static final String QUERY_RELATION_BATCH_SIZE_PROPERTY = "datanucleus.appengine.query.relationBatchSize";
+
+  /**
+   * Property defining whether the updates made by a flush are put together once all objects are flushed,
+   * with the versions of versioned objects checked by one batch get before any object of the flush, or its
+   * relations, is written (see {@link BatchUpdateFlushProcess}). Default is true.
+   */
+  public static final String FLUSH_BATCH_UPDATES_PROPERTY = "datanucleus.appengine.flush.batchUpdates";
+
+  /** Property defining the maximum number of threads used for background datastore work. */
+  public static final String BACKGROUND_THREADS_PROPERTY = "datanucleus.appengine.backgroundThreads";
+
+  /**
+   * Property enabling the recording of statistics of the datastore calls made by the plugin
+   * (see {@link DatastoreOperationStatistics}). Also enabled by DataNucleus statistics.
+   */
+  public static final String DATASTORE_METRICS_PROPERTY = "datanucleus.appengine.datastoreMetrics";
+
+  /**
+   * Property defining the maximum number of datastore RPCs an ExecutionContext should make
+   * (see {@link RpcAccounting}). Default is 0, meaning no limit.
+   */
+  public static final String RPC_BUDGET_PROPERTY = "datanucleus.appengine.rpcBudget";
+
+  /**
+   * Property defining the number of single-entity datastore RPCs from one call site against one kind,
+   * within an ExecutionContext, that are reported as a likely N+1 pattern (see {@link RpcAccounting}).
+   * Default is 0, meaning they are not reported.
+   */
+  public static final String REPEATED_RPC_THRESHOLD_PROPERTY = "datanucleus.appengine.repeatedRpcThreshold";
+
+  /** Property defining whether RPC budget violations are logged ("log") or thrown ("exception"). */
+  public static final String RPC_BUDGET_ACTION_PROPERTY = "datanucleus.appengine.rpcBudgetAction";
+
+  /**
+   * Property defining the time in seconds after which entities cached in the {@link EntityCache} expire.
+   * 0 means they don't expire.
+   */
+  public static final String ENTITY_CACHE_EXPIRATION_PROPERTY = "datanucleus.appengine.entityCache.expirationSeconds";
+
+  /**
+   * Property defining whether serialized members are by default deserialized on first access rather than when
+   * their object is created from a query result or relation (see {@link #isLazyDeserialized}).
+   */
+  public static final String LAZY_SERIALIZED_FIELDS_PROPERTY = "datanucleus.appengine.lazySerializedFields";
+
   /**
-   * Classes whose metadata we've validated.  This set gets hit on every
-   * insert, update, and fetch.  I don't expect it to be a bottleneck but
-   * if we're seeing contention we should look here.
+   * Property defining whether the datastore transaction of a PM/EM transaction is begun with it rather than by
+   * its first get, put, delete or ancestor query (see {@link DatastoreTransaction}). Low-level code mixed into
+   * the transaction only finds it as the current transaction of the DatastoreService once begun, so set this when
+   * such code relies on joining it (for example with ImplicitTransactionManagementPolicy.AUTO) before the plugin
+   * has used it.
    */
-  private final Set<String> validatedClasses = Collections.synchronizedSet(new HashSet<String>());
+  public static final String BEGIN_TRANSACTIONS_EAGERLY_PROPERTY = "datanucleus.appengine.beginTransactionsEagerly";
+
+  /** Property defining the time in milliseconds a {@link GroupCommitter} batch waits for more entities. */
+  public static final String GROUP_COMMIT_MAX_DELAY_PROPERTY = "datanucleus.appengine.groupCommit.maxDelayMillis";
+
+  /** Property defining the number of entities at which a {@link GroupCommitter} batch is put without waiting. */
+  public static final String GROUP_COMMIT_MAX_BATCH_SIZE_PROPERTY = "datanucleus.appengine.groupCommit.maxBatchSize";
+
+  /**
+   * Property defining the time in milliseconds a thread waits for the put of a {@link GroupCommitter} batch made
+   * by another thread, beyond the time the batch waits for more entities.
+   */
+  public static final String GROUP_COMMIT_TIMEOUT_PROPERTY = "datanucleus.appengine.groupCommit.timeoutMillis";
+
+  /**
+   * Property enabling the recording of the properties used by query filters and sorts, and of the indexed values
+   * written, to report the properties that are indexed but never queried (see {@link IndexUsageRecorder}).
+   */
+  public static final String INDEX_USAGE_PROPERTY = "datanucleus.appengine.indexUsage.record";
+
+  /**
+   * Property listing properties that are written as unindexed whatever their metadata says, as a comma-separated
+   * list of "Kind.property" (for example as reported by the {@link IndexUsageRecorder}).
+   */
+  public static final String UNINDEXED_PROPERTIES_PROPERTY = "datanucleus.appengine.unindexedProperties";
+
+  /**
+   * Property enabling the collection of the shapes of the queries needing a composite index
+   * (see {@link CompositeIndexCollector}).
+   */
+  public static final String COMPOSITE_INDEXES_PROPERTY = "datanucleus.appengine.compositeIndexes.record";
+
+  /**
+   * Property defining a file to which the query shapes collected are appended when this StoreManager is closed,
+   * for the {@link CompositeIndexGenerator}. Setting it enables the collection.
+   */
+  public static final String COMPOSITE_INDEXES_LOG_PROPERTY = "datanucleus.appengine.compositeIndexes.log";
+
+  /**
+   * Property defining a {@link MetaDataSnapshot} to load at startup, as the name of a classpath resource or
+   * a file. The classes in it are not validated again, and their kind and property names are taken from it.
+   */
+  public static final String METADATA_SNAPSHOT_PROPERTY = "datanucleus.appengine.metadataSnapshot";
+
+  /**
+   * Property defining whether to initialise the mapping of persistent classes in the background once this
+   * StoreManager is created, rather than on their first use (see {@link #warmUp} and {@link #awaitWarmUp}).
+   * The classes are those listed in the persistence unit, if any, and in {@link #WARM_UP_CLASSES_PROPERTY}.
+   */
+  public static final String WARM_UP_PROPERTY = "datanucleus.appengine.warmUp";
+
+  /**
+   * Property defining a comma-separated list of classes whose mapping is initialised when this StoreManager is
+   * created. An entry ending in ".*" stands for the classes of that package. Setting it enables the warm-up.
+   */
+  public static final String WARM_UP_CLASSES_PROPERTY = "datanucleus.appengine.warmUp.classes";
+
+  /** Property defining the maximum number of classes initialised at the same time by {@link #warmUp}. */
+  public static final String WARM_UP_THREADS_PROPERTY = "datanucleus.appengine.warmUp.threads";
+
+  /**
+   * Classes whose metadata we've validated. This gets hit on every insert, update, fetch and query
+   * compile, by every thread, so once a class is validated checking it is a lock-free read.
+   */
+  private final ConcurrentMap<String, Boolean> validatedClasses = new ConcurrentHashMap<String, Boolean>();
 
   /** Map of the metadata for the member of this class storing the parent ("gae.parent-pk") keyed by class name. */
   private final Map<String, AbstractMemberMetaData> parentMemberMetaDataByClass =
     new ConcurrentHashMap<String, AbstractMemberMetaData>();
 
+  /** Name of the property storing each member, keyed by its metadata (see {@link #getPropertyName}). */
+  private final Map<AbstractMemberMetaData, String> propertyNamesByMember =
+    new ConcurrentHashMap<AbstractMemberMetaData, String>();
+
+  /**
+   * Class name keyed by discriminator value, for each hierarchy keyed by the name of its base class
+   * (see {@link #getClassNameForDiscriminatorValue}). The maps are immutable, being replaced as classes are added.
+   */
+  private final Map<String, Map<Object, String>> classNamesByDiscriminatorValue =
+    new ConcurrentHashMap<String, Map<Object, String>>();
+
   private final boolean defaultToOwnedRelations;
   private final TypeConversionUtils typeConversionUtils;
   private final StorageVersion storageVersion;
@@ -200,6 +380,91 @@ public class DatastoreManager extends MappedStoreManager {
 
   protected SerializationManager serializationMgr = null;
 
+  /** Executor for background datastore work. Created lazily. */
+  private BackgroundExecutor backgroundExecutor = null;
+
+  /** Hook the datastore calls made for this StoreManager are reported to. */
+  private final DatastoreMetrics datastoreMetrics = new DatastoreMetrics();
+
+  /** Statistics of the datastore calls, when enabled. */
+  private DatastoreOperationStatistics datastoreOperationStatistics = null;
+
+  /** Name under which the datastore call statistics are registered with JMX, if they are. */
+  private String datastoreOperationStatisticsMBeanName = null;
+
+  /** Cache of entities, created when the first class using it is initialised. */
+  private volatile EntityCache entityCache = null;
+
+  /** Coalescer of puts, created when the first class using it is initialised. */
+  private volatile GroupCommitter groupCommitter = null;
+
+  /** Whether RPCs are accounted per ExecutionContext. */
+  private final boolean rpcAccountingEnabled;
+
+  /** Whether serialized members are deserialized on first access unless the member says otherwise. */
+  private final boolean lazySerializedFields;
+
+  private final boolean beginTransactionsEagerly;
+
+  /**
+   * Metrics with RPC accounting, when enabled, keyed by the owner of the ExecutionContext (see
+   * {@link #getContextKey}). Weak so closed PersistenceManagers/EntityManagers are not retained.
+   */
+  private final Map<Object, DatastoreMetrics> accountedMetricsByContext =
+      Collections.synchronizedMap(new WeakHashMap<Object, DatastoreMetrics>());
+
+  /**
+   * Entities read ahead of their use, keyed by the owner of the ExecutionContext (see {@link #getContextKey}).
+   * Weak so closed PersistenceManagers/EntityManagers are not retained.
+   */
+  private final Map<Object, PrefetchedEntities> prefetchedEntitiesByContext =
+      Collections.synchronizedMap(new WeakHashMap<Object, PrefetchedEntities>());
+
+  /** Recorder of the usage of indexed properties, when enabled. */
+  private final IndexUsageRecorder indexUsageRecorder;
+
+  /** Properties written as unindexed whatever their metadata says, keyed by kind. */
+  private final Map<String, Set<String>> unindexedPropertiesByKind;
+
+  /** Collector of the query shapes needing a composite index, when enabled. */
+  private final CompositeIndexCollector compositeIndexCollector;
+
+  /** Snapshot of the mapping of classes produced at build time, if any. */
+  private final MetaDataSnapshot metadataSnapshot;
+
+  /**
+   * Snapshot of each class whose fingerprint has been checked, keyed by class name, {@link #STALE_CLASS_SNAPSHOT}
+   * if the class isn't in the snapshot or has changed since.
+   */
+  private final ConcurrentMap<String, MetaDataSnapshot.ClassSnapshot> checkedClassSnapshots =
+      new ConcurrentHashMap<String, MetaDataSnapshot.ClassSnapshot>();
+
+  private static final MetaDataSnapshot.ClassSnapshot STALE_CLASS_SNAPSHOT =
+      new MetaDataSnapshot.ClassSnapshot(null, 0, null);
+
+  /**
+   * Lock under which tables are built and registered. Separate from the monitor of this StoreManager so that
+   * building a table never waits on unrelated work synchronized on it. A single lock rather than one per
+   * inheritance root, since building a table builds the tables of related classes in other hierarchies.
+   */
+  private final ReentrantLock mappingLock = new ReentrantLock();
+
+  /**
+   * Lock under which the entity cache and group committer are created. They're created while building tables,
+   * under {@link #mappingLock}, so this is never held while taking another lock.
+   */
+  private final Object createLock = new Object();
+
+  /**
+   * Tables that have been completely built, keyed by class name, so that finding the table of a class is
+   * a lock-free read once it's built.
+   */
+  private final ConcurrentMap<String, DatastoreTable> datastoreClassesByName =
+      new ConcurrentHashMap<String, DatastoreTable>();
+
+  /** Warm-up of the mapping of classes started when this StoreManager was created, if enabled. */
+  private final MappingWarmUp startupWarmUp;
+
   MetaDataValidator metadataValidator;
 
   /**
@@ -238,7 +503,8 @@ public class DatastoreManager extends MappedStoreManager {
 
     // Handler for persistence process
     persistenceHandler = new DatastorePersistenceHandler(this);
-    flushProcess = new FlushOrdered();
+    flushProcess = new KeyRegistryFlushProcess(getBooleanProperty(FLUSH_BATCH_UPDATES_PROPERTY) ?
+        new BatchUpdateFlushProcess(new FlushOrdered()) : new FlushOrdered());
 
     dba = new DatastoreAdapter();
     initialiseIdentifierFactory(nucContext);
@@ -258,16 +524,423 @@ public class DatastoreManager extends MappedStoreManager {
 
     logConfiguration();
 
+    if (getBooleanProperty(DATASTORE_METRICS_PROPERTY) || nucContext.statisticsEnabled()) {
+      registerDatastoreOperationStatistics(nucContext);
+    }
+
+    rpcAccountingEnabled = getIntProperty(RPC_BUDGET_PROPERTY) > 0 ||
+        getIntProperty(REPEATED_RPC_THRESHOLD_PROPERTY) > 0;
+    lazySerializedFields = getBooleanProperty(LAZY_SERIALIZED_FIELDS_PROPERTY);
+    beginTransactionsEagerly = getBooleanProperty(BEGIN_TRANSACTIONS_EAGERLY_PROPERTY);
+    indexUsageRecorder = getBooleanProperty(INDEX_USAGE_PROPERTY) ? new IndexUsageRecorder() : null;
+    unindexedPropertiesByKind = parseUnindexedProperties(getStringProperty(UNINDEXED_PROPERTIES_PROPERTY));
+    metadataSnapshot = loadMetaDataSnapshot(getStringProperty(METADATA_SNAPSHOT_PROPERTY), clr);
+    compositeIndexCollector = getBooleanProperty(COMPOSITE_INDEXES_PROPERTY) ||
+        getStringProperty(COMPOSITE_INDEXES_LOG_PROPERTY) != null ? new CompositeIndexCollector() : null;
+
     datastoreServiceForReads = DatastoreServiceFactoryInternal.getDatastoreService(
-        getDefaultDatastoreServiceConfigForReads());
+        getDefaultDatastoreServiceConfigForReads(), datastoreMetrics, null);
+
+    // Started in the background, since the NucleusContext is locked until this StoreManager is created
+    startupWarmUp = getBooleanProperty(WARM_UP_PROPERTY) || getStringProperty(WARM_UP_CLASSES_PROPERTY) != null ?
+        new MappingWarmUp(this, clr, getWarmUpClassNames(nucContext, clr), getWarmUpThreads()) : null;
+  }
+
+  private Collection<String> getWarmUpClassNames(NucleusContext nucContext, ClassLoaderResolver clr) {
+    Set<String> classNames = new LinkedHashSet<String>();
+    String unitName = nucContext.getPersistenceConfiguration().getStringProperty(
+        PropertyNames.PROPERTY_PERSISTENCE_UNIT_NAME);
+    if (unitName != null) {
+      PersistenceUnitMetaData pumd = getMetaDataManager().getMetaDataForPersistenceUnit(unitName);
+      if (pumd == null) {
+        // Not loaded yet, so read it from persistence.xml
+        PersistenceFileMetaData[] files = org.datanucleus.metadata.MetaDataUtils.parsePersistenceFiles(
+            nucContext.getPluginManager(), nucContext.getPersistenceConfiguration().getStringProperty(
+                PropertyNames.PROPERTY_PERSISTENCE_XML_FILENAME), false, clr);
+        for (int i = 0; files != null && i < files.length && pumd == null; i++) {
+          pumd = files[i].getPersistenceUnit(unitName);
+        }
+      }
+      if (pumd != null && pumd.getClassNames() != null) {
+        classNames.addAll(pumd.getClassNames());
+      }
+    }
+
+    String value = getStringProperty(WARM_UP_CLASSES_PROPERTY);
+    if (value != null) {
+      for (String name : value.split(",")) {
+        name = name.trim();
+        if (name.endsWith(".*")) {
+          classNames.addAll(MappingWarmUp.getClassNamesInPackage(name.substring(0, name.length() - 2), clr));
+        } else if (name.length() > 0) {
+          classNames.add(name);
+        }
+      }
+    }
+    return classNames;
+  }
+
+  private int getWarmUpThreads() {
+    int numThreads = getIntProperty(WARM_UP_THREADS_PROPERTY);
+    return numThreads > 0 ? numThreads : 4;
+  }
+
+  /**
+   * Method to initialise the mapping of the provided classes now rather than on their first use, so that the
+   * first requests using them don't pay for it. The classes are loaded, validated and have their table built
+   * on a pool of {@link #WARM_UP_THREADS_PROPERTY} threads, blocking until all are done.
+   * A class that can't be initialised is logged, and fails again on its first use.
+   * @param classNames Names of the classes. Classes that aren't persistable are ignored
+   * @return The number of persistable classes initialised
+   */
+  public int warmUp(Collection<String> classNames) {
+    return new MappingWarmUp(this, getNucleusContext().getClassLoaderResolver(null), classNames,
+        getWarmUpThreads()).await();
+  }
+
+  /**
+   * Method to wait for the warm-up started when this StoreManager was created (see {@link #WARM_UP_PROPERTY})
+   * to complete.
+   * @return The number of persistable classes initialised, or 0 if the warm-up isn't enabled
+   */
+  public int awaitWarmUp() {
+    return startupWarmUp != null ? startupWarmUp.await() : 0;
+  }
+
+  private static MetaDataSnapshot loadMetaDataSnapshot(String name, ClassLoaderResolver clr) {
+    if (name == null) {
+      return null;
+    }
+    try {
+      URL url = clr.getResource(name, null);
+      if (url == null && !new File(name).exists()) {
+        NucleusLogger.DATASTORE.warn("Metadata snapshot " + name + " not found, so classes will be validated");
+        return null;
+      }
+      InputStream in = url != null ? url.openStream() : new FileInputStream(name);
+      try {
+        MetaDataSnapshot snapshot = MetaDataSnapshot.read(new BufferedInputStream(in));
+        if (NucleusLogger.DATASTORE.isDebugEnabled()) {
+          NucleusLogger.DATASTORE.debug("Loaded the metadata snapshot of " + snapshot.getClassNames().size() +
+              " classes from " + name);
+        }
+        return snapshot;
+      } finally {
+        in.close();
+      }
+    } catch (IOException ioe) {
+      NucleusLogger.DATASTORE.warn("Unable to load metadata snapshot " + name + ", so classes will be validated",
+          ioe);
+      return null;
+    }
+  }
+
+  /**
+   * Accessor for the snapshot of a class, if the snapshot loaded at startup has the class and its metadata
+   * hasn't changed since the snapshot was produced.
+   * @param cmd Metadata for the class
+   * @return The snapshot of the class, or null
+   */
+  MetaDataSnapshot.ClassSnapshot getClassSnapshot(AbstractClassMetaData cmd) {
+    if (metadataSnapshot == null || cmd == null) {
+      return null;
+    }
+    MetaDataSnapshot.ClassSnapshot classSnapshot = checkedClassSnapshots.get(cmd.getFullClassName());
+    if (classSnapshot == null) {
+      classSnapshot = metadataSnapshot.getClassSnapshot(cmd.getFullClassName());
+      if (classSnapshot == null) {
+        classSnapshot = STALE_CLASS_SNAPSHOT;
+      } else {
+        try {
+          if (classSnapshot.getFingerprint() !=
+              MetaDataSnapshot.fingerprint(cmd, getNucleusContext().getClassLoaderResolver(null))) {
+            NucleusLogger.DATASTORE.info("Metadata of " + cmd.getFullClassName() +
+                " has changed since the metadata snapshot was produced, so it is ignored");
+            classSnapshot = STALE_CLASS_SNAPSHOT;
+          }
+        } catch (IOException ioe) {
+          NucleusLogger.DATASTORE.warn("Unable to read the metadata of " + cmd.getFullClassName() +
+              ", so its metadata snapshot is ignored", ioe);
+          classSnapshot = STALE_CLASS_SNAPSHOT;
+        }
+      }
+      checkedClassSnapshots.putIfAbsent(cmd.getFullClassName(), classSnapshot);
+    }
+    return classSnapshot != STALE_CLASS_SNAPSHOT ? classSnapshot : null;
+  }
+
+  /**
+   * Accessor for the snapshot of the mapping of classes loaded at startup.
+   * @return The snapshot, or null if none (see {@link #METADATA_SNAPSHOT_PROPERTY})
+   */
+  public MetaDataSnapshot getMetaDataSnapshot() {
+    return metadataSnapshot;
+  }
+
+  private void registerDatastoreOperationStatistics(NucleusContext nucContext) {
+    datastoreOperationStatistics = new DatastoreOperationStatistics();
+    datastoreMetrics.addListener(datastoreOperationStatistics);
+    ManagementManager jmxMgr = nucContext.getJMXManager();
+    if (jmxMgr != null) {
+      datastoreOperationStatisticsMBeanName = jmxMgr.getDomainName() + ":InstanceName=" + jmxMgr.getInstanceName() +
+          ",Type=" + DatastoreOperationStatistics.class.getName() +
+          ",Name=DatastoreOperations" + System.identityHashCode(this);
+      jmxMgr.registerMBean(datastoreOperationStatistics, datastoreOperationStatisticsMBeanName);
+    }
   }
 
   @Override
   public void close() {
+    if (startupWarmUp != null) {
+      startupWarmUp.cancel();
+    }
     validatedClasses.clear();
+    datastoreClassesByName.clear();
+    if (datastoreOperationStatistics != null) {
+      datastoreMetrics.removeListener(datastoreOperationStatistics);
+      if (datastoreOperationStatisticsMBeanName != null && nucleusContext.getJMXManager() != null) {
+        nucleusContext.getJMXManager().deregisterMBean(datastoreOperationStatisticsMBeanName);
+      }
+    }
+    if (compositeIndexCollector != null && getStringProperty(COMPOSITE_INDEXES_LOG_PROPERTY) != null) {
+      appendCompositeIndexLog(getStringProperty(COMPOSITE_INDEXES_LOG_PROPERTY));
+    }
+    synchronized (this) {
+      if (backgroundExecutor != null) {
+        backgroundExecutor.shutdown();
+        backgroundExecutor = null;
+      }
+    }
     super.close();
   }
 
+  /**
+   * Accessor for the hook that the datastore calls made by the plugin for this StoreManager are reported to,
+   * to register {@link DatastoreMetrics.Listener}s with.
+   * @return The metrics
+   */
+  public DatastoreMetrics getDatastoreMetrics() {
+    return datastoreMetrics;
+  }
+
+  /**
+   * Accessor for the statistics of the datastore calls made by the plugin.
+   * @return The statistics, or null if not enabled (see {@link #DATASTORE_METRICS_PROPERTY})
+   */
+  public DatastoreOperationStatistics getDatastoreOperationStatistics() {
+    return datastoreOperationStatistics;
+  }
+
+  private void appendCompositeIndexLog(String fileName) {
+    // StoreManagers closing at the same time append whole logs
+    synchronized (CompositeIndexCollector.class) {
+      try {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(fileName, true), "UTF-8");
+        try {
+          compositeIndexCollector.writeShapes(writer);
+        } finally {
+          writer.close();
+        }
+      } catch (IOException ioe) {
+        NucleusLogger.DATASTORE.warn("Unable to append the query shapes to " + fileName, ioe);
+      }
+    }
+  }
+
+  /**
+   * Accessor for the collector of the query shapes needing a composite index.
+   * @return The collector, or null if not enabled (see {@link #COMPOSITE_INDEXES_PROPERTY})
+   */
+  public CompositeIndexCollector getCompositeIndexCollector() {
+    return compositeIndexCollector;
+  }
+
+  /**
+   * Accessor for the recorder of the usage of indexed properties.
+   * @return The recorder, or null if not enabled (see {@link #INDEX_USAGE_PROPERTY})
+   */
+  public IndexUsageRecorder getIndexUsageRecorder() {
+    return indexUsageRecorder;
+  }
+
+  /**
+   * Accessor for the properties of a kind that are written as unindexed whatever their metadata says
+   * (see {@link #UNINDEXED_PROPERTIES_PROPERTY}).
+   * @param kind The kind
+   * @return The names of the properties, or null if there are none
+   */
+  public Set<String> getUnindexedProperties(String kind) {
+    return unindexedPropertiesByKind.get(kind);
+  }
+
+  private static Map<String, Set<String>> parseUnindexedProperties(String value) {
+    if (value == null || value.trim().length() == 0) {
+      return Collections.emptyMap();
+    }
+    Map<String, Set<String>> propertiesByKind = Utils.newHashMap();
+    for (String name : value.split(",")) {
+      name = name.trim();
+      int dot = name.indexOf('.');
+      if (dot <= 0 || dot == name.length() - 1) {
+        throw new NucleusFatalUserException("Invalid value \"" + name + "\" in " + UNINDEXED_PROPERTIES_PROPERTY +
+            " : expected Kind.property");
+      }
+      String kind = name.substring(0, dot);
+      Set<String> properties = propertiesByKind.get(kind);
+      if (properties == null) {
+        properties = Utils.newHashSet();
+        propertiesByKind.put(kind, properties);
+      }
+      properties.add(name.substring(dot + 1));
+    }
+    return propertiesByKind;
+  }
+
+  private GroupCommitter createGroupCommitter() {
+    synchronized (createLock) {
+      if (groupCommitter == null) {
+        groupCommitter = new GroupCommitter(getIntProperty(GROUP_COMMIT_MAX_BATCH_SIZE_PROPERTY),
+            getIntProperty(GROUP_COMMIT_MAX_DELAY_PROPERTY), getIntProperty(GROUP_COMMIT_TIMEOUT_PROPERTY));
+      }
+      return groupCommitter;
+    }
+  }
+
+  private EntityCache createEntityCache() {
+    synchronized (createLock) {
+      if (entityCache == null) {
+        entityCache = new EntityCache(getIntProperty(ENTITY_CACHE_EXPIRATION_PROPERTY));
+      }
+      return entityCache;
+    }
+  }
+
+  /**
+   * Accessor for the cache of entities.
+   * @return The cache, or null if no class initialised so far has its entities cached
+   */
+  public EntityCache getEntityCache() {
+    return entityCache;
+  }
+
+  /**
+   * Accessor for the coalescer of non-transactional puts.
+   * @return The coalescer, or null if no class initialised so far has its puts coalesced
+   */
+  public GroupCommitter getGroupCommitter() {
+    return groupCommitter;
+  }
+
+  /**
+   * Whether the provided member is left unloaded when its object is created from an Entity read by a query, or
+   * for a relation or collection, and only deserialized when first accessed. Until then the Blob stays in the
+   * Entity associated with the object, so no further datastore call is needed to load it, and an update that
+   * doesn't touch the member writes the Blob back as is.
+   * <p>
+   * Objects fetched by id, and hollow objects being loaded, deserialize the member along with the rest of the
+   * fetch plan: DataNucleus asks for the member being accessed together with the other unloaded members, so
+   * the two can't be told apart. A member that was never accessed is loaded when the object is detached with
+   * the default detachment options (FetchPlan.DETACH_LOAD_FIELDS), including when detaching on close. Without
+   * that option it isn't detached, and is null in the detached copy.
+   * </p>
+   * @param mmd Metadata for the member
+   * @return Whether the member is serialized and to be deserialized lazily
+   */
+  public boolean isLazyDeserialized(AbstractMemberMetaData mmd) {
+    if (!mmd.isSerialized()) {
+      return false;
+    }
+    String lazy = mmd.getValueForExtension(LAZY_DESERIALIZE);
+    return lazy != null ? Boolean.valueOf(lazy) : lazySerializedFields;
+  }
+
+  /**
+   * Accessor for the key of the state held on behalf of the provided ExecutionContext. ExecutionContexts
+   * are pooled and handed to the next PersistenceManager/EntityManager once closed, so the state is keyed
+   * by the PersistenceManager/EntityManager that owns the context, and so starts afresh with the next one.
+   * @param ec ExecutionContext
+   * @return The key
+   */
+  private static Object getContextKey(ExecutionContext ec) {
+    Object owner = ec.getOwner();
+    return owner != null ? owner : ec;
+  }
+
+  /**
+   * Accessor for the hook that the datastore calls made on behalf of the provided ExecutionContext are
+   * reported to. This is {@link #getDatastoreMetrics()}, accounting the calls against the context when
+   * RPC accounting is enabled.
+   * @param ec ExecutionContext
+   * @return The metrics
+   */
+  public DatastoreMetrics getDatastoreMetrics(ExecutionContext ec) {
+    if (!rpcAccountingEnabled) {
+      return datastoreMetrics;
+    }
+    Object key = getContextKey(ec);
+    synchronized (accountedMetricsByContext) {
+      DatastoreMetrics metrics = accountedMetricsByContext.get(key);
+      if (metrics == null) {
+        metrics = datastoreMetrics.withAccounting(new RpcAccounting(getIntProperty(RPC_BUDGET_PROPERTY),
+            getIntProperty(REPEATED_RPC_THRESHOLD_PROPERTY), getStringProperty(RPC_BUDGET_ACTION_PROPERTY)));
+        accountedMetricsByContext.put(key, metrics);
+      }
+      return metrics;
+    }
+  }
+
+  /**
+   * Accessor for the accounting of the datastore RPCs made on behalf of the provided ExecutionContext.
+   * @param ec ExecutionContext
+   * @return The accounting, or null if not enabled (see {@link #RPC_BUDGET_PROPERTY} and
+   *     {@link #REPEATED_RPC_THRESHOLD_PROPERTY})
+   */
+  public RpcAccounting getRpcAccounting(ExecutionContext ec) {
+    return getDatastoreMetrics(ec).getRpcAccounting();
+  }
+
+  /**
+   * Accessor for the entities read ahead of their use on behalf of the provided ExecutionContext.
+   * @param ec ExecutionContext
+   * @param create Whether to create the holder if the ExecutionContext has none
+   * @return The entities, or null if there are none and create is false
+   */
+  public PrefetchedEntities getPrefetchedEntities(ExecutionContext ec, boolean create) {
+    Object key = getContextKey(ec);
+    synchronized (prefetchedEntitiesByContext) {
+      PrefetchedEntities prefetched = prefetchedEntitiesByContext.get(key);
+      if (prefetched == null && create) {
+        prefetched = new PrefetchedEntities();
+        prefetchedEntitiesByContext.put(key, prefetched);
+      }
+      return prefetched;
+    }
+  }
+
+  /**
+   * Accessor for the executor to use for background datastore work, such as prefetching query results.
+   * @return The executor
+   */
+  public synchronized BackgroundExecutor getBackgroundExecutor() {
+    if (backgroundExecutor == null) {
+      int numThreads = getIntProperty(BACKGROUND_THREADS_PROPERTY);
+      backgroundExecutor = new BackgroundExecutor("datanucleus-appengine", numThreads > 0 ? numThreads : 4);
+    }
+    return backgroundExecutor;
+  }
+
+  /**
+   * Mutator for the executor to use for background datastore work. Allows the user to supply an
+   * ExecutorService that is valid in their runtime environment.
+   * @param executor The ExecutorService to use
+   */
+  public synchronized void setBackgroundExecutorService(ExecutorService executor) {
+    if (backgroundExecutor != null) {
+      backgroundExecutor.shutdown();
+    }
+    backgroundExecutor = new BackgroundExecutor(executor);
+  }
+
   public SerializationManager getSerializationManager() {
     if (serializationMgr == null) {
       serializationMgr = new SerializationManager();
@@ -279,6 +952,13 @@ public class DatastoreManager extends MappedStoreManager {
     return defaultToOwnedRelations;
   }
 
+  /**
+   * @return Whether datastore transactions are begun with their PM/EM transaction rather than on first use
+   */
+  public boolean isBeginTransactionsEagerly() {
+    return beginTransactionsEagerly;
+  }
+
   /**
    * Convenience method to log the configuration of this store manager.
    */
@@ -297,7 +977,8 @@ public class DatastoreManager extends MappedStoreManager {
   @Override
   public void transactionStarted(ExecutionContext ec) {
     if (connectionFactoryIsAutoCreateTransaction()) {
-      // Obtain the ManagedConnection, triggering XAResource.start, so calling DatastoreService.beginTransaction()
+      // Obtain the ManagedConnection, triggering XAResource.start. The datastore transaction itself is
+      // only begun on first use (see DatastoreTransaction)
       getConnection(ec);
     }
   }
@@ -370,11 +1051,20 @@ public class DatastoreManager extends MappedStoreManager {
   }
 
   /**
-   * This method requires synchronization so that we don't end up registering
+   * This method requires the mapping lock so that we don't end up registering
    * the same property more than once.
    */
   @Override
-  protected synchronized StoreData newStoreData(ClassMetaData cmd, ClassLoaderResolver clr) {
+  protected StoreData newStoreData(ClassMetaData cmd, ClassLoaderResolver clr) {
+    mappingLock.lock();
+    try {
+      return newStoreDataForClass(cmd, clr);
+    } finally {
+      mappingLock.unlock();
+    }
+  }
+
+  private StoreData newStoreDataForClass(ClassMetaData cmd, ClassLoaderResolver clr) {
     InheritanceStrategy strat = cmd.getInheritanceMetaData().getStrategy();
 
     // The overarching rule for supported inheritance strategies is that we
@@ -424,14 +1114,24 @@ public class DatastoreManager extends MappedStoreManager {
   private StoreData buildStoreDataWithNoTable(ClassMetaData cmd) {
     StoreData sdNew = new MappedStoreData(cmd, null, false);
     registerStoreData(sdNew);
+    registerDiscriminatorValue(cmd);
     return sdNew;
   }
 
   private StoreData buildStoreData(ClassMetaData cmd, ClassLoaderResolver clr) {
-    String kindName = EntityUtils.getKindName(getIdentifierFactory(), cmd);
+    MetaDataSnapshot.ClassSnapshot classSnapshot = getClassSnapshot(cmd);
+    String kindName = classSnapshot != null && classSnapshot.getKind() != null ?
+        classSnapshot.getKind() : EntityUtils.getKindName(getIdentifierFactory(), cmd);
     DatastoreTable table = new DatastoreTable(kindName, this, cmd, clr, dba);
     StoreData sd = new MappedStoreData(cmd, table, true);
     registerStoreData(sd);
+    registerDiscriminatorValue(cmd);
+    if ("true".equalsIgnoreCase(cmd.getValueForExtension(ENTITY_CACHE))) {
+      createEntityCache().addCachedKind(kindName);
+    }
+    if ("true".equalsIgnoreCase(cmd.getValueForExtension(GROUP_COMMIT))) {
+      createGroupCommitter().addKind(kindName);
+    }
     // needs to be called after we register the store data to avoid stack overflow
     table.buildMapping();
     return sd;
@@ -440,11 +1140,56 @@ public class DatastoreManager extends MappedStoreManager {
   private StoreData buildStoreDataWithTable(ClassMetaData cmd, DatastoreTable table) {
     MappedStoreData sd = new MappedStoreData(cmd, table, false);
     registerStoreData(sd);
+    registerDiscriminatorValue(cmd);
     sd.setDatastoreContainerObject(table);
     table.manageClass(cmd);
     return sd;
   }
 
+  /**
+   * Method to add the discriminator value of the class (if any) to the map for its hierarchy.
+   * Called when the class is registered, so under the lock of {@link #newStoreData}.
+   */
+  private void registerDiscriminatorValue(AbstractClassMetaData cmd) {
+    if (cmd.getDiscriminatorStrategy() != DiscriminatorStrategy.VALUE_MAP || cmd.getDiscriminatorValue() == null) {
+      return;
+    }
+    String baseClassName = cmd.getBaseAbstractClassMetaData().getFullClassName();
+    Map<Object, String> classNames = classNamesByDiscriminatorValue.get(baseClassName);
+    Map<Object, String> newClassNames = classNames != null ?
+        new HashMap<Object, String>(classNames) : new HashMap<Object, String>();
+    if (!newClassNames.containsKey(cmd.getDiscriminatorValue())) {
+      newClassNames.put(cmd.getDiscriminatorValue(), cmd.getFullClassName());
+      classNamesByDiscriminatorValue.put(baseClassName, Collections.unmodifiableMap(newClassNames));
+    }
+  }
+
+  /**
+   * Accessor for the class in the hierarchy of the provided class that has the provided discriminator value,
+   * for classes using {@link DiscriminatorStrategy#VALUE_MAP}. Only classes that have been registered (i.e.
+   * whose table has been initialised) are known.
+   * @param cmd Metadata for a class in the hierarchy
+   * @param value The discriminator value
+   * @return Name of the class with the value, or null if not known
+   */
+  public String getClassNameForDiscriminatorValue(AbstractClassMetaData cmd, Object value) {
+    String baseClassName = cmd.getBaseAbstractClassMetaData().getFullClassName();
+    Map<Object, String> classNames = classNamesByDiscriminatorValue.get(baseClassName);
+    String className = classNames != null ? classNames.get(value) : null;
+    if (className == null && metadataSnapshot != null) {
+      // Subclass not registered yet, but known to the snapshot if it hasn't changed since
+      className = metadataSnapshot.getClassNameForDiscriminatorValue(baseClassName, value);
+      if (className != null) {
+        AbstractClassMetaData subCmd = getMetaDataManager().getMetaDataForClass(className,
+            getNucleusContext().getClassLoaderResolver(null));
+        if (getClassSnapshot(subCmd) == null || !value.equals(subCmd.getDiscriminatorValue())) {
+          className = null;
+        }
+      }
+    }
+    return className;
+  }
+
   @Override
   public Object getResultValueAtPosition(Object key, JavaTypeMapping mapping, int position) {
     // this is the key, and we're only using this for keys, so just return it.
@@ -515,15 +1260,27 @@ public class DatastoreManager extends MappedStoreManager {
 
   @Override
   public DatastoreTable getDatastoreClass(String className, ClassLoaderResolver clr) {
+    DatastoreTable table = className != null ? datastoreClassesByName.get(className) : null;
+    if (table != null) {
+      return table;
+    }
     try {
       // We see the occasional race condition when multiple threads concurrently
       // perform an operation using a persistence-capable class for which DataNucleus
       // has not yet generated the meta-data.  The result is usually
       // AbstractMemberMetaData objects with the same column listed twice in the meta-data.
-      // Locking at this level is a bit more coarse-grained than I'd like but once the
-      // meta-data has been built this will return super fast so it shouldn't be an issue.
-      synchronized(this) {
-        return (DatastoreTable) super.getDatastoreClass(className, clr);
+      // So tables are built under the mapping lock, and only published for lock-free
+      // lookup once the outermost build has completed, since building a table can
+      // return the partially built tables of related classes.
+      mappingLock.lock();
+      try {
+        table = (DatastoreTable) super.getDatastoreClass(className, clr);
+        if (table != null && mappingLock.getHoldCount() == 1) {
+          datastoreClassesByName.put(className, table);
+        }
+        return table;
+      } finally {
+        mappingLock.unlock();
       }
     } catch (NoTableManagedException e) {
       // Our parent class throws this when the class isn't PersistenceCapable also.
@@ -547,20 +1304,54 @@ public class DatastoreManager extends MappedStoreManager {
    */
   public void validateMetaDataForClass(AbstractClassMetaData cmd) {
     // Only validate each meta data once
-    if (validatedClasses.add(cmd.getFullClassName())) {
-      if (getBooleanProperty(VALIDATE_METADATA, true)) {
-        // Only do if the persistence property is not set to false
-        metadataValidator.validate(cmd);
+    String className = cmd.getFullClassName();
+    if (validatedClasses.get(className) == null && validatedClasses.putIfAbsent(className, Boolean.TRUE) == null) {
+      ClassLoaderResolver clr = getNucleusContext().getClassLoaderResolver(cmd.getClass().getClassLoader());
+      MetaDataSnapshot.ClassSnapshot classSnapshot = getClassSnapshot(cmd);
+      AbstractMemberMetaData parentPkMmd = null;
+      if (classSnapshot != null) {
+        // Validated when the snapshot was produced
+        if (classSnapshot.getParentPkMemberName() != null) {
+          parentPkMmd = getMetaDataManager().getMetaDataForClass(classSnapshot.getParentPkClassName(), clr)
+              .getMetaDataForMember(classSnapshot.getParentPkMemberName());
+        }
+      } else {
+        if (getBooleanProperty(VALIDATE_METADATA, true)) {
+          // Only do if the persistence property is not set to false
+          try {
+            metadataValidator.validate(cmd);
+          } catch (RuntimeException e) {
+            // Invalid, so fail again on the next use (e.g. after a warm-up)
+            validatedClasses.remove(className);
+            throw e;
+          }
+        }
+        parentPkMmd = MetaDataUtils.getParentPkMemberMetaDataForClass(cmd, getMetaDataManager(), clr);
       }
-
-      AbstractMemberMetaData parentPkMmd = MetaDataUtils.getParentPkMemberMetaDataForClass(cmd, getMetaDataManager(),
-          getNucleusContext().getClassLoaderResolver(cmd.getClass().getClassLoader()));
       if (parentPkMmd != null) {
-        parentMemberMetaDataByClass.put(cmd.getFullClassName(), parentPkMmd);
+        parentMemberMetaDataByClass.put(className, parentPkMmd);
       }
     }
   }
 
+  /**
+   * Method to create a parallel scan over all entities of the kind for the specified class.
+   * The scan is not restricted by discriminator, so all entities of the kind are returned. Its ranges are
+   * read on the executor for background work (see {@link #getBackgroundExecutor()}).
+   * @param cls The persistable class
+   * @param clr ClassLoader resolver
+   * @return The scan, ready to be split
+   */
+  public ParallelKindScan newParallelKindScan(Class cls, ClassLoaderResolver clr) {
+    AbstractClassMetaData cmd = getMetaDataManager().getMetaDataForClass(cls, clr);
+    validateMetaDataForClass(cmd);
+    String kind = getDatastoreClass(cmd.getFullClassName(), clr).getIdentifier().getIdentifierName();
+    return new ParallelKindScan(
+        DatastoreServiceFactoryInternal.getDatastoreService(getDefaultDatastoreServiceConfigForReads(),
+            datastoreMetrics, null), kind)
+        .setExecutor(getBackgroundExecutor());
+  }
+
   /**
    * Accessor for the metadata of the member of this class marked as "gae.parent-pk".
    * @param cmd Metadata for the class
@@ -570,6 +1361,27 @@ public class DatastoreManager extends MappedStoreManager {
     return parentMemberMetaDataByClass.get(cmd.getFullClassName());
   }
 
+  /**
+   * Accessor for the name of the property storing the provided member, as per
+   * {@link EntityUtils#getPropertyName} but only
+   * consulting the IdentifierFactory the first time for each member.
+   * @param mmd Metadata for the member
+   * @return The property name
+   */
+  public String getPropertyName(AbstractMemberMetaData mmd) {
+    String propName = propertyNamesByMember.get(mmd);
+    if (propName == null) {
+      MetaDataSnapshot.ClassSnapshot classSnapshot =
+          mmd.getParent() instanceof AbstractClassMetaData ? getClassSnapshot(mmd.getAbstractClassMetaData()) : null;
+      propName = classSnapshot != null ? classSnapshot.getPropertyName(mmd) : null;
+      if (propName == null) {
+        propName = EntityUtils.getPropertyName(getIdentifierFactory(), mmd);
+      }
+      propertyNamesByMember.put(mmd, propName);
+    }
+    return propName;
+  }
+
   public StorageVersion getStorageVersion() {
     return storageVersion;
   }
@@ -591,6 +1403,19 @@ public class DatastoreManager extends MappedStoreManager {
     return ((EmulatedXAResource) mconn.getXAResource()).getCurrentTransaction();
   }
 
+  /**
+   * Accessor for the datastore Transaction that operations which would otherwise run in the current
+   * transaction of the DatastoreService (ancestor queries, relation fetches) should use.
+   * Datastore transactions are begun lazily, so this begins that of the ExecutionContext if not yet begun.
+   * @param ec ExecutionContext
+   * @param ds The DatastoreService the operation is run against
+   * @return The Transaction, or null if there is none
+   */
+  public Transaction getCurrentTransaction(ExecutionContext ec, DatastoreService ds) {
+    DatastoreTransaction txn = getDatastoreTransaction(ec);
+    return txn != null ? txn.getInnerTxn() : ds.getCurrentTransaction(null);
+  }
+
   /**
    * Accessor for the current DatastoreService for this ExecutionContext.
    * Each PM/EM has its own DatastoreService.
@@ -604,12 +1429,15 @@ public class DatastoreManager extends MappedStoreManager {
 
   /**
    * Accessor for the DatastoreService to use for reads for this ExecutionContext.
-   * We currently just use the same DatastoreService for all ExecutionContext, but parameter passed in so
-   * we can extend in the future.
+   * The same DatastoreService is used for all ExecutionContexts, unless their RPCs are being accounted.
    * @param ec ExecutionContext
    * @return The DatastoreService
    */
   public DatastoreService getDatastoreServiceForReads(ExecutionContext ec) {
+    if (rpcAccountingEnabled) {
+      return DatastoreServiceFactoryInternal.getDatastoreService(
+          getDefaultDatastoreServiceConfigForReads(), getDatastoreMetrics(ec), null);
+    }
     return datastoreServiceForReads;
   }
 
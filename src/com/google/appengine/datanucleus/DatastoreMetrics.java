@@ -0,0 +1,299 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import org.datanucleus.util.NucleusLogger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Metrics hook for the datastore calls made by the plugin. {@link WrappedDatastoreService} reports each
+ * call it makes to the {@link Listener}s registered with the DatastoreManager it was obtained for, along with
+ * the operation, the kind operated on, the number of entities, the latency, whether it failed, and the path of
+ * the plugin that made it. Commits and rollbacks of datastore transactions are reported by
+ * {@link DatastoreTransaction}. When no listeners are registered (the default) the calls are not timed or
+ * classified, so the only cost is a volatile read.
+ * <p>
+ * Each DatastoreManager has its own instance (see {@link DatastoreManager#getDatastoreMetrics()}), so the
+ * listeners of one PMF/EMF only see its own calls. {@link DatastoreOperationStatistics} is the listener that
+ * DatastoreManager registers when metrics are enabled.
+ * </p>
+ * <p>
+ * The path of a call is that of the DatastoreService it was made through when obtained for a particular path
+ * (for example by the SCO stores), otherwise that entered on the current thread by {@link #enterPath}
+ * (for example by DatastorePersistenceHandler), otherwise {@link Path#OTHER}.
+ * </p>
+ * <p>
+ * The same calls are counted by the {@link RpcAccounting} of the ExecutionContext they were made for, when
+ * enabled: {@link DatastoreManager#getDatastoreMetrics(ExecutionContext)} provides a view of the metrics bound to
+ * it, which the services obtained for that ExecutionContext report to.
+ * </p>
+ * <p>
+ * Queries are recorded each time they are run (for example by asList, asIterator, or obtaining an iterator
+ * of asIterable), rather than when prepared, so a query prepared but never run isn't counted. Their latency
+ * is that of the call starting the query; the results are fetched lazily as they are iterated, so query
+ * calls carry no entity count, except for asSingleEntity.
+ * </p>
+ */
+public final class DatastoreMetrics {
+
+  /** The datastore operations that are recorded. */
+  public enum Operation {
+    GET, PUT, DELETE, QUERY, ALLOCATE_IDS, BEGIN_TRANSACTION, COMMIT, ROLLBACK
+  }
+
+  /** The path of the plugin that a datastore call is attributed to. */
+  public enum Path {
+    /** Fetch of an object, or of its fields and relations. */
+    FETCH,
+    /** Insert of a new object. */
+    INSERT,
+    /** Update of an existing object. */
+    UPDATE,
+    /** Delete of an object. */
+    DELETE,
+    /** Access to a collection via a backing store (FKListStore, FKSetStore). */
+    SCO_STORE,
+    /** Execution of a query. */
+    QUERY,
+    /** Allocation of ids for a sequence or value generator. */
+    SEQUENCE,
+    /** Anything else, for example a call made directly by the application. */
+    OTHER
+  }
+
+  /**
+   * Receiver of the datastore calls made by the plugin. Implementations must be thread-safe,
+   * and should be quick since they are called on the thread making the call.
+   */
+  public interface Listener {
+    /**
+     * @param path The path of the plugin that made the call
+     * @param op The operation
+     * @param kind The kind operated on, {@link #MIXED_KINDS} if a batch spanned several kinds, or null if
+     *     not known
+     * @param numEntities The number of entities (or keys, or ids) of the call
+     * @param elapsedNanos Latency of the call, or -1 if not timed
+     * @param failed Whether the call threw a runtime exception
+     */
+    void callCompleted(Path path, Operation op, String kind, int numEntities, long elapsedNanos, boolean failed);
+  }
+
+  /** Kind reported for a batch operation on entities of different kinds. */
+  public static final String MIXED_KINDS = "(mixed)";
+
+  /** Returned by {@link #startTimer()} when no listeners are registered. */
+  static final long NOT_RECORDING = Long.MIN_VALUE;
+
+  /** Instance for DatastoreServices not obtained for a DatastoreManager, which never records. */
+  static final DatastoreMetrics NONE = new DatastoreMetrics();
+
+  /** The path entered on the current thread, or null if none. */
+  private static final ThreadLocal<Path> currentPath = new ThreadLocal<Path>();
+
+  /** The metrics of the DatastoreManager, which holds the listeners. This instance unless a view. */
+  private final DatastoreMetrics root;
+
+  private final List<Listener> listeners;
+
+  /** Accounting of the ExecutionContext that this view is bound to, or null. */
+  private final RpcAccounting accounting;
+
+  /**
+   * Whether there are any listeners, so the common case needs no list access. Only maintained by the root,
+   * and only written while holding the lock of the listeners.
+   */
+  private volatile boolean recording = false;
+
+  DatastoreMetrics() {
+    this.root = this;
+    this.listeners = new CopyOnWriteArrayList<Listener>();
+    this.accounting = null;
+  }
+
+  private DatastoreMetrics(DatastoreMetrics root, RpcAccounting accounting) {
+    this.root = root;
+    this.listeners = root.listeners;
+    this.accounting = accounting;
+  }
+
+  public void addListener(Listener listener) {
+    synchronized (listeners) {
+      listeners.add(listener);
+      root.recording = true;
+    }
+  }
+
+  public void removeListener(Listener listener) {
+    // Under the same lock as additions, so a concurrent addition can't be overwritten with a stale value
+    synchronized (listeners) {
+      listeners.remove(listener);
+      root.recording = !listeners.isEmpty();
+    }
+  }
+
+  /**
+   * @param accounting The accounting of an ExecutionContext
+   * @return A view of these metrics that also counts the calls reported to it in the provided accounting
+   */
+  DatastoreMetrics withAccounting(RpcAccounting accounting) {
+    return new DatastoreMetrics(root, accounting);
+  }
+
+  /**
+   * @return The accounting this view is bound to, or null if none
+   */
+  RpcAccounting getRpcAccounting() {
+    return accounting;
+  }
+
+  /**
+   * Count a call about to be made in the bound accounting, if any. This is done before the call so that
+   * exceeding the budget can prevent it.
+   * @param path The path of the DatastoreService the call is made through, or null if not obtained for one
+   * @param op The operation
+   * @param kind The kind operated on, or null if not known
+   * @param numEntities The number of entities (or keys) of the call, or 0 if not known
+   */
+  void beforeCall(Path path, Operation op, String kind, int numEntities) {
+    if (accounting != null) {
+      accounting.rpc(resolvePath(path), op, kind, numEntities);
+    }
+  }
+
+  void beforeCall(Path path, Operation op, Key key) {
+    if (accounting != null) {
+      accounting.rpc(resolvePath(path), op, key != null ? key.getKind() : null, 1);
+    }
+  }
+
+  void beforeCallForKeys(Path path, Operation op, Iterable<Key> keys) {
+    if (accounting == null) {
+      return;
+    }
+    String kind = null;
+    int num = 0;
+    for (Key key : keys) {
+      kind = num++ == 0 ? key.getKind() : mergeKind(kind, key.getKind());
+    }
+    accounting.rpc(resolvePath(path), op, kind, num);
+  }
+
+  /**
+   * Attribute the datastore calls made on the current thread, through a DatastoreService not obtained for a
+   * particular path, to the provided path until {@link #exitPath} is called. Calls nest, so the innermost
+   * path wins: for example a relation fetched while iterating a query result counts as a fetch.
+   * @param path The path
+   * @return The path previously entered, to pass to {@link #exitPath}
+   */
+  static Path enterPath(Path path) {
+    Path previous = currentPath.get();
+    currentPath.set(path);
+    return previous;
+  }
+
+  /**
+   * @param previous The path returned by the matching {@link #enterPath}
+   */
+  static void exitPath(Path previous) {
+    if (previous == null) {
+      currentPath.remove();
+    } else {
+      currentPath.set(previous);
+    }
+  }
+
+  /**
+   * @return The start time of a call to pass to the record methods, or {@link #NOT_RECORDING}
+   */
+  long startTimer() {
+    return root.recording ? System.nanoTime() : NOT_RECORDING;
+  }
+
+  void record(long start, Path path, Operation op, Key key, boolean failed) {
+    if (start != NOT_RECORDING) {
+      notifyListeners(start, path, op, key != null ? key.getKind() : null, 1, failed);
+    }
+  }
+
+  void record(long start, Path path, Operation op, String kind, int numEntities, boolean failed) {
+    if (start != NOT_RECORDING) {
+      notifyListeners(start, path, op, kind, numEntities, failed);
+    }
+  }
+
+  void recordKeys(long start, Path path, Operation op, Iterable<Key> keys, boolean failed) {
+    if (start == NOT_RECORDING) {
+      return;
+    }
+    String kind = null;
+    int num = 0;
+    for (Key key : keys) {
+      kind = num++ == 0 ? key.getKind() : mergeKind(kind, key.getKind());
+    }
+    notifyListeners(start, path, op, kind, num, failed);
+  }
+
+  void recordEntities(long start, Path path, Operation op, Iterable<Entity> entities, boolean failed) {
+    if (start == NOT_RECORDING) {
+      return;
+    }
+    String kind = null;
+    int num = 0;
+    for (Entity entity : entities) {
+      kind = num++ == 0 ? entity.getKind() : mergeKind(kind, entity.getKind());
+    }
+    notifyListeners(start, path, op, kind, num, failed);
+  }
+
+  private static String mergeKind(String kind, String otherKind) {
+    return kind.equals(otherKind) ? kind : MIXED_KINDS;
+  }
+
+  private void notifyListeners(long start, Path path, Operation op, String kind, int numEntities,
+      boolean failed) {
+    notifyListeners(path, op, kind, numEntities, System.nanoTime() - start, failed);
+  }
+
+  private void notifyListeners(Path path, Operation op, String kind, int numEntities, long elapsedNanos,
+      boolean failed) {
+    path = resolvePath(path);
+    for (Listener listener : listeners) {
+      try {
+        listener.callCompleted(path, op, kind, numEntities, elapsedNanos, failed);
+      } catch (RuntimeException e) {
+        // Metrics must never break persistence
+        NucleusLogger.DATASTORE.warn("Exception thrown by datastore metrics listener " + listener, e);
+      }
+    }
+  }
+
+  /**
+   * @param path The path of the DatastoreService the call was made through, or null if not obtained for one
+   * @return The path to attribute the call to
+   */
+  static Path resolvePath(Path path) {
+    if (path != null) {
+      return path;
+    }
+    path = currentPath.get();
+    return path != null ? path : Path.OTHER;
+  }
+}
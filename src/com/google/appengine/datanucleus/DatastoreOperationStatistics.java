@@ -0,0 +1,355 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.datanucleus.DatastoreMetrics.Operation;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link DatastoreMetrics.Listener} that keeps call counts, entity counts, failures and a latency histogram
+ * for each combination of plugin path, operation and kind. Registered by DatastoreManager when
+ * {@link DatastoreManager#DATASTORE_METRICS_PROPERTY} (or DataNucleus statistics) is enabled, and exposed
+ * over JMX when DataNucleus has a JMX manager. {@link #getSnapshot()} gives the same data programmatically.
+ */
+public class DatastoreOperationStatistics implements DatastoreMetrics.Listener, DatastoreOperationStatisticsMBean {
+
+  /** Upper bounds (inclusive, in milliseconds) of the latency buckets. Latencies above the last go in an extra bucket. */
+  private static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+  private final ConcurrentMap<StatsKey, Counters> counters = new ConcurrentHashMap<StatsKey, Counters>();
+
+  private final AtomicLong keyRegistryClears = new AtomicLong();
+  private final AtomicLong keyRegistryEntries = new AtomicLong();
+  private final AtomicLong keyRegistryMaxEntries = new AtomicLong();
+
+  public void callCompleted(Path path, Operation op, String kind, int numEntities, long elapsedNanos,
+      boolean failed) {
+    StatsKey key = new StatsKey(path, op, kind);
+    Counters c = counters.get(key);
+    if (c == null) {
+      Counters newCounters = new Counters();
+      c = counters.putIfAbsent(key, newCounters);
+      if (c == null) {
+        c = newCounters;
+      }
+    }
+    c.record(numEntities, elapsedNanos, failed);
+  }
+
+  /**
+   * @return The statistics recorded so far, one entry per path, operation and kind, ordered by
+   *     descending number of calls
+   */
+  public List<OperationStats> getSnapshot() {
+    List<OperationStats> snapshot = new ArrayList<OperationStats>(counters.size());
+    for (Map.Entry<StatsKey, Counters> entry : counters.entrySet()) {
+      snapshot.add(entry.getValue().snapshot(entry.getKey()));
+    }
+    Collections.sort(snapshot, new Comparator<OperationStats>() {
+      public int compare(OperationStats o1, OperationStats o2) {
+        return o1.calls < o2.calls ? 1 : (o1.calls == o2.calls ? 0 : -1);
+      }
+    });
+    return snapshot;
+  }
+
+  /**
+   * @param path The path
+   * @return Number of calls made by the path
+   */
+  public long getCalls(Path path) {
+    long calls = 0;
+    for (Map.Entry<StatsKey, Counters> entry : counters.entrySet()) {
+      if (entry.getKey().path == path) {
+        calls += entry.getValue().calls.get();
+      }
+    }
+    return calls;
+  }
+
+  /**
+   * @param op The operation
+   * @return Number of calls of the operation
+   */
+  public long getCalls(Operation op) {
+    long calls = 0;
+    for (Map.Entry<StatsKey, Counters> entry : counters.entrySet()) {
+      if (entry.getKey().op == op) {
+        calls += entry.getValue().calls.get();
+      }
+    }
+    return calls;
+  }
+
+  public long getTotalCalls() {
+    long total = 0;
+    for (Counters c : counters.values()) {
+      total += c.calls.get();
+    }
+    return total;
+  }
+
+  public long getTotalEntities() {
+    long total = 0;
+    for (Counters c : counters.values()) {
+      total += c.entities.get();
+    }
+    return total;
+  }
+
+  public long getTotalFailures() {
+    long total = 0;
+    for (Counters c : counters.values()) {
+      total += c.failures.get();
+    }
+    return total;
+  }
+
+  public String[] getCallsByPath() {
+    Map<Path, Long> callsByPath = new EnumMap<Path, Long>(Path.class);
+    for (Map.Entry<StatsKey, Counters> entry : counters.entrySet()) {
+      Long calls = callsByPath.get(entry.getKey().path);
+      callsByPath.put(entry.getKey().path, (calls == null ? 0 : calls) + entry.getValue().calls.get());
+    }
+    List<String> result = new ArrayList<String>(callsByPath.size());
+    for (Map.Entry<Path, Long> entry : callsByPath.entrySet()) {
+      result.add(entry.getKey() + "=" + entry.getValue());
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  public String[] getOperationSummaries() {
+    List<OperationStats> snapshot = getSnapshot();
+    String[] summaries = new String[snapshot.size()];
+    for (int i = 0; i < summaries.length; i++) {
+      summaries[i] = snapshot.get(i).toString();
+    }
+    return summaries;
+  }
+
+  public long[] getLatencyBucketBoundsMillis() {
+    return BUCKET_BOUNDS_MILLIS.clone();
+  }
+
+  /**
+   * Method to record the occupancy of a {@link KeyRegistry} as it's cleared.
+   * @param numEntries Number of objects registered (and not garbage collected)
+   */
+  public void keyRegistryCleared(int numEntries) {
+    keyRegistryClears.incrementAndGet();
+    keyRegistryEntries.addAndGet(numEntries);
+    long max = keyRegistryMaxEntries.get();
+    while (numEntries > max && !keyRegistryMaxEntries.compareAndSet(max, numEntries)) {
+      max = keyRegistryMaxEntries.get();
+    }
+  }
+
+  public long getKeyRegistryClears() {
+    return keyRegistryClears.get();
+  }
+
+  public long getKeyRegistryEntries() {
+    return keyRegistryEntries.get();
+  }
+
+  public long getKeyRegistryMaxEntries() {
+    return keyRegistryMaxEntries.get();
+  }
+
+  public void reset() {
+    counters.clear();
+    keyRegistryClears.set(0);
+    keyRegistryEntries.set(0);
+    keyRegistryMaxEntries.set(0);
+  }
+
+  private static int bucketFor(long elapsedNanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      if (millis <= BUCKET_BOUNDS_MILLIS[i]) {
+        return i;
+      }
+    }
+    return BUCKET_BOUNDS_MILLIS.length;
+  }
+
+  private static final class StatsKey {
+    private final Path path;
+    private final Operation op;
+    private final String kind;
+
+    StatsKey(Path path, Operation op, String kind) {
+      this.path = path;
+      this.op = op;
+      this.kind = kind;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof StatsKey)) {
+        return false;
+      }
+      StatsKey that = (StatsKey) o;
+      return path == that.path && op == that.op && (kind == null ? that.kind == null : kind.equals(that.kind));
+    }
+
+    @Override
+    public int hashCode() {
+      return (path.hashCode() * 31 + op.hashCode()) * 31 + (kind == null ? 0 : kind.hashCode());
+    }
+  }
+
+  private static final class Counters {
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong entities = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timedCalls = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+    void record(int numEntities, long elapsedNanos, boolean failed) {
+      calls.incrementAndGet();
+      entities.addAndGet(numEntities);
+      if (failed) {
+        failures.incrementAndGet();
+      }
+      if (elapsedNanos >= 0) {
+        timedCalls.incrementAndGet();
+        totalNanos.addAndGet(elapsedNanos);
+        histogram.incrementAndGet(bucketFor(elapsedNanos));
+        long max = maxNanos.get();
+        while (elapsedNanos > max && !maxNanos.compareAndSet(max, elapsedNanos)) {
+          max = maxNanos.get();
+        }
+      }
+    }
+
+    OperationStats snapshot(StatsKey key) {
+      long[] buckets = new long[histogram.length()];
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = histogram.get(i);
+      }
+      return new OperationStats(key.path, key.op, key.kind, calls.get(), entities.get(), failures.get(),
+          timedCalls.get(), totalNanos.get(), maxNanos.get(), buckets);
+    }
+  }
+
+  /**
+   * Statistics for the calls of one path, operation and kind at the time of the snapshot.
+   */
+  public static final class OperationStats {
+    private final Path path;
+    private final Operation op;
+    private final String kind;
+    private final long calls;
+    private final long entities;
+    private final long failures;
+    private final long timedCalls;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] histogram;
+
+    OperationStats(Path path, Operation op, String kind, long calls, long entities, long failures,
+        long timedCalls, long totalNanos, long maxNanos, long[] histogram) {
+      this.path = path;
+      this.op = op;
+      this.kind = kind;
+      this.calls = calls;
+      this.entities = entities;
+      this.failures = failures;
+      this.timedCalls = timedCalls;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+      this.histogram = histogram;
+    }
+
+    public Path getPath() {
+      return path;
+    }
+
+    public Operation getOperation() {
+      return op;
+    }
+
+    /**
+     * @return The kind, {@link DatastoreMetrics#MIXED_KINDS} for batches over several kinds, or null if unknown
+     */
+    public String getKind() {
+      return kind;
+    }
+
+    public long getCalls() {
+      return calls;
+    }
+
+    public long getEntities() {
+      return entities;
+    }
+
+    public long getFailures() {
+      return failures;
+    }
+
+    /**
+     * @return Mean latency of the timed calls in milliseconds, or 0 if none were timed
+     */
+    public double getMeanLatencyMillis() {
+      return timedCalls == 0 ? 0 : totalNanos / (double) timedCalls / 1000000;
+    }
+
+    public double getMaxLatencyMillis() {
+      return maxNanos / 1000000d;
+    }
+
+    /**
+     * @return Number of timed calls per latency bucket. The buckets are bounded by
+     *     {@link DatastoreOperationStatistics#getLatencyBucketBoundsMillis()}, with an extra final bucket for
+     *     anything slower
+     */
+    public long[] getLatencyHistogram() {
+      return histogram.clone();
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder str = new StringBuilder();
+      str.append(path).append(' ').append(op).append(' ').append(kind)
+          .append(" : calls=").append(calls)
+          .append(" entities=").append(entities)
+          .append(" failures=").append(failures);
+      if (timedCalls > 0) {
+        str.append(String.format(" meanMs=%.2f maxMs=%.2f", getMeanLatencyMillis(), getMaxLatencyMillis()));
+      }
+      return str.toString();
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+/**
+ * JMX view of the datastore calls recorded by {@link DatastoreOperationStatistics}.
+ */
+public interface DatastoreOperationStatisticsMBean {
+
+  long getTotalCalls();
+
+  long getTotalEntities();
+
+  long getTotalFailures();
+
+  /**
+   * @return Number of calls by plugin path, as "path=calls"
+   */
+  String[] getCallsByPath();
+
+  /**
+   * @return One line per path, operation and kind with its counts and latencies
+   */
+  String[] getOperationSummaries();
+
+  /**
+   * @return Upper bounds (in milliseconds) of the buckets of the latency histograms
+   */
+  long[] getLatencyBucketBoundsMillis();
+
+  /**
+   * @return Number of times a KeyRegistry was cleared, at the end of a flush or transaction
+   */
+  long getKeyRegistryClears();
+
+  /**
+   * @return Total number of objects in the KeyRegistries when cleared
+   */
+  long getKeyRegistryEntries();
+
+  /**
+   * @return Largest number of objects in a KeyRegistry when cleared
+   */
+  long getKeyRegistryMaxEntries();
+
+  void reset();
+}
@@ -15,10 +15,11 @@ limitations under the License.
 **********************************************************************/
 package com.google.appengine.datanucleus;
 
+import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
 import com.google.appengine.datanucleus.mapping.DatastoreTable;
 import com.google.appengine.datanucleus.mapping.DependentDeleteRequest;
 import com.google.appengine.datanucleus.mapping.FetchMappingConsumer;
@@ -36,6 +37,7 @@ import org.datanucleus.metadata.VersionMetaData;
 import org.datanucleus.metadata.VersionStrategy;
 import org.datanucleus.store.AbstractPersistenceHandler;
 import org.datanucleus.ExecutionContext;
+import org.datanucleus.state.LifeCycleState;
 import org.datanucleus.state.ObjectProvider;
 import org.datanucleus.store.PersistenceBatchType;
 import org.datanucleus.store.StoreManager;
@@ -55,9 +57,12 @@ import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -135,6 +140,14 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
 
   private final Map<ExecutionContext, BatchDeleteManager> batchDeleteManagerByExecutionContext = new ConcurrentHashMap();
 
+  private final Map<ExecutionContext, BatchUpdateManager> batchUpdateManagerByExecutionContext = new ConcurrentHashMap();
+
+  /** Maximum number of entities put by each batch put of the updates of a flush. */
+  static final int MAX_ENTITIES_PER_PUT = 500;
+
+  /** Maximum number of keys retrieved by each batch get checking the versions of the updates of a flush. */
+  static final int MAX_KEYS_PER_GET = 1000;
+
   private final DatastoreManager datastoreMgr;
 
   /**
@@ -194,6 +207,100 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
     }
   }
 
+  /**
+   * Method to start collecting the updates of a flush, so that they are put together by {@link #updateBatchEnd}
+   * rather than as each object is updated.
+   * @param ec ExecutionContext
+   * @return Whether the batch was started, false if one is already in progress
+   */
+  boolean updateBatchStart(ExecutionContext ec) {
+    if (batchUpdateManagerByExecutionContext.containsKey(ec)) {
+      return false;
+    }
+    BatchUpdateManager updateMgr = new BatchUpdateManager();
+    updateMgr.start();
+    batchUpdateManagerByExecutionContext.put(ec, updateMgr);
+    return true;
+  }
+
+  /**
+   * Method to check the versions of the versioned objects about to be updated by the flush started by
+   * {@link #updateBatchStart}, with one batch get, before any of them is written. The outcome is recorded so
+   * that, when the flush updates an object whose check failed, the failure is thrown before the object or its
+   * relations are written, as for an update made outside a flush. Objects the flush updates without having been
+   * provided here are checked as they are updated.
+   * @param ec ExecutionContext
+   * @param ops The objects about to be flushed
+   */
+  void updateBatchCheckVersions(ExecutionContext ec, Collection<ObjectProvider> ops) {
+    BatchUpdateManager batchUpdateMgr = batchUpdateManagerByExecutionContext.get(ec);
+    if (batchUpdateMgr == null) {
+      return;
+    }
+
+    Map<Key, ObjectProvider> opsByKey = new LinkedHashMap<Key, ObjectProvider>();
+    for (ObjectProvider op : ops) {
+      LifeCycleState state = op.getLifecycleState();
+      int[] dirtyFieldNumbers = op.getDirtyFieldNumbers();
+      if (op.getClassMetaData().isVersioned() && op.getVersion() != null && !op.isEmbedded() &&
+          state != null && !state.isNew() && !state.isDeleted() &&
+          dirtyFieldNumbers != null && dirtyFieldNumbers.length > 0) {
+        opsByKey.put(EntityUtils.getPkAsKey(op), op);
+      }
+    }
+    if (opsByKey.size() < 2) {
+      // Nothing to batch, so checked as for an update made outside a flush
+      return;
+    }
+
+    // Fetch the latest versions outside a txn, as for a single update
+    DatastoreService ds = datastoreMgr.getDatastoreServiceForReads(ec);
+    List<Key> keys = new ArrayList<Key>(opsByKey.keySet());
+    Map<Key, Entity> refreshedEntities = new HashMap<Key, Entity>();
+    for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_GET) {
+      List<Key> window = keys.subList(start, Math.min(start + MAX_KEYS_PER_GET, keys.size()));
+      if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_NATIVE.debug("Getting entities with keys " + StringUtils.collectionToString(window));
+      }
+      if (ec.getStatistics() != null) {
+        ec.getStatistics().incrementNumReads();
+      }
+      refreshedEntities.putAll(ds.get(window));
+    }
+    for (Map.Entry<Key, ObjectProvider> entry : opsByKey.entrySet()) {
+      ObjectProvider op = entry.getValue();
+      try {
+        assertVersionUnchanged(op, entry.getKey(), refreshedEntities.get(entry.getKey()), op.getVersion(),
+            "updating");
+        batchUpdateMgr.versionChecked(op, null);
+      } catch (NucleusOptimisticException noe) {
+        batchUpdateMgr.versionChecked(op, noe);
+      }
+    }
+  }
+
+  /**
+   * Method to put the updates collected since {@link #updateBatchStart}.
+   * @param ec ExecutionContext
+   */
+  void updateBatchEnd(ExecutionContext ec) {
+    BatchUpdateManager updateMgr = batchUpdateManagerByExecutionContext.remove(ec);
+    if (updateMgr != null) {
+      updateMgr.finish(this);
+    }
+  }
+
+  /**
+   * Method to discard the updates collected since {@link #updateBatchStart}, when the flush failed.
+   * @param ec ExecutionContext
+   */
+  void updateBatchAbandon(ExecutionContext ec) {
+    BatchUpdateManager updateMgr = batchUpdateManagerByExecutionContext.remove(ec);
+    if (updateMgr != null) {
+      updateMgr.abandon();
+    }
+  }
+
   /**
    * Method to insert the specified managed object into the datastore.
    * @param op ObjectProvider for the managed object
@@ -219,156 +326,161 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
    * children followed by a repersist to link to the children) then this is done one-by-one.
    */
   void insertObjectsInternal(List<ObjectProvider> opsToInsert) {
-    if (opsToInsert == null || opsToInsert.isEmpty()) {
-      return;
-    }
-
-    // All must be in same ExecutionContext
-    ExecutionContext ec = opsToInsert.get(0).getExecutionContext();
-    List<PutState> putStateList = Utils.newArrayList();
-    for (ObjectProvider op : opsToInsert) {
-      AbstractClassMetaData cmd = op.getClassMetaData();
+    Path previousPath = DatastoreMetrics.enterPath(Path.INSERT);
+    try {
+      if (opsToInsert == null || opsToInsert.isEmpty()) {
+        return;
+      }
 
-      // Create the Entity, and populate all fields that can be populated (this will omit any owned child objects 
-      // if we don't have the key of this object yet).
-      StoreFieldManager fieldMgr =
-        new StoreFieldManager(op, EntityUtils.determineKind(cmd, ec));
-      op.provideFields(op.getClassMetaData().getAllMemberPositions(), fieldMgr);
-
-      // Make sure the Entity parent is set (if any)
-      Object assignedParentPk = fieldMgr.establishEntityGroup();
-      Entity entity = fieldMgr.getEntity();
-
-      if (!datastoreMgr.storageVersionAtLeast(StorageVersion.READ_OWNED_CHILD_KEYS_FROM_PARENTS)) {
-        // Older storage versions : store list positions in the element
-        DatastoreTable table = datastoreMgr.getDatastoreClass(op.getClassMetaData().getFullClassName(),
-            ec.getClassLoaderResolver());
-        Collection<JavaTypeMapping> orderMappings = table.getExternalOrderMappings().values();
-        for (JavaTypeMapping orderMapping : orderMappings) {
-          if (orderMapping instanceof IndexMapping) {
-            Object orderValue = op.getAssociatedValue(orderMapping);
-            if (orderValue != null) {
-              // Set order index on the entity
-              DatastoreField indexProp = orderMapping.getDatastoreMapping(0).getDatastoreField();
-              entity.setProperty(indexProp.getIdentifier().toString(), orderValue); // Is this indexed in the datastore?
-            } else {
-              // Element has been persisted and has the owner set, but not positioned, so leave til user does it
+      // All must be in same ExecutionContext
+      ExecutionContext ec = opsToInsert.get(0).getExecutionContext();
+      List<PutState> putStateList = Utils.newArrayList();
+      for (ObjectProvider op : opsToInsert) {
+        AbstractClassMetaData cmd = op.getClassMetaData();
+
+        // Create the Entity, and populate all fields that can be populated (this will omit any owned child objects 
+        // if we don't have the key of this object yet).
+        StoreFieldManager fieldMgr =
+          new StoreFieldManager(op, EntityUtils.determineKind(cmd, ec));
+        op.provideFields(op.getClassMetaData().getAllMemberPositions(), fieldMgr);
+
+        // Make sure the Entity parent is set (if any)
+        Object assignedParentPk = fieldMgr.establishEntityGroup();
+        Entity entity = fieldMgr.getEntity();
+
+        if (!datastoreMgr.storageVersionAtLeast(StorageVersion.READ_OWNED_CHILD_KEYS_FROM_PARENTS)) {
+          // Older storage versions : store list positions in the element
+          DatastoreTable table = datastoreMgr.getDatastoreClass(op.getClassMetaData().getFullClassName(),
+              ec.getClassLoaderResolver());
+          Collection<JavaTypeMapping> orderMappings = table.getExternalOrderMappings().values();
+          for (JavaTypeMapping orderMapping : orderMappings) {
+            if (orderMapping instanceof IndexMapping) {
+              Object orderValue = op.getAssociatedValue(orderMapping);
+              if (orderValue != null) {
+                // Set order index on the entity
+                DatastoreField indexProp = orderMapping.getDatastoreMapping(0).getDatastoreField();
+                entity.setProperty(indexProp.getIdentifier().toString(), orderValue); // Is this indexed in the datastore?
+              } else {
+                // Element has been persisted and has the owner set, but not positioned, so leave til user does it
+              }
             }
           }
         }
-      }
 
-      // Set version
-      handleVersioningBeforeWrite(op, entity, true, "inserting");
+        // Set version
+        handleVersioningBeforeWrite(op, entity, true, "inserting");
 
-      // Set discriminator
-      if (op.getClassMetaData().hasDiscriminatorStrategy()) {
-        DiscriminatorMetaData dismd = op.getClassMetaData().getDiscriminatorMetaDataRoot();
-        EntityUtils.setEntityProperty(entity, dismd, 
-            EntityUtils.getDiscriminatorPropertyName(datastoreMgr.getIdentifierFactory(), dismd), 
-            op.getClassMetaData().getDiscriminatorValue());
-      }
+        // Set discriminator
+        if (op.getClassMetaData().hasDiscriminatorStrategy()) {
+          DiscriminatorMetaData dismd = op.getClassMetaData().getDiscriminatorMetaDataRoot();
+          EntityUtils.setEntityProperty(entity, dismd, 
+              EntityUtils.getDiscriminatorPropertyName(datastoreMgr.getIdentifierFactory(), dismd), 
+              op.getClassMetaData().getDiscriminatorValue());
+        }
 
-      // Add Multi-tenancy discriminator if applicable
-      if (storeMgr.getStringProperty(PropertyNames.PROPERTY_TENANT_ID) != null) {
-          if ("true".equalsIgnoreCase(cmd.getValueForExtension("multitenancy-disable"))) {
-              // Don't bother with multitenancy for this class
-          }
-          else {
-            String name = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.MULTITENANCY_COLUMN);
-            EntityUtils.setEntityProperty(entity, cmd, name, storeMgr.getStringProperty(PropertyNames.PROPERTY_TENANT_ID));
-          }
-      }
+        // Add Multi-tenancy discriminator if applicable
+        if (storeMgr.getStringProperty(PropertyNames.PROPERTY_TENANT_ID) != null) {
+            if ("true".equalsIgnoreCase(cmd.getValueForExtension("multitenancy-disable"))) {
+                // Don't bother with multitenancy for this class
+            }
+            else {
+              String name = storeMgr.getNamingFactory().getColumnName(cmd, ColumnType.MULTITENANCY_COLUMN);
+              EntityUtils.setEntityProperty(entity, cmd, name, storeMgr.getStringProperty(PropertyNames.PROPERTY_TENANT_ID));
+            }
+        }
 
-      // Update parent PK field on pojo
-      AbstractMemberMetaData parentPkMmd = datastoreMgr.getMetaDataForParentPK(cmd);
-      if (assignedParentPk != null) {
-        // we automatically assigned a parent to the entity so make sure that makes it back on to the pojo
-        op.replaceField(parentPkMmd.getAbsoluteFieldNumber(), assignedParentPk);
-      }
+        // Update parent PK field on pojo
+        AbstractMemberMetaData parentPkMmd = datastoreMgr.getMetaDataForParentPK(cmd);
+        if (assignedParentPk != null) {
+          // we automatically assigned a parent to the entity so make sure that makes it back on to the pojo
+          op.replaceField(parentPkMmd.getAbsoluteFieldNumber(), assignedParentPk);
+        }
 
-      // Add the "state" for this put to the list.
-      putStateList.add(new PutState(op, fieldMgr, entity));
-    }
+        // Add the "state" for this put to the list.
+        putStateList.add(new PutState(op, fieldMgr, entity));
+      }
 
-    // PUT all entities in single call
-    if (!putStateList.isEmpty()) {
-      DatastoreTransaction txn = null;
-      AbstractClassMetaData acmd = null;
-      List<Entity> entityList = Utils.newArrayList();
-      for (PutState putState : putStateList) {
-        if (txn == null) {
-          txn = datastoreMgr.getDatastoreTransaction(ec);
+      // PUT all entities in single call
+      if (!putStateList.isEmpty()) {
+        DatastoreTransaction txn = null;
+        AbstractClassMetaData acmd = null;
+        List<Entity> entityList = Utils.newArrayList();
+        for (PutState putState : putStateList) {
+          if (txn == null) {
+            txn = datastoreMgr.getDatastoreTransaction(ec);
+          }
+          if (acmd == null) {
+            acmd = putState.op.getClassMetaData();
+          }
+          entityList.add(putState.entity);
         }
-        if (acmd == null) {
-          acmd = putState.op.getClassMetaData();
+
+        EntityUtils.putEntitiesIntoDatastore(ec, entityList);
+        for (PutState putState : putStateList) {
+          putState.op.setAssociatedValue(txn, putState.entity);
         }
-        entityList.add(putState.entity);
       }
 
-      EntityUtils.putEntitiesIntoDatastore(ec, entityList);
+      // Post-processing for all puts
       for (PutState putState : putStateList) {
-        putState.op.setAssociatedValue(txn, putState.entity);
-      }
-    }
-
-    // Post-processing for all puts
-    for (PutState putState : putStateList) {
-      AbstractClassMetaData cmd = putState.op.getClassMetaData();
-
-      // Set the generated key back on the pojo.  If the pk field is a Key just set it on the field directly. 
-      // If the pk field is a String, convert the Key to a String, similarly for long.
-      // Assumes we only have a single pk member position
-      Object newId = null;
-      Class pkType = null;
-      boolean identityStrategyUsed = false;
-      if (cmd.pkIsDatastoreAttributed(storeMgr)) {
-        if (cmd.getIdentityType() == IdentityType.APPLICATION) {
-          // Assume only 1 PK field
-          identityStrategyUsed = true;
-          pkType = cmd.getMetaDataForManagedMemberAtAbsolutePosition(cmd.getPKMemberPositions()[0]).getType();
-        } else if (cmd.getIdentityType() == IdentityType.DATASTORE) {
-          identityStrategyUsed = true;
-          pkType = Key.class;
-          ColumnMetaData colmd = cmd.getIdentityMetaData().getColumnMetaData();
-          if (colmd != null) {
-            if ("varchar".equalsIgnoreCase(colmd.getJdbcType()) || "char".equalsIgnoreCase(colmd.getJdbcType())) {
-              pkType = String.class;
-            } else if ("integer".equalsIgnoreCase(colmd.getJdbcType()) || "numeric".equalsIgnoreCase(colmd.getJdbcType())) {
-              pkType = Long.class;
+        AbstractClassMetaData cmd = putState.op.getClassMetaData();
+
+        // Set the generated key back on the pojo.  If the pk field is a Key just set it on the field directly. 
+        // If the pk field is a String, convert the Key to a String, similarly for long.
+        // Assumes we only have a single pk member position
+        Object newId = null;
+        Class pkType = null;
+        boolean identityStrategyUsed = false;
+        if (cmd.pkIsDatastoreAttributed(storeMgr)) {
+          if (cmd.getIdentityType() == IdentityType.APPLICATION) {
+            // Assume only 1 PK field
+            identityStrategyUsed = true;
+            pkType = cmd.getMetaDataForManagedMemberAtAbsolutePosition(cmd.getPKMemberPositions()[0]).getType();
+          } else if (cmd.getIdentityType() == IdentityType.DATASTORE) {
+            identityStrategyUsed = true;
+            pkType = Key.class;
+            ColumnMetaData colmd = cmd.getIdentityMetaData().getColumnMetaData();
+            if (colmd != null) {
+              if ("varchar".equalsIgnoreCase(colmd.getJdbcType()) || "char".equalsIgnoreCase(colmd.getJdbcType())) {
+                pkType = String.class;
+              } else if ("integer".equalsIgnoreCase(colmd.getJdbcType()) || "numeric".equalsIgnoreCase(colmd.getJdbcType())) {
+                pkType = Long.class;
+              }
             }
           }
         }
-      }
 
-      if (identityStrategyUsed) {
-        // Update the identity of the object with the datastore-assigned id
-        if (pkType.equals(Key.class)) {
-          newId = putState.entity.getKey();
-        } else if (pkType.equals(String.class)) {
-          if (MetaDataUtils.hasEncodedPKField(cmd)) {
-            newId = KeyFactory.keyToString(putState.entity.getKey());
-          } else {
-            newId = putState.entity.getKey().getName();
+        if (identityStrategyUsed) {
+          // Update the identity of the object with the datastore-assigned id
+          if (pkType.equals(Key.class)) {
+            newId = putState.entity.getKey();
+          } else if (pkType.equals(String.class)) {
+            if (MetaDataUtils.hasEncodedPKField(cmd)) {
+              newId = KeyCodec.getInstance().keyToString(putState.entity.getKey());
+            } else {
+              newId = putState.entity.getKey().getName();
+            }
+          } else if (pkType.equals(Long.class) || pkType.equals(long.class)) {
+            newId = putState.entity.getKey().getId();
           }
-        } else if (pkType.equals(Long.class) || pkType.equals(long.class)) {
-          newId = putState.entity.getKey().getId();
-        }
 
-        putState.op.setPostStoreNewObjectId(newId);
-      }
+          putState.op.setPostStoreNewObjectId(newId);
+        }
 
-      // Update relation fields (including cascade-persist etc)
-      if (putState.fieldMgr.storeRelations(KeyRegistry.getKeyRegistry(ec))) {
-        // PUT Entity into datastore with these changes
-        EntityUtils.putEntityIntoDatastore(ec, putState.entity);
-      }
+        // Update relation fields (including cascade-persist etc)
+        if (putState.fieldMgr.storeRelations(KeyRegistry.getKeyRegistry(ec))) {
+          // PUT Entity into datastore with these changes
+          EntityUtils.putEntityIntoDatastore(ec, putState.entity);
+        }
 
-      putState.op.replaceAllLoadedSCOFieldsWithWrappers();
+        putState.op.replaceAllLoadedSCOFieldsWithWrappers();
 
-      if (ec.getStatistics() != null) {
-        ec.getStatistics().incrementInsertCount();
+        if (ec.getStatistics() != null) {
+          ec.getStatistics().incrementInsertCount();
+        }
       }
+    } finally {
+      DatastoreMetrics.exitPath(previousPath);
     }
   }
 
@@ -378,60 +490,108 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
    * @param fieldNumbers Fields to be updated in the datastore
    */
   public void updateObject(ObjectProvider op, int fieldNumbers[]) {
-    if (op.getLifecycleState().isDeleted()) {
-      // don't perform updates on objects that are already deleted - this will cause them to be recreated
-      // This happens with JPAOneToOneTest/JDOOneToOneTest when deleting, called from DependentDeleteRequest
-      return;
-    }
+    Path previousPath = DatastoreMetrics.enterPath(Path.UPDATE);
+    try {
+      if (op.getLifecycleState().isDeleted()) {
+        // don't perform updates on objects that are already deleted - this will cause them to be recreated
+        // This happens with JPAOneToOneTest/JDOOneToOneTest when deleting, called from DependentDeleteRequest
+        return;
+      }
 
-    // Make sure writes are permitted
-    assertReadOnlyForUpdateOfObject(op);
-    datastoreMgr.validateMetaDataForClass(op.getClassMetaData());
+      // Make sure writes are permitted
+      assertReadOnlyForUpdateOfObject(op);
+      datastoreMgr.validateMetaDataForClass(op.getClassMetaData());
 
-    AbstractClassMetaData cmd = op.getClassMetaData();
-    long startTime = System.currentTimeMillis();
-    if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
-      StringBuffer fieldStr = new StringBuffer();
-      for (int i=0;i<fieldNumbers.length;i++) {
-        if (i > 0) {
-          fieldStr.append(",");
+      AbstractClassMetaData cmd = op.getClassMetaData();
+      long startTime = System.currentTimeMillis();
+      if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
+        StringBuffer fieldStr = new StringBuffer();
+        for (int i=0;i<fieldNumbers.length;i++) {
+          if (i > 0) {
+            fieldStr.append(",");
+          }
+          fieldStr.append(cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]).getName());
         }
-        fieldStr.append(cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]).getName());
+        NucleusLogger.DATASTORE_PERSIST.debug(GAE_LOCALISER.msg("AppEngine.Update.Start", 
+            StringUtils.toJVMIDString(op.getObject()), op.getInternalObjectId(), fieldStr.toString()));
       }
-      NucleusLogger.DATASTORE_PERSIST.debug(GAE_LOCALISER.msg("AppEngine.Update.Start", 
-          StringUtils.toJVMIDString(op.getObject()), op.getInternalObjectId(), fieldStr.toString()));
-    }
 
-    ExecutionContext ec = op.getExecutionContext();
-    Entity entity = (Entity) op.getAssociatedValue(datastoreMgr.getDatastoreTransaction(ec));
-    if (entity == null) {
-      // Corresponding entity hasn't been fetched yet, so get it.
-      Key key = EntityUtils.getPkAsKey(op);
-      entity = EntityUtils.getEntityFromDatastore(datastoreMgr.getDatastoreServiceForReads(ec), op, key);
-    }
+      ExecutionContext ec = op.getExecutionContext();
+      Entity entity = (Entity) op.getAssociatedValue(datastoreMgr.getDatastoreTransaction(ec));
+      if (entity == null) {
+        // Corresponding entity hasn't been fetched yet, so get it.
+        Key key = EntityUtils.getPkAsKey(op);
+        entity = EntityUtils.getEntityFromDatastore(datastoreMgr.getDatastoreServiceForReads(ec), op, key);
+      }
 
-    // Update the Entity with the specified fields
-    StoreFieldManager fieldMgr = new StoreFieldManager(op, entity, fieldNumbers);
-    op.provideFields(fieldNumbers, fieldMgr);
+      // Update the Entity with the specified fields
+      StoreFieldManager fieldMgr = new StoreFieldManager(op, entity, fieldNumbers);
+      op.provideFields(fieldNumbers, fieldMgr);
 
-    // Check and update the version
-    handleVersioningBeforeWrite(op, entity, true, "updating");
+      // Check and update the version, before any relation is written. If we're in the middle of a flush the
+      // check may have been made for all objects of the flush when it started
+      BatchUpdateManager batchUpdateMgr = batchUpdateManagerByExecutionContext.get(ec);
+      boolean batched = batchUpdateMgr != null && batchUpdateMgr.batchOperationInProgress();
+      if (batched && batchUpdateMgr.getVersionFailure(op) != null) {
+        throw batchUpdateMgr.getVersionFailure(op);
+      }
+      handleVersioningBeforeWrite(op, entity, true, "updating", !batched || !batchUpdateMgr.isVersionChecked(op));
 
-    // Update relation fields (including cascade-persist etc)
-    fieldMgr.storeRelations(KeyRegistry.getKeyRegistry(op.getExecutionContext()));
+      // Update relation fields (including cascade-persist etc)
+      fieldMgr.storeRelations(KeyRegistry.getKeyRegistry(op.getExecutionContext()));
 
-    // PUT Entity into datastore
-    DatastoreTransaction txn = EntityUtils.putEntityIntoDatastore(ec, entity);
-    op.setAssociatedValue(txn, entity);
+      if (batched) {
+        // PUT Entity into datastore along with the other updates of the flush
+        batchUpdateMgr.add(new BatchUpdateManager.BatchUpdateState(op, entity));
+        op.setAssociatedValue(datastoreMgr.getDatastoreTransaction(ec), entity);
+      } else {
+        // PUT Entity into datastore
+        DatastoreTransaction txn = EntityUtils.putEntityIntoDatastore(ec, entity);
+        op.setAssociatedValue(txn, entity);
+      }
 
-    op.replaceAllLoadedSCOFieldsWithWrappers();
+      op.replaceAllLoadedSCOFieldsWithWrappers();
 
-    if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
-      NucleusLogger.DATASTORE_PERSIST.debug(GAE_LOCALISER.msg("AppEngine.ExecutionTime", 
-        (System.currentTimeMillis() - startTime)));
+      if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_PERSIST.debug(GAE_LOCALISER.msg("AppEngine.ExecutionTime", 
+          (System.currentTimeMillis() - startTime)));
+      }
+      if (ec.getStatistics() != null) {
+        ec.getStatistics().incrementUpdateCount();
+      }
+    } finally {
+      DatastoreMetrics.exitPath(previousPath);
     }
-    if (ec.getStatistics() != null) {
-      ec.getStatistics().incrementUpdateCount();
+  }
+
+  /**
+   * Method to perform the work of the updates collected by a flush, putting the entities updated together.
+   * Their versions were checked before they were updated (see {@link #updateBatchCheckVersions}). An object
+   * updated more than once by the flush is put once, and one deleted since it was updated isn't put.
+   * @param updates The updates, in the order they were made
+   */
+  void updateObjectsInternal(List<BatchUpdateManager.BatchUpdateState> updates) {
+    Path previousPath = DatastoreMetrics.enterPath(Path.UPDATE);
+    try {
+      ExecutionContext ec = updates.get(0).op.getExecutionContext();
+      Map<Key, BatchUpdateManager.BatchUpdateState> updatesByKey =
+          new LinkedHashMap<Key, BatchUpdateManager.BatchUpdateState>();
+      for (BatchUpdateManager.BatchUpdateState update : updates) {
+        updatesByKey.put(update.entity.getKey(), update);
+      }
+
+      List<Entity> entities = Utils.newArrayList();
+      for (BatchUpdateManager.BatchUpdateState update : updatesByKey.values()) {
+        if (!update.op.getLifecycleState().isDeleted()) {
+          entities.add(update.entity);
+        }
+      }
+      for (int start = 0; start < entities.size(); start += MAX_ENTITIES_PER_PUT) {
+        EntityUtils.putEntitiesIntoDatastore(ec,
+            entities.subList(start, Math.min(start + MAX_ENTITIES_PER_PUT, entities.size())));
+      }
+    } finally {
+      DatastoreMetrics.exitPath(previousPath);
     }
   }
 
@@ -440,44 +600,64 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
    * @param op ObjectProvider of the managed object
    */
   public void deleteObject(ObjectProvider op) {
-    // Make sure writes are permitted
-    assertReadOnlyForUpdateOfObject(op);
-    datastoreMgr.validateMetaDataForClass(op.getClassMetaData());
+    Path previousPath = DatastoreMetrics.enterPath(Path.DELETE);
+    try {
+      // Make sure writes are permitted
+      assertReadOnlyForUpdateOfObject(op);
+      datastoreMgr.validateMetaDataForClass(op.getClassMetaData());
+
+      long startTime = System.currentTimeMillis();
+      if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_PERSIST.debug(GAE_LOCALISER.msg("AppEngine.Delete.Start", 
+            StringUtils.toJVMIDString(op.getObject()), op.getInternalObjectId()));
+      }
 
-    long startTime = System.currentTimeMillis();
-    if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
-      NucleusLogger.DATASTORE_PERSIST.debug(GAE_LOCALISER.msg("AppEngine.Delete.Start", 
-          StringUtils.toJVMIDString(op.getObject()), op.getInternalObjectId()));
-    }
+      ExecutionContext ec = op.getExecutionContext();
+      Entity entity = (Entity) op.getAssociatedValue(datastoreMgr.getDatastoreTransaction(ec));
+      if (entity == null) {
+        // Corresponding entity hasn't been fetched yet, so get it.
+        Key key = EntityUtils.getPkAsKey(op);
+        entity = EntityUtils.getEntityFromDatastore(datastoreMgr.getDatastoreServiceForReads(ec), op, key);
+      }
 
-    ExecutionContext ec = op.getExecutionContext();
-    Entity entity = (Entity) op.getAssociatedValue(datastoreMgr.getDatastoreTransaction(ec));
-    if (entity == null) {
-      // Corresponding entity hasn't been fetched yet, so get it.
-      Key key = EntityUtils.getPkAsKey(op);
-      entity = EntityUtils.getEntityFromDatastore(datastoreMgr.getDatastoreServiceForReads(ec), op, key);
-    }
+      DatastoreTransaction txn = datastoreMgr.getDatastoreTransaction(ec);
+      if (txn != null) {
+        txn.addDeletedKey(entity.getKey());
+      }
 
-    DatastoreTransaction txn = datastoreMgr.getDatastoreTransaction(ec);
-    if (txn != null) {
-      txn.addDeletedKey(entity.getKey());
-    }
+      // Check the version is valid to delete; any updates since read?
+      handleVersioningBeforeWrite(op, entity, false, "deleting");
 
-    // Check the version is valid to delete; any updates since read?
-    handleVersioningBeforeWrite(op, entity, false, "deleting");
+      // first handle any dependent deletes that need deleting before we delete this object
+      ClassLoaderResolver clr = ec.getClassLoaderResolver();
+      DatastoreClass dc = datastoreMgr.getDatastoreClass(op.getObject().getClass().getName(), clr);
+      DependentDeleteRequest req = new DependentDeleteRequest(dc, op.getClassMetaData(), clr);
+      Set relatedObjectsToDelete = req.execute(op, entity);
 
-    // first handle any dependent deletes that need deleting before we delete this object
-    ClassLoaderResolver clr = ec.getClassLoaderResolver();
-    DatastoreClass dc = datastoreMgr.getDatastoreClass(op.getObject().getClass().getName(), clr);
-    DependentDeleteRequest req = new DependentDeleteRequest(dc, op.getClassMetaData(), clr);
-    Set relatedObjectsToDelete = req.execute(op, entity);
+      Key keyToDelete = EntityUtils.getPkAsKey(op);
 
-    Key keyToDelete = EntityUtils.getPkAsKey(op);
+      // If we're in the middle of a batch operation just register the key that needs the delete
+      BatchDeleteManager bdm = getBatchDeleteManager(ec);
+      if (bdm.batchOperationInProgress()) {
+        bdm.add(new BatchDeleteManager.BatchDeleteState(txn, keyToDelete));
 
-    // If we're in the middle of a batch operation just register the key that needs the delete
-    BatchDeleteManager bdm = getBatchDeleteManager(ec);
-    if (bdm.batchOperationInProgress()) {
-      bdm.add(new BatchDeleteManager.BatchDeleteState(txn, keyToDelete));
+        if (relatedObjectsToDelete != null && !relatedObjectsToDelete.isEmpty()) {
+          // Delete any related objects that need deleting after the delete of this object
+          Iterator iter = relatedObjectsToDelete.iterator();
+          while (iter.hasNext()) {
+            Object relatedObject = iter.next();
+            ec.deleteObjectInternal(relatedObject);
+          }
+        }
+        if (ec.getStatistics() != null) {
+          ec.getStatistics().incrementDeleteCount();
+        }
+
+        return;
+      }
+
+      // Delete this object
+      EntityUtils.deleteEntitiesFromDatastore(ec, Collections.singletonList(keyToDelete));
 
       if (relatedObjectsToDelete != null && !relatedObjectsToDelete.isEmpty()) {
         // Delete any related objects that need deleting after the delete of this object
@@ -491,27 +671,12 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
         ec.getStatistics().incrementDeleteCount();
       }
 
-      return;
-    }
-
-    // Delete this object
-    EntityUtils.deleteEntitiesFromDatastore(ec, Collections.singletonList(keyToDelete));
-
-    if (relatedObjectsToDelete != null && !relatedObjectsToDelete.isEmpty()) {
-      // Delete any related objects that need deleting after the delete of this object
-      Iterator iter = relatedObjectsToDelete.iterator();
-      while (iter.hasNext()) {
-        Object relatedObject = iter.next();
-        ec.deleteObjectInternal(relatedObject);
+      if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_PERSIST.debug(GAE_LOCALISER.msg("AppEngine.ExecutionTime", 
+          (System.currentTimeMillis() - startTime)));
       }
-    }
-    if (ec.getStatistics() != null) {
-      ec.getStatistics().incrementDeleteCount();
-    }
-
-    if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
-      NucleusLogger.DATASTORE_PERSIST.debug(GAE_LOCALISER.msg("AppEngine.ExecutionTime", 
-        (System.currentTimeMillis() - startTime)));
+    } finally {
+      DatastoreMetrics.exitPath(previousPath);
     }
   }
 
@@ -521,89 +686,94 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
    * @param fieldNumbers Fields to fetch
    */
   public void fetchObject(ObjectProvider op, int fieldNumbers[]) {
-    if (fieldNumbers == null || fieldNumbers.length == 0) {
-      return;
-    }
+    Path previousPath = DatastoreMetrics.enterPath(Path.FETCH);
+    try {
+      if (fieldNumbers == null || fieldNumbers.length == 0) {
+        return;
+      }
 
-    AbstractClassMetaData cmd = op.getClassMetaData();
-    datastoreMgr.validateMetaDataForClass(cmd);
-
-    // We always fetch the entire object, so if the state manager
-    // already has an associated Entity we know that associated
-    // Entity has all the fields.
-    ExecutionContext ec = op.getExecutionContext();
-    Entity entity = (Entity) op.getAssociatedValue(datastoreMgr.getDatastoreTransaction(ec));
-    if (entity == null) {
-      Key pk = EntityUtils.getPkAsKey(op);
-      entity = EntityUtils.getEntityFromDatastore(datastoreMgr.getDatastoreServiceForReads(ec), op, pk); // Throws NucleusObjectNotFoundException if necessary
-    }
+      AbstractClassMetaData cmd = op.getClassMetaData();
+      datastoreMgr.validateMetaDataForClass(cmd);
 
-    if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled()) {
-      // Debug information about what we are retrieving
-      StringBuffer str = new StringBuffer("Fetching object \"");
-      str.append(StringUtils.toJVMIDString(op.getObject())).append("\" (id=");
-      str.append(op.getInternalObjectId()).append(")").append(" fields [");
-      for (int i=0;i<fieldNumbers.length;i++) {
-        if (i > 0) {
-          str.append(",");
+      // We always fetch the entire object, so if the state manager
+      // already has an associated Entity we know that associated
+      // Entity has all the fields.
+      ExecutionContext ec = op.getExecutionContext();
+      Entity entity = (Entity) op.getAssociatedValue(datastoreMgr.getDatastoreTransaction(ec));
+      if (entity == null) {
+        Key pk = EntityUtils.getPkAsKey(op);
+        entity = EntityUtils.getEntityFromDatastore(datastoreMgr.getDatastoreServiceForReads(ec), op, pk); // Throws NucleusObjectNotFoundException if necessary
+      }
+
+      if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled()) {
+        // Debug information about what we are retrieving
+        StringBuffer str = new StringBuffer("Fetching object \"");
+        str.append(StringUtils.toJVMIDString(op.getObject())).append("\" (id=");
+        str.append(op.getInternalObjectId()).append(")").append(" fields [");
+        for (int i=0;i<fieldNumbers.length;i++) {
+          if (i > 0) {
+            str.append(",");
+          }
+          str.append(cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]).getName());
         }
-        str.append(cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]).getName());
+        str.append("]");
+        NucleusLogger.DATASTORE_RETRIEVE.debug(str);
       }
-      str.append("]");
-      NucleusLogger.DATASTORE_RETRIEVE.debug(str);
-    }
 
-    long startTime = System.currentTimeMillis();
-    if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled()) {
-      NucleusLogger.DATASTORE_RETRIEVE.debug(GAE_LOCALISER.msg("AppEngine.Fetch.Start", 
-          StringUtils.toJVMIDString(op.getObject()), op.getInternalObjectId()));
-    }
+      long startTime = System.currentTimeMillis();
+      if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_RETRIEVE.debug(GAE_LOCALISER.msg("AppEngine.Fetch.Start", 
+            StringUtils.toJVMIDString(op.getObject()), op.getInternalObjectId()));
+      }
 
-    op.replaceFields(fieldNumbers, new FetchFieldManager(op, entity, fieldNumbers));
+      op.replaceFields(fieldNumbers, new FetchFieldManager(op, entity, fieldNumbers));
 
-    // Refresh version in case not yet set (e.g created HOLLOW object, and this is first fetch)
-    VersionMetaData vmd = cmd.getVersionMetaDataForClass();
-    if (cmd.isVersioned()) {
-      Object versionValue = entity.getProperty(EntityUtils.getVersionPropertyName(datastoreMgr.getIdentifierFactory(), vmd));
-      if (vmd.getVersionStrategy() == VersionStrategy.DATE_TIME) {
-        versionValue = new Timestamp((Long)versionValue);
+      // Refresh version in case not yet set (e.g created HOLLOW object, and this is first fetch)
+      VersionMetaData vmd = cmd.getVersionMetaDataForClass();
+      if (cmd.isVersioned()) {
+        Object versionValue = entity.getProperty(EntityUtils.getVersionPropertyName(datastoreMgr.getIdentifierFactory(), vmd));
+        if (vmd.getVersionStrategy() == VersionStrategy.DATE_TIME) {
+          versionValue = new Timestamp((Long)versionValue);
+        }
+        op.setVersion(versionValue);
       }
-      op.setVersion(versionValue);
-    }
 
-    // Run post-fetch mapping callbacks. What is this actually achieving?
-    AbstractMemberMetaData[] fmds = new AbstractMemberMetaData[fieldNumbers.length];
-    for (int i = 0; i < fmds.length; i++) {
-      fmds[i] = op.getClassMetaData().getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]);
-    }
-    ClassLoaderResolver clr = ec.getClassLoaderResolver();
-    DatastoreClass dc = datastoreMgr.getDatastoreClass(op.getObject().getClass().getName(), clr);
-    FetchMappingConsumer consumer = new FetchMappingConsumer(op.getClassMetaData());
-    dc.provideMappingsForMembers(consumer, fmds, true);
-    dc.provideDatastoreIdMappings(consumer);
-    dc.providePrimaryKeyMappings(consumer);
-    for (MappingCallbacks callback : consumer.getMappingCallbacks()) {
-      // Arrays and Maps don't use backing stores
-      if (callback instanceof ArrayMapping || callback instanceof MapMapping) {
-        // Do nothing since arrays and maps are stored in the parent property and loaded above using FetchFieldManager
-      } else if (callback instanceof CollectionMapping) {
-        CollectionMapping m = (CollectionMapping)callback;
-        Object val = op.provideField(m.getMemberMetaData().getAbsoluteFieldNumber());
-        if (val == null || !(val instanceof SCO)) {
-          // Not yet wrapped, so make sure we wrap it
+      // Run post-fetch mapping callbacks. What is this actually achieving?
+      AbstractMemberMetaData[] fmds = new AbstractMemberMetaData[fieldNumbers.length];
+      for (int i = 0; i < fmds.length; i++) {
+        fmds[i] = op.getClassMetaData().getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]);
+      }
+      ClassLoaderResolver clr = ec.getClassLoaderResolver();
+      DatastoreClass dc = datastoreMgr.getDatastoreClass(op.getObject().getClass().getName(), clr);
+      FetchMappingConsumer consumer = new FetchMappingConsumer(op.getClassMetaData());
+      dc.provideMappingsForMembers(consumer, fmds, true);
+      dc.provideDatastoreIdMappings(consumer);
+      dc.providePrimaryKeyMappings(consumer);
+      for (MappingCallbacks callback : consumer.getMappingCallbacks()) {
+        // Arrays and Maps don't use backing stores
+        if (callback instanceof ArrayMapping || callback instanceof MapMapping) {
+          // Do nothing since arrays and maps are stored in the parent property and loaded above using FetchFieldManager
+        } else if (callback instanceof CollectionMapping) {
+          CollectionMapping m = (CollectionMapping)callback;
+          Object val = op.provideField(m.getMemberMetaData().getAbsoluteFieldNumber());
+          if (val == null || !(val instanceof SCO)) {
+            // Not yet wrapped, so make sure we wrap it
+            callback.postFetch(op);
+          }
+        } else {
           callback.postFetch(op);
         }
-      } else {
-        callback.postFetch(op);
       }
-    }
 
-    if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled()) {
-      NucleusLogger.DATASTORE_RETRIEVE.debug(GAE_LOCALISER.msg("AppEngine.ExecutionTime",
-            (System.currentTimeMillis() - startTime)));
-    }
-    if (ec.getStatistics() != null) {
-      ec.getStatistics().incrementFetchCount();
+      if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_RETRIEVE.debug(GAE_LOCALISER.msg("AppEngine.ExecutionTime",
+              (System.currentTimeMillis() - startTime)));
+      }
+      if (ec.getStatistics() != null) {
+        ec.getStatistics().incrementFetchCount();
+      }
+    } finally {
+      DatastoreMetrics.exitPath(previousPath);
     }
   }
 
@@ -613,17 +783,22 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
    * @throws NucleusObjectNotFoundException if any of the objects aren't found in the datastore
    */
   public void locateObjects(ObjectProvider[] ops) {
-    if (ops == null) {
-      return;
-    }
+    Path previousPath = DatastoreMetrics.enterPath(Path.FETCH);
+    try {
+      if (ops == null) {
+        return;
+      }
 
-    List<Key> keysToLocate = Utils.newArrayList();
-    for (int i=0;i<ops.length;i++) {
-      Key key = EntityUtils.getPkAsKey(ops[i]);
-      keysToLocate.add(key);
+      List<Key> keysToLocate = Utils.newArrayList();
+      for (int i=0;i<ops.length;i++) {
+        Key key = EntityUtils.getPkAsKey(ops[i]);
+        keysToLocate.add(key);
+      }
+      EntityUtils.getEntitiesFromDatastore(datastoreMgr.getDatastoreServiceForReads(ops[0].getExecutionContext()),
+          keysToLocate, ops[0].getExecutionContext());
+    } finally {
+      DatastoreMetrics.exitPath(previousPath);
     }
-    EntityUtils.getEntitiesFromDatastore(datastoreMgr.getDatastoreServiceForReads(ops[0].getExecutionContext()),
-        keysToLocate, ops[0].getExecutionContext());
   }
 
   /**
@@ -632,9 +807,14 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
    * @throws NucleusObjectNotFoundException if the object isn't found in the datastore
    */
   public void locateObject(ObjectProvider op) {
-    datastoreMgr.validateMetaDataForClass(op.getClassMetaData());
-    EntityUtils.getEntityFromDatastore(datastoreMgr.getDatastoreServiceForReads(op.getExecutionContext()), op, 
-        EntityUtils.getPkAsKey(op));
+    Path previousPath = DatastoreMetrics.enterPath(Path.FETCH);
+    try {
+      datastoreMgr.validateMetaDataForClass(op.getClassMetaData());
+      EntityUtils.getEntityFromDatastore(datastoreMgr.getDatastoreServiceForReads(op.getExecutionContext()), op, 
+          EntityUtils.getPkAsKey(op));
+    } finally {
+      DatastoreMetrics.exitPath(previousPath);
+    }
   }
 
   /**
@@ -655,40 +835,27 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
    * @param operation Convenience string for messages
    */
   private void handleVersioningBeforeWrite(ObjectProvider op, Entity entity, boolean increment, String operation) {
+    handleVersioningBeforeWrite(op, entity, increment, operation, true);
+  }
+
+  /**
+   * Method to check optimistic versioning, and to set the version on the entity when required.
+   * @param op ObjectProvider for the object
+   * @param entity The entity being updated
+   * @param increment Whether to set the next version on the version field of the object
+   * @param operation Convenience string for messages
+   * @param checkVersion Whether to check the version against the datastore now, rather than with the put
+   */
+  private void handleVersioningBeforeWrite(ObjectProvider op, Entity entity, boolean increment, String operation,
+      boolean checkVersion) {
     AbstractClassMetaData cmd = op.getClassMetaData();
     VersionMetaData vmd = cmd.getVersionMetaDataForClass();
     if (cmd.isVersioned()) {
       ExecutionContext ec = op.getExecutionContext();
       String versionPropertyName = EntityUtils.getVersionPropertyName(datastoreMgr.getIdentifierFactory(), vmd);
       Object curVersion = op.getVersion();
-      if (curVersion != null) {
-        // Fetch the latest and greatest version of the entity from the datastore
-        // to see if anyone has made a change underneath us.  We need to execute
-        // the fetch outside a txn to guarantee that we see the latest version.
-        if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
-          NucleusLogger.DATASTORE_NATIVE.debug("Getting entity with key " + entity.getKey());
-        }
-        Entity refreshedEntity;
-        try {
-          if (ec.getStatistics() != null) {
-            ec.getStatistics().incrementNumReads();
-          }
-          refreshedEntity = datastoreMgr.getDatastoreServiceForReads(op.getExecutionContext()).get(entity.getKey());
-        } catch (EntityNotFoundException e) {
-          // someone deleted out from under us
-          throw new NucleusOptimisticException(GAE_LOCALISER.msg("AppEngine.OptimisticError.EntityHasBeenDeleted", operation,
-              cmd.getFullClassName(), entity.getKey()));
-        }
-
-        Object datastoreVersion = refreshedEntity.getProperty(versionPropertyName);
-        if (vmd.getVersionStrategy() == VersionStrategy.DATE_TIME) {
-          datastoreVersion = new Timestamp((Long) datastoreVersion);
-        }
-
-        if (!datastoreVersion.equals(curVersion)) {
-          throw new NucleusOptimisticException(GAE_LOCALISER.msg("AppEngine.OptimisticError.EntityHasBeenUpdated", operation,
-              cmd.getFullClassName(), entity.getKey()));
-        }
+      if (curVersion != null && checkVersion) {
+        checkVersion(op, entity, curVersion, operation);
       }
 
       Object nextVersion = VersionHelper.getNextVersion(vmd.getVersionStrategy(), curVersion);
@@ -719,6 +886,66 @@ public class DatastorePersistenceHandler extends AbstractPersistenceHandler {
     }
   }
 
+  /**
+   * Method to check that the version of an object in the datastore is the one it had when read, fetching
+   * the latest version of its entity.
+   * @param op ObjectProvider for the object
+   * @param entity The entity being written
+   * @param curVersion The version of the object when read
+   * @param operation Convenience string for messages
+   * @throws NucleusOptimisticException if the entity has been updated or deleted
+   */
+  private void checkVersion(ObjectProvider op, Entity entity, Object curVersion, String operation) {
+    // Fetch the latest and greatest version of the entity from the datastore
+    // to see if anyone has made a change underneath us.  We need to execute
+    // the fetch outside a txn to guarantee that we see the latest version.
+    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Getting entity with key " + entity.getKey());
+    }
+    Entity refreshedEntity;
+    try {
+      ExecutionContext ec = op.getExecutionContext();
+      if (ec.getStatistics() != null) {
+        ec.getStatistics().incrementNumReads();
+      }
+      refreshedEntity = datastoreMgr.getDatastoreServiceForReads(ec).get(entity.getKey());
+    } catch (EntityNotFoundException e) {
+      refreshedEntity = null;
+    }
+    assertVersionUnchanged(op, entity.getKey(), refreshedEntity, curVersion, operation);
+  }
+
+  /**
+   * Method to check that the version of an object in the datastore is the one it had when read.
+   * @param op ObjectProvider for the object
+   * @param key Key of its entity
+   * @param refreshedEntity The entity as now in the datastore, or null if it has been deleted
+   * @param curVersion The version of the object when read
+   * @param operation Convenience string for messages
+   * @throws NucleusOptimisticException if the entity has been updated or deleted
+   */
+  private void assertVersionUnchanged(ObjectProvider op, Key key, Entity refreshedEntity, Object curVersion,
+      String operation) {
+    AbstractClassMetaData cmd = op.getClassMetaData();
+    if (refreshedEntity == null) {
+      // someone deleted out from under us
+      throw new NucleusOptimisticException(GAE_LOCALISER.msg("AppEngine.OptimisticError.EntityHasBeenDeleted", operation,
+          cmd.getFullClassName(), key));
+    }
+
+    VersionMetaData vmd = cmd.getVersionMetaDataForClass();
+    Object datastoreVersion =
+        refreshedEntity.getProperty(EntityUtils.getVersionPropertyName(datastoreMgr.getIdentifierFactory(), vmd));
+    if (vmd.getVersionStrategy() == VersionStrategy.DATE_TIME) {
+      datastoreVersion = new Timestamp((Long) datastoreVersion);
+    }
+
+    if (!datastoreVersion.equals(curVersion)) {
+      throw new NucleusOptimisticException(GAE_LOCALISER.msg("AppEngine.OptimisticError.EntityHasBeenUpdated", operation,
+          cmd.getFullClassName(), key));
+    }
+  }
+
   /**
    * All the information needed to perform a put on an Entity.
    */
@@ -49,13 +49,24 @@ public final class DatastoreServiceFactoryInternal {
    *   Otherwise a {@link DatastoreService} constructed by calling {@link DatastoreServiceFactory#getDatastoreService()}
    */
   public static DatastoreService getDatastoreService(DatastoreServiceConfig config) {
+    return getDatastoreService(config, DatastoreMetrics.NONE, null);
+  }
+
+  /**
+   * @param config The config to use.
+   * @param metrics The metrics of the DatastoreManager to report the calls made through the service to
+   * @param path The path to attribute the calls to, or null to take that of the calling thread
+   * @return As {@link #getDatastoreService(DatastoreServiceConfig)}
+   */
+  public static DatastoreService getDatastoreService(DatastoreServiceConfig config, DatastoreMetrics metrics,
+      DatastoreMetrics.Path path) {
     if (datastoreServiceToReturn.get() != null) {
       return datastoreServiceToReturn.get();
     }
 
     // Wrap the service in an impl that properly translates the runtime exceptions thrown by the datastore api
     return new WrappedDatastoreService(
-        DatastoreServiceFactory.getDatastoreService(config));
+        DatastoreServiceFactory.getDatastoreService(config), metrics, path);
   }
 
   /**
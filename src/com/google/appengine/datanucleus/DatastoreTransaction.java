@@ -16,74 +16,168 @@ limitations under the License.
 package com.google.appengine.datanucleus;
 
 import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.datanucleus.DatastoreMetrics.Operation;
 
 import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapDatastoreFailureException;
 import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrapIllegalArgumentException;
 
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.util.Localiser;
+import org.datanucleus.util.NucleusLogger;
 
 /**
  * The orm's view of a datastore transaction.  
  * Delegates to a {@link Transaction} and also functions as a txn-level cache.
+ * <p>
+ * The {@link Transaction} is begun lazily, on the first call to {@link #getInnerTxn()}, which is made by
+ * the first get, put, delete or ancestor query of the transaction. A transaction that never touches the
+ * datastore so costs no RPCs, and committing or rolling it back is a no-op.
+ * Until then there is no current transaction for the DatastoreService either, so low-level datastore code run
+ * within the PM/EM transaction before the plugin first uses it doesn't join it (including with
+ * ImplicitTransactionManagementPolicy.AUTO). Set {@link DatastoreManager#BEGIN_TRANSACTIONS_EAGERLY_PROPERTY}
+ * to begin it with the PM/EM transaction instead.
+ * Since the inner transaction changes when it is begun, equality is identity.
+ * </p>
  *
  * @author Max Ross <maxr@google.com>
  */
 public class DatastoreTransaction {
+  private static final Localiser LOCALISER = Localiser.getInstance(
+      "com.google.appengine.datanucleus.Localisation", DatastoreManager.class.getClassLoader());
 
-  private final Transaction txn;
+  /** Service to begin the transaction with, or null if it was provided already begun. */
+  private final DatastoreService datastoreService;
+
+  private final TransactionOptions txnOpts;
+
+  /** Metrics to report the commit or rollback to. */
+  private final DatastoreMetrics metrics;
+
+  /** The datastore transaction, or null if not yet begun. */
+  private Transaction txn;
 
   private final Map<Key, Entity> putEntities = Utils.newHashMap();
 
   private final Set<Key> deletedKeys = Utils.newHashSet();
 
+  /** Cache to invalidate the written entities of once committed, if any were written. */
+  private EntityCache entityCache;
+
+  /** Keys of the entities of cached kinds written in this transaction. */
+  private final Set<Key> cachedKeysWritten = Utils.newHashSet();
+
   DatastoreTransaction(Transaction txn) {
     if (txn == null) {
       throw new NullPointerException("txn cannot be null");
     }
     this.txn = txn;
+    this.datastoreService = null;
+    this.txnOpts = null;
+    this.metrics = DatastoreMetrics.NONE;
+  }
+
+  /**
+   * Constructor for a transaction that will be begun against the provided DatastoreService when first needed.
+   * @param datastoreService The DatastoreService
+   * @param txnOpts Options to begin the transaction with
+   * @param metrics Metrics to report the commit or rollback to
+   */
+  DatastoreTransaction(DatastoreService datastoreService, TransactionOptions txnOpts, DatastoreMetrics metrics) {
+    if (datastoreService == null) {
+      throw new NullPointerException("datastoreService cannot be null");
+    }
+    this.datastoreService = datastoreService;
+    this.txnOpts = txnOpts;
+    this.metrics = metrics;
   }
 
   private void clear() {
     putEntities.clear();
     deletedKeys.clear();
+    cachedKeysWritten.clear();
   }
 
   void commit() {
+    if (txn == null) {
+      // Never begun, so nothing to commit
+      clear();
+      return;
+    }
+    metrics.beforeCall(null, Operation.COMMIT, null, 0);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
       txn.commit();
+      failed = false;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw new NucleusDataStoreException("Concurrent Modification", e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, null, Operation.COMMIT, null, 0, failed);
+    }
+    if (!cachedKeysWritten.isEmpty()) {
+      entityCache.invalidate(cachedKeysWritten);
     }
     clear();
   }
 
   void rollback() {
+    if (txn == null) {
+      // Never begun, so nothing to roll back
+      clear();
+      return;
+    }
+    metrics.beforeCall(null, Operation.ROLLBACK, null, 0);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
       txn.rollback();
+      failed = false;
       clear();
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, null, Operation.ROLLBACK, null, 0, failed);
     }
   }
 
-  public Transaction getInnerTxn() {
+  /**
+   * Accessor for the datastore transaction, beginning it if not yet begun.
+   * @return The datastore transaction
+   */
+  public synchronized Transaction getInnerTxn() {
+    if (txn == null) {
+      txn = datastoreService.beginTransaction(txnOpts);
+      if (NucleusLogger.TRANSACTION.isDebugEnabled()) {
+        NucleusLogger.TRANSACTION.debug(LOCALISER.msg("AppEngine.Transaction.Started", txn.getId()));
+      }
+    }
     return txn;
   }
 
+  /**
+   * @return Whether the datastore transaction has been begun
+   */
+  public synchronized boolean isStarted() {
+    return txn != null;
+  }
+
   void addPutEntities(List<Entity> entities) {
     for (Entity entity : entities) {
       // Make a copy in case someone changes
@@ -100,6 +194,11 @@ public class DatastoreTransaction {
     return copy;
   }
 
+  void addCacheInvalidations(EntityCache cache, Collection<Key> keys) {
+    entityCache = cache;
+    cachedKeysWritten.addAll(cache.getKeysOfCachedKinds(keys));
+  }
+
   void addDeletedKey(Key key) {
     deletedKeys.add(key);
   }
@@ -111,27 +210,4 @@ public class DatastoreTransaction {
   Set<Key> getDeletedKeys() {
     return deletedKeys;
   }
-
-  @Override
-  public boolean equals(Object o) {
-    if (this == o) {
-      return true;
-    }
-    if (o == null || getClass() != o.getClass()) {
-      return false;
-    }
-
-    DatastoreTransaction that = (DatastoreTransaction) o;
-
-    if (!txn.equals(that.txn)) {
-      return false;
-    }
-
-    return true;
-  }
-
-  @Override
-  public int hashCode() {
-    return txn.hashCode();
-  }
 }
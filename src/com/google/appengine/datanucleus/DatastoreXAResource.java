@@ -16,7 +16,6 @@ limitations under the License.
 package com.google.appengine.datanucleus;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
 
 import org.datanucleus.util.NucleusLogger;
@@ -39,9 +38,18 @@ class DatastoreXAResource extends EmulatedXAResource {
   private DatastoreTransaction currentTxn;
   private final TransactionOptions txnOpts;
 
-  public DatastoreXAResource(DatastoreService datastoreService, TransactionOptions txnOpts) {
-    super(datastoreService);
+  /** Whether to begin the datastore transaction in start() rather than on first use. */
+  private final boolean beginEagerly;
+
+  /** Metrics to report commits and rollbacks to. */
+  private final DatastoreMetrics metrics;
+
+  public DatastoreXAResource(DatastoreService datastoreService, TransactionOptions txnOpts,
+      KeyRegistry keyRegistry, boolean beginEagerly, DatastoreMetrics metrics) {
+    super(datastoreService, keyRegistry);
     this.txnOpts = txnOpts;
+    this.beginEagerly = beginEagerly;
+    this.metrics = metrics;
   }
 
   @Override
@@ -53,12 +61,12 @@ class DatastoreXAResource extends EmulatedXAResource {
   public void start(Xid xid, int flags) throws XAException {
     super.start(xid, flags);
     if (currentTxn == null) {
-      // No currentTxn, and DatastoreService will have been created by DatastoreConnectionFactoryImpl, so call beginTxn
-      Transaction datastoreTxn = datastoreService.beginTransaction(txnOpts);
-      currentTxn = new DatastoreTransaction(datastoreTxn);
-      if (NucleusLogger.TRANSACTION.isDebugEnabled()) {
-        NucleusLogger.TRANSACTION.debug(
-            LOCALISER.msg("AppEngine.Transaction.Started", currentTxn.getInnerTxn().getId()));
+      // No currentTxn, and DatastoreService will have been created by DatastoreConnectionFactoryImpl.
+      // The datastore transaction is only begun when first used, so this makes no RPC, unless configured
+      // to begin eagerly so that low-level code finds it as the current transaction straight away.
+      currentTxn = new DatastoreTransaction(datastoreService, txnOpts, metrics);
+      if (beginEagerly) {
+        currentTxn.getInnerTxn();
       }
     } else {
       throw new XAException(LOCALISER.msg("AppEngine.Transaction.AlreadyStarted"));
@@ -71,8 +79,9 @@ class DatastoreXAResource extends EmulatedXAResource {
     if (currentTxn != null) {
       currentTxn.commit();
       if (NucleusLogger.TRANSACTION.isDebugEnabled()) {
-        NucleusLogger.TRANSACTION.debug(
-            LOCALISER.msg("AppEngine.Transaction.Committed", currentTxn.getInnerTxn().getId()));
+        NucleusLogger.TRANSACTION.debug(currentTxn.isStarted() ?
+            LOCALISER.msg("AppEngine.Transaction.Committed", currentTxn.getInnerTxn().getId()) :
+            LOCALISER.msg("AppEngine.Transaction.NotStarted"));
       }
       currentTxn = null;
     } else {
@@ -86,8 +95,9 @@ class DatastoreXAResource extends EmulatedXAResource {
     if (currentTxn != null) {
       currentTxn.rollback();
       if (NucleusLogger.TRANSACTION.isDebugEnabled()) {
-        NucleusLogger.TRANSACTION.debug(
-            LOCALISER.msg("AppEngine.Transaction.RolledBack", currentTxn.getInnerTxn().getId()));
+        NucleusLogger.TRANSACTION.debug(currentTxn.isStarted() ?
+            LOCALISER.msg("AppEngine.Transaction.RolledBack", currentTxn.getInnerTxn().getId()) :
+            LOCALISER.msg("AppEngine.Transaction.NotStarted"));
       }
       currentTxn = null;
     } else {
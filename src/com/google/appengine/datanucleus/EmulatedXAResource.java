@@ -41,13 +41,14 @@ class EmulatedXAResource implements XAResource {
 
   private State state = State.NEW;
 
-  private final KeyRegistry keyRegistry = new KeyRegistry();
+  private final KeyRegistry keyRegistry;
 
   /** The datastore service we'll use to perform datastore operations. */
   protected final DatastoreService datastoreService;
 
-  public EmulatedXAResource(DatastoreService ds) {
+  public EmulatedXAResource(DatastoreService ds, KeyRegistry keyRegistry) {
     this.datastoreService = ds;
+    this.keyRegistry = keyRegistry;
   }
 
   public void start(Xid xid, int flags) throws XAException {
@@ -61,8 +62,7 @@ class EmulatedXAResource implements XAResource {
     if (state != State.ACTIVE) {
       throw new XAException(LOCALISER.msg("AppEngine.Transaction.CommitInvalid"));
     }
-    keyRegistry.clearParentKeys();
-    keyRegistry.clearUnownedObjects();
+    keyRegistry.clear();
     state = State.INACTIVE;
   }
 
@@ -70,8 +70,7 @@ class EmulatedXAResource implements XAResource {
     if (state != State.ACTIVE) {
       throw new XAException(LOCALISER.msg("AppEngine.Transaction.RollbackInvalid"));
     }
-    keyRegistry.clearParentKeys();
-    keyRegistry.clearUnownedObjects();
+    keyRegistry.clear();
     state = State.INACTIVE;
   }
 
@@ -0,0 +1,142 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import org.datanucleus.util.NucleusLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Second-level cache of entities keyed by {@link Key}, shared between instances via memcache, for
+ * hot, rarely changing entities. Only the kinds of classes marked with the extension
+ * {@link DatastoreManager#ENTITY_CACHE} are cached, and only gets by key outside of a transaction
+ * go to the cache (see {@link EntityUtils#getEntityFromDatastore} and
+ * {@link EntityUtils#getEntitiesFromDatastore}).
+ * <p>
+ * Entries are invalidated when the plugin puts or deletes the entity, and again once any transaction
+ * doing so commits. An invalidation stops entries being re-added for a short time, and entries are only
+ * added if not present, so a read racing with a write can't put back the entity as it was before the write.
+ * Writes made other than through the plugin are only picked up once the entry expires.
+ * </p>
+ */
+public class EntityCache {
+
+  /** Memcache namespace used for the entities. */
+  public static final String NAMESPACE = "datanucleus-appengine-entities";
+
+  /** Time after invalidating an entry during which it can't be re-added. */
+  static final long INVALIDATION_LOCK_MILLIS = 5000;
+
+  private final MemcacheService memcache;
+
+  /** Expiration of entries, or null if they don't expire. */
+  private final Expiration expiration;
+
+  /** Kinds that are cached. */
+  private final Set<String> cachedKinds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * @param expirationSeconds Time in seconds after which entries expire, or 0 for no expiry
+   */
+  EntityCache(int expirationSeconds) {
+    this.memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+    this.expiration = expirationSeconds > 0 ? Expiration.byDeltaSeconds(expirationSeconds) : null;
+  }
+
+  void addCachedKind(String kind) {
+    if (cachedKinds.add(kind) && NucleusLogger.DATASTORE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE.debug("Entities of kind " + kind + " will be cached");
+    }
+  }
+
+  /**
+   * @param kind The kind
+   * @return Whether entities of this kind are cached
+   */
+  public boolean isCachedKind(String kind) {
+    return cachedKinds.contains(kind);
+  }
+
+  /**
+   * @param key Key of the entity
+   * @return The cached entity, or null if not cached
+   */
+  Entity get(Key key) {
+    return (Entity) memcache.get(key);
+  }
+
+  /**
+   * @param keys Keys of the entities, all of cached kinds
+   * @return The cached entities keyed by their key, omitting those not cached
+   */
+  Map<Key, Entity> getAll(Collection<Key> keys) {
+    Map<Key, Entity> entities = new HashMap<Key, Entity>();
+    for (Map.Entry<Key, Object> entry : memcache.getAll(keys).entrySet()) {
+      entities.put(entry.getKey(), (Entity) entry.getValue());
+    }
+    return entities;
+  }
+
+  void put(Entity entity) {
+    memcache.put(entity.getKey(), entity, expiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+  }
+
+  void putAll(Collection<Entity> entities) {
+    Map<Key, Entity> entitiesByKey = new HashMap<Key, Entity>();
+    for (Entity entity : entities) {
+      entitiesByKey.put(entity.getKey(), entity);
+    }
+    memcache.putAll(entitiesByKey, expiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+  }
+
+  /**
+   * Invalidate the entries for any keys of cached kinds.
+   * @param keys Keys of the entities that have been written
+   */
+  void invalidate(Collection<Key> keys) {
+    List<Key> cachedKeys = getKeysOfCachedKinds(keys);
+    if (!cachedKeys.isEmpty()) {
+      memcache.deleteAll(cachedKeys, INVALIDATION_LOCK_MILLIS);
+    }
+  }
+
+  /**
+   * @param keys Keys
+   * @return Those keys that are of cached kinds
+   */
+  List<Key> getKeysOfCachedKinds(Collection<Key> keys) {
+    List<Key> cachedKeys = new ArrayList<Key>(keys.size());
+    for (Key key : keys) {
+      if (cachedKinds.contains(key.getKind())) {
+        cachedKeys.add(key);
+      }
+    }
+    return cachedKeys;
+  }
+}
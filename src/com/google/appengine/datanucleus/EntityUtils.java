@@ -18,8 +18,10 @@ package com.google.appengine.datanucleus;
 import java.lang.reflect.Field;
 import java.sql.Timestamp;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
@@ -281,7 +283,7 @@ public final class EntityUtils {
       return (Key) pk;
     } else if (pk instanceof String) {
       if (MetaDataUtils.hasEncodedPKField(acmd)) {
-        return KeyFactory.stringToKey((String) pk);
+        return KeyCodec.getInstance().stringToKey((String) pk);
       } else {
         String kind = EntityUtils.determineKind(acmd, ec);
         return KeyFactory.createKey(kind, (String) pk);
@@ -340,7 +342,7 @@ public final class EntityUtils {
     }
     if (pkType.equals(String.class)) {
       if (pkMemberMetaData.hasExtension(DatastoreManager.ENCODED_PK)) {
-        result = KeyFactory.keyToString(key);
+        result = KeyCodec.getInstance().keyToString(key);
       } else {
         if (key.getParent() != null) {
           // By definition, classes with unencoded string pks
@@ -385,7 +387,7 @@ public final class EntityUtils {
     Key keyWithId = KeyFactory.createKey(kind, ((Number) val).longValue());
     if (pkType.equals(String.class)) {
       if (pkMemberMetaData.hasExtension(DatastoreManager.ENCODED_PK)) {
-        result = KeyFactory.keyToString(keyWithId);
+        result = KeyCodec.getInstance().keyToString(keyWithId);
       } else {
         throw new NucleusFatalUserException(
             "Received a request to find an object of type " + cls.getName() + ".  The primary "
@@ -402,17 +404,16 @@ public final class EntityUtils {
 
   private static Object stringToInternalKey(
       String kind, Class<?> pkType, AbstractMemberMetaData pkMemberMetaData, Class<?> cls, Object val) {
-    Key decodedKey;
     Object result = null;
-    try {
-      decodedKey = KeyFactory.stringToKey((String) val);
+    Key decodedKey = KeyCodec.getInstance().decode((String) val);
+    if (decodedKey != null) {
       if (!decodedKey.isComplete()) {
         throw new NucleusFatalUserException(
             "Received a request to find an object of kind " + kind + " but the provided "
             + "identifier is the String representation of an incomplete Key for kind "
             + decodedKey.getKind());
       }
-    } catch (IllegalArgumentException iae) {
+    } else {
       if (pkType.equals(Long.class) || pkType.equals(long.class)) {
         // We were given an unencoded String and the pk type is Long.
         // There's no way that can be valid
@@ -432,7 +433,7 @@ public final class EntityUtils {
     if (pkType.equals(String.class)) {
       if (pkMemberMetaData.hasExtension(DatastoreManager.ENCODED_PK)) {
         // Need to make sure we pass on an encoded pk
-        result = KeyFactory.keyToString(decodedKey);
+        result = KeyCodec.getInstance().keyToString(decodedKey);
       } else {
         if (decodedKey.getParent() != null) {
           throw new NucleusFatalUserException(
@@ -485,11 +486,8 @@ public final class EntityUtils {
     } else if (long.class.isInstance(pk) || pk instanceof Long) {
       return KeyFactory.createKey(kind, (Long) pk);
     }
-    try {
-      return KeyFactory.stringToKey((String) pk);
-    } catch (IllegalArgumentException iae) {
-      return KeyFactory.createKey(kind, (String) pk);
-    }
+    Key key = KeyCodec.getInstance().decode((String) pk);
+    return key != null ? key : KeyFactory.createKey(kind, (String) pk);
   }
 
   public static Key getPrimaryKeyAsKey(ApiAdapter apiAdapter, ObjectProvider op) {
@@ -582,7 +580,7 @@ public final class EntityUtils {
       return;
     }
     Key childKey = childKeyOrString instanceof Key
-    ? (Key) childKeyOrString : KeyFactory.stringToKey((String) childKeyOrString);
+    ? (Key) childKeyOrString : KeyCodec.getInstance().stringToKey((String) childKeyOrString);
 
     Key parentKey = EntityUtils.getPrimaryKeyAsKey(apiAdapter, parentOP);
 
@@ -611,22 +609,24 @@ public final class EntityUtils {
     }
   }
 
+  /**
+   * Method to retrieve the Entities with the specified keys from the datastore.
+   * Outside of a transaction, entities of kinds that are cached are taken from the {@link EntityCache}
+   * where present, and added to it where not.
+   * @param ds DatastoreService to use
+   * @param keys The keys
+   * @param ec ExecutionContext
+   * @return The Entities, in the order of the keys
+   * @throws NucleusObjectNotFoundException if any of the entities don't exist
+   */
   public static List<Entity> getEntitiesFromDatastore(DatastoreService ds, List<Key> keys, ExecutionContext ec) {
-    DatastoreTransaction txn = 
-      ((DatastoreManager)ec.getStoreManager()).getDatastoreTransaction(ec);
-
-    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
-      NucleusLogger.DATASTORE_NATIVE.debug("Getting entities for keys " + StringUtils.collectionToString(keys));
-    }
-    if (ec.getStatistics() != null) {
-      ec.getStatistics().incrementNumReads();
-    }
-
+    DatastoreManager storeMgr = (DatastoreManager)ec.getStoreManager();
+    DatastoreTransaction txn = storeMgr.getDatastoreTransaction(ec);
     Map<Key, Entity> entityMap;
     if (txn == null) {
-      entityMap = ds.get(keys);
+      entityMap = getEntitiesOutsideTransaction(ds, keys, ec);
     } else {
-      entityMap = ds.get(txn.getInnerTxn(), keys);
+      entityMap = getEntities(ds, txn.getInnerTxn(), keys, ec);
     }
 
     if (entityMap.size() != keys.size()) {
@@ -648,8 +648,73 @@ public final class EntityUtils {
     return entities;
   }
 
+  /**
+   * Method to retrieve the Entities with the specified keys from the datastore, outside of a transaction.
+   * Entities of kinds that are cached are taken from the {@link EntityCache} where present, and added to it
+   * where not.
+   * @param ds DatastoreService to use
+   * @param keys The keys
+   * @param ec ExecutionContext
+   * @return The Entities found keyed by their key, omitting those that don't exist
+   */
+  public static Map<Key, Entity> getEntitiesOutsideTransaction(DatastoreService ds, List<Key> keys,
+      ExecutionContext ec) {
+    EntityCache cache = ((DatastoreManager)ec.getStoreManager()).getEntityCache();
+    if (cache == null) {
+      return getEntities(ds, null, keys, ec);
+    }
+
+    Map<Key, Entity> entityMap = null;
+    List<Key> keysToGet = keys;
+    List<Key> cachedKeys = cache.getKeysOfCachedKinds(keys);
+    if (!cachedKeys.isEmpty()) {
+      entityMap = cache.getAll(cachedKeys);
+      keysToGet = Utils.newArrayList();
+      for (Key key : keys) {
+        if (!entityMap.containsKey(key)) {
+          keysToGet.add(key);
+        }
+      }
+    }
+
+    Map<Key, Entity> retrieved = getEntities(ds, null, keysToGet, ec);
+    List<Entity> entitiesToCache = Utils.newArrayList();
+    for (Entity entity : retrieved.values()) {
+      if (cache.isCachedKind(entity.getKind())) {
+        entitiesToCache.add(entity);
+      }
+    }
+    if (!entitiesToCache.isEmpty()) {
+      cache.putAll(entitiesToCache);
+    }
+    if (entityMap == null) {
+      return retrieved;
+    }
+    entityMap.putAll(retrieved);
+    return entityMap;
+  }
+
+  /**
+   * @return The Entities found keyed by their key, making no call if there are no keys
+   */
+  private static Map<Key, Entity> getEntities(DatastoreService ds, Transaction txn, List<Key> keys,
+      ExecutionContext ec) {
+    if (keys.isEmpty()) {
+      return new HashMap<Key, Entity>();
+    }
+    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Getting entities for keys " + StringUtils.collectionToString(keys));
+    }
+    if (ec.getStatistics() != null) {
+      ec.getStatistics().incrementNumReads();
+    }
+    return txn == null ? ds.get(keys) : ds.get(txn, keys);
+  }
+
   /**
    * Method to retrieve the Entity with the specified key from the datastore.
+   * Outside of a transaction, an entity of a kind that is cached is taken from the {@link EntityCache}
+   * where present, and added to it where not.
    * @param ds DatastoreService to use
    * @param op ObjectProvider that we want to associate this Entity with (if any)
    * @param key The key
@@ -657,25 +722,39 @@ public final class EntityUtils {
    */
   public static Entity getEntityFromDatastore(DatastoreService ds, ObjectProvider op, Key key) {
     ExecutionContext ec = op.getExecutionContext();
-    DatastoreTransaction txn = 
-      ((DatastoreManager)ec.getStoreManager()).getDatastoreTransaction(ec);
+    DatastoreManager storeMgr = (DatastoreManager)ec.getStoreManager();
+    DatastoreTransaction txn = storeMgr.getDatastoreTransaction(ec);
 
-    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
-      NucleusLogger.DATASTORE_NATIVE.debug("Getting entity of kind " + key.getKind() + " with key " + key);
+    // Transactional reads must see the datastore, so only go to the cache outside of a transaction
+    EntityCache cache = txn == null ? storeMgr.getEntityCache() : null;
+    if (cache != null && !cache.isCachedKind(key.getKind())) {
+      cache = null;
     }
-    if (ec.getStatistics() != null) {
-      ec.getStatistics().incrementNumReads();
+
+    Entity entity = null;
+    if (cache != null) {
+      entity = cache.get(key);
     }
+    if (entity == null) {
+      if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+        NucleusLogger.DATASTORE_NATIVE.debug("Getting entity of kind " + key.getKind() + " with key " + key);
+      }
+      if (ec.getStatistics() != null) {
+        ec.getStatistics().incrementNumReads();
+      }
 
-    Entity entity;
-    try {
-      if (txn == null) {
-        entity = ds.get(key);
-      } else {
-        entity = ds.get(txn.getInnerTxn(), key);
+      try {
+        if (txn == null) {
+          entity = ds.get(key);
+        } else {
+          entity = ds.get(txn.getInnerTxn(), key);
+        }
+      } catch (EntityNotFoundException e) {
+        throw DatastoreExceptionTranslator.wrapEntityNotFoundException(e, key);
+      }
+      if (cache != null) {
+        cache.put(entity);
       }
-    } catch (EntityNotFoundException e) {
-      throw DatastoreExceptionTranslator.wrapEntityNotFoundException(e, key);
     }
 
     if (op != null) {
@@ -762,7 +841,16 @@ public final class EntityUtils {
       if (ec.getStatistics() != null) {
         ec.getStatistics().incrementNumWrites();
       }
-      if (txn == null) {
+      applyUnindexedProperties((DatastoreManager)ec.getStoreManager(), putMe);
+      // Entities without a complete key are new so can't be cached, and invalidating them would stop them being cached
+      List<Key> keysToInvalidate = ((DatastoreManager)ec.getStoreManager()).getEntityCache() != null ?
+          getCompleteKeys(putMe) : null;
+      GroupCommitter groupCommitter = ((DatastoreManager)ec.getStoreManager()).getGroupCommitter();
+      String groupCommitKind = txn == null && groupCommitter != null ? groupCommitter.getGroupCommitKind(putMe) : null;
+      if (groupCommitKind != null) {
+        // Put along with those of other threads
+        groupCommitter.put(ds, groupCommitKind, putMe);
+      } else if (txn == null) {
         if (putMe.size() == 1) {
           ds.put(putMe.get(0));
         } else {
@@ -777,10 +865,62 @@ public final class EntityUtils {
         }
         txn.addPutEntities(putMe);
       }
+      if (keysToInvalidate != null && !keysToInvalidate.isEmpty()) {
+        invalidateCachedEntities((DatastoreManager)ec.getStoreManager(), txn, keysToInvalidate);
+      }
     }
     return txn;
   }
 
+  /**
+   * Method to make unindexed the properties listed in {@link DatastoreManager#UNINDEXED_PROPERTIES_PROPERTY}
+   * of the entities about to be put, and to record the indexed values that remain with the
+   * {@link IndexUsageRecorder}, if enabled.
+   * @param storeMgr StoreManager
+   * @param entities The entities
+   */
+  private static void applyUnindexedProperties(DatastoreManager storeMgr, List<Entity> entities) {
+    IndexUsageRecorder recorder = storeMgr.getIndexUsageRecorder();
+    for (Entity entity : entities) {
+      Set<String> unindexed = storeMgr.getUnindexedProperties(entity.getKind());
+      if (unindexed != null) {
+        for (String propName : unindexed) {
+          if (entity.hasProperty(propName) && !entity.isUnindexedProperty(propName)) {
+            entity.setUnindexedProperty(propName, entity.getProperty(propName));
+          }
+        }
+      }
+      if (recorder != null) {
+        recorder.recordPut(entity);
+      }
+    }
+  }
+
+  private static List<Key> getCompleteKeys(List<Entity> entities) {
+    List<Key> keys = Utils.newArrayList();
+    for (Entity entity : entities) {
+      if (entity.getKey().isComplete()) {
+        keys.add(entity.getKey());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Invalidate any cached entities that have been written. Those written in a transaction are
+   * invalidated again when it commits, in case a read has re-cached the entity before the write
+   * became visible.
+   */
+  private static void invalidateCachedEntities(DatastoreManager storeMgr, DatastoreTransaction txn, List<Key> keys) {
+    EntityCache cache = storeMgr.getEntityCache();
+    if (cache != null) {
+      cache.invalidate(keys);
+      if (txn != null) {
+        txn.addCacheInvalidations(cache, keys);
+      }
+    }
+  }
+
   /**
    * Method to actually perform the deletion of Entity(s) from the datastore.
    * @param ec ExecutionContext
@@ -811,6 +951,7 @@ public final class EntityUtils {
         ds.delete(innerTxn, keys);
       }
     }
+    invalidateCachedEntities((DatastoreManager)ec.getStoreManager(), txn, keys);
   }
 
   /**
@@ -954,6 +1095,36 @@ public final class EntityUtils {
     return key;
   }
 
+  /**
+   * Accessor for the members to load when an object is created from an Entity, being the provided members less any
+   * that are deserialized lazily. Those are loaded on first access, from the Entity associated with the object.
+   * @param storeMgr StoreManager
+   * @param acmd Metadata for the class
+   * @param fieldNumbers Numbers of the members in the fetch plan
+   * @return Numbers of the members to load
+   */
+  static int[] getMembersToLoad(DatastoreManager storeMgr, AbstractClassMetaData acmd, int[] fieldNumbers) {
+    int numToLoad = 0;
+    boolean[] load = new boolean[fieldNumbers.length];
+    for (int i = 0; i < fieldNumbers.length; i++) {
+      AbstractMemberMetaData mmd = acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]);
+      load[i] = !storeMgr.isLazyDeserialized(mmd);
+      if (load[i]) {
+        numToLoad++;
+      }
+    }
+    if (numToLoad == fieldNumbers.length) {
+      return fieldNumbers;
+    }
+    int[] toLoad = new int[numToLoad];
+    for (int i = 0, j = 0; i < fieldNumbers.length; i++) {
+      if (load[i]) {
+        toLoad[j++] = fieldNumbers[i];
+      }
+    }
+    return toLoad;
+  }
+
   /**
    * Converts the provided Entity to a pojo.
    * @param entity The entity to convert
@@ -973,7 +1144,8 @@ public final class EntityUtils {
     if (fetchPlan != null) {
       // candidate select : load all fetch plan fields from the Entity
 
-      final int[] fieldsToFetch = fetchPlan.getFetchPlanForClass(acmd).getMemberNumbers();
+      final int[] fieldsToFetch =
+          getMembersToLoad(storeMgr, acmd, fetchPlan.getFetchPlanForClass(acmd).getMemberNumbers());
       fv = new FieldValues() {
         public void fetchFields(ObjectProvider op) {
           op.replaceFields(fieldsToFetch, new FetchFieldManager(op, entity));
@@ -1075,7 +1247,15 @@ public final class EntityUtils {
       if (discrimMDValue.equals(discrimValue)) {
         rowClassName = acmd.getFullClassName();
       } else {
-        // Go through all possible subclasses to find one with this value
+        rowClassName = storeMgr.getClassNameForDiscriminatorValue(acmd, discrimValue);
+        if (rowClassName != null &&
+            !clr.classForName(acmd.getFullClassName()).isAssignableFrom(clr.classForName(rowClassName))) {
+          // In the hierarchy but not a subclass
+          rowClassName = null;
+        }
+      }
+      if (rowClassName == null) {
+        // Subclass not registered yet, so go through all possible subclasses to find one with this value
         for (Object o : ec.getStoreManager().getSubClassesForClass(acmd.getFullClassName(), true, clr)) {
           String className = (String) o;
           AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(className, clr);
@@ -18,6 +18,8 @@ package com.google.appengine.datanucleus;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -48,10 +50,9 @@ import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.Text;
 import com.google.appengine.datanucleus.mapping.DatastoreTable;
 
@@ -196,7 +197,7 @@ public class FetchFieldManager extends DatastoreFieldManager
     if (isPK(fieldNumber)) {
       if (MetaDataUtils.isEncodedPKField(getClassMetaData(), fieldNumber)) {
         // If this is an encoded pk field, transform the Key into its String representation.
-        return KeyFactory.keyToString(datastoreEntity.getKey());
+        return KeyCodec.getInstance().keyToString(datastoreEntity.getKey());
       } else {
         if (datastoreEntity.getKey().isComplete() && datastoreEntity.getKey().getName() == null) {
           // This is trouble, probably an incorrect mapping.
@@ -215,7 +216,7 @@ public class FetchFieldManager extends DatastoreFieldManager
       if (parentKey == null) {
         return null;
       }
-      return KeyFactory.keyToString(parentKey);
+      return KeyCodec.getInstance().keyToString(parentKey);
     } else if (MetaDataUtils.isPKNameField(getClassMetaData(), fieldNumber)) {
       AbstractMemberMetaData mmd = getMetaData(fieldNumber);
       if (!mmd.getType().equals(String.class)) {
@@ -574,16 +575,14 @@ public class FetchFieldManager extends DatastoreFieldManager
         }
 
         if (value instanceof Key) {
-          DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
-          DatastoreService datastoreService = DatastoreServiceFactoryInternal.getDatastoreService(config);
-          try {
-            return EntityUtils.entityToPojo(datastoreService.get((Key)value), childCmd, clr, ec, false, ec.getFetchPlan());
-          } catch (EntityNotFoundException enfe) {
+          Entity childEntity = getRelatedEntities(Collections.singletonList((Key) value)).get(value);
+          if (childEntity == null) {
             // TODO: Should this throw a data integrity exception? It seems to for 1-N.
             NucleusLogger.PERSISTENCE.error("Member " + mmd.getFullFieldName() + " of " + getObjectProvider().getInternalObjectId() +
                 " was pointing to object with key " + value + " but this doesn't exist! Returning null");
             return null;
           }
+          return EntityUtils.entityToPojo(childEntity, childCmd, clr, ec, false, ec.getFetchPlan());
         }
       } else if (MetaDataUtils.isOwnedRelation(mmd, getStoreManager())) {
           // Not yet got the property in the parent, so this entity has not yet been migrated to latest storage version
@@ -601,10 +600,12 @@ public class FetchFieldManager extends DatastoreFieldManager
     Entity parentEntity = datastoreEntity;
     Query q = new Query(kind, parentEntity.getKey());
     DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
-    DatastoreService datastoreService = DatastoreServiceFactoryInternal.getDatastoreService(config);
+    DatastoreService datastoreService = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, getStoreManager().getDatastoreMetrics(ec), DatastoreMetrics.Path.FETCH);
     // We have to pull back all children because the datastore does not let us filter ancestors by
     // depth and an indirect child could come back before a direct child.  eg: a/b/c,  a/c
-    for (Entity e : datastoreService.prepare(q).asIterable()) {
+    Transaction txn = getStoreManager().getCurrentTransaction(ec, datastoreService);
+    for (Entity e : datastoreService.prepare(txn, q).asIterable()) {
       if (parentEntity.getKey().equals(e.getKey().getParent())) {
         return EntityUtils.entityToPojo(e, childCmd, clr, ec, false, ec.getFetchPlan());
         // We are potentially ignoring data errors where there is more than one
@@ -635,6 +636,35 @@ public class FetchFieldManager extends DatastoreFieldManager
     throw new NullPointerException(msg);
   }
 
+  /**
+   * Convenience method to retrieve the entities of related objects, in one call. Entities already read
+   * for the page of query results this object is part of are used rather than retrieved again.
+   * @param keys Keys of the related objects
+   * @return The entities found, keyed by their key
+   */
+  private Map<Key, Entity> getRelatedEntities(List<Key> keys) {
+    Map<Key, Entity> entitiesByKey = null;
+    List<Key> keysToGet = keys;
+    PrefetchedEntities prefetched = getStoreManager().getPrefetchedEntities(ec, false);
+    if (prefetched != null && !prefetched.isEmpty()) {
+      entitiesByKey = new HashMap<Key, Entity>();
+      keysToGet = prefetched.get(keys, entitiesByKey);
+      if (keysToGet.isEmpty()) {
+        return entitiesByKey;
+      }
+    }
+
+    DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
+    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, getStoreManager().getDatastoreMetrics(ec), DatastoreMetrics.Path.FETCH);
+    Map<Key, Entity> retrieved = ds.get(getStoreManager().getCurrentTransaction(ec, ds), keysToGet);
+    if (entitiesByKey == null) {
+      return retrieved;
+    }
+    entitiesByKey.putAll(retrieved);
+    return entitiesByKey;
+  }
+
   /**
    * Convenience method to convert a datastore value to a Collection.
    * Converts the datastore List<Key> into a collection.
@@ -659,10 +689,8 @@ public class FetchFieldManager extends DatastoreFieldManager
       }
 
       // Retrieve all Entities in one call
-      DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
-      DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
       List<Key> keys = (List<Key>)propValue;
-      Map<Key, Entity> entitiesByKey = ds.get(keys);
+      Map<Key, Entity> entitiesByKey = getRelatedEntities(keys);
 
       boolean changeDetected = false;
       AbstractClassMetaData elemCmd = mmd.getCollection().getElementClassMetaData(clr, ec.getMetaDataManager());
@@ -715,9 +743,7 @@ public class FetchFieldManager extends DatastoreFieldManager
       Object value = Array.newInstance(mmd.getType().getComponentType(), keys.size());
 
       // Retrieve all Entities in one call
-      DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
-      DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
-      Map<Key, Entity> entitiesByKey = ds.get(keys);
+      Map<Key, Entity> entitiesByKey = getRelatedEntities(keys);
 
       AbstractClassMetaData elemCmd = mmd.getArray().getElementClassMetaData(clr, ec.getMetaDataManager());
       int i = 0;
@@ -783,9 +809,7 @@ public class FetchFieldManager extends DatastoreFieldManager
           keysToRetrieve.add((Key)val);
         }
       }
-      DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
-      DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
-      Map<Key, Entity> entitiesByKey = ds.get(keysToRetrieve);
+      Map<Key, Entity> entitiesByKey = getRelatedEntities(keysToRetrieve);
 
       keyValIter = keysValues.iterator();
       boolean changeDetected = false;
@@ -0,0 +1,260 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import org.datanucleus.util.NucleusLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coalesces the non-transactional puts of entities of high write rate kinds, made by concurrent threads,
+ * into multi-entity puts. Only kinds of classes marked with the extension {@link DatastoreManager#GROUP_COMMIT}
+ * are coalesced.
+ * <p>
+ * The first thread to put entities of a kind opens a batch and waits for up to the configured delay,
+ * or until the batch reaches the configured size, while other threads add their entities to it. It then
+ * puts the whole batch itself, so the put is made with the ApiProxy environment of a request thread, and
+ * the other threads wait for the put to complete. Each thread returns once its own entities are written,
+ * with their keys assigned, or throws the exception of the put, so callers see the same semantics as a put
+ * of their own entities. All threads share the failure if the batch put fails. Threads waiting on the put
+ * of another thread give up after the configured timeout, or when interrupted, failing as a put that timed
+ * out would; their entities may still be written by the put.
+ * </p>
+ */
+public class GroupCommitter {
+
+  private final int maxBatchSize;
+
+  private final long maxDelayMillis;
+
+  private final long timeoutMillis;
+
+  /** Kinds whose puts are coalesced. */
+  private final Set<String> kinds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /** Batch currently accepting entities, keyed by kind. */
+  private final ConcurrentMap<String, Batch> openBatches = new ConcurrentHashMap<String, Batch>();
+
+  /**
+   * @param maxBatchSize Number of entities at which a batch is put without waiting any longer
+   * @param maxDelayMillis Time in milliseconds a batch waits for more entities before being put
+   * @param timeoutMillis Time in milliseconds a thread waits for the put of a batch made by another thread
+   */
+  GroupCommitter(int maxBatchSize, long maxDelayMillis, long timeoutMillis) {
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayMillis = maxDelayMillis;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  void addKind(String kind) {
+    if (kinds.add(kind) && NucleusLogger.DATASTORE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE.debug("Non-transactional puts of entities of kind " + kind + " will be coalesced");
+    }
+  }
+
+  /**
+   * @param kind The kind
+   * @return Whether non-transactional puts of entities of this kind are coalesced
+   */
+  public boolean isGroupCommitKind(String kind) {
+    return kinds.contains(kind);
+  }
+
+  /**
+   * @param entities Entities to put
+   * @return The kind to coalesce the put of these entities under, or null if they are not all of one such kind
+   */
+  String getGroupCommitKind(Collection<Entity> entities) {
+    String kind = null;
+    for (Entity entity : entities) {
+      if (kind == null) {
+        kind = entity.getKind();
+      } else if (!kind.equals(entity.getKind())) {
+        return null;
+      }
+    }
+    return kind != null && kinds.contains(kind) ? kind : null;
+  }
+
+  /**
+   * Put the provided entities, as part of a batch of entities of the kind from any number of threads,
+   * returning once they are written.
+   * @param ds DatastoreService to use if this thread makes the put
+   * @param kind The kind of the entities
+   * @param entities The entities
+   * @return The keys of the entities
+   */
+  List<Key> put(DatastoreService ds, String kind, List<Entity> entities) {
+    while (true) {
+      Batch batch = openBatches.get(kind);
+      boolean leader = false;
+      if (batch == null) {
+        Batch newBatch = new Batch(kind);
+        batch = openBatches.putIfAbsent(kind, newBatch);
+        if (batch == null) {
+          batch = newBatch;
+          leader = true;
+        }
+      }
+
+      int offset = batch.add(entities, maxBatchSize);
+      if (offset >= 0) {
+        if (leader) {
+          batch.awaitClose(maxDelayMillis);
+          openBatches.remove(kind, batch);
+          batch.commit(ds);
+        }
+        return batch.awaitCommit(offset, entities.size(), leader ? 0 : maxDelayMillis + timeoutMillis);
+      }
+
+      // Batch is full, so make sure it no longer takes entities and try again
+      openBatches.remove(kind, batch);
+    }
+  }
+
+  /**
+   * Entities of a kind from any number of threads, to be put together.
+   */
+  private static class Batch {
+    private final String kind;
+
+    private final List<Entity> entities = new ArrayList<Entity>();
+
+    /** Whether the batch no longer accepts entities. */
+    private boolean closed = false;
+
+    /** Whether the put of the batch has completed. */
+    private boolean done = false;
+
+    private List<Key> keys = null;
+
+    private Throwable failure = null;
+
+    Batch(String kind) {
+      this.kind = kind;
+    }
+
+    /**
+     * @return The position of the provided entities in the batch, or -1 if the batch can't take them
+     */
+    synchronized int add(List<Entity> toAdd, int maxBatchSize) {
+      if (closed) {
+        return -1;
+      }
+      if (!entities.isEmpty() && entities.size() + toAdd.size() > maxBatchSize) {
+        close();
+        return -1;
+      }
+      int offset = entities.size();
+      entities.addAll(toAdd);
+      if (entities.size() >= maxBatchSize) {
+        close();
+      }
+      return offset;
+    }
+
+    private synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+
+    /**
+     * Wait until the batch is full or the provided time has passed, and close it.
+     */
+    synchronized void awaitClose(long maxDelayMillis) {
+      long deadline = System.currentTimeMillis() + maxDelayMillis;
+      long remaining = maxDelayMillis;
+      while (!closed && remaining > 0) {
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          // Put what we have now
+          Thread.currentThread().interrupt();
+          break;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+      closed = true;
+    }
+
+    void commit(DatastoreService ds) {
+      List<Entity> toPut;
+      synchronized (this) {
+        toPut = new ArrayList<Entity>(entities);
+      }
+      List<Key> putKeys = null;
+      Throwable putFailure = null;
+      try {
+        putKeys = ds.put(toPut);
+      } catch (Throwable t) {
+        // Errors too, so the other threads are told rather than left waiting
+        putFailure = t;
+      } finally {
+        synchronized (this) {
+          keys = putKeys;
+          failure = putFailure;
+          done = true;
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Wait for the put of the batch to complete.
+     * @param timeoutMillis Time in milliseconds to wait, or 0 when this thread made the put so it is done
+     * @return The keys of the entities at the provided position in the batch
+     * @throws DatastoreTimeoutException if the put didn't complete in time
+     * @throws DatastoreFailureException if interrupted while waiting
+     */
+    synchronized List<Key> awaitCommit(int offset, int num, long timeoutMillis) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (!done) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new DatastoreTimeoutException("Timed out after " + timeoutMillis +
+              "ms waiting for the put of a batch of entities of kind " + kind + ", which may still complete");
+        }
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new DatastoreFailureException("Interrupted waiting for the put of a batch of entities of kind " +
+              kind + ", which may still complete", e);
+        }
+      }
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      } else if (failure != null) {
+        throw new DatastoreFailureException("Put of batch of entities of kind " + kind + " failed", failure);
+      }
+      return new ArrayList<Key>(keys.subList(offset, offset + num));
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Text;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records which properties of each kind are used by the filters and sorts of queries, and how many values of
+ * each indexed property are written by puts, so as to find the properties that are indexed but never queried.
+ * Each of those costs index writes on every put for no benefit, and can be marked as unindexed
+ * (with the extension {@link DatastoreManager#UNINDEXED_PROPERTY}, or listed in
+ * {@link DatastoreManager#UNINDEXED_PROPERTIES_PROPERTY}). Enabled by
+ * {@link DatastoreManager#INDEX_USAGE_PROPERTY}.
+ * <p>
+ * Only the queries run since recording started are known, so a property used by a query that is run rarely
+ * (or by another application) can be reported. The index writes are estimated as an ascending and a descending
+ * index row per value written, that being what the built-in indexes of a property cost when an entity is
+ * inserted. Composite indexes including the property aren't counted.
+ * </p>
+ */
+public class IndexUsageRecorder {
+
+  /** Index rows estimated to be written for each value of an indexed property. */
+  static final int INDEX_WRITES_PER_VALUE = 2;
+
+  private final long startMillis = System.currentTimeMillis();
+
+  /** Properties used by query filters or sorts, keyed by kind. */
+  private final ConcurrentMap<String, Set<String>> queriedPropertiesByKind =
+      new ConcurrentHashMap<String, Set<String>>();
+
+  /** Counters of the indexed values written, keyed by kind and then property. */
+  private final ConcurrentMap<String, ConcurrentMap<String, PropertyCounters>> countersByKind =
+      new ConcurrentHashMap<String, ConcurrentMap<String, PropertyCounters>>();
+
+  /**
+   * Method to record that a query filters or sorts on a property.
+   * @param kind The kind queried
+   * @param propertyName Name of the property
+   */
+  public void recordQueried(String kind, String propertyName) {
+    if (Entity.KEY_RESERVED_PROPERTY.equals(propertyName)) {
+      return;
+    }
+    Set<String> queried = queriedPropertiesByKind.get(kind);
+    if (queried == null) {
+      Set<String> newQueried = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      queried = queriedPropertiesByKind.putIfAbsent(kind, newQueried);
+      if (queried == null) {
+        queried = newQueried;
+      }
+    }
+    queried.add(propertyName);
+  }
+
+  /**
+   * Method to record the indexed values written by the put of an entity.
+   * @param entity The entity
+   */
+  public void recordPut(Entity entity) {
+    ConcurrentMap<String, PropertyCounters> counters = countersByKind.get(entity.getKind());
+    if (counters == null) {
+      ConcurrentMap<String, PropertyCounters> newCounters = new ConcurrentHashMap<String, PropertyCounters>();
+      counters = countersByKind.putIfAbsent(entity.getKind(), newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    for (Map.Entry<String, Object> entry : entity.getProperties().entrySet()) {
+      if (entity.isUnindexedProperty(entry.getKey())) {
+        continue;
+      }
+      int numValues = countIndexedValues(entry.getValue());
+      if (numValues == 0) {
+        continue;
+      }
+      PropertyCounters c = counters.get(entry.getKey());
+      if (c == null) {
+        PropertyCounters newC = new PropertyCounters();
+        c = counters.putIfAbsent(entry.getKey(), newC);
+        if (c == null) {
+          c = newC;
+        }
+      }
+      c.puts.incrementAndGet();
+      c.values.addAndGet(numValues);
+    }
+  }
+
+  private static int countIndexedValues(Object value) {
+    if (value instanceof Collection) {
+      int num = 0;
+      for (Object element : (Collection<?>) value) {
+        num += countIndexedValues(element);
+      }
+      return num;
+    }
+    // These are never indexed
+    return value instanceof Text || value instanceof Blob || value instanceof EmbeddedEntity ? 0 : 1;
+  }
+
+  /**
+   * @param kind The kind
+   * @param propertyName Name of the property
+   * @return Whether a query has filtered or sorted on the property since recording started
+   */
+  public boolean isQueried(String kind, String propertyName) {
+    Set<String> queried = queriedPropertiesByKind.get(kind);
+    return queried != null && queried.contains(propertyName);
+  }
+
+  /**
+   * @return The properties written as indexed but not used by any query since recording started, ordered by
+   *     descending estimated index writes
+   */
+  public List<UnqueriedProperty> getUnqueriedProperties() {
+    long elapsedMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+    List<UnqueriedProperty> unqueried = new ArrayList<UnqueriedProperty>();
+    for (Map.Entry<String, ConcurrentMap<String, PropertyCounters>> kindEntry : countersByKind.entrySet()) {
+      for (Map.Entry<String, PropertyCounters> entry : kindEntry.getValue().entrySet()) {
+        if (!isQueried(kindEntry.getKey(), entry.getKey())) {
+          unqueried.add(new UnqueriedProperty(kindEntry.getKey(), entry.getKey(), entry.getValue().puts.get(),
+              entry.getValue().values.get(), elapsedMillis));
+        }
+      }
+    }
+    Collections.sort(unqueried, new Comparator<UnqueriedProperty>() {
+      public int compare(UnqueriedProperty p1, UnqueriedProperty p2) {
+        long w1 = p1.getEstimatedIndexWrites();
+        long w2 = p2.getEstimatedIndexWrites();
+        if (w1 != w2) {
+          return w1 < w2 ? 1 : -1;
+        }
+        int cmp = p1.kind.compareTo(p2.kind);
+        return cmp != 0 ? cmp : p1.propertyName.compareTo(p2.propertyName);
+      }
+    });
+    return unqueried;
+  }
+
+  /**
+   * @return Report of the properties that are indexed but never queried, one line each, with the index
+   *     writes that making them unindexed would have saved
+   */
+  public String getReport() {
+    List<UnqueriedProperty> unqueried = getUnqueriedProperties();
+    StringBuilder str = new StringBuilder();
+    str.append(unqueried.size()).append(" indexed properties not used by a query filter or sort in the last ")
+        .append((System.currentTimeMillis() - startMillis) / 1000).append("s");
+    long total = 0;
+    for (UnqueriedProperty property : unqueried) {
+      str.append("\n  ").append(property);
+      total += property.getEstimatedIndexWrites();
+    }
+    if (!unqueried.isEmpty()) {
+      str.append("\nEstimated index writes saved by making them unindexed : ").append(total);
+    }
+    return str.toString();
+  }
+
+  /**
+   * Method to forget all usage recorded so far.
+   */
+  public void reset() {
+    queriedPropertiesByKind.clear();
+    countersByKind.clear();
+  }
+
+  private static final class PropertyCounters {
+    final AtomicLong puts = new AtomicLong();
+    final AtomicLong values = new AtomicLong();
+  }
+
+  /**
+   * A property that was written as indexed and not queried.
+   */
+  public static final class UnqueriedProperty {
+    private final String kind;
+    private final String propertyName;
+    private final long puts;
+    private final long values;
+    private final long elapsedMillis;
+
+    UnqueriedProperty(String kind, String propertyName, long puts, long values, long elapsedMillis) {
+      this.kind = kind;
+      this.propertyName = propertyName;
+      this.puts = puts;
+      this.values = values;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    public String getKind() {
+      return kind;
+    }
+
+    public String getPropertyName() {
+      return propertyName;
+    }
+
+    /**
+     * @return Number of puts of entities having the property
+     */
+    public long getPuts() {
+      return puts;
+    }
+
+    /**
+     * @return Number of indexed values written (a multi-valued property having a value per element)
+     */
+    public long getIndexedValues() {
+      return values;
+    }
+
+    /**
+     * @return Estimate of the index rows written for the property
+     */
+    public long getEstimatedIndexWrites() {
+      return values * INDEX_WRITES_PER_VALUE;
+    }
+
+    /**
+     * @return Estimate of the index rows written for the property per second since recording started
+     */
+    public double getEstimatedIndexWritesPerSecond() {
+      return getEstimatedIndexWrites() * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return kind + "." + propertyName + " : " + values + " values in " + puts + " puts, ~" +
+          getEstimatedIndexWrites() + " index writes (" +
+          String.format("%.2f", getEstimatedIndexWritesPerSecond()) + "/s)";
+    }
+  }
+}
@@ -29,9 +29,11 @@ import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.ExecutionContext;
 import org.datanucleus.state.ObjectProvider;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 
 /**
  * Utilities for converting between the low-level datastore api and JDO.<br>
@@ -118,4 +120,45 @@ public final class JDODatastoreBridge extends PojoDatastoreBridge {
     AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(cls, clr);
     return EntityUtils.entityToPojo(entity, cmd, clr, ec, false, ec.getFetchPlan());
   }
+
+  /**
+   * Convenience method to create a parallel scan over the kind of the provided JDO class.
+   * @param pm The PersistenceManager
+   * @param cls The JDO class
+   * @return The scan
+   * @see ParallelKindScan
+   */
+  public ParallelKindScan newParallelKindScan(PersistenceManager pm, Class cls) {
+    ExecutionContext ec = ((JDOPersistenceManager)pm).getExecutionContext();
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    return storeMgr.newParallelKindScan(cls, ec.getClassLoaderResolver());
+  }
+
+  /**
+   * Convenience method to return a consumer for a {@link ParallelKindScan} that converts each batch of
+   * entities into JDO objects before passing them on to the provided consumer. Since the scan reads
+   * ranges concurrently and a PersistenceManager is not thread-safe, each batch is converted using its
+   * own PersistenceManager from the provided factory, which is closed once the batch has been consumed.
+   * @param pmf The PersistenceManagerFactory
+   * @param cls The JDO class that the entities represent
+   * @param consumer Consumer of the JDO objects
+   * @return The consumer of entities to pass to the scan
+   */
+  public <T> ParallelKindScan.EntityBatchConsumer toJDOBatchConsumer(final PersistenceManagerFactory pmf,
+      final Class<T> cls, final ParallelKindScan.PojoBatchConsumer<T> consumer) {
+    return new ParallelKindScan.EntityBatchConsumer() {
+      public void consume(List<Entity> batch) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try {
+          List<T> pojos = new ArrayList<T>(batch.size());
+          for (Entity entity : batch) {
+            pojos.add(cls.cast(getJDOFromEntity(entity, pm, cls)));
+          }
+          consumer.consume(pojos);
+        } finally {
+          pm.close();
+        }
+      }
+    };
+  }
 }
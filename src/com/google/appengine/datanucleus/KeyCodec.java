@@ -0,0 +1,212 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts between {@link Key}s and their encoded String form (as used for "gae.encoded-pk" members),
+ * caching the conversions so that the same id isn't repeatedly base64 and protobuf decoded (or encoded).
+ * Decoding a String returns the same (canonical) Key instance while it remains cached.
+ * <p>
+ * The cache is safe for use by concurrent threads and bounded. It holds two generations of entries,
+ * and once the current generation is full it becomes the old generation, the previous old generation
+ * being dropped. Entries read from the old generation are moved to the current one, so entries in use
+ * stay cached. Only complete keys are cached, since the datastore fills in the id of an incomplete key
+ * when it is put.
+ * </p>
+ * <p>
+ * Strings that aren't encoded keys (i.e. plain names) are recognised without an exception being thrown
+ * where they contain a character that can't appear in an encoded key, and are remembered otherwise.
+ * </p>
+ */
+public class KeyCodec {
+
+  /** Default maximum number of entries in each generation of each direction of the cache. */
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  /** The codec used by the plugin. Encoded keys include the app id, so one codec can serve all. */
+  private static final KeyCodec INSTANCE = new KeyCodec(DEFAULT_MAX_SIZE);
+
+  /** Value cached for a String that isn't an encoded key. */
+  private static final Object NOT_A_KEY = new Object();
+
+  private final BoundedCache<String, Object> keysByString;
+
+  private final BoundedCache<Key, String> stringsByKey;
+
+  /**
+   * @param maxSize Maximum number of entries in each generation of each direction of the cache
+   */
+  KeyCodec(int maxSize) {
+    keysByString = new BoundedCache<String, Object>(maxSize);
+    stringsByKey = new BoundedCache<Key, String>(maxSize);
+  }
+
+  public static KeyCodec getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Equivalent of {@link KeyFactory#stringToKey(String)}.
+   * @param encoded The encoded key
+   * @return The key
+   * @throws IllegalArgumentException if the String isn't an encoded key
+   */
+  public Key stringToKey(String encoded) {
+    Key key = decode(encoded);
+    if (key == null) {
+      // Let KeyFactory give its reason
+      return KeyFactory.stringToKey(encoded);
+    }
+    return key;
+  }
+
+  /**
+   * Accessor for the key that the provided String is the encoded form of, without throwing an exception
+   * when it isn't one. Use this where a String can be either an encoded key or a plain name.
+   * @param str The String
+   * @return The key, or null if the String isn't an encoded key
+   */
+  public Key decode(String str) {
+    Object cached = keysByString.get(str);
+    if (cached != null) {
+      return cached == NOT_A_KEY ? null : (Key) cached;
+    }
+    if (!couldBeEncodedKey(str)) {
+      return null;
+    }
+
+    Key key;
+    try {
+      key = KeyFactory.stringToKey(str);
+    } catch (IllegalArgumentException iae) {
+      keysByString.put(str, NOT_A_KEY);
+      return null;
+    }
+    if (key.isComplete()) {
+      key = intern(key);
+      keysByString.put(str, key);
+    }
+    return key;
+  }
+
+  /**
+   * Equivalent of {@link KeyFactory#keyToString(Key)}.
+   * @param key The key
+   * @return The encoded key
+   */
+  public String keyToString(Key key) {
+    String encoded = stringsByKey.get(key);
+    if (encoded == null) {
+      encoded = KeyFactory.keyToString(key);
+      if (key.isComplete()) {
+        stringsByKey.put(key, encoded);
+        keysByString.put(encoded, key);
+      }
+    }
+    return encoded;
+  }
+
+  /**
+   * Cheap check of whether the String could be an encoded key, being made up only of characters that the
+   * decoding of a key accepts. A String passing this check may still not be an encoded key.
+   * @param str The String
+   * @return Whether it could be an encoded key
+   */
+  public static boolean couldBeEncodedKey(String str) {
+    if (str == null || str.length() == 0) {
+      return false;
+    }
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+            c == '-' || c == '_' || c == '+' || c == '/' || c == '=' || c <= ' ')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The cached instance equal to the provided (complete) key, caching the provided key if none
+   */
+  private Key intern(Key key) {
+    String encoded = keyToString(key);
+    Object cached = keysByString.get(encoded);
+    if (cached instanceof Key) {
+      return (Key) cached;
+    }
+    keysByString.put(encoded, key);
+    return key;
+  }
+
+  /**
+   * @return Number of entries held, in both directions and both generations
+   */
+  int size() {
+    return keysByString.size() + stringsByKey.size();
+  }
+
+  /**
+   * Concurrent map holding at most two generations of (at most) the specified number of entries each.
+   */
+  private static class BoundedCache<K, V> {
+    private final int maxSize;
+
+    private volatile ConcurrentMap<K, V> current = new ConcurrentHashMap<K, V>();
+
+    private volatile ConcurrentMap<K, V> old = new ConcurrentHashMap<K, V>();
+
+    private final AtomicInteger currentSize = new AtomicInteger();
+
+    BoundedCache(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    V get(K key) {
+      V value = current.get(key);
+      if (value == null) {
+        value = old.get(key);
+        if (value != null) {
+          put(key, value);
+        }
+      }
+      return value;
+    }
+
+    void put(K key, V value) {
+      if (current.put(key, value) == null && currentSize.incrementAndGet() >= maxSize) {
+        synchronized (this) {
+          if (currentSize.get() >= maxSize) {
+            old = current;
+            current = new ConcurrentHashMap<K, V>();
+            currentSize.set(0);
+          }
+        }
+      }
+    }
+
+    int size() {
+      return current.size() + old.size();
+    }
+  }
+}
@@ -21,13 +21,17 @@ import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.ExecutionContext;
 import org.datanucleus.store.StoreManager;
 
-import java.util.HashSet;
-import java.util.IdentityHashMap;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * A registry mechanism to aid in the identification of parent objects when inserting new (owned) objects.
+ * What is registered is only needed until the objects are inserted, so the registry is cleared at the end of
+ * each flush (see {@link KeyRegistryFlushProcess}) as well as at the end of the transaction. Objects are held
+ * weakly, so a long-lived connection doesn't keep them reachable in between.
  *
  * @author Max Ross <maxr@google.com>
  */
@@ -45,12 +49,30 @@ public class KeyRegistry {
 
   /**
    * Map of required parent key keyed by the child object.
-   * We use an IdentityHashMap here because we want reference equality, not object equality.
+   * Keyed by reference because we want reference equality, not object equality.
    */
-  private final Map<Object, Key> parentKeyMap = new IdentityHashMap<Object, Key>();
+  private final WeakIdentityMap<Key> parentKeyMap = new WeakIdentityMap<Key>();
 
-  /** Set of objects that are going to be persisted and are unowned (so don't look for a parent key). */
-  private final Set<Object> unownedObjects = new HashSet();
+  /** Objects that are going to be persisted and are unowned (so don't look for a parent key). */
+  private final WeakIdentityMap<Boolean> unownedObjects = new WeakIdentityMap<Boolean>();
+
+  /** Statistics recording the occupancy of the registry when cleared, or null if not enabled. */
+  private final DatastoreOperationStatistics statistics;
+
+  /** Number of flushes in progress, the registry being cleared when the outermost ends. */
+  private int flushDepth = 0;
+
+  public KeyRegistry() {
+    this(null);
+  }
+
+  /**
+   * Constructor.
+   * @param statistics Statistics to record the occupancy of the registry in when it's cleared, or null
+   */
+  public KeyRegistry(DatastoreOperationStatistics statistics) {
+    this.statistics = statistics;
+  }
 
   /**
    * Method to register the parent key for a child object (when it is known and we are about to persist the child).
@@ -75,14 +97,132 @@ public class KeyRegistry {
   }
 
   public void registerUnownedObject(Object obj) {
-    this.unownedObjects.add(obj);
+    unownedObjects.put(obj, Boolean.TRUE);
   }
 
   public boolean isUnowned(Object obj) {
-    return unownedObjects.contains(obj);
+    return unownedObjects.get(obj) != null;
   }
 
   public void clearUnownedObjects() {
     unownedObjects.clear();
   }
+
+  /**
+   * Method to clear the registry, recording its occupancy in the statistics (if enabled).
+   */
+  public void clear() {
+    if (statistics != null) {
+      statistics.keyRegistryCleared(parentKeyMap.size() + unownedObjects.size());
+    }
+    parentKeyMap.clear();
+    unownedObjects.clear();
+  }
+
+  /**
+   * @return Number of objects with a registered parent key that haven't been garbage collected
+   */
+  public int getParentKeyCount() {
+    return parentKeyMap.size();
+  }
+
+  /**
+   * @return Number of objects registered as unowned that haven't been garbage collected
+   */
+  public int getUnownedObjectCount() {
+    return unownedObjects.size();
+  }
+
+  /**
+   * Method to clear and enqueue the references to the provided object, as the garbage collector does once it
+   * has been collected, so that dropping the entries of collected objects can be tested without relying on it.
+   * @param obj The object
+   */
+  void referencesCollected(Object obj) {
+    parentKeyMap.referencesCollected(obj);
+    unownedObjects.referencesCollected(obj);
+  }
+
+  void flushStarted() {
+    flushDepth++;
+  }
+
+  void flushEnded() {
+    if (--flushDepth == 0) {
+      clear();
+    }
+  }
+
+  /**
+   * Map keyed by object identity, holding its keys weakly. Entries of objects that have been garbage collected
+   * are dropped as the map is used.
+   */
+  private static final class WeakIdentityMap<V> {
+    private final Map<IdentityWeakReference, V> map = new HashMap<IdentityWeakReference, V>();
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    void put(Object key, V value) {
+      expungeCollected();
+      map.put(new IdentityWeakReference(key, queue), value);
+    }
+
+    V get(Object key) {
+      expungeCollected();
+      return map.isEmpty() ? null : map.get(new IdentityWeakReference(key, null));
+    }
+
+    int size() {
+      expungeCollected();
+      return map.size();
+    }
+
+    void clear() {
+      map.clear();
+      while (queue.poll() != null) {
+      }
+    }
+
+    void referencesCollected(Object key) {
+      for (IdentityWeakReference ref : map.keySet()) {
+        if (ref.get() == key) {
+          ref.clear();
+          ref.enqueue();
+        }
+      }
+    }
+
+    private void expungeCollected() {
+      Reference<?> ref;
+      while ((ref = queue.poll()) != null) {
+        map.remove(ref);
+      }
+    }
+  }
+
+  private static final class IdentityWeakReference extends WeakReference<Object> {
+    private final int hash;
+
+    IdentityWeakReference(Object referent, ReferenceQueue<Object> queue) {
+      super(referent, queue);
+      this.hash = System.identityHashCode(referent);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof IdentityWeakReference)) {
+        return false;
+      }
+      Object referent = get();
+      return referent != null && referent == ((IdentityWeakReference) o).get();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
 }
@@ -0,0 +1,54 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusOptimisticException;
+import org.datanucleus.flush.FlushProcess;
+import org.datanucleus.flush.OperationQueue;
+import org.datanucleus.state.ObjectProvider;
+
+import java.util.List;
+
+/**
+ * Flush process that runs another, clearing the {@link KeyRegistry} of the connection once the outermost flush
+ * has ended. The objects registered are inserted by the flush, so a long transaction (or a connection that isn't
+ * transactional) doesn't accumulate the registrations of all of its flushes.
+ */
+public class KeyRegistryFlushProcess implements FlushProcess {
+
+  private final FlushProcess delegate;
+
+  public KeyRegistryFlushProcess(FlushProcess delegate) {
+    this.delegate = delegate;
+  }
+
+  public List<NucleusOptimisticException> execute(ExecutionContext ec, List<ObjectProvider> primaryOPs,
+      List<ObjectProvider> secondaryOPs, OperationQueue opQueue) {
+    if (primaryOPs.isEmpty() && secondaryOPs.isEmpty()) {
+      // Nothing registers objects, so don't get a connection for it
+      return delegate.execute(ec, primaryOPs, secondaryOPs, opQueue);
+    }
+
+    KeyRegistry keyRegistry = KeyRegistry.getKeyRegistry(ec);
+    keyRegistry.flushStarted();
+    try {
+      return delegate.execute(ec, primaryOPs, secondaryOPs, opQueue);
+    } finally {
+      keyRegistry.flushEnded();
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.util.NucleusLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Initialises the mapping of persistent classes ahead of their first use, so that the first requests after
+ * startup don't pay for it. Each class is loaded, its metadata validated and its table built by a task on a
+ * bounded pool. Class initialisation and validation run in parallel, whereas the tables are built under the
+ * mapping lock of the {@link DatastoreManager}, since building a table builds and updates the tables of related
+ * classes, whatever their hierarchy.
+ * <p>
+ * That lock is a single one for the StoreManager, so only one table is built at a time : the threads of the
+ * warm-up don't speed up that part, and a request using a class whose table isn't built yet waits for the
+ * table being built by the warm-up (and any already waiting) rather than building its own in parallel.
+ * </p>
+ * <p>
+ * Starting the warm-up doesn't wait for it, so a warm-up started while the NucleusContext is initialising
+ * (holding its monitor, which the tasks need) proceeds once it has initialised.
+ * </p>
+ */
+class MappingWarmUp {
+
+  private final DatastoreManager storeMgr;
+
+  private final ClassLoaderResolver clr;
+
+  private final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+
+  private final AtomicInteger numPending = new AtomicInteger();
+
+  private final AtomicInteger numWarmedUp = new AtomicInteger();
+
+  private final long startTime = System.currentTimeMillis();
+
+  /**
+   * Constructor, starting the warm-up of the provided classes.
+   * @param storeMgr The StoreManager
+   * @param clr ClassLoader resolver
+   * @param classNames Names of the classes. Classes that aren't persistable are ignored
+   * @param numThreads Maximum number of classes warmed up at the same time
+   */
+  MappingWarmUp(DatastoreManager storeMgr, ClassLoaderResolver clr, Collection<String> classNames,
+      int numThreads) {
+    this.storeMgr = storeMgr;
+    this.clr = clr;
+    Set<String> uniqueClassNames = new LinkedHashSet<String>(classNames);
+    numPending.set(uniqueClassNames.size());
+    BackgroundExecutor executor = new BackgroundExecutor("datanucleus-appengine-warmup", numThreads);
+    for (final String className : uniqueClassNames) {
+      futures.add(executor.submit(new Callable<Boolean>() {
+        public Boolean call() {
+          return warmUpClass(className);
+        }
+      }));
+    }
+    // Queued tasks still run, and the threads go once they're done
+    executor.shutdown();
+  }
+
+  /**
+   * Method to wait for the warm-up to complete.
+   * Not to be called under a lock that initialising a class may need, such as the monitor of the NucleusContext.
+   * @return The number of persistable classes warmed up
+   */
+  int await() {
+    for (Future<Boolean> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException ee) {
+        // Logged by the task
+      } catch (CancellationException ce) {
+        // Closed
+      }
+    }
+    return numWarmedUp.get();
+  }
+
+  /**
+   * Method to stop the warm-up, for example when the StoreManager is closed. Classes not yet started are skipped.
+   */
+  void cancel() {
+    for (Future<Boolean> future : futures) {
+      future.cancel(false);
+    }
+  }
+
+  private boolean warmUpClass(String className) {
+    try {
+      if (warmUp(className)) {
+        numWarmedUp.incrementAndGet();
+        return true;
+      }
+      return false;
+    } catch (RuntimeException e) {
+      NucleusLogger.DATASTORE.warn("Unable to warm up the mapping of " + className +
+          ", so it will be initialised on first use", e);
+      return false;
+    } finally {
+      if (numPending.decrementAndGet() == 0 && NucleusLogger.DATASTORE.isDebugEnabled()) {
+        NucleusLogger.DATASTORE.debug("Warmed up the mapping of " + numWarmedUp.get() + " classes in " +
+            (System.currentTimeMillis() - startTime) + " ms");
+      }
+    }
+  }
+
+  private boolean warmUp(String className) {
+    // Initialise the class so that the enhancer registers it
+    Class<?> cls = clr.classForName(className, true);
+    if (cls.isInterface() || !storeMgr.getApiAdapter().isPersistable(cls)) {
+      return false;
+    }
+    AbstractClassMetaData cmd = storeMgr.getMetaDataManager().getMetaDataForClass(cls, clr);
+    if (cmd == null || cmd.isEmbeddedOnly()) {
+      return false;
+    }
+    storeMgr.validateMetaDataForClass(cmd);
+    storeMgr.getDatastoreClass(className, clr);
+    return true;
+  }
+
+  /**
+   * Accessor for the names of the classes in the provided package, in directories or jars of the classpath.
+   * Classes of subpackages are not included.
+   * @param packageName Name of the package
+   * @param clr ClassLoader resolver
+   * @return The class names
+   */
+  static Set<String> getClassNamesInPackage(String packageName, ClassLoaderResolver clr) {
+    String path = packageName.replace('.', '/');
+    Set<String> classNames = new TreeSet<String>();
+    try {
+      Enumeration<URL> urls = clr.getResources(path, null);
+      while (urls.hasMoreElements()) {
+        URL url = urls.nextElement();
+        if ("file".equals(url.getProtocol())) {
+          File[] files = new File(url.toURI()).listFiles();
+          if (files != null) {
+            for (File file : files) {
+              addClassName(classNames, packageName, file.getName());
+            }
+          }
+        } else if ("jar".equals(url.getProtocol())) {
+          URLConnection conn = url.openConnection();
+          conn.setUseCaches(false);
+          JarFile jar = ((JarURLConnection) conn).getJarFile();
+          try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+              String name = entries.nextElement().getName();
+              if (name.startsWith(path + "/") && name.indexOf('/', path.length() + 1) < 0) {
+                addClassName(classNames, packageName, name.substring(path.length() + 1));
+              }
+            }
+          } finally {
+            jar.close();
+          }
+        }
+      }
+    } catch (IOException ioe) {
+      NucleusLogger.DATASTORE.warn("Unable to list the classes of package " + packageName, ioe);
+    } catch (URISyntaxException use) {
+      NucleusLogger.DATASTORE.warn("Unable to list the classes of package " + packageName, use);
+    }
+    return classNames;
+  }
+
+  private static void addClassName(Set<String> classNames, String packageName, String fileName) {
+    if (fileName.endsWith(".class")) {
+      classNames.add(packageName + "." + fileName.substring(0, fileName.length() - ".class".length()));
+    }
+  }
+}
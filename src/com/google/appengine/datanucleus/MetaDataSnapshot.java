@@ -0,0 +1,380 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.datanucleus.mapping.DatastoreTable;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.NucleusContext;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.api.jpa.JPAEntityManagerFactory;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.ClassMetaData;
+import org.datanucleus.metadata.DiscriminatorStrategy;
+import org.datanucleus.metadata.FileMetaData;
+import org.datanucleus.metadata.MetadataFileType;
+import org.datanucleus.store.mapped.exceptions.NoTableManagedException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.JDOHelper;
+import javax.persistence.Persistence;
+
+/**
+ * Snapshot of the validated mapping of persistent classes, produced at build time so that a cold instance
+ * doesn't redo that work under the lock of the StoreManager the first time each class is used. For each class
+ * it holds the kind, the datastore property of each member (and the type of mapping used for it), the member
+ * marked "gae.parent-pk" and the discriminator value. When loaded by {@link DatastoreManager} (see
+ * {@link DatastoreManager#METADATA_SNAPSHOT_PROPERTY}) the classes in it aren't validated again, and their
+ * kind, property names and parent-PK member are taken from it rather than generated. The remaining mapping
+ * (the DataNucleus mappings of each member) is still built on first use.
+ * <p>
+ * Each class has a fingerprint of where its metadata (and that of its superclasses) is read from, and a class
+ * whose class file or metadata file has changed since the snapshot was produced is ignored, so a stale snapshot
+ * costs time but does no harm.
+ * </p>
+ * The snapshot is produced by running the {@link #main} of this class in the build, for example with the
+ * exec-maven-plugin in the process-classes phase (after enhancement) :
+ * <pre>
+ * mvn exec:java -Dexec.mainClass=com.google.appengine.datanucleus.MetaDataSnapshot
+ *     -Dexec.args="transactions-optional target/classes/datanucleus-appengine-metadata.ser"
+ * </pre>
+ */
+public class MetaDataSnapshot implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Classes keyed by name. */
+  private final Map<String, ClassSnapshot> classes = new HashMap<String, ClassSnapshot>();
+
+  /** Class name keyed by discriminator value, for each hierarchy keyed by the name of its base class. */
+  private final Map<String, Map<Object, String>> classNamesByDiscriminatorValue =
+      new HashMap<String, Map<Object, String>>();
+
+  /**
+   * Method to produce a snapshot of the provided classes, validating them and building their mapping.
+   * @param storeMgr StoreManager
+   * @param classNames Names of the classes
+   * @param clr ClassLoader resolver
+   * @return The snapshot
+   */
+  public static MetaDataSnapshot create(DatastoreManager storeMgr, Collection<String> classNames,
+      ClassLoaderResolver clr) {
+    MetaDataSnapshot snapshot = new MetaDataSnapshot();
+    for (String className : classNames) {
+      AbstractClassMetaData cmd = storeMgr.getMetaDataManager().getMetaDataForClass(className, clr);
+      if (!(cmd instanceof ClassMetaData)) {
+        continue;
+      }
+      long fingerprint;
+      try {
+        fingerprint = fingerprint(cmd, clr);
+      } catch (IOException ioe) {
+        throw new NucleusException("Unable to read the metadata of " + className, ioe);
+      }
+      storeMgr.validateMetaDataForClass(cmd);
+
+      String kind = null;
+      DatastoreTable table = null;
+      try {
+        table = storeMgr.getDatastoreClass(className, clr);
+        kind = table.getIdentifier().getIdentifierName();
+      } catch (NoTableManagedException ntme) {
+        // Class stored in the table of subclasses
+      }
+
+      ClassSnapshot classSnapshot = new ClassSnapshot(className, fingerprint, kind);
+      for (int position : cmd.getAllMemberPositions()) {
+        AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(position);
+        classSnapshot.propertyNames.put(memberKey(mmd), storeMgr.getPropertyName(mmd));
+        if (table != null && table.getMemberMapping(mmd) != null) {
+          classSnapshot.mappingTypes.put(mmd.getName(), table.getMemberMapping(mmd).getClass().getName());
+        }
+      }
+      AbstractMemberMetaData parentPkMmd = storeMgr.getMetaDataForParentPK(cmd);
+      if (parentPkMmd != null) {
+        classSnapshot.parentPkClassName = parentPkMmd.getAbstractClassMetaData().getFullClassName();
+        classSnapshot.parentPkMemberName = parentPkMmd.getName();
+      }
+      snapshot.putClassSnapshot(classSnapshot);
+
+      if (cmd.getDiscriminatorStrategy() == DiscriminatorStrategy.VALUE_MAP && cmd.getDiscriminatorValue() != null) {
+        String baseClassName = cmd.getBaseAbstractClassMetaData().getFullClassName();
+        Map<Object, String> classNamesByValue = snapshot.classNamesByDiscriminatorValue.get(baseClassName);
+        if (classNamesByValue == null) {
+          classNamesByValue = new HashMap<Object, String>();
+          snapshot.classNamesByDiscriminatorValue.put(baseClassName, classNamesByValue);
+        }
+        classNamesByValue.put(cmd.getDiscriminatorValue(), className);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Method to compute the fingerprint of the metadata of a class, covering its superclasses (from which it
+   * inherits members, and possibly the parent-PK member). The metadata is added to while mapping classes
+   * (columns are given to members without any, for example), so rather than the metadata itself the
+   * fingerprint covers where it is read from : the bytes of each class (for annotations) and the contents
+   * of any metadata file defining it.
+   * @param cmd Metadata for the class
+   * @param clr ClassLoader resolver
+   * @return The fingerprint
+   * @throws IOException If a class or metadata file can't be read
+   */
+  static long fingerprint(AbstractClassMetaData cmd, ClassLoaderResolver clr) throws IOException {
+    // 64-bit FNV-1a
+    long hash = 0xcbf29ce484222325L;
+    for (AbstractClassMetaData c = cmd; c != null; c = c.getSuperAbstractClassMetaData()) {
+      hash = fingerprint(hash, c.getFullClassName().getBytes("UTF-8"));
+      URL classUrl = clr.getResource(c.getFullClassName().replace('.', '/') + ".class", null);
+      if (classUrl != null) {
+        hash = fingerprint(hash, classUrl.openStream());
+      }
+      FileMetaData fmd = c.getPackageMetaData() != null ? c.getPackageMetaData().getFileMetaData() : null;
+      if (fmd != null && fmd.getType() != MetadataFileType.ANNOTATIONS && fmd.getFilename() != null) {
+        URL fileUrl;
+        try {
+          fileUrl = new URL(fmd.getFilename());
+        } catch (MalformedURLException mue) {
+          fileUrl = new File(fmd.getFilename()).toURI().toURL();
+        }
+        hash = fingerprint(hash, fileUrl.openStream());
+      }
+    }
+    return hash;
+  }
+
+  private static long fingerprint(long hash, InputStream in) throws IOException {
+    try {
+      byte[] buf = new byte[8192];
+      for (int len = in.read(buf); len != -1; len = in.read(buf)) {
+        for (int i = 0; i < len; i++) {
+          hash ^= buf[i] & 0xff;
+          hash *= 0x100000001b3L;
+        }
+      }
+      return hash;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static long fingerprint(long hash, byte[] bytes) {
+    for (byte b : bytes) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * @param mmd Metadata for a member
+   * @return The key of the member in the snapshot : the name of the class whose metadata holds it, and its name
+   */
+  static String memberKey(AbstractMemberMetaData mmd) {
+    return mmd.getAbstractClassMetaData().getFullClassName() + "#" + mmd.getName();
+  }
+
+  /**
+   * @param className Name of the class
+   * @return The snapshot of the class, or null if not in the snapshot
+   */
+  public ClassSnapshot getClassSnapshot(String className) {
+    return classes.get(className);
+  }
+
+  void putClassSnapshot(ClassSnapshot classSnapshot) {
+    classes.put(classSnapshot.getClassName(), classSnapshot);
+  }
+
+  /**
+   * @return Names of the classes in the snapshot
+   */
+  public Collection<String> getClassNames() {
+    return classes.keySet();
+  }
+
+  /**
+   * @param baseClassName Name of the base class of the hierarchy
+   * @param value The discriminator value
+   * @return Name of the class in the hierarchy with the value, or null if not known
+   */
+  String getClassNameForDiscriminatorValue(String baseClassName, Object value) {
+    Map<Object, String> classNamesByValue = classNamesByDiscriminatorValue.get(baseClassName);
+    return classNamesByValue != null ? classNamesByValue.get(value) : null;
+  }
+
+  /**
+   * Method to write the snapshot.
+   * @param out Where to write
+   * @throws IOException If writing fails
+   */
+  public void write(OutputStream out) throws IOException {
+    ObjectOutputStream oos = new ObjectOutputStream(out);
+    oos.writeObject(this);
+    oos.flush();
+  }
+
+  /**
+   * Method to read a snapshot written by {@link #write}.
+   * @param in Where to read from
+   * @return The snapshot
+   * @throws IOException If reading fails, or what is read isn't a snapshot
+   */
+  public static MetaDataSnapshot read(InputStream in) throws IOException {
+    ObjectInputStream ois = new ObjectInputStream(in);
+    try {
+      return (MetaDataSnapshot) ois.readObject();
+    } catch (ClassNotFoundException cnfe) {
+      throw new IOException("Invalid metadata snapshot", cnfe);
+    } catch (ClassCastException cce) {
+      throw new IOException("Invalid metadata snapshot", cce);
+    }
+  }
+
+  /**
+   * Produces a snapshot for the classes of a persistence unit.
+   * <pre>
+   * MetaDataSnapshot [-jpa] &lt;PMF or persistence-unit name&gt; &lt;output file&gt; [class ...]
+   * </pre>
+   * The name is that of a PMF in jdoconfig.xml, or with -jpa of a persistence-unit in persistence.xml. Without
+   * classes, those known to the persistence unit are included.
+   */
+  public static void main(String[] args) throws IOException {
+    int first = 0;
+    boolean jpa = false;
+    if (args.length > 0 && args[0].equals("-jpa")) {
+      jpa = true;
+      first++;
+    }
+    if (args.length - first < 2) {
+      System.err.println("Usage : MetaDataSnapshot [-jpa] <PMF or persistence-unit name> <output file> [class ...]");
+      System.exit(1);
+    }
+
+    NucleusContext nucCtx;
+    if (jpa) {
+      nucCtx = ((JPAEntityManagerFactory) Persistence.createEntityManagerFactory(args[first])).getNucleusContext();
+    } else {
+      nucCtx = ((JDOPersistenceManagerFactory) JDOHelper.getPersistenceManagerFactory(args[first]))
+          .getNucleusContext();
+    }
+    DatastoreManager storeMgr = (DatastoreManager) nucCtx.getStoreManager();
+    List<String> classNames = args.length - first > 2 ?
+        Arrays.asList(args).subList(first + 2, args.length) :
+        new ArrayList<String>(storeMgr.getMetaDataManager().getClassesWithMetaData());
+    MetaDataSnapshot snapshot = create(storeMgr, classNames, nucCtx.getClassLoaderResolver(null));
+
+    File file = new File(args[first + 1]);
+    OutputStream out = new FileOutputStream(file);
+    try {
+      snapshot.write(out);
+    } finally {
+      out.close();
+    }
+    System.out.println("Wrote the metadata of " + snapshot.classes.size() + " classes to " + file);
+    nucCtx.close();
+  }
+
+  /**
+   * The validated mapping of a class.
+   */
+  public static final class ClassSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String className;
+
+    private final long fingerprint;
+
+    /** Kind of the class, or null if it has no table of its own. */
+    private String kind;
+
+    /** Name of the property of each member, keyed by {@link MetaDataSnapshot#memberKey}. */
+    private final Map<String, String> propertyNames = new HashMap<String, String>();
+
+    /** Class of the mapping of each member, keyed by member name. */
+    private final Map<String, String> mappingTypes = new HashMap<String, String>();
+
+    private String parentPkClassName;
+
+    private String parentPkMemberName;
+
+    ClassSnapshot(String className, long fingerprint, String kind) {
+      this.className = className;
+      this.fingerprint = fingerprint;
+      this.kind = kind;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    long getFingerprint() {
+      return fingerprint;
+    }
+
+    public String getKind() {
+      return kind;
+    }
+
+    void setKind(String kind) {
+      this.kind = kind;
+    }
+
+    /**
+     * @param mmd Metadata for a member of the class
+     * @return Name of the property storing the member, or null if not known
+     */
+    public String getPropertyName(AbstractMemberMetaData mmd) {
+      return propertyNames.get(memberKey(mmd));
+    }
+
+    /**
+     * @param memberName Name of a member of the class
+     * @return Name of the class of the mapping of the member, or null if not known
+     */
+    public String getMappingType(String memberName) {
+      return mappingTypes.get(memberName);
+    }
+
+    public String getParentPkClassName() {
+      return parentPkClassName;
+    }
+
+    public String getParentPkMemberName() {
+      return parentPkMemberName;
+    }
+  }
+}
@@ -87,6 +87,10 @@ public class MetaDataUtils {
     return ammd.hasExtension(DatastoreManager.PK_ID);
   }
 
+  public static boolean isPackedField(AbstractMemberMetaData ammd) {
+    return "true".equalsIgnoreCase(ammd.getValueForExtension(DatastoreManager.PACKED));
+  }
+
   public static boolean isNewOrSuperclassTableInheritanceStrategy(AbstractClassMetaData cmd) {
     while (cmd != null) {
       AbstractClassMetaData pcmd = cmd.getSuperAbstractClassMetaData();
@@ -281,6 +281,18 @@ public class MetaDataValidator {
           ammd.getFullFieldName());
     }
 
+    if (MetaDataUtils.isPackedField(ammd)) {
+      Class<?> elementType = null;
+      if (ammd.hasArray()) {
+        elementType = ammd.getType().getComponentType();
+      } else if (ammd.hasCollection()) {
+        elementType = clr.classForName(ammd.getCollection().getElementType());
+      }
+      if (elementType == null || !PackedArrays.isPackable(elementType)) {
+        throw new InvalidMetaDataException(GAE_LOCALISER, "AppEngine.MetaData.PackedInvalidType",
+            ammd.getFullFieldName(), DatastoreManager.PACKED);
+      }
+    }
 
     checkForIllegalChildField(ammd, noParentAllowed);
 
@@ -17,6 +17,7 @@ package com.google.appengine.datanucleus;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -57,6 +58,8 @@ import com.google.appengine.api.datastore.Query.SortPredicate;
  * // NucleusContext nucCtx = ((JPAEntityManagerFactory)emf).getNucleusContext(); // For JPA
  * Migrator.migrate(nucCtx, MyEntity.class, entityIter);
  * </pre>
+ * For migrating all entities of a class in one go see {@link BulkMigrator}, which processes pages of
+ * entities in parallel and can resume after a failure.
  */
 public class Migrator {
   NucleusContext nucCtx;
@@ -80,6 +83,23 @@ public class Migrator {
     AbstractClassMetaData cmd = nucCtx.getMetaDataManager().getMetaDataForClass(cls, clr);
     Collection<String> mdClasses = nucCtx.getMetaDataManager().getClassesWithMetaData();
     storeMgr.addClasses(mdClasses.toArray(new String[mdClasses.size()]), clr); // Make sure all classes are in store
+    if (!isOfClass(entity, cls, cmd, storeMgr)) {
+      return false;
+    }
+
+    return migrateEntity(nucCtx, cls, entity, cmd, clr, storeMgr);
+  }
+
+  /**
+   * Convenience method to check that the provided Entity represents an object of the specified class,
+   * using the discriminator where the class has one.
+   * @param entity The entity
+   * @param cls The pojo class
+   * @param cmd Metadata for the class
+   * @param storeMgr Store Manager
+   * @return Whether the entity is of the class (or can't be determined otherwise)
+   */
+  static boolean isOfClass(Entity entity, Class cls, AbstractClassMetaData cmd, DatastoreManager storeMgr) {
     if (cmd.hasDiscriminatorStrategy()) {
       String disProp = EntityUtils.getDiscriminatorPropertyName(storeMgr.getIdentifierFactory(), cmd.getDiscriminatorMetaDataForTable());
       if (disProp != null && entity.hasProperty(disProp)) {
@@ -99,8 +119,7 @@ public class Migrator {
         }
       }
     }
-
-    return migrateEntity(nucCtx, cls, entity, cmd, clr, storeMgr);
+    return true;
   }
 
   /**
@@ -194,64 +213,8 @@ public class Migrator {
             String childKindName = EntityUtils.getKindName(storeMgr.getIdentifierFactory(), childCmd);
             Query q = new Query(childKindName, entity.getKey());
 
-            if (List.class.isAssignableFrom(mmd.getType())) {
-              // Add List ordering
-              List<Query.SortPredicate> sortPredicates = Utils.newArrayList();
-              boolean indexedList = true;
-              if (mmd.getOrderMetaData() != null && !mmd.getOrderMetaData().isIndexedList()) {
-                indexedList = false;
-              }
-              if (indexedList) {
-                // Get the index property name
-                String indexPropName = null;
-                OrderMetaData ordmd = mmd.getOrderMetaData();
-                if (ordmd != null) {
-                  String colName;
-                  if (ordmd.getColumnMetaData() != null && ordmd.getColumnMetaData().length > 0
-                      && ordmd.getColumnMetaData()[0].getName() != null) {
-                    // User-defined name so create an identifier using it
-                    colName = ordmd.getColumnMetaData()[0].getName();
-                    indexPropName = storeMgr.getIdentifierFactory().newDatastoreFieldIdentifier(colName).getIdentifierName();
-                  }
-                }
-                if (indexPropName == null) {
-                  // No name defined so generate one
-                  indexPropName = storeMgr.getIdentifierFactory().newForeignKeyFieldIdentifier(
-                      mmd, null, null, true, FieldRole.ROLE_INDEX).getIdentifierName();
-                }
-
-                // Order by the ordering column
-                Query.SortPredicate sortPredicate =
-                  new Query.SortPredicate(indexPropName, Query.SortDirection.ASCENDING);
-                sortPredicates.add(sortPredicate);
-              } else {
-                for (OrderMetaData.FieldOrder fieldOrder : mmd.getOrderMetaData().getFieldOrders()) {
-                  String orderMemberName = fieldOrder.getFieldName();
-                  AbstractMemberMetaData orderMemberMmd = childCmd.getMetaDataForMember(orderMemberName);
-                  String orderPropName = EntityUtils.getPropertyName(storeMgr.getIdentifierFactory(), orderMemberMmd);
-                  boolean isPrimaryKey = orderMemberMmd.isPrimaryKey();
-                  if (isPrimaryKey) {
-                    if (fieldOrder.isForward() && sortPredicates.isEmpty()) {
-                      // Don't even bother adding if the first sort is id ASC (this is the
-                      // default sort so there's no point in making the datastore figure this out).
-                      break;
-                    }
-                    // sorting by id requires us to use a reserved property name
-                    orderPropName = Entity.KEY_RESERVED_PROPERTY;
-                  }
-                  Query.SortPredicate sortPredicate = new Query.SortPredicate(orderPropName,
-                      fieldOrder.isForward() ? Query.SortDirection.ASCENDING : Query.SortDirection.DESCENDING);
-                  sortPredicates.add(sortPredicate);
-                  if (isPrimaryKey) {
-                    // User wants to sort by pk.  Since pk is guaranteed to be unique, break
-                    // because we know there's no point in adding any more sort predicates
-                    break;
-                  }
-                }
-              }
-              for (SortPredicate sp : sortPredicates) {
-                q.addSort(sp.getPropertyName(), sp.getDirection());
-              }
+            for (SortPredicate sp : getChildSortPredicates(mmd, childCmd, storeMgr)) {
+              q.addSort(sp.getPropertyName(), sp.getDirection());
             }
 
             PreparedQuery pq = datastore.prepare(q);
@@ -272,4 +235,74 @@ public class Migrator {
         (changed ? " has been performed" : " didn't need any changes to the Entity"));
     return changed;
   }
+
+  /**
+   * Convenience method to return the order in which the children of a 1-N relation are to be stored
+   * in the owner. Only lists have an ordering; an empty list means the default ordering (by key).
+   * @param mmd Metadata for the 1-N member
+   * @param childCmd Metadata for the element class
+   * @param storeMgr Store Manager
+   * @return The sort predicates for the children
+   */
+  static List<SortPredicate> getChildSortPredicates(AbstractMemberMetaData mmd, AbstractClassMetaData childCmd,
+      DatastoreManager storeMgr) {
+    if (!List.class.isAssignableFrom(mmd.getType())) {
+      return Collections.emptyList();
+    }
+
+    List<Query.SortPredicate> sortPredicates = Utils.newArrayList();
+    boolean indexedList = true;
+    if (mmd.getOrderMetaData() != null && !mmd.getOrderMetaData().isIndexedList()) {
+      indexedList = false;
+    }
+    if (indexedList) {
+      // Get the index property name
+      String indexPropName = null;
+      OrderMetaData ordmd = mmd.getOrderMetaData();
+      if (ordmd != null) {
+        String colName;
+        if (ordmd.getColumnMetaData() != null && ordmd.getColumnMetaData().length > 0
+            && ordmd.getColumnMetaData()[0].getName() != null) {
+          // User-defined name so create an identifier using it
+          colName = ordmd.getColumnMetaData()[0].getName();
+          indexPropName = storeMgr.getIdentifierFactory().newDatastoreFieldIdentifier(colName).getIdentifierName();
+        }
+      }
+      if (indexPropName == null) {
+        // No name defined so generate one
+        indexPropName = storeMgr.getIdentifierFactory().newForeignKeyFieldIdentifier(
+            mmd, null, null, true, FieldRole.ROLE_INDEX).getIdentifierName();
+      }
+
+      // Order by the ordering column
+      Query.SortPredicate sortPredicate =
+        new Query.SortPredicate(indexPropName, Query.SortDirection.ASCENDING);
+      sortPredicates.add(sortPredicate);
+    } else {
+      for (OrderMetaData.FieldOrder fieldOrder : mmd.getOrderMetaData().getFieldOrders()) {
+        String orderMemberName = fieldOrder.getFieldName();
+        AbstractMemberMetaData orderMemberMmd = childCmd.getMetaDataForMember(orderMemberName);
+        String orderPropName = EntityUtils.getPropertyName(storeMgr.getIdentifierFactory(), orderMemberMmd);
+        boolean isPrimaryKey = orderMemberMmd.isPrimaryKey();
+        if (isPrimaryKey) {
+          if (fieldOrder.isForward() && sortPredicates.isEmpty()) {
+            // Don't even bother adding if the first sort is id ASC (this is the
+            // default sort so there's no point in making the datastore figure this out).
+            break;
+          }
+          // sorting by id requires us to use a reserved property name
+          orderPropName = Entity.KEY_RESERVED_PROPERTY;
+        }
+        Query.SortPredicate sortPredicate = new Query.SortPredicate(orderPropName,
+            fieldOrder.isForward() ? Query.SortDirection.ASCENDING : Query.SortDirection.DESCENDING);
+        sortPredicates.add(sortPredicate);
+        if (isPrimaryKey) {
+          // User wants to sort by pk.  Since pk is guaranteed to be unique, break
+          // because we know there's no point in adding any more sort predicates
+          break;
+        }
+      }
+    }
+    return sortPredicates;
+  }
 }
@@ -0,0 +1,278 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.ShortBlob;
+
+import org.datanucleus.exceptions.NucleusException;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Packed storage of arrays and collections of numbers, for members marked with the extension
+ * {@link DatastoreManager#PACKED}. Rather than a multi-valued property with an entry per element, the
+ * elements are stored little-endian in a single {@link Blob}, after a header giving the element type.
+ * Blobs aren't indexed, so the member can't be used in a query filter or sort.
+ * <p>
+ * The elements are copied between the primitive array and the bytes in bulk, without boxing. A member that
+ * is a collection or array of wrappers is boxed (or unboxed) from a primitive array, and one containing
+ * null elements is stored as a multi-valued property. When read, a multi-valued property is converted in the
+ * usual way, so a member can be marked as packed without migrating existing data, each entity being written
+ * in the packed form the next time it is put. Values written for one element type can be read for another,
+ * so the element type of a member can be changed later (e.g. from int to long).
+ * </p>
+ */
+public final class PackedArrays {
+  private PackedArrays() {}
+
+  /** Start of the header. Distinct from that of {@link CompressedSerializationStrategy}. */
+  private static final byte MAGIC_0 = (byte) 0xD7;
+  private static final byte MAGIC_1 = (byte) 0x50;
+
+  private static final byte VERSION = 1;
+
+  private static final int HEADER_LENGTH = 4;
+
+  /**
+   * @param elementType Type of the elements of an array or collection
+   * @return Whether the elements can be packed
+   */
+  public static boolean isPackable(Class<?> elementType) {
+    return getTypeCode(elementType) != 0;
+  }
+
+  /**
+   * @param value A datastore property value
+   * @return Whether the value is packed elements
+   */
+  public static boolean isPacked(Object value) {
+    byte[] bytes;
+    if (value instanceof Blob) {
+      bytes = ((Blob) value).getBytes();
+    } else if (value instanceof ShortBlob) {
+      bytes = ((ShortBlob) value).getBytes();
+    } else {
+      return false;
+    }
+    return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1 && bytes[2] == VERSION &&
+        getPrimitiveType((char) bytes[3]) != null;
+  }
+
+  /**
+   * Method to pack the elements of an array, which can be a primitive array or one of wrappers.
+   * @param array The array, without null elements
+   * @return The packed elements
+   */
+  public static Blob pack(Object array) {
+    Class<?> componentType = array.getClass().getComponentType();
+    return new Blob(packPrimitives(componentType.isPrimitive() ? array : unbox((Object[]) array, componentType)));
+  }
+
+  /**
+   * Method to pack the elements of a collection.
+   * @param collection The collection, without null elements
+   * @param elementType Type of the elements
+   * @return The packed elements
+   */
+  public static Blob pack(Collection<?> collection, Class<?> elementType) {
+    return new Blob(packPrimitives(unbox(collection.toArray(), elementType)));
+  }
+
+  /**
+   * Method to unpack elements into an array.
+   * @param value The packed elements (as a Blob or ShortBlob)
+   * @param componentType Type of the array elements, primitive or wrapper
+   * @return The array
+   */
+  public static Object unpackArray(Object value, Class<?> componentType) {
+    Object primitiveArray = unpackPrimitives(getBytes(value), toPrimitiveType(componentType));
+    return componentType.isPrimitive() ? primitiveArray : box(primitiveArray, componentType);
+  }
+
+  /**
+   * Method to unpack elements into a list.
+   * @param value The packed elements (as a Blob or ShortBlob)
+   * @param elementType Type of the elements, primitive or wrapper
+   * @return The list, of wrappers
+   */
+  public static List<?> unpackList(Object value, Class<?> elementType) {
+    Object primitiveArray = unpackPrimitives(getBytes(value), toPrimitiveType(elementType));
+    return PrimitiveUtils.PRIMITIVE_ARRAY_TO_LIST_FUNC_MAP.get(primitiveArray.getClass().getComponentType())
+        .apply(primitiveArray);
+  }
+
+  private static byte[] getBytes(Object value) {
+    return value instanceof Blob ? ((Blob) value).getBytes() : ((ShortBlob) value).getBytes();
+  }
+
+  static byte[] packPrimitives(Object primitiveArray) {
+    Class<?> type = primitiveArray.getClass().getComponentType();
+    int length = Array.getLength(primitiveArray);
+    byte[] bytes = new byte[HEADER_LENGTH + length * getSize(type)];
+    bytes[0] = MAGIC_0;
+    bytes[1] = MAGIC_1;
+    bytes[2] = VERSION;
+    bytes[3] = (byte) getTypeCode(type);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH).slice()
+        .order(ByteOrder.LITTLE_ENDIAN);
+    if (type == long.class) {
+      buffer.asLongBuffer().put((long[]) primitiveArray);
+    } else if (type == int.class) {
+      buffer.asIntBuffer().put((int[]) primitiveArray);
+    } else if (type == short.class) {
+      buffer.asShortBuffer().put((short[]) primitiveArray);
+    } else if (type == char.class) {
+      buffer.asCharBuffer().put((char[]) primitiveArray);
+    } else if (type == double.class) {
+      buffer.asDoubleBuffer().put((double[]) primitiveArray);
+    } else {
+      buffer.asFloatBuffer().put((float[]) primitiveArray);
+    }
+    return bytes;
+  }
+
+  /**
+   * @param bytes The packed elements
+   * @param type The primitive type wanted
+   * @return Primitive array of the type wanted
+   */
+  static Object unpackPrimitives(byte[] bytes, Class<?> type) {
+    Class<?> storedType = getPrimitiveType((char) bytes[3]);
+    if (storedType == null) {
+      throw new NucleusException("Bytes in datastore are not packed elements");
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH).slice()
+        .order(ByteOrder.LITTLE_ENDIAN);
+    int length = buffer.remaining() / getSize(storedType);
+    Object array = Array.newInstance(storedType, length);
+    if (storedType == long.class) {
+      buffer.asLongBuffer().get((long[]) array);
+    } else if (storedType == int.class) {
+      buffer.asIntBuffer().get((int[]) array);
+    } else if (storedType == short.class) {
+      buffer.asShortBuffer().get((short[]) array);
+    } else if (storedType == char.class) {
+      buffer.asCharBuffer().get((char[]) array);
+    } else if (storedType == double.class) {
+      buffer.asDoubleBuffer().get((double[]) array);
+    } else {
+      buffer.asFloatBuffer().get((float[]) array);
+    }
+    return storedType == type ? array : convert(array, type);
+  }
+
+  /**
+   * Converts a primitive array to one of another primitive type, for values written with a different element
+   * type to that of the member now.
+   */
+  private static Object convert(Object array, Class<?> type) {
+    int length = Array.getLength(array);
+    Object result = Array.newInstance(type, length);
+    boolean fromFloating = array instanceof double[] || array instanceof float[];
+    for (int i = 0; i < length; i++) {
+      if (type == double.class) {
+        ((double[]) result)[i] = Array.getDouble(array, i);
+      } else if (type == float.class) {
+        ((float[]) result)[i] = (float) Array.getDouble(array, i);
+      } else {
+        setIntegral(result, i, fromFloating ? (long) Array.getDouble(array, i) : Array.getLong(array, i));
+      }
+    }
+    return result;
+  }
+
+  private static void setIntegral(Object array, int index, long value) {
+    if (array instanceof long[]) {
+      ((long[]) array)[index] = value;
+    } else if (array instanceof int[]) {
+      ((int[]) array)[index] = (int) value;
+    } else if (array instanceof short[]) {
+      ((short[]) array)[index] = (short) value;
+    } else {
+      ((char[]) array)[index] = (char) value;
+    }
+  }
+
+  private static Object unbox(Object[] elements, Class<?> elementType) {
+    Class<?> type = toPrimitiveType(elementType);
+    Object array = Array.newInstance(type, elements.length);
+    for (int i = 0; i < elements.length; i++) {
+      // Array.set unwraps the element
+      Array.set(array, i, elements[i]);
+    }
+    return array;
+  }
+
+  private static Object[] box(Object primitiveArray, Class<?> wrapperType) {
+    int length = Array.getLength(primitiveArray);
+    Object[] array = (Object[]) Array.newInstance(wrapperType, length);
+    for (int i = 0; i < length; i++) {
+      array[i] = Array.get(primitiveArray, i);
+    }
+    return array;
+  }
+
+  private static Class<?> toPrimitiveType(Class<?> type) {
+    char typeCode = getTypeCode(type);
+    if (typeCode == 0) {
+      throw new NucleusException("Elements of type " + type.getName() + " cannot be packed");
+    }
+    return getPrimitiveType(typeCode);
+  }
+
+  private static char getTypeCode(Class<?> type) {
+    if (type == long.class || type == Long.class) {
+      return 'J';
+    } else if (type == int.class || type == Integer.class) {
+      return 'I';
+    } else if (type == short.class || type == Short.class) {
+      return 'S';
+    } else if (type == char.class || type == Character.class) {
+      return 'C';
+    } else if (type == double.class || type == Double.class) {
+      return 'D';
+    } else if (type == float.class || type == Float.class) {
+      return 'F';
+    }
+    return 0;
+  }
+
+  private static Class<?> getPrimitiveType(char typeCode) {
+    switch (typeCode) {
+      case 'J': return long.class;
+      case 'I': return int.class;
+      case 'S': return short.class;
+      case 'C': return char.class;
+      case 'D': return double.class;
+      case 'F': return float.class;
+      default: return null;
+    }
+  }
+
+  private static int getSize(Class<?> type) {
+    if (type == long.class || type == double.class) {
+      return 8;
+    } else if (type == int.class || type == float.class) {
+      return 4;
+    }
+    return 2;
+  }
+}
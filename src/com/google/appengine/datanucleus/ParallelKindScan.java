@@ -0,0 +1,481 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.util.NucleusLogger;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Scan of all entities of a kind, split into disjoint ranges of {@code __key__} that are read in parallel.
+ * Each range is read as a sequence of cursor-delimited batches that are handed to an
+ * {@link EntityBatchConsumer}. After each batch the {@link Checkpoint} is updated with the cursor reached
+ * in that range, so a scan that fails (or is stopped) can be resumed by passing the checkpoint back to
+ * {@link #execute(Checkpoint, EntityBatchConsumer)}.
+ * <pre>
+ * ParallelKindScan scan = storeMgr.newParallelKindScan(MyEntity.class, clr);
+ * ParallelKindScan.Checkpoint checkpoint = scan.split(8);
+ * scan.execute(checkpoint, new ParallelKindScan.EntityBatchConsumer() {
+ *   public void consume(List&lt;Entity&gt; batch) {
+ *     ...
+ *   }
+ * });
+ * </pre>
+ * Split points are chosen by sampling the {@code __scatter__} property. Where no scatter values are
+ * available (for example for a kind written before scatter values were maintained) the split falls back
+ * to sampling keys at regular positions, found with keys-only queries that skip over the others. Since the
+ * datastore reads the keys it skips, that fallback costs a scan of the keys of the kind.
+ */
+public class ParallelKindScan {
+
+  /** Number of scatter samples to take per range. */
+  private static final int OVERSAMPLING_FACTOR = 32;
+
+  /**
+   * Consumer of the batches of entities read by a scan. Invoked concurrently from the scan threads,
+   * though only ever by one thread at a time for any given range.
+   */
+  public interface EntityBatchConsumer {
+    void consume(List<Entity> batch);
+  }
+
+  /**
+   * Consumer of batches of POJOs. See {@link JDODatastoreBridge#toJDOBatchConsumer}.
+   */
+  public interface PojoBatchConsumer<T> {
+    void consume(List<T> batch);
+  }
+
+  /**
+   * Listener notified each time the scan makes progress.
+   */
+  public interface CheckpointListener {
+    /**
+     * @param checkpoint Snapshot of the progress of the scan, suitable for persisting
+     */
+    void checkpointed(Checkpoint checkpoint);
+  }
+
+  private final DatastoreService datastoreService;
+  private final String kind;
+  private int batchSize = 100;
+  private int parallelism = 4;
+  private CheckpointListener checkpointListener = null;
+  private BackgroundExecutor executor = null;
+
+  /**
+   * Constructor.
+   * @param datastoreService DatastoreService to read from
+   * @param kind The kind to scan
+   */
+  public ParallelKindScan(DatastoreService datastoreService, String kind) {
+    this.datastoreService = datastoreService;
+    this.kind = kind;
+  }
+
+  public String getKind() {
+    return kind;
+  }
+
+  /**
+   * @param batchSize Number of entities to pass to the consumer at once
+   * @return This scan
+   */
+  public ParallelKindScan setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * @param parallelism Number of ranges to read concurrently
+   * @return This scan
+   */
+  public ParallelKindScan setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * @param executor Executor to read the ranges on. If not set, the scan creates its own threads
+   * @return This scan
+   */
+  public ParallelKindScan setExecutor(BackgroundExecutor executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  public ParallelKindScan setCheckpointListener(CheckpointListener listener) {
+    this.checkpointListener = listener;
+    return this;
+  }
+
+  /**
+   * Method to split the kind into (up to) the specified number of disjoint key ranges.
+   * Fewer ranges are returned when there are not enough entities to warrant the number requested.
+   * @param numRanges Number of ranges required
+   * @return Checkpoint for the start of a scan over the ranges
+   */
+  public Checkpoint split(int numRanges) {
+    List<Key> splitKeys = Collections.emptyList();
+    if (numRanges > 1) {
+      splitKeys = getSplitKeysFromScatter(numRanges);
+      if (splitKeys.isEmpty()) {
+        splitKeys = getSplitKeysFromKeys(numRanges);
+      }
+    }
+    return split(splitKeys);
+  }
+
+  /**
+   * Method to split the kind into key ranges at the provided keys, for a caller that already knows how the
+   * entities are distributed.
+   * @param splitKeys Keys at which to start a new range, in ascending order
+   * @return Checkpoint for the start of a scan over the ranges
+   */
+  public Checkpoint split(List<Key> splitKeys) {
+    List<Range> ranges = new ArrayList<Range>(splitKeys.size() + 1);
+    Key start = null;
+    for (Key splitKey : splitKeys) {
+      ranges.add(new Range(start, splitKey));
+      start = splitKey;
+    }
+    ranges.add(new Range(start, null));
+    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Split kind " + kind + " into " + ranges.size() + " ranges at " + splitKeys);
+    }
+    return new Checkpoint(kind, ranges);
+  }
+
+  private List<Key> getSplitKeysFromScatter(int numRanges) {
+    Query q = new Query(kind).addSort(Entity.SCATTER_RESERVED_PROPERTY).setKeysOnly();
+    List<Entity> samples = datastoreService.prepare(q).asList(
+        FetchOptions.Builder.withLimit(numRanges * OVERSAMPLING_FACTOR));
+    TreeSet<Key> sortedKeys = new TreeSet<Key>();
+    for (Entity sample : samples) {
+      sortedKeys.add(sample.getKey());
+    }
+    return chooseSplitKeys(new ArrayList<Key>(sortedKeys), numRanges);
+  }
+
+  /**
+   * Method to choose split keys without scatter values. The number of entities is first bracketed by
+   * probing the keys at positions 1, 3, 7, 15, ... and keys are then sampled at regular positions across
+   * the kind. Each probe or sample returns one key, skipping over the others with an offset from the
+   * previous one. Only a small number of keys are returned, but the datastore still reads the keys skipped
+   * by each offset, so finding the split keys reads the keys of the kind about twice (once while bracketing,
+   * once while sampling) : its cost grows with the size of the kind.
+   */
+  private List<Key> getSplitKeysFromKeys(int numRanges) {
+    Query q = new Query(kind).addSort(Entity.KEY_RESERVED_PROPERTY).setKeysOnly();
+    PreparedQuery pq = datastoreService.prepare(q);
+    // The kind has at least numKnown (and at most 2 * numKnown + 1) entities
+    int numKnown = 0;
+    Cursor cursor = null;
+    for (int skip = 0; ; skip = skip * 2 + 1) {
+      QueryResultList<Entity> probe = pq.asQueryResultList(nextKeyOptions(cursor, skip));
+      if (probe.isEmpty()) {
+        break;
+      }
+      numKnown += skip + 1;
+      cursor = probe.getCursor();
+    }
+    if (numKnown < numRanges) {
+      return Collections.emptyList();
+    }
+
+    // Between numRanges and 2 * numRanges + 1 samples
+    int stride = numKnown / numRanges;
+    List<Key> samples = new ArrayList<Key>();
+    cursor = null;
+    while (true) {
+      QueryResultList<Entity> sample = pq.asQueryResultList(nextKeyOptions(cursor, stride - 1));
+      if (sample.isEmpty()) {
+        break;
+      }
+      samples.add(sample.get(0).getKey());
+      cursor = sample.getCursor();
+    }
+    return chooseSplitKeys(samples, numRanges);
+  }
+
+  private static FetchOptions nextKeyOptions(Cursor cursor, int skip) {
+    FetchOptions opts = FetchOptions.Builder.withLimit(1).offset(skip);
+    if (cursor != null) {
+      opts.startCursor(cursor);
+    }
+    return opts;
+  }
+
+  private static List<Key> chooseSplitKeys(List<Key> sortedSamples, int numRanges) {
+    if (sortedSamples.size() < numRanges - 1) {
+      return Collections.emptyList();
+    }
+    List<Key> splitKeys = new ArrayList<Key>(numRanges - 1);
+    double stride = sortedSamples.size() / (double) numRanges;
+    for (int i = 1; i < numRanges; i++) {
+      Key key = sortedSamples.get((int) (i * stride));
+      if (splitKeys.isEmpty() || !splitKeys.get(splitKeys.size() - 1).equals(key)) {
+        splitKeys.add(key);
+      }
+    }
+    return splitKeys;
+  }
+
+  /**
+   * Method to scan all unfinished ranges of the provided checkpoint, blocking until the scan is complete.
+   * Up to {@link #setParallelism(int)} ranges are read at the same time. If reading any range fails, the
+   * other ranges stop at their next batch boundary and the first failure is rethrown. The checkpoint then
+   * records how far each range got.
+   * @param checkpoint The checkpoint to start from (from {@link #split(int)} or a previous scan)
+   * @param consumer Consumer for the batches read
+   * @return The checkpoint, updated with the progress made
+   */
+  public Checkpoint execute(final Checkpoint checkpoint, final EntityBatchConsumer consumer) {
+    checkpoint.start();
+    final ConcurrentLinkedQueue<Range> remaining = new ConcurrentLinkedQueue<Range>();
+    for (Range range : checkpoint.ranges) {
+      if (!range.isDone()) {
+        remaining.add(range);
+      }
+    }
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    BackgroundExecutor scanExecutor = executor != null ? executor :
+        new BackgroundExecutor("datanucleus-appengine-scan-" + kind, parallelism);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < Math.min(parallelism, remaining.size()); i++) {
+        futures.add(scanExecutor.submit(new Callable<Void>() {
+          public Void call() {
+            try {
+              Range range;
+              while (!checkpoint.isStopped() && (range = remaining.poll()) != null) {
+                scanRange(checkpoint, range, consumer);
+              }
+            } catch (RuntimeException e) {
+              fail(e);
+            } catch (Error e) {
+              fail(e);
+            }
+            return null;
+          }
+
+          private void fail(Throwable t) {
+            // Stop the other ranges now, rather than when this future is waited for
+            failure.compareAndSet(null, t);
+            checkpoint.stop();
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          checkpoint.stop();
+          failure.compareAndSet(null, ie);
+          break;
+        } catch (ExecutionException ee) {
+          // Recorded by the task
+        }
+      }
+      if (failure.get() != null) {
+        if (failure.get() instanceof RuntimeException) {
+          throw (RuntimeException) failure.get();
+        } else if (failure.get() instanceof Error) {
+          throw (Error) failure.get();
+        }
+        throw new NucleusDataStoreException("Scan of kind " + kind + " failed", failure.get());
+      }
+      return checkpoint;
+    } finally {
+      if (scanExecutor != executor) {
+        scanExecutor.shutdown();
+      }
+    }
+  }
+
+  private void scanRange(Checkpoint checkpoint, Range range, EntityBatchConsumer consumer) {
+    Query q = new Query(kind).addSort(Entity.KEY_RESERVED_PROPERTY);
+    if (range.start != null) {
+      q.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN_OR_EQUAL, range.start);
+    }
+    if (range.end != null) {
+      q.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN, range.end);
+    }
+
+    while (!checkpoint.isStopped()) {
+      FetchOptions opts = FetchOptions.Builder.withLimit(batchSize).chunkSize(batchSize);
+      Cursor cursor = checkpoint.getCursor(range);
+      if (cursor != null) {
+        opts.startCursor(cursor);
+      }
+      QueryResultList<Entity> batch = datastoreService.prepare(q).asQueryResultList(opts);
+      if (!batch.isEmpty()) {
+        consumer.consume(batch);
+      }
+      boolean done = batch.size() < batchSize;
+      checkpoint.advance(range, batch.getCursor(), batch.size(), done);
+      if (checkpointListener != null) {
+        checkpointListener.checkpointed(checkpoint.copy());
+      }
+      if (done) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * A range of keys [start, end) of the kind, with the progress of the scan through it.
+   */
+  static final class Range implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Start of the range (inclusive), or null for the start of the kind. */
+    final Key start;
+
+    /** End of the range (exclusive), or null for the end of the kind. */
+    final Key end;
+
+    /** Cursor for the position reached in this range. */
+    Cursor cursor;
+
+    long numEntities = 0;
+
+    boolean done = false;
+
+    Range(Key start, Key end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    Range copy() {
+      Range copy = new Range(start, end);
+      copy.cursor = cursor;
+      copy.numEntities = numEntities;
+      copy.done = done;
+      return copy;
+    }
+
+    boolean isDone() {
+      return done;
+    }
+
+    public String toString() {
+      return "[" + start + ", " + end + ")" + (done ? " done" : "") + " entities=" + numEntities;
+    }
+  }
+
+  /**
+   * Progress of a scan, recording for each key range the cursor that the scan has reached.
+   * Serializable so that it can be persisted and used to resume a scan.
+   */
+  public static final class Checkpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String kind;
+
+    private final List<Range> ranges;
+
+    private transient volatile boolean stopped = false;
+
+    Checkpoint(String kind, List<Range> ranges) {
+      this.kind = kind;
+      this.ranges = ranges;
+    }
+
+    public String getKind() {
+      return kind;
+    }
+
+    public synchronized int getNumberOfRanges() {
+      return ranges.size();
+    }
+
+    public synchronized boolean isComplete() {
+      for (Range range : ranges) {
+        if (!range.done) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return Number of entities passed to the consumer so far, across all ranges
+     */
+    public synchronized long getNumberOfEntitiesScanned() {
+      long num = 0;
+      for (Range range : ranges) {
+        num += range.numEntities;
+      }
+      return num;
+    }
+
+    synchronized Cursor getCursor(Range range) {
+      return range.cursor;
+    }
+
+    synchronized void advance(Range range, Cursor cursor, int numEntities, boolean done) {
+      range.cursor = cursor;
+      range.numEntities += numEntities;
+      range.done = done;
+    }
+
+    synchronized Checkpoint copy() {
+      List<Range> copies = new ArrayList<Range>(ranges.size());
+      for (Range range : ranges) {
+        copies.add(range.copy());
+      }
+      return new Checkpoint(kind, copies);
+    }
+
+    void start() {
+      stopped = false;
+    }
+
+    void stop() {
+      stopped = true;
+    }
+
+    boolean isStopped() {
+      return stopped;
+    }
+
+    public synchronized String toString() {
+      return "Checkpoint kind=" + kind + " ranges=" + ranges;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entities read ahead of their use on behalf of an ExecutionContext, so that the related objects of a page
+ * of query results are retrieved with one batch get rather than a get per owner
+ * (see {@link DatastoreManager#getPrefetchedEntities}). Keys that were looked up but have no entity are
+ * remembered too, so that a missing child doesn't cause a get of its own.
+ * <p>
+ * Entities are held only while the page they were read for is being converted into objects,
+ * and are then removed, so an object loaded later reads the current state of the datastore.
+ * </p>
+ */
+public class PrefetchedEntities {
+
+  /** Entities keyed by their key. A null value means that there is no entity with the key. */
+  private final Map<Key, Entity> entitiesByKey = new HashMap<Key, Entity>();
+
+  /**
+   * Method to add the result of a batch get.
+   * @param keys The keys that were retrieved
+   * @param found The entities found, keyed by their key
+   */
+  public synchronized void add(Collection<Key> keys, Map<Key, Entity> found) {
+    for (Key key : keys) {
+      entitiesByKey.put(key, found.get(key));
+    }
+  }
+
+  /**
+   * Method to remove the entities for the provided keys, once they are no longer needed.
+   * @param keys The keys
+   */
+  public synchronized void remove(Collection<Key> keys) {
+    for (Key key : keys) {
+      entitiesByKey.remove(key);
+    }
+  }
+
+  /**
+   * Accessor for the entities held for the provided keys.
+   * @param keys The keys wanted
+   * @param result Map to add the entities held to, keyed by their key
+   * @return The keys that aren't held, and so need retrieving from the datastore
+   */
+  public synchronized List<Key> get(Collection<Key> keys, Map<Key, Entity> result) {
+    List<Key> missing = new ArrayList<Key>();
+    for (Key key : keys) {
+      if (entitiesByKey.containsKey(key)) {
+        Entity entity = entitiesByKey.get(key);
+        if (entity != null) {
+          result.put(key, entity);
+        }
+      } else {
+        missing.add(key);
+      }
+    }
+    return missing;
+  }
+
+  public synchronized boolean isEmpty() {
+    return entitiesByKey.isEmpty();
+  }
+}
@@ -0,0 +1,214 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.datanucleus.DatastoreMetrics.Operation;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.util.Localiser;
+import org.datanucleus.util.NucleusLogger;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Accounting of the datastore RPCs made on behalf of an ExecutionContext (PersistenceManager/EntityManager),
+ * to catch code that makes far more RPCs than it should.
+ * <ul>
+ * <li>When the number of RPCs exceeds the budget ({@link DatastoreManager#RPC_BUDGET_PROPERTY}) this is
+ * logged, or an exception thrown before the RPC is made.</li>
+ * <li>When the same path of the plugin makes repeated single-entity RPCs against one kind (a get of one key,
+ * or a get or query for the related objects of one owner) the "N+1" pattern is reported. This typically means that
+ * objects of a query result are having their relations loaded one at a time.
+ * See {@link DatastoreManager#REPEATED_RPC_THRESHOLD_PROPERTY}.</li>
+ * </ul>
+ * The RPCs counted are those reported to {@link DatastoreMetrics} through the DatastoreServices obtained for
+ * the ExecutionContext, so they are the same calls that the metrics listeners see. Counts cover the life of
+ * the PersistenceManager/EntityManager (not of a pooled ExecutionContext), or since the last {@link #reset()},
+ * which a long-lived PersistenceManager can call at the start of each request.
+ * <p>
+ * For tests, {@link #countRpcs(DatastoreManager, Runnable)} and
+ * {@link #assertMaxRpcs(DatastoreManager, int, Runnable)} count the RPCs made by a block of code without any
+ * of this being enabled.
+ * </p>
+ */
+public class RpcAccounting {
+  private static final Localiser LOCALISER = Localiser.getInstance(
+      "com.google.appengine.datanucleus.Localisation", DatastoreManager.class.getClassLoader());
+
+  /** Value of {@link DatastoreManager#RPC_BUDGET_ACTION_PROPERTY} to log when over budget. */
+  public static final String ACTION_LOG = "log";
+
+  /** Value of {@link DatastoreManager#RPC_BUDGET_ACTION_PROPERTY} to throw when over budget. */
+  public static final String ACTION_EXCEPTION = "exception";
+
+  /** Maximum number of RPCs, or 0 for no limit. */
+  private final int budget;
+
+  /** Number of single-entity RPCs from one path against one kind that is reported, or 0 to not. */
+  private final int repeatedRpcThreshold;
+
+  private final boolean throwOnViolation;
+
+  private int rpcCount = 0;
+
+  /** Number of RPCs keyed by the path of the plugin that made them. */
+  private final Map<Path, Integer> rpcCountsByPath = new EnumMap<Path, Integer>(Path.class);
+
+  /** Number of single-entity RPCs keyed by path and kind. */
+  private final Map<String, Integer> singleEntityRpcCounts = new HashMap<String, Integer>();
+
+  /** Path and kind combinations already reported, so each is reported once. */
+  private final Set<String> reportedRepeats = new HashSet<String>();
+
+  private boolean budgetReported = false;
+
+  /**
+   * @param budget Maximum number of RPCs, or 0 for no limit
+   * @param repeatedRpcThreshold Number of single-entity RPCs from one path against one kind to report,
+   *     or 0 to not report them
+   * @param action {@link #ACTION_LOG} or {@link #ACTION_EXCEPTION}
+   */
+  public RpcAccounting(int budget, int repeatedRpcThreshold, String action) {
+    this.budget = budget;
+    this.repeatedRpcThreshold = repeatedRpcThreshold;
+    this.throwOnViolation = ACTION_EXCEPTION.equalsIgnoreCase(action);
+  }
+
+  /**
+   * Count an RPC about to be made on behalf of the ExecutionContext.
+   * @param path The path of the plugin making it
+   * @param op The operation
+   * @param kind The kind operated on, or null if not known
+   * @param numEntities The number of entities (or keys) of the call, or 0 if not known
+   * @throws NucleusUserException if over budget, or a repeat is detected, and configured to throw
+   */
+  synchronized void rpc(Path path, Operation op, String kind, int numEntities) {
+    rpcCount++;
+    Integer pathCount = rpcCountsByPath.get(path);
+    rpcCountsByPath.put(path, pathCount == null ? 1 : pathCount + 1);
+    // Never prevent a rollback
+    boolean mayThrow = throwOnViolation && op != Operation.ROLLBACK;
+
+    if (kind != null && repeatedRpcThreshold > 0 && isSingleEntityRpc(path, op, numEntities)) {
+      String repeatKey = path + "/" + kind;
+      Integer count = singleEntityRpcCounts.get(repeatKey);
+      count = count == null ? 1 : count + 1;
+      singleEntityRpcCounts.put(repeatKey, count);
+      if (count >= repeatedRpcThreshold && reportedRepeats.add(repeatKey)) {
+        String msg = LOCALISER.msg("AppEngine.RpcAccounting.RepeatedRpc", count, kind, path);
+        if (mayThrow) {
+          throw new NucleusUserException(msg);
+        }
+        NucleusLogger.DATASTORE.warn(msg);
+      }
+    }
+
+    if (budget > 0 && rpcCount > budget) {
+      String msg = LOCALISER.msg("AppEngine.RpcAccounting.BudgetExceeded", budget, path);
+      if (mayThrow) {
+        throw new NucleusUserException(msg);
+      } else if (!budgetReported) {
+        budgetReported = true;
+        NucleusLogger.DATASTORE.warn(msg);
+      }
+    }
+  }
+
+  /**
+   * @return Whether the call is for a single object: a get of one key, or a get or query for the related
+   *     objects of one owner when fetching fields or accessing a collection
+   */
+  private static boolean isSingleEntityRpc(Path path, Operation op, int numEntities) {
+    if (op != Operation.GET && op != Operation.QUERY) {
+      return false;
+    }
+    return path == Path.FETCH || path == Path.SCO_STORE || (op == Operation.GET && numEntities == 1);
+  }
+
+  /**
+   * @return The number of RPCs made since creation or the last reset
+   */
+  public synchronized int getRpcCount() {
+    return rpcCount;
+  }
+
+  /**
+   * @return The number of RPCs made since creation or the last reset, keyed by the path of the plugin that
+   *     made them
+   */
+  public synchronized Map<Path, Integer> getRpcCountsByPath() {
+    return new EnumMap<Path, Integer>(rpcCountsByPath);
+  }
+
+  /**
+   * Start counting afresh, for example at the start of a request.
+   */
+  public synchronized void reset() {
+    rpcCount = 0;
+    rpcCountsByPath.clear();
+    singleEntityRpcCounts.clear();
+    reportedRepeats.clear();
+    budgetReported = false;
+  }
+
+  /**
+   * Count the datastore RPCs made for the provided StoreManager by the current thread while running the
+   * provided block. Counts the calls reported to its {@link DatastoreMetrics}, so not those made by background
+   * threads (such as query prefetching), nor those made through a DatastoreService not obtained from the plugin.
+   * @param storeMgr The StoreManager
+   * @param block The code to run
+   * @return The number of RPCs
+   */
+  public static int countRpcs(DatastoreManager storeMgr, Runnable block) {
+    final Thread thread = Thread.currentThread();
+    final int[] count = new int[1];
+    DatastoreMetrics.Listener listener = new DatastoreMetrics.Listener() {
+      public void callCompleted(Path path, Operation op, String kind, int numEntities, long elapsedNanos,
+          boolean failed) {
+        if (Thread.currentThread() == thread) {
+          count[0]++;
+        }
+      }
+    };
+    storeMgr.getDatastoreMetrics().addListener(listener);
+    try {
+      block.run();
+    } finally {
+      storeMgr.getDatastoreMetrics().removeListener(listener);
+    }
+    return count[0];
+  }
+
+  /**
+   * Test helper that runs the provided block and fails if it makes more than the provided number of
+   * datastore RPCs. See {@link #countRpcs(DatastoreManager, Runnable)} for what is counted.
+   * @param storeMgr The StoreManager
+   * @param maxRpcs Maximum number of RPCs
+   * @param block The code to run
+   * @throws AssertionError if more RPCs were made
+   */
+  public static void assertMaxRpcs(DatastoreManager storeMgr, int maxRpcs, Runnable block) {
+    int rpcs = countRpcs(storeMgr, block);
+    if (rpcs > maxRpcs) {
+      throw new AssertionError("Expected at most " + maxRpcs + " datastore RPCs but " + rpcs + " were made");
+    }
+  }
+}
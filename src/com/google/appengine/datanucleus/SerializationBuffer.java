@@ -0,0 +1,95 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Growable buffer that each thread reuses for serializing values, so that serializing doesn't
+ * allocate (and repeatedly grow) a new buffer per value. A buffer that has grown beyond
+ * {@link #MAX_RETAINED_SIZE} isn't kept, so one large value doesn't pin memory to the thread.
+ * Usage is
+ * <pre>
+ * SerializationBuffer buffer = SerializationBuffer.acquire();
+ * try {
+ *   ... write to buffer, then buffer.toByteArray()
+ * } finally {
+ *   buffer.release();
+ * }
+ * </pre>
+ */
+final class SerializationBuffer extends ByteArrayOutputStream {
+
+  static final int INITIAL_SIZE = 512;
+
+  static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<SerializationBuffer> BUFFERS = new ThreadLocal<SerializationBuffer>() {
+    @Override
+    protected SerializationBuffer initialValue() {
+      return new SerializationBuffer();
+    }
+  };
+
+  private boolean inUse = false;
+
+  private SerializationBuffer() {
+    super(INITIAL_SIZE);
+  }
+
+  /**
+   * @return The (empty) buffer of this thread, or a new one if it's already in use, for example by
+   *     a strategy that serializes nested values
+   */
+  static SerializationBuffer acquire() {
+    SerializationBuffer buffer = BUFFERS.get();
+    if (buffer.inUse) {
+      buffer = new SerializationBuffer();
+    }
+    buffer.inUse = true;
+    buffer.reset();
+    return buffer;
+  }
+
+  /**
+   * Copy the contents of the buffer into the provided array, avoiding the copy made by {@link #toByteArray()}.
+   * @param dest The array
+   * @param offset Position in the array to copy to
+   */
+  void copyTo(byte[] dest, int offset) {
+    System.arraycopy(buf, 0, dest, offset, count);
+  }
+
+  /**
+   * Set the contents of the buffer as the input of the provided Deflater. The buffer must not be written
+   * to or released until the Deflater is finished with it.
+   * @param deflater The Deflater
+   */
+  void deflate(Deflater deflater) {
+    deflater.setInput(buf, 0, count);
+  }
+
+  /**
+   * Return this buffer for reuse by the thread.
+   */
+  void release() {
+    inUse = false;
+    if (buf.length > MAX_RETAINED_SIZE && BUFFERS.get() == this) {
+      BUFFERS.remove();
+    }
+  }
+}
@@ -23,12 +23,14 @@ import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.ExtensionMetaData;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
 
 /**
  * Helper used by {@link DatastoreFieldManager} to process serialized fields.
@@ -51,6 +53,9 @@ import java.util.Arrays;
  * In the above example, the value assigned to the <code>myClass</code> member
  * will be transformed into a {@link Blob} by an instance of
  * <code>MySerializationStrategy> before being written to the datastore.
+ * The plugin also provides {@link CompactSerializationStrategy}, which writes a smaller form
+ * than standard java serialization, and {@link CompressedSerializationStrategy}, which compresses
+ * large values.
  *
  * @author Max Ross <maxr@google.com>
  */
@@ -61,6 +66,13 @@ public class SerializationManager {
    */
   static final String SERIALIZATION_STRATEGY_KEY = "serialization-strategy";
 
+  /**
+   * The serialization strategy of each serialized member, resolved when first used.
+   * Custom strategies are instantiated once per member, so must be thread-safe.
+   */
+  private final Map<AbstractMemberMetaData, SerializationStrategy> strategiesByMember =
+      new ConcurrentHashMap<AbstractMemberMetaData, SerializationStrategy>();
+
   /**
    * Default serialization strategy - standard java serialization.
    */
@@ -79,20 +91,21 @@ public class SerializationManager {
       } else if (obj instanceof Byte[]) {
         return new Blob(PrimitiveArrays.toByteArray(Arrays.asList((Byte[]) obj)));
       }
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SerializationBuffer buffer = SerializationBuffer.acquire();
       ObjectOutputStream oos = null;
       try {
         try {
-          oos = new ObjectOutputStream(baos);
+          oos = new ObjectOutputStream(buffer);
           oos.writeObject(obj);
-          return new Blob(baos.toByteArray());
+          oos.flush();
+          return new Blob(buffer.toByteArray());
         } finally {
           try {
-            baos.close();
-          } finally {
             if (oos != null) {
               oos.close();
             }
+          } finally {
+            buffer.release();
           }
         }
       } catch (IOException ioe) {
@@ -174,6 +187,17 @@ public class SerializationManager {
   // visible for testing
   SerializationStrategy getSerializationStrategy(
       ClassLoaderResolver clr, AbstractMemberMetaData ammd) {
+    SerializationStrategy strategy = strategiesByMember.get(ammd);
+    if (strategy == null) {
+      // Strategies are stateless so if two threads race here it doesn't matter which one is kept
+      strategy = resolveSerializationStrategy(clr, ammd);
+      strategiesByMember.put(ammd, strategy);
+    }
+    return strategy;
+  }
+
+  private SerializationStrategy resolveSerializationStrategy(
+      ClassLoaderResolver clr, AbstractMemberMetaData ammd) {
     ExtensionMetaData[] emdList = ammd.getExtensions();
     if (emdList != null) {
       // There is a hasExtension method on AbstractMemberMetaData
@@ -187,6 +211,9 @@ public class SerializationManager {
                 + " for member " + ammd.getFullFieldName() + " must implement "
                 + SerializationStrategy.class);
           }
+          if (clazz.equals(CompressedSerializationStrategy.class)) {
+            return newCompressedSerializationStrategy(ammd);
+          }
           try {
             return (SerializationStrategy) clazz.newInstance();
           } catch (InstantiationException e) {
@@ -201,4 +228,18 @@ public class SerializationManager {
     // impl.
     return DEFAULT_SERIALIZATION_STRATEGY;
   }
+
+  private static SerializationStrategy newCompressedSerializationStrategy(AbstractMemberMetaData ammd) {
+    String threshold = ammd.getValueForExtension(CompressedSerializationStrategy.COMPRESSION_THRESHOLD_KEY);
+    String level = ammd.getValueForExtension(CompressedSerializationStrategy.COMPRESSION_LEVEL_KEY);
+    try {
+      return new CompressedSerializationStrategy(
+          threshold != null ? Integer.parseInt(threshold.trim()) : CompressedSerializationStrategy.DEFAULT_THRESHOLD,
+          level != null ? Integer.parseInt(level.trim()) : Deflater.DEFAULT_COMPRESSION);
+    } catch (IllegalArgumentException e) {
+      // Also covers NumberFormatException
+      throw new NucleusException("Invalid compression settings for member " + ammd.getFullFieldName() +
+          " : " + e.getMessage(), e);
+    }
+  }
 }
@@ -23,6 +23,9 @@ import com.google.appengine.api.datastore.Blob;
  * This class is part of the public interface of the DataNucleus App Engine
  * Plugin and can be safely referenced in user code.
  *
+ * An instance is created for each member using it and is shared by all threads,
+ * so implementations must be thread-safe.
+ *
  * @author Max Ross <maxr@google.com>
  */
 public interface SerializationStrategy {
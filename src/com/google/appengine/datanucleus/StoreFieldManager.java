@@ -529,7 +529,7 @@ public class StoreFieldManager extends DatastoreFieldManager {
     Key key = null;
     if (value != null) {
       try {
-        key = KeyFactory.stringToKey(value);
+        key = KeyCodec.getInstance().stringToKey(value);
       } catch (IllegalArgumentException iae) {
         throw new NucleusFatalUserException("Attempt was made to set parent to " + value +
             " but this cannot be converted into a Key.");
@@ -581,7 +581,7 @@ public class StoreFieldManager extends DatastoreFieldManager {
     if (MetaDataUtils.isEncodedPKField(getClassMetaData(), fieldNumber)) {
       if (value != null) {
         try {
-          key = KeyFactory.stringToKey(value);
+          key = KeyCodec.getInstance().stringToKey(value);
         } catch (IllegalArgumentException iae) {
           throw new NucleusFatalUserException(
               "Invalid primary key for " + getClassMetaData().getFullClassName() + ".  The "
@@ -838,7 +838,7 @@ public class StoreFieldManager extends DatastoreFieldManager {
       }
 
       Object value = relInfo.value;
-      String propName = EntityUtils.getPropertyName(getStoreManager().getIdentifierFactory(), mmd);
+      String propName = getStoreManager().getPropertyName(mmd);
       if (value == null) {
         // Nothing to extract
         checkSettingToNullValue(mmd, value);
@@ -960,7 +960,7 @@ public class StoreFieldManager extends DatastoreFieldManager {
 
     AbstractMemberMetaData parentPkMmd = ((DatastoreManager)getStoreManager()).getMetaDataForParentPK(getClassMetaData());
     if (parentKey != null && parentPkMmd != null) {
-      return parentPkMmd.getType().equals(Key.class) ? parentKey : KeyFactory.keyToString(parentKey);
+      return parentPkMmd.getType().equals(Key.class) ? parentKey : KeyCodec.getInstance().keyToString(parentKey);
     }
     return null;
   }
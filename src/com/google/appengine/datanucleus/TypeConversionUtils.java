@@ -442,7 +442,11 @@ public class TypeConversionUtils {
     String memberTypeStr = ammd.getCollection().getElementType();
     Class<?> memberType = classForName(clr, memberTypeStr);
     Function<Object, Object> conversionFunc = DATASTORE_TO_POJO_TYPE_FUNC.get(memberType);
-    if (value instanceof ShortBlob) {
+    if (PackedArrays.isPacked(value) && PackedArrays.isPackable(memberType)) {
+      value = PackedArrays.unpackList(value, memberType);
+      // Unpacked to the element type so no conversion needed
+      conversionFunc = null;
+    } else if (value instanceof ShortBlob) {
       if (!memberType.equals(Byte.TYPE) && !memberType.equals(Byte.class)) {
         throw new NucleusException(
             "Cannot convert a ShortBlob to an array of type " + memberType.getName());
@@ -475,7 +479,9 @@ public class TypeConversionUtils {
    */
   private Object datastoreValueToPojoArray(Object value, AbstractMemberMetaData ammd) {
     Class<?> memberType = ammd.getType().getComponentType();
-    if (value instanceof ShortBlob) {
+    if (PackedArrays.isPacked(value) && PackedArrays.isPackable(memberType)) {
+      value = PackedArrays.unpackArray(value, memberType);
+    } else if (value instanceof ShortBlob) {
       if (!memberType.equals(Byte.TYPE) && !memberType.equals(Byte.class)) {
         throw new NucleusException(
             "Cannot convert a ShortBlob to an array of type " + memberType.getName());
@@ -716,6 +722,23 @@ public class TypeConversionUtils {
     return Collection.class.isAssignableFrom(ammd.getType());
   }
 
+  /**
+   * @param array A primitive array or one of objects
+   * @return Whether the array has a null element
+   */
+  private boolean hasNullElement(Object array) {
+    return !array.getClass().getComponentType().isPrimitive() && hasNullElement(Arrays.asList((Object[]) array));
+  }
+
+  private boolean hasNullElement(Collection<?> collection) {
+    for (Object element : collection) {
+      if (element == null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private List<String> convertEnumsToStringList(Iterable<Enum> enums) {
     List<String> result = Utils.newArrayList();
     for (Enum e : enums) {
@@ -847,6 +870,8 @@ public class TypeConversionUtils {
       result = convertEnumsToStringList(enums);
     } else if (pojoPropertyIsByteCollection(ammd)) {
       result = convertByteCollectionToShortBlob((Collection<Byte>) value);
+    } else if (MetaDataUtils.isPackedField(ammd) && !hasNullElement(value)) {
+      result = PackedArrays.pack(value, elementType);
     } else {
       if (pojoToDatastoreTypeFunction.get(elementType) != null) {
         // this will transform non-lists into lists while also transforming
@@ -897,6 +922,8 @@ public class TypeConversionUtils {
       result = convertByteArrayToShortBlob(value);
     } else if (Enum.class.isAssignableFrom(ammd.getType().getComponentType())) {
       result = convertEnumsToStringList(Arrays.<Enum>asList((Enum[]) value));
+    } else if (MetaDataUtils.isPackedField(ammd) && !hasNullElement(value)) {
+      result = PackedArrays.pack(value);
     } else {
       // Translate all arrays to lists before storing.
       result = convertPojoArrayToDatastoreList(value);
@@ -19,17 +19,26 @@ import com.google.appengine.api.datastore.DatastoreAttributes;
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Index;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyRange;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.datanucleus.DatastoreMetrics.Operation;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -40,6 +49,7 @@ import static com.google.appengine.datanucleus.DatastoreExceptionTranslator.wrap
 /**
  * {@link DatastoreService} implementation that catches runtime exceptions
  * thrown and wraps them in the appropriate DataNucleus exception.
+ * Also reports each call to the {@link DatastoreMetrics} it was created with.
  *
  * @author Max Ross <maxr@google.com>
  */
@@ -47,8 +57,19 @@ public class WrappedDatastoreService implements DatastoreService {
 
   private final DatastoreService inner;
 
+  private final DatastoreMetrics metrics;
+
+  /** Path the calls are attributed to, or null to take that of the current thread. */
+  private final Path path;
+
   public WrappedDatastoreService(DatastoreService inner) {
+    this(inner, DatastoreMetrics.NONE, null);
+  }
+
+  WrappedDatastoreService(DatastoreService inner, DatastoreMetrics metrics, Path path) {
     this.inner = inner;
+    this.metrics = metrics;
+    this.path = path;
   }
 
   public DatastoreService getDelegate() {
@@ -56,144 +77,238 @@ public class WrappedDatastoreService implements DatastoreService {
   }
 
   public Entity get(Key key) throws EntityNotFoundException {
+    metrics.beforeCall(path, Operation.GET, key);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.get(key);
+      Entity result = inner.get(key);
+      failed = false;
+      return result;
+    } catch (EntityNotFoundException e) {
+      // Not a failure of the call
+      failed = false;
+      throw e;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.GET, key, failed);
     }
   }
 
   public Entity get(Transaction transaction, Key key) throws EntityNotFoundException {
+    metrics.beforeCall(path, Operation.GET, key);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.get(transaction, key);
+      Entity result = inner.get(transaction, key);
+      failed = false;
+      return result;
+    } catch (EntityNotFoundException e) {
+      // Not a failure of the call
+      failed = false;
+      throw e;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.GET, key, failed);
     }
   }
 
   public Map<Key, Entity> get(Iterable<Key> keyIterable) {
+    List<Key> keys = toList(keyIterable);
+    metrics.beforeCallForKeys(path, Operation.GET, keys);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.get(keyIterable);
+      Map<Key, Entity> result = inner.get(keys);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.recordKeys(start, path, Operation.GET, keys, failed);
     }
   }
 
   public Map<Key, Entity> get(Transaction transaction, Iterable<Key> keyIterable) {
+    List<Key> keys = toList(keyIterable);
+    metrics.beforeCallForKeys(path, Operation.GET, keys);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.get(transaction, keyIterable);
+      Map<Key, Entity> result = inner.get(transaction, keys);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.recordKeys(start, path, Operation.GET, keys, failed);
     }
   }
 
   public Key put(Entity entity) {
+    metrics.beforeCall(path, Operation.PUT, getKind(entity), 1);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.put(entity);
+      Key result = inner.put(entity);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.PUT, getKind(entity), 1, failed);
     }
   }
 
   public Key put(Transaction transaction, Entity entity) {
+    metrics.beforeCall(path, Operation.PUT, getKind(entity), 1);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.put(transaction, entity);
+      Key result = inner.put(transaction, entity);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.PUT, getKind(entity), 1, failed);
     }
   }
 
   public List<Key> put(Iterable<Entity> entityIterable) {
+    List<Entity> entities = toList(entityIterable);
+    metrics.beforeCall(path, Operation.PUT, null, 0);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.put(entityIterable);
+      List<Key> result = inner.put(entities);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.recordEntities(start, path, Operation.PUT, entities, failed);
     }
   }
 
   public List<Key> put(Transaction transaction, Iterable<Entity> entityIterable) {
+    List<Entity> entities = toList(entityIterable);
+    metrics.beforeCall(path, Operation.PUT, null, 0);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.put(transaction, entityIterable);
+      List<Key> result = inner.put(transaction, entities);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.recordEntities(start, path, Operation.PUT, entities, failed);
     }
   }
 
   public void delete(Key... keys) {
+    metrics.beforeCallForKeys(path, Operation.DELETE, Arrays.asList(keys));
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
       inner.delete(keys);
+      failed = false;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.recordKeys(start, path, Operation.DELETE, Arrays.asList(keys), failed);
     }
   }
 
   public void delete(Transaction transaction, Key... keys) {
+    metrics.beforeCallForKeys(path, Operation.DELETE, Arrays.asList(keys));
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
       inner.delete(transaction, keys);
+      failed = false;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.recordKeys(start, path, Operation.DELETE, Arrays.asList(keys), failed);
     }
   }
 
   public void delete(Iterable<Key> keyIterable) {
+    List<Key> keys = toList(keyIterable);
+    metrics.beforeCallForKeys(path, Operation.DELETE, keys);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      inner.delete(keyIterable);
+      inner.delete(keys);
+      failed = false;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.recordKeys(start, path, Operation.DELETE, keys, failed);
     }
   }
 
   public void delete(Transaction transaction, Iterable<Key> keyIterable) {
+    List<Key> keys = toList(keyIterable);
+    metrics.beforeCallForKeys(path, Operation.DELETE, keys);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      inner.delete(transaction, keyIterable);
+      inner.delete(transaction, keys);
+      failed = false;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (ConcurrentModificationException e) {
       throw wrapConcurrentModificationException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.recordKeys(start, path, Operation.DELETE, keys, failed);
     }
   }
 
   public PreparedQuery prepare(Query query) {
     try {
-      return inner.prepare(query);
+      return wrapPreparedQuery(inner.prepare(query), query.getKind());
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
@@ -203,7 +318,7 @@ public class WrappedDatastoreService implements DatastoreService {
 
   public PreparedQuery prepare(Transaction transaction, Query query) {
     try {
-      return inner.prepare(transaction, query);
+      return wrapPreparedQuery(inner.prepare(transaction, query), query.getKind());
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
@@ -212,22 +327,36 @@ public class WrappedDatastoreService implements DatastoreService {
   }
 
   public Transaction beginTransaction() {
+    metrics.beforeCall(path, Operation.BEGIN_TRANSACTION, null, 0);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.beginTransaction();
+      Transaction result = inner.beginTransaction();
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.BEGIN_TRANSACTION, null, 0, failed);
     }
   }
 
   public Transaction beginTransaction(TransactionOptions transactionOptions) {
+    metrics.beforeCall(path, Operation.BEGIN_TRANSACTION, null, 0);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.beginTransaction(transactionOptions);
+      Transaction result = inner.beginTransaction(transactionOptions);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.BEGIN_TRANSACTION, null, 0, failed);
     }
   }
 
@@ -262,32 +391,55 @@ public class WrappedDatastoreService implements DatastoreService {
   }
 
   public KeyRange allocateIds(String kind, long num) {
+    metrics.beforeCall(path, Operation.ALLOCATE_IDS, kind, (int) num);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.allocateIds(kind, num);
+      KeyRange result = inner.allocateIds(kind, num);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.ALLOCATE_IDS, kind, (int) num, failed);
     }
   }
 
   public KeyRange allocateIds(Key parent, String kind, long num) {
+    metrics.beforeCall(path, Operation.ALLOCATE_IDS, kind, (int) num);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.allocateIds(parent, kind, num);
+      KeyRange result = inner.allocateIds(parent, kind, num);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.ALLOCATE_IDS, kind, (int) num, failed);
     }
   }
 
   public KeyRangeState allocateIdRange(KeyRange keyRange) {
+    metrics.beforeCall(path, Operation.ALLOCATE_IDS,
+        keyRange != null ? keyRange.getStart().getKind() : null, keyRange != null ? (int) keyRange.getSize() : 0);
+    long start = metrics.startTimer();
+    boolean failed = true;
     try {
-      return inner.allocateIdRange(keyRange);
+      KeyRangeState result = inner.allocateIdRange(keyRange);
+      failed = false;
+      return result;
     } catch (IllegalArgumentException e) {
       throw wrapIllegalArgumentException(e);
     } catch (DatastoreFailureException e) {
       throw wrapDatastoreFailureException(e);
+    } finally {
+      metrics.record(start, path, Operation.ALLOCATE_IDS,
+          keyRange != null ? keyRange.getStart().getKind() : null, keyRange != null ? (int) keyRange.getSize() : 0, failed);
     }
   }
 
@@ -310,4 +462,187 @@ public class WrappedDatastoreService implements DatastoreService {
       throw wrapDatastoreFailureException(e);
     }
   }
+
+  private PreparedQuery wrapPreparedQuery(PreparedQuery preparedQuery, String kind) {
+    if (metrics == DatastoreMetrics.NONE) {
+      return preparedQuery;
+    }
+    // Resolved now, since the query may be run after the path is exited, or on another thread
+    return new RecordingPreparedQuery(preparedQuery, DatastoreMetrics.resolvePath(path), kind);
+  }
+
+  private static String getKind(Entity entity) {
+    return entity != null ? entity.getKind() : null;
+  }
+
+  /**
+   * @return The provided iterable if a List, otherwise a copy of it, so that the metrics and the inner service
+   *     see the same elements and an iterable that can only be read once (or is expensive to read) is read once.
+   */
+  private static <T> List<T> toList(Iterable<T> iterable) {
+    if (iterable instanceof List) {
+      return (List<T>) iterable;
+    }
+    List<T> list = new ArrayList<T>();
+    for (T element : iterable) {
+      list.add(element);
+    }
+    return list;
+  }
+
+  /**
+   * A run of a query, timed by {@link RecordingPreparedQuery}.
+   */
+  private interface QueryRun<T> {
+    T run();
+  }
+
+  /**
+   * {@link PreparedQuery} that reports each run of the query to the metrics, since that's when the datastore is
+   * called rather than when the query is prepared. The iterables run the query each time an iterator is obtained.
+   * Only the call that starts the query is timed: later batches are fetched as the results are iterated.
+   */
+  private class RecordingPreparedQuery implements PreparedQuery {
+    private final PreparedQuery inner;
+    private final Path queryPath;
+    private final String kind;
+
+    RecordingPreparedQuery(PreparedQuery inner, Path queryPath, String kind) {
+      this.inner = inner;
+      this.queryPath = queryPath;
+      this.kind = kind;
+    }
+
+    private <T> T record(QueryRun<T> queryRun) {
+      metrics.beforeCall(queryPath, Operation.QUERY, kind, 0);
+      long start = metrics.startTimer();
+      boolean failed = true;
+      T result = null;
+      try {
+        result = queryRun.run();
+        failed = false;
+        return result;
+      } finally {
+        metrics.record(start, queryPath, Operation.QUERY, kind, result instanceof Entity ? 1 : 0, failed);
+      }
+    }
+
+    public List<Entity> asList(final FetchOptions fetchOptions) {
+      return record(new QueryRun<List<Entity>>() {
+        public List<Entity> run() {
+          return inner.asList(fetchOptions);
+        }
+      });
+    }
+
+    public QueryResultList<Entity> asQueryResultList(final FetchOptions fetchOptions) {
+      return record(new QueryRun<QueryResultList<Entity>>() {
+        public QueryResultList<Entity> run() {
+          return inner.asQueryResultList(fetchOptions);
+        }
+      });
+    }
+
+    public Iterable<Entity> asIterable(FetchOptions fetchOptions) {
+      return recordingIterable(inner.asIterable(fetchOptions));
+    }
+
+    public QueryResultIterable<Entity> asQueryResultIterable(FetchOptions fetchOptions) {
+      return recordingQueryResultIterable(inner.asQueryResultIterable(fetchOptions));
+    }
+
+    public Iterable<Entity> asIterable() {
+      return recordingIterable(inner.asIterable());
+    }
+
+    public QueryResultIterable<Entity> asQueryResultIterable() {
+      return recordingQueryResultIterable(inner.asQueryResultIterable());
+    }
+
+    private Iterable<Entity> recordingIterable(final Iterable<Entity> iterable) {
+      return new Iterable<Entity>() {
+        public Iterator<Entity> iterator() {
+          return record(new QueryRun<Iterator<Entity>>() {
+            public Iterator<Entity> run() {
+              return iterable.iterator();
+            }
+          });
+        }
+      };
+    }
+
+    private QueryResultIterable<Entity> recordingQueryResultIterable(final QueryResultIterable<Entity> iterable) {
+      return new QueryResultIterable<Entity>() {
+        public QueryResultIterator<Entity> iterator() {
+          return record(new QueryRun<QueryResultIterator<Entity>>() {
+            public QueryResultIterator<Entity> run() {
+              return iterable.iterator();
+            }
+          });
+        }
+      };
+    }
+
+    public Iterator<Entity> asIterator(final FetchOptions fetchOptions) {
+      return record(new QueryRun<Iterator<Entity>>() {
+        public Iterator<Entity> run() {
+          return inner.asIterator(fetchOptions);
+        }
+      });
+    }
+
+    public Iterator<Entity> asIterator() {
+      return record(new QueryRun<Iterator<Entity>>() {
+        public Iterator<Entity> run() {
+          return inner.asIterator();
+        }
+      });
+    }
+
+    public QueryResultIterator<Entity> asQueryResultIterator(final FetchOptions fetchOptions) {
+      return record(new QueryRun<QueryResultIterator<Entity>>() {
+        public QueryResultIterator<Entity> run() {
+          return inner.asQueryResultIterator(fetchOptions);
+        }
+      });
+    }
+
+    public QueryResultIterator<Entity> asQueryResultIterator() {
+      return record(new QueryRun<QueryResultIterator<Entity>>() {
+        public QueryResultIterator<Entity> run() {
+          return inner.asQueryResultIterator();
+        }
+      });
+    }
+
+    public Entity asSingleEntity() throws TooManyResultsException {
+      return record(new QueryRun<Entity>() {
+        public Entity run() {
+          return inner.asSingleEntity();
+        }
+      });
+    }
+
+    public int countEntities(final FetchOptions fetchOptions) {
+      return record(new QueryRun<Integer>() {
+        public Integer run() {
+          return inner.countEntities(fetchOptions);
+        }
+      });
+    }
+
+    @SuppressWarnings("deprecation")
+    public int countEntities() {
+      return record(new QueryRun<Integer>() {
+        public Integer run() {
+          return inner.countEntities();
+        }
+      });
+    }
+
+    @Override
+    public String toString() {
+      return inner.toString();
+    }
+  }
 }
@@ -137,7 +137,7 @@ public class DatastoreFKMapping implements org.datanucleus.store.mapped.mapping.
   private String getPropertyName() {
     AbstractMemberMetaData ammd = field.getMemberMetaData();
     if (ammd != null) {
-      return EntityUtils.getPropertyName(storeMgr.getIdentifierFactory(), ammd);
+      return storeMgr.getPropertyName(ammd);
     } else {
       return field.getColumnMetaData().getName();
     }
@@ -16,7 +16,6 @@
 package com.google.appengine.datanucleus.query;
 
 import com.google.appengine.api.datastore.Cursor;
-import com.google.appengine.api.datastore.QueryResultIterator;
 
 import java.util.Iterator;
 import java.util.List;
@@ -68,10 +67,7 @@ class CursorHelper {
    */
   public static Cursor getCursor(Iterator<?> iter) {
     if (iter instanceof LazyResult.LazyAbstractListIterator) {
-      Iterator<?> innerIter = ((LazyResult.LazyAbstractListIterator) iter).getInnerIterator();
-      if (innerIter instanceof QueryResultIterator) {
-        return ((QueryResultIterator) innerIter).getCursor();
-      }
+      return ((LazyResult.LazyAbstractListIterator) iter).getCursor();
     }
     return null;
   }
@@ -73,10 +73,14 @@ import org.datanucleus.util.StringUtils;
 import com.google.appengine.datanucleus.BigDecimals;
 import com.google.appengine.datanucleus.DatastoreExceptionTranslator;
 import com.google.appengine.datanucleus.FetchFieldManager;
+import com.google.appengine.datanucleus.CompositeIndexCollector;
 import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics;
 import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
 import com.google.appengine.datanucleus.DatastoreTransaction;
 import com.google.appengine.datanucleus.EntityUtils;
+import com.google.appengine.datanucleus.IndexUsageRecorder;
+import com.google.appengine.datanucleus.KeyCodec;
 import com.google.appengine.datanucleus.MetaDataUtils;
 import com.google.appengine.datanucleus.PrimitiveArrays;
 import com.google.appengine.datanucleus.Utils;
@@ -264,6 +268,14 @@ public class DatastoreQuery implements Serializable {
       }
     }
 
+    CompositeIndexCollector indexCollector = getStoreManager().getCompositeIndexCollector();
+    if (indexCollector != null && qd.type != QueryType.BATCH_GET) {
+      indexCollector.record(qd.primaryDatastoreQuery);
+      if (qd.joinQuery != null) {
+        indexCollector.record(qd.joinQuery);
+      }
+    }
+
     return qd;
   }
 
@@ -285,7 +297,8 @@ public class DatastoreQuery implements Serializable {
       config.readPolicy(new ReadPolicy(
           ReadPolicy.Consistency.valueOf((String) extensions.get(DatastoreManager.DATASTORE_READ_CONSISTENCY_PROPERTY))));
     }
-    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
+    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, getStoreManager().getDatastoreMetrics(getExecutionContext()), DatastoreMetrics.Path.QUERY);
 
     // Execute the most appropriate type of query
     if (qd.type == QueryType.BATCH_GET) {
@@ -303,7 +316,7 @@ public class DatastoreQuery implements Serializable {
 
       Iterable<Entity> entityIterable = new JoinHelper().executeJoinQuery(qd, this, ds, opts);
 
-      return wrapEntityQueryResult(entityIterable, qd.resultTransformer, ds, null);
+      return wrapEntityQueryResult(entityIterable, qd, ds, null, null);
     } else {
       // Normal query
       latestDatastoreQuery = qd.primaryDatastoreQuery;
@@ -313,7 +326,8 @@ public class DatastoreQuery implements Serializable {
           !extensions.containsKey(DatastoreManager.QUERYEXT_EXCLUDE_FROM_TXN) ||
           !(Boolean)extensions.get(DatastoreManager.QUERYEXT_EXCLUDE_FROM_TXN)) {
         // If this is an ancestor query, execute it in the current transaction
-        txn = qd.primaryDatastoreQuery.getAncestor() != null ? ds.getCurrentTransaction(null) : null;
+        txn = qd.primaryDatastoreQuery.getAncestor() != null ?
+            getStoreManager().getCurrentTransaction(getExecutionContext(), ds) : null;
       }
 
       PreparedQuery preparedQuery = ds.prepare(txn, qd.primaryDatastoreQuery);
@@ -328,22 +342,83 @@ public class DatastoreQuery implements Serializable {
 
       Iterable<Entity> entityIterable;
       Cursor endCursor = null;
-      if (opts != null) {
-        if (opts.getLimit() != null) {
-          QueryResultList<Entity> entities = preparedQuery.asQueryResultList(opts);
-          endCursor = entities.getCursor();
-          entityIterable = entities;
-        } else {
-          entityIterable = preparedQuery.asQueryResultIterable(opts);
-        }
+      LazyResult.CursorSource cursorSource = null;
+      if (opts != null && opts.getLimit() != null) {
+        QueryResultList<Entity> entities = preparedQuery.asQueryResultList(opts);
+        endCursor = entities.getCursor();
+        entityIterable = entities;
       } else {
-        entityIterable = preparedQuery.asQueryResultIterable();
+        entityIterable = newQueryResultIterable(preparedQuery, opts);
+        cursorSource = newCursorSource(preparedQuery, opts);
       }
 
-      return wrapEntityQueryResult(entityIterable, qd.resultTransformer, ds, endCursor);
+      return wrapEntityQueryResult(entityIterable, qd, ds, endCursor, cursorSource);
     }
   }
 
+  /**
+   * Method to return the Iterable for the results of the provided (unlimited) query.
+   * When prefetching is enabled (persistence property, or query extension) the result pages are fetched in
+   * the background ahead of the page being read, otherwise we let the datastore api fetch each chunk
+   * when it is needed.
+   * @param preparedQuery The query
+   * @param opts Any fetch options. Can be null
+   * @return The Iterable for the results
+   */
+  private QueryResultIterable<Entity> newQueryResultIterable(PreparedQuery preparedQuery, FetchOptions opts) {
+    int prefetchDepth = getStoreManager().getIntProperty(DatastoreManager.QUERY_PREFETCH_DEPTH_PROPERTY);
+    Map extensions = query.getExtensions();
+    if (extensions != null && extensions.get(DatastoreManager.QUERYEXT_PREFETCH_DEPTH) != null) {
+      Object value = extensions.get(DatastoreManager.QUERYEXT_PREFETCH_DEPTH);
+      try {
+        prefetchDepth = Integer.parseInt(value.toString().trim());
+      } catch (NumberFormatException nfe) {
+        prefetchDepth = -1;
+      }
+      if (prefetchDepth < 0) {
+        throw new NucleusUserException("Query extension " + DatastoreManager.QUERYEXT_PREFETCH_DEPTH +
+            " must be a number of pages (0 or more), but was " + value);
+      }
+    }
+    if (prefetchDepth > 0) {
+      return new PrefetchingQueryResultIterable(preparedQuery, opts, prefetchDepth,
+          getStoreManager().getBackgroundExecutor());
+    }
+    return opts != null ? preparedQuery.asQueryResultIterable(opts) : preparedQuery.asQueryResultIterable();
+  }
+
+  /**
+   * Method to return the source of the cursors of iterators over the results of the provided (unlimited) query
+   * that have read results ahead of those returned. Each cursor is computed by a datastore call that skips
+   * the results from the start of the page holding its position, so no more than a page of them.
+   * @param preparedQuery The query
+   * @param opts Any fetch options of the query. Can be null
+   * @return The source of cursors
+   */
+  private static LazyResult.CursorSource newCursorSource(final PreparedQuery preparedQuery,
+      final FetchOptions opts) {
+    return new LazyResult.CursorSource() {
+      public Cursor getCursor(Cursor from, int numEntities) {
+        FetchOptions cursorOpts = FetchOptions.Builder.withLimit(0);
+        int offset = numEntities;
+        if (from != null) {
+          cursorOpts.startCursor(from);
+        } else if (opts != null) {
+          if (opts.getOffset() != null) {
+            offset += opts.getOffset();
+          }
+          if (opts.getStartCursor() != null) {
+            cursorOpts.startCursor(opts.getStartCursor());
+          }
+        }
+        if (offset > 0) {
+          cursorOpts.offset(offset);
+        }
+        return preparedQuery.asQueryResultList(cursorOpts).getCursor();
+      }
+    };
+  }
+
   private Object executeBatchGetQuery(DatastoreService ds, QueryData qd) {
     DatastoreTransaction txn = getStoreManager().getDatastoreTransaction(getExecutionContext());
     Transaction innerTxn = txn == null ? null : txn.getInnerTxn();
@@ -396,12 +471,13 @@ public class DatastoreQuery implements Serializable {
           entities.add(entity);
         }
       }
-      return newStreamingQueryResultForEntities(entities, qd.resultTransformer, null, query);
+      return newStreamingQueryResultForEntities(entities, qd.resultTransformer, null, query,
+          newRelationPrefetcher(qd), null);
     }
   }
 
-  private Object wrapEntityQueryResult(Iterable<Entity> entities, Function<Entity, Object> resultTransformer,
-      DatastoreService ds, Cursor endCursor) {
+  private Object wrapEntityQueryResult(Iterable<Entity> entities, QueryData qd, DatastoreService ds,
+      Cursor endCursor, LazyResult.CursorSource cursorSource) {
     if (isBulkDelete()) {
       List<Key> keysToDelete = Utils.newArrayList();
       for (Entity e : entities) {
@@ -414,16 +490,39 @@ public class DatastoreQuery implements Serializable {
       if (getExecutionContext().getStatistics() != null) {
         getExecutionContext().getStatistics().incrementNumWrites();
       }
-      ds.delete(ds.getCurrentTransaction(null), keysToDelete);
+      ds.delete(getStoreManager().getCurrentTransaction(getExecutionContext(), ds), keysToDelete);
 
       return (long) keysToDelete.size();
     }
-    return newStreamingQueryResultForEntities(entities, resultTransformer, endCursor, query);
+    return newStreamingQueryResultForEntities(entities, qd.resultTransformer, endCursor, query,
+        newRelationPrefetcher(qd), cursorSource);
+  }
+
+  /**
+   * Method to return the prefetcher of the related objects of the results of the query, when the results are
+   * candidate objects and the fetch plan includes relation members.
+   * @param qd QueryData for the query
+   * @return The prefetcher, or null if not needed (or disabled)
+   */
+  private RelationPrefetcher newRelationPrefetcher(QueryData qd) {
+    if (qd.resultType != ResultType.ENTITY ||
+        getStoreManager().getIntProperty(DatastoreManager.QUERY_RELATION_BATCH_SIZE_PROPERTY) <= 1) {
+      return null;
+    }
+    return RelationPrefetcher.newInstance(getExecutionContext(), qd.acmd, query.getFetchPlan(),
+        getClassLoaderResolver());
   }
 
   public static List<?> newStreamingQueryResultForEntities(
       Iterable<Entity> entities, final Function<Entity, Object> resultTransformer,
       Cursor endCursor, AbstractJavaQuery query) {
+    return newStreamingQueryResultForEntities(entities, resultTransformer, endCursor, query, null, null);
+  }
+
+  private static List<?> newStreamingQueryResultForEntities(
+      Iterable<Entity> entities, final Function<Entity, Object> resultTransformer,
+      Cursor endCursor, AbstractJavaQuery query, RelationPrefetcher relationPrefetcher,
+      LazyResult.CursorSource cursorSource) {
     final RuntimeExceptionWrappingIterable iterable;
     final ApiAdapter api = query.getExecutionContext().getApiAdapter();
     if (entities instanceof QueryResultIterable) {
@@ -439,6 +538,12 @@ public class DatastoreQuery implements Serializable {
       iterable = new RuntimeExceptionWrappingIterable(api, entities);
     }
 
+    if (relationPrefetcher != null) {
+      int pageSize = ((DatastoreManager) query.getStoreManager()).getIntProperty(
+          DatastoreManager.QUERY_RELATION_BATCH_SIZE_PROPERTY);
+      return new StreamingQueryResult(query, iterable, resultTransformer, endCursor, pageSize, relationPrefetcher,
+          cursorSource);
+    }
     return new StreamingQueryResult(query, iterable, resultTransformer, endCursor);
   }
 
@@ -636,6 +741,7 @@ public class DatastoreQuery implements Serializable {
         Query.SortDirection dir = getSortDirection(orderExpr);
         String sortProp = getSortProperty(qd, orderExpr);
         qd.primaryDatastoreQuery.addSort(sortProp, dir);
+        recordQueriedProperty(qd.primaryDatastoreQuery.getKind(), sortProp);
       }
     } catch (NucleusException ne) {
       if (inmemoryWhenUnsupported) {
@@ -772,6 +878,34 @@ public class DatastoreQuery implements Serializable {
       }
       filterComplete = false;
     }
+
+    for (Query.FilterPredicate filter : qd.primaryDatastoreQuery.getFilterPredicates()) {
+      recordQueriedProperty(qd.primaryDatastoreQuery.getKind(), filter.getPropertyName());
+    }
+    if (qd.joinQuery != null) {
+      for (Query.FilterPredicate filter : qd.joinQuery.getFilterPredicates()) {
+        recordQueriedProperty(qd.joinQuery.getKind(), filter.getPropertyName());
+      }
+    }
+  }
+
+  /**
+   * Method to note that a property of a kind is filtered or sorted on, for the {@link IndexUsageRecorder}, and
+   * to warn when it is one of those written as unindexed, since the query then won't find the entities.
+   * @param kind The kind queried
+   * @param propertyName Name of the property
+   */
+  private void recordQueriedProperty(String kind, String propertyName) {
+    DatastoreManager storeMgr = getStoreManager();
+    IndexUsageRecorder recorder = storeMgr.getIndexUsageRecorder();
+    if (recorder != null) {
+      recorder.recordQueried(kind, propertyName);
+    }
+    Set<String> unindexed = storeMgr.getUnindexedProperties(kind);
+    if (unindexed != null && unindexed.contains(propertyName)) {
+      NucleusLogger.QUERY.warn("Query of " + kind + " filters or sorts on " + propertyName + ", which is listed in " +
+          DatastoreManager.UNINDEXED_PROPERTIES_PROPERTY + " so is not indexed in entities written since");
+    }
   }
 
   /**
@@ -1434,9 +1568,8 @@ public class DatastoreQuery implements Serializable {
   private Key internalPkToKey(AbstractClassMetaData acmd, Object internalPk) {
     Key key;
     if (internalPk instanceof String) {
-      try {
-        key = KeyFactory.stringToKey((String) internalPk);
-      } catch (IllegalArgumentException iae) {
+      key = KeyCodec.getInstance().decode((String) internalPk);
+      if (key == null) {
         String kind =
             getIdentifierFactory().newDatastoreContainerIdentifier(acmd).getIdentifierName();
         key = KeyFactory.createKey(kind, (String) internalPk);
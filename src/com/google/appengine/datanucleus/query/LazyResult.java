@@ -15,7 +15,9 @@ limitations under the License.
 **********************************************************************/
 package com.google.appengine.datanucleus.query;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.QueryResultIterator;
 
 import com.google.appengine.datanucleus.Utils;
 import com.google.appengine.datanucleus.Utils.Function;
@@ -30,11 +32,63 @@ import java.util.NoSuchElementException;
  * Provides both {@link Iterator Iterators} and
  * {@link ListIterator ListIterators} on top of a data source that reads
  * pending data as lazily as possible.
+ * <p>
+ * When given a {@link PageListener} the entities are transformed a page at a time, the listener seeing
+ * each page before it is transformed (e.g. to retrieve the related objects of the whole page at once).
+ * Iterating reads the entities of a page ahead of those returned, so the cursor of the source no longer
+ * points to the entity most recently returned. The cursor of the source at the start of each page is kept
+ * (the source having it at hand when its batches line up with the pages), and the cursor of an iterator that
+ * has read ahead is obtained from the {@link CursorSource} by skipping from the start of its page, only when
+ * a cursor is asked for.
+ * </p>
  *
  * @author Max Ross <maxr@google.com>
  */
 public class LazyResult<T> implements Iterable<T> {
 
+  /**
+   * Listener for the pages of entities that are transformed together.
+   */
+  interface PageListener {
+    /**
+     * Invoked before the entities of a page are transformed.
+     * @param page The entities
+     */
+    void beforeTransform(List<Entity> page);
+
+    /**
+     * Invoked once the entities of a page have been transformed (or the transformation failed).
+     * @param page The entities
+     */
+    void afterTransform(List<Entity> page);
+  }
+
+  /**
+   * Source of the cursor at a position of the results, for when entities have been read ahead of it.
+   */
+  interface CursorSource {
+    /**
+     * @param from Cursor to skip entities from, or null to skip them from the start of the results
+     * @param numEntities Number of entities that the cursor is to point after
+     * @return The cursor
+     */
+    Cursor getCursor(Cursor from, int numEntities);
+  }
+
+  /**
+   * The position of the first entity of a page read ahead, and the cursor of the source there.
+   */
+  private static final class PageStart {
+    final int index;
+    /** Null for the first page, at the start of the results, or if the source doesn't provide cursors. */
+    final Cursor cursor;
+
+    PageStart(int index, Cursor cursor) {
+      this.index = index;
+      this.cursor = cursor;
+    }
+  }
+
   /**
    * A function that translates an {@link Entity} to an instance of type {@code T}.
    */
@@ -59,6 +113,18 @@ public class LazyResult<T> implements Iterable<T> {
   /** List of the Keys of the entities in this result (used when caching the results). */
   private final List<Object> resultKeys;
 
+  /** Maximum number of entities transformed together. */
+  private final int pageSize;
+
+  /** Listener for the pages of entities. Null if entities are transformed one at a time. */
+  private final PageListener pageListener;
+
+  /** Source of the cursors of iterators that have read ahead. Null if the source has no cursors. */
+  private final CursorSource cursorSource;
+
+  /** The start of each page read ahead from a source of cursors, in order. */
+  private final List<PageStart> pageStarts = Utils.newArrayList();
+
   /**
    * Constructor for a lazy result.
    * @param lazyEntities The result of the query.
@@ -67,9 +133,27 @@ public class LazyResult<T> implements Iterable<T> {
    */
   public LazyResult(Iterable<Entity> lazyEntities,
       Function<Entity, T> entityTransformer, boolean cacheKeys) {
+    this(lazyEntities, entityTransformer, cacheKeys, 1, null, null);
+  }
+
+  /**
+   * Constructor for a lazy result that transforms its entities a page at a time.
+   * @param lazyEntities The result of the query.
+   * @param entityTransformer A function that can convert a {@link Entity} into a pojo.
+   * @param cacheKeys Whether we should cache the Keys of the entities, to be used later caching the query results
+   * @param pageSize Maximum number of entities to transform together
+   * @param pageListener Listener for each page of entities. Can be null
+   * @param cursorSource Source of the cursors of iterators that have read ahead. Can be null, in which case
+   *     entities are read one at a time from a source that provides cursors
+   */
+  LazyResult(Iterable<Entity> lazyEntities, Function<Entity, T> entityTransformer, boolean cacheKeys,
+      int pageSize, PageListener pageListener, CursorSource cursorSource) {
     this.lazyEntityIterator = lazyEntities.iterator();
     this.entityTransformer = entityTransformer;
     this.resultKeys = (cacheKeys ? new ArrayList() : null);
+    this.pageSize = pageListener != null ? Math.max(1, pageSize) : 1;
+    this.pageListener = pageListener;
+    this.cursorSource = cursorSource;
   }
 
   T get(int index) {
@@ -80,8 +164,8 @@ public class LazyResult<T> implements Iterable<T> {
     if (index >= resolvedPojos.size() && lazyEntityIterator.hasNext()) {
       // Stop resolving if the iterator doesn't have any more data.
       // This means we may stop before we get to the requested index, but that's ok.
-      for (int i = resolvedPojos.size(); i <= index && lazyEntityIterator.hasNext(); i++) {
-        resolveNext();
+      while (resolvedPojos.size() <= index && lazyEntityIterator.hasNext()) {
+        resolvePage(index + 1 - resolvedPojos.size());
       }
     }
     // If the index is out of range we'll get an exception, and that's fine. Consistent with the List interface.
@@ -92,13 +176,48 @@ public class LazyResult<T> implements Iterable<T> {
    * @throws java.util.NoSuchElementException if there are no more elements to resolve.
    */
   void resolveNext() {
-    Entity entity = lazyEntityIterator.next();
+    resolve(lazyEntityIterator.next());
+  }
+
+  private void resolve(Entity entity) {
     resolvedPojos.add(entityTransformer.apply(entity));
     if (resultKeys != null) {
       resultKeys.add(entity.getKey());
     }
   }
 
+  /**
+   * Resolves the next page of entities, the page holding no more than the page size.
+   * @param max Maximum number of entities to resolve
+   * @throws java.util.NoSuchElementException if there are no more elements to resolve.
+   */
+  private void resolvePage(int max) {
+    int num = Math.min(max, pageSize);
+    if (num <= 1) {
+      resolveNext();
+      return;
+    }
+
+    if (cursorSource != null && lazyEntityIterator instanceof QueryResultIterator) {
+      int index = resolvedPojos.size();
+      pageStarts.add(new PageStart(index,
+          index == 0 ? null : ((QueryResultIterator<?>) lazyEntityIterator).getCursor()));
+    }
+    List<Entity> page = Utils.newArrayList();
+    page.add(lazyEntityIterator.next());
+    while (page.size() < num && lazyEntityIterator.hasNext()) {
+      page.add(lazyEntityIterator.next());
+    }
+    pageListener.beforeTransform(page);
+    try {
+      for (Entity entity : page) {
+        resolve(entity);
+      }
+    } finally {
+      pageListener.afterTransform(page);
+    }
+  }
+
   public Iterator<T> iterator() {
     return listIterator();
   }
@@ -118,7 +237,7 @@ public class LazyResult<T> implements Iterable<T> {
 
   void resolveAll() {
     while (lazyEntityIterator.hasNext()) {
-      resolveNext();
+      resolvePage(pageSize);
     }
   }
 
@@ -226,13 +345,41 @@ public class LazyResult<T> implements Iterable<T> {
           endOfData();
           return null;
         }
-        resolveNext();
+        // Without a source of cursors, only read ahead where that doesn't move the cursor of the source
+        resolvePage(lazyEntityIterator instanceof QueryResultIterator && cursorSource == null ? 1 : pageSize);
       }
       return resolvedPojos.get(curIndex++);
     }
 
-    Iterator<?> getInnerIterator() {
-      return lazyEntityIterator;
+    /**
+     * @return A cursor pointing just after the entity most recently returned by this iterator, or null if
+     *     the source doesn't provide cursors
+     */
+    Cursor getCursor() {
+      if (!(lazyEntityIterator instanceof QueryResultIterator)) {
+        return null;
+      }
+      if (curIndex == resolvedPojos.size()) {
+        return ((QueryResultIterator<?>) lazyEntityIterator).getCursor();
+      }
+      // Entities have been read ahead of those returned by this iterator
+      if (cursorSource == null) {
+        return null;
+      }
+      for (int i = pageStarts.size() - 1; i >= 0; i--) {
+        PageStart pageStart = pageStarts.get(i);
+        if (pageStart.index <= curIndex) {
+          if (pageStart.cursor == null && pageStart.index > 0) {
+            // The source doesn't provide cursors (e.g. a query combining several)
+            return null;
+          }
+          if (pageStart.index == curIndex && pageStart.cursor != null) {
+            return pageStart.cursor;
+          }
+          return cursorSource.getCursor(pageStart.cursor, curIndex - pageStart.index);
+        }
+      }
+      return cursorSource.getCursor(null, curIndex);
     }
   }
 }
\ No newline at end of file
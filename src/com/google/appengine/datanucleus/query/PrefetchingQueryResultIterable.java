@@ -0,0 +1,289 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.query;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.datanucleus.BackgroundExecutor;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * {@link QueryResultIterable} that reads the results of a query as a sequence of cursor-delimited pages,
+ * keeping up to {@code depth} pages in flight on a {@link BackgroundExecutor} while the caller works
+ * through the current page. This lets the conversion of a page into objects overlap with the datastore
+ * fetch of the pages that follow it.
+ * <p>
+ * The next page can only be requested once the cursor at the end of the previous page is known,
+ * so each background fetch chains the fetch of its successor.
+ * </p>
+ * <p>
+ * Once {@link #close closed} the fetches not yet started are cancelled and no further fetches are chained, so
+ * a query result closed before being read to the end doesn't keep the executor busy.
+ * </p>
+ */
+class PrefetchingQueryResultIterable implements QueryResultIterable<Entity> {
+
+  /** Page size used when the fetch options don't specify a chunk size. */
+  static final int DEFAULT_PAGE_SIZE = 100;
+
+  private final PreparedQuery preparedQuery;
+  private final Integer offset;
+  private final Cursor startCursor;
+  private final int pageSize;
+  private final int depth;
+  private final BackgroundExecutor executor;
+
+  /** Iterators that have been created, so that their fetches can be cancelled on close. Guarded by "this". */
+  private final List<PrefetchingQueryResultIterator> iterators = new ArrayList<PrefetchingQueryResultIterator>();
+
+  /** Whether the iterable has been closed. Guarded by "this". */
+  private boolean closed = false;
+
+  /**
+   * Constructor.
+   * @param preparedQuery The query to execute
+   * @param opts Fetch options for the query (offset, start cursor and chunk size are respected). Can be null.
+   *     Must not have a limit.
+   * @param depth Number of pages to fetch ahead of the page being read
+   * @param executor Executor to perform the fetches on
+   */
+  PrefetchingQueryResultIterable(PreparedQuery preparedQuery, FetchOptions opts, int depth,
+      BackgroundExecutor executor) {
+    this.preparedQuery = preparedQuery;
+    this.offset = opts != null ? opts.getOffset() : null;
+    this.startCursor = opts != null ? opts.getStartCursor() : null;
+    Integer chunkSize = opts != null ? opts.getChunkSize() : null;
+    this.pageSize = chunkSize != null ? chunkSize : DEFAULT_PAGE_SIZE;
+    this.depth = Math.max(1, depth);
+    this.executor = executor;
+  }
+
+  public QueryResultIterator<Entity> iterator() {
+    PrefetchingQueryResultIterator iter = new PrefetchingQueryResultIterator();
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Query results have been closed");
+      }
+      iterators.add(iter);
+    }
+    iter.start();
+    return iter;
+  }
+
+  /**
+   * Method to close the iterable, cancelling the fetches of its iterators that haven't started and stopping
+   * those in progress from chaining any more.
+   */
+  void close() {
+    List<PrefetchingQueryResultIterator> toClose;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      toClose = new ArrayList<PrefetchingQueryResultIterator>(iterators);
+      iterators.clear();
+    }
+    for (PrefetchingQueryResultIterator iter : toClose) {
+      iter.close();
+    }
+  }
+
+  private FetchOptions pageOptions(Cursor cursor, boolean firstPage) {
+    FetchOptions opts = FetchOptions.Builder.withLimit(pageSize).prefetchSize(pageSize).chunkSize(pageSize);
+    if (cursor != null) {
+      opts.startCursor(cursor);
+    }
+    if (firstPage && offset != null) {
+      opts.offset(offset);
+    }
+    return opts;
+  }
+
+  /**
+   * A page of results, together with the cursor it was started from.
+   */
+  private static final class Page {
+    final Cursor start;
+    final QueryResultList<Entity> entities;
+    final boolean first;
+
+    Page(Cursor start, QueryResultList<Entity> entities, boolean first) {
+      this.start = start;
+      this.entities = entities;
+      this.first = first;
+    }
+
+    boolean isLast(int pageSize) {
+      return entities.size() < pageSize;
+    }
+  }
+
+  private final class PrefetchingQueryResultIterator extends AbstractIterator<Entity>
+      implements QueryResultIterator<Entity> {
+
+    /** Fetches that have been issued but not yet consumed, in result order. Guarded by "this". */
+    private final LinkedList<Future<Page>> pending = new LinkedList<Future<Page>>();
+
+    /**
+     * End cursor of the most recently fetched page when the chain of fetches stopped because the pipeline
+     * was full. Guarded by "this".
+     */
+    private Cursor stalledAt = null;
+
+    /** Whether the last page of results has been fetched. Guarded by "this". */
+    private boolean lastPageFetched = false;
+
+    /** Whether the iterator has been closed. Guarded by "this". */
+    private boolean iteratorClosed = false;
+
+    private Page current;
+    private int posInPage = 0;
+
+    synchronized void start() {
+      if (!iteratorClosed) {
+        submit(startCursor, true);
+      }
+    }
+
+    synchronized void close() {
+      iteratorClosed = true;
+      stalledAt = null;
+      for (Future<Page> future : pending) {
+        future.cancel(false);
+      }
+      pending.clear();
+    }
+
+    /**
+     * Issue the fetch of the page starting at the provided cursor. Must be called holding the lock so that
+     * fetches are appended to {@link #pending} in result order.
+     */
+    private void submit(final Cursor cursor, final boolean firstPage) {
+      pending.add(executor.submit(new Callable<Page>() {
+        public Page call() {
+          Page page = new Page(cursor, preparedQuery.asQueryResultList(pageOptions(cursor, firstPage)), firstPage);
+          fetched(page);
+          return page;
+        }
+      }));
+    }
+
+    /**
+     * Invoked on the background thread once a page arrives. Chains the fetch of the following page
+     * while there is room in the pipeline.
+     */
+    private synchronized void fetched(Page page) {
+      if (iteratorClosed) {
+        return;
+      }
+      if (page.isLast(pageSize)) {
+        lastPageFetched = true;
+      } else if (pending.size() < depth) {
+        submit(page.entities.getCursor(), false);
+      } else {
+        stalledAt = page.entities.getCursor();
+      }
+    }
+
+    private Page take() {
+      Future<Page> future;
+      synchronized (this) {
+        if (iteratorClosed) {
+          throw new IllegalStateException("Query results have been closed");
+        }
+        if (pending.isEmpty()) {
+          if (lastPageFetched || stalledAt == null) {
+            return null;
+          }
+          submit(stalledAt, false);
+          stalledAt = null;
+        }
+        future = pending.removeFirst();
+        if (stalledAt != null && pending.size() < depth) {
+          // Consuming this page frees a slot in the pipeline, so restart the chain
+          submit(stalledAt, false);
+          stalledAt = null;
+        }
+      }
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for query results", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+
+    @Override
+    protected Entity computeNext() {
+      while (current == null || posInPage >= current.entities.size()) {
+        if (current != null && current.isLast(pageSize)) {
+          return endOfData();
+        }
+        Page next = take();
+        if (next == null) {
+          return endOfData();
+        }
+        current = next;
+        posInPage = 0;
+      }
+      return current.entities.get(posInPage++);
+    }
+
+    /**
+     * Returns a cursor pointing just after the element most recently returned by this iterator.
+     * At a page boundary this is the end cursor of the page. Part way through a page it is computed
+     * from the start of the page, which requires a datastore call.
+     */
+    public Cursor getCursor() {
+      if (current == null) {
+        return startCursor;
+      }
+      if (posInPage == current.entities.size()) {
+        return current.entities.getCursor();
+      }
+      FetchOptions opts = FetchOptions.Builder.withLimit(0);
+      int skip = posInPage + (current.first && offset != null ? offset : 0);
+      opts.offset(skip);
+      if (current.start != null) {
+        opts.startCursor(current.start);
+      }
+      return preparedQuery.asQueryResultList(opts).getCursor();
+    }
+
+    public List<Index> getIndexList() {
+      return current != null ? current.entities.getIndexList() : null;
+    }
+  }
+}
@@ -24,8 +24,8 @@ import org.datanucleus.store.fieldmanager.AbstractFieldManager;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.KeyCodec;
 import com.google.appengine.datanucleus.MetaDataUtils;
 
 /**
@@ -102,7 +102,7 @@ public class QueryEntityPKFetchFieldManager extends AbstractFieldManager {
     private String fetchStringPKField(int fieldNumber) {
       if (MetaDataUtils.isEncodedPKField(cmd, fieldNumber)) {
         // If this is an encoded pk field, transform the Key into its String representation.
-        return KeyFactory.keyToString(datastoreEntity.getKey());
+        return KeyCodec.getInstance().keyToString(datastoreEntity.getKey());
       } else {
         if (datastoreEntity.getKey().isComplete() && datastoreEntity.getKey().getName() == null) {
           // This is trouble, probably an incorrect mapping.
@@ -0,0 +1,168 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.query;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
+import com.google.appengine.datanucleus.DatastoreTransaction;
+import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
+import com.google.appengine.datanucleus.EntityUtils;
+import com.google.appengine.datanucleus.MetaDataUtils;
+import com.google.appengine.datanucleus.PrefetchedEntities;
+import com.google.appengine.datanucleus.Utils;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.FetchPlan;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.RelationType;
+import org.datanucleus.util.NucleusLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Retrieves the related objects of a page of query results with one batch get, before the results are
+ * converted into objects. The keys of the related objects are read from the properties of the members in
+ * the fetch plan that hold them (the keys of the elements of a 1-N, or of the related object of a 1-1), across
+ * all entities of the page, and the entities retrieved are held in the {@link PrefetchedEntities} of the
+ * ExecutionContext until the page is converted, so that loading each member makes no further RPC.
+ * <p>
+ * Nothing is retrieved ahead once the datastore transaction of the ExecutionContext has begun, since the related
+ * objects of different results can be in different entity groups. A {@link DatastoreTransaction} that hasn't
+ * been begun yet (they are begun lazily) isn't begun by this: the query results were read outside of it, and so
+ * are their related objects. Related objects of kinds held in the
+ * {@link com.google.appengine.datanucleus.EntityCache} are taken from it where present.
+ * </p>
+ */
+class RelationPrefetcher implements LazyResult.PageListener {
+
+  /** Maximum number of keys retrieved by each batch get. */
+  static final int MAX_KEYS_PER_GET = 1000;
+
+  private final ExecutionContext ec;
+
+  /** Names of the properties holding the keys of related objects. */
+  private final List<String> propertyNames;
+
+  /** Keys retrieved for the page being converted. */
+  private Set<Key> pageKeys = null;
+
+  private RelationPrefetcher(ExecutionContext ec, List<String> propertyNames) {
+    this.ec = ec;
+    this.propertyNames = propertyNames;
+  }
+
+  /**
+   * Method to create a prefetcher for the results of a query.
+   * @param ec ExecutionContext
+   * @param acmd Metadata for the candidate class
+   * @param fp Fetch plan of the query
+   * @param clr ClassLoader resolver
+   * @return The prefetcher, or null if the fetch plan includes no member whose related objects can be retrieved
+   *     by key
+   */
+  static RelationPrefetcher newInstance(ExecutionContext ec, AbstractClassMetaData acmd, FetchPlan fp,
+      ClassLoaderResolver clr) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    List<String> propertyNames = Utils.newArrayList();
+    for (int fieldNumber : fp.getFetchPlanForClass(acmd).getMemberNumbers()) {
+      AbstractMemberMetaData mmd = acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+      if (mmd == null || mmd.isEmbedded() || mmd.isSerialized()) {
+        continue;
+      }
+      RelationType relationType = mmd.getRelationType(clr);
+      if (RelationType.isRelationMultiValued(relationType) ||
+          (RelationType.isRelationSingleValued(relationType) &&
+           MetaDataUtils.readRelatedKeysFromParent(storeMgr, mmd))) {
+        propertyNames.add(storeMgr.getPropertyName(mmd));
+      }
+    }
+    return propertyNames.isEmpty() ? null : new RelationPrefetcher(ec, propertyNames);
+  }
+
+  public void beforeTransform(List<Entity> page) {
+    DatastoreManager storeMgr = (DatastoreManager) ec.getStoreManager();
+    // Not getCurrentTransaction, which would begin a transaction that hasn't been used yet
+    DatastoreTransaction txn = storeMgr.getDatastoreTransaction(ec);
+    if (txn != null && txn.isStarted()) {
+      return;
+    }
+
+    Set<Key> keys = new LinkedHashSet<Key>();
+    for (Entity entity : page) {
+      for (String propName : propertyNames) {
+        addKeys(entity.getProperty(propName), keys);
+      }
+    }
+    if (keys.isEmpty()) {
+      return;
+    }
+
+    if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled()) {
+      NucleusLogger.DATASTORE_NATIVE.debug("Retrieving " + keys.size() + " related objects of " + page.size() +
+          " query results");
+    }
+    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(
+        storeMgr.getDefaultDatastoreServiceConfigForReads(), storeMgr.getDatastoreMetrics(ec), Path.QUERY);
+    PrefetchedEntities prefetched = storeMgr.getPrefetchedEntities(ec, true);
+    List<Key> window = new ArrayList<Key>(Math.min(keys.size(), MAX_KEYS_PER_GET));
+    for (Key key : keys) {
+      window.add(key);
+      if (window.size() == MAX_KEYS_PER_GET) {
+        get(ds, window, prefetched);
+        window.clear();
+      }
+    }
+    if (!window.isEmpty()) {
+      get(ds, window, prefetched);
+    }
+    pageKeys = keys;
+  }
+
+  private void get(DatastoreService ds, List<Key> keys, PrefetchedEntities prefetched) {
+    // Entities of cached kinds are taken from the EntityCache, as they would be if retrieved one at a time
+    Map<Key, Entity> found = EntityUtils.getEntitiesOutsideTransaction(ds, keys, ec);
+    prefetched.add(keys, found);
+  }
+
+  public void afterTransform(List<Entity> page) {
+    if (pageKeys != null) {
+      ((DatastoreManager) ec.getStoreManager()).getPrefetchedEntities(ec, true).remove(pageKeys);
+      pageKeys = null;
+    }
+  }
+
+  private static void addKeys(Object value, Collection<Key> keys) {
+    if (value instanceof Key) {
+      keys.add((Key) value);
+    } else if (value instanceof Collection) {
+      for (Object element : (Collection<?>) value) {
+        if (element instanceof Key) {
+          keys.add((Key) element);
+        }
+      }
+    }
+  }
+}
@@ -35,6 +35,8 @@ class RuntimeExceptionWrappingIterable implements Iterable<Entity>, RuntimeExcep
 
   private final ApiAdapter api;
 
+  private final Iterable<Entity> inner;
+
   private final Supplier<Iterator<Entity>> iteratorSupplier;
   private boolean hasError = false;
 
@@ -43,6 +45,7 @@ class RuntimeExceptionWrappingIterable implements Iterable<Entity>, RuntimeExcep
       throw new NullPointerException("inner cannot be null");
     }
     this.api = api;
+    this.inner = inner;
     Supplier<Iterator<Entity>> supplier = QueryExceptionWrappers.datastoreToDataNucleus(
         new Supplier<Iterator<Entity>>() {
           public Iterator<Entity> get() {
@@ -68,4 +71,14 @@ class RuntimeExceptionWrappingIterable implements Iterable<Entity>, RuntimeExcep
   boolean hasError() {
     return hasError;
   }
+
+  /**
+   * Method to release what the wrapped iterable holds once the results are no longer needed, stopping any
+   * background fetches of their pages.
+   */
+  void close() {
+    if (inner instanceof PrefetchingQueryResultIterable) {
+      ((PrefetchingQueryResultIterable) inner).close();
+    }
+  }
 }
\ No newline at end of file
@@ -60,11 +60,28 @@ class StreamingQueryResult extends AbstractQueryResult {
    */
   public StreamingQueryResult(Query query, Iterable<Entity> lazyEntities,
       Function<Entity, Object> entityToPojoFunc, Cursor endCursor) {
+    this(query, lazyEntities, entityToPojoFunc, endCursor, 1, null, null);
+  }
+
+  /**
+   * Constructs a StreamingQueryResult that converts its entities a page at a time.
+   * @param query The query which yields the results.
+   * @param lazyEntities The result of the query.
+   * @param entityToPojoFunc A function that can convert a {@link Entity} into a pojo.
+   * @param endCursor Provides a cursor that points to the end of the result set. Can be null.
+   * @param pageSize Maximum number of entities to convert together
+   * @param pageListener Listener for each page of entities, e.g. retrieving their related objects. Can be null.
+   * @param cursorSource Source of the cursors of iterators that have read ahead of the entity returned. Can be null.
+   */
+  StreamingQueryResult(Query query, Iterable<Entity> lazyEntities,
+      Function<Entity, Object> entityToPojoFunc, Cursor endCursor, int pageSize,
+      LazyResult.PageListener pageListener, LazyResult.CursorSource cursorSource) {
     super(query);
     if (lazyEntities instanceof RuntimeExceptionWrappingIterable) {
       this.inputIterable = (RuntimeExceptionWrappingIterable) lazyEntities;
     }
-    this.lazyResult = new LazyResult<Object>(lazyEntities, entityToPojoFunc, query.useResultsCaching());
+    this.lazyResult = new LazyResult<Object>(lazyEntities, entityToPojoFunc, query.useResultsCaching(),
+        pageSize, pageListener, cursorSource);
     this.endCursor = endCursor;
   }
 
@@ -101,12 +118,21 @@ class StreamingQueryResult extends AbstractQueryResult {
       // Cache the query results (if required)
       cacheQueryResults();
     }
+    closeInput();
   }
 
   @Override
   protected void closeResults() {
     // Cache the query results (if required)
     cacheQueryResults();
+    closeInput();
+  }
+
+  private void closeInput() {
+    if (inputIterable != null) {
+      // Stop fetching pages that won't be read
+      inputIterable.close();
+    }
   }
 
   /**
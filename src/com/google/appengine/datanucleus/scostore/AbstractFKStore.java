@@ -24,6 +24,7 @@ import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortPredicate;
 import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
 import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
 import com.google.appengine.datanucleus.EntityUtils;
 import com.google.appengine.datanucleus.MetaDataUtils;
@@ -222,7 +223,7 @@ public abstract class AbstractFKStore {
     Iterable<Entity> children = prepareChildrenQuery(ownerEntity.getKey(),
         Collections.<FilterPredicate>emptyList(),
         Collections.<SortPredicate>emptyList(), // Sort not important when counting
-        true, kindName).asIterable();
+        true, kindName, op.getExecutionContext()).asIterable();
 
     int count = 0;
     for (Entity e : children) {
@@ -288,7 +289,7 @@ public abstract class AbstractFKStore {
     List<Object> result = new ArrayList<Object>();
     int numChildren = 0;
     String kindName = elementTable.getIdentifier().getIdentifierName();
-    for (Entity e : prepareChildrenQuery(parentKey, filterPredicates, sortPredicates, false, kindName).asIterable()) {
+    for (Entity e : prepareChildrenQuery(parentKey, filterPredicates, sortPredicates, false, kindName, ec).asIterable()) {
       // We only want direct children
       if (parentKey.equals(e.getKey().getParent())) {
         numChildren++;
@@ -323,8 +324,9 @@ public abstract class AbstractFKStore {
       List children = new ArrayList();
       List<Key> keys = (List<Key>)value;
       DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-      DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
-      Map<Key, Entity> entitiesByKey = ds.get(keys);
+      DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, storeMgr.getDatastoreMetrics(ec), Path.SCO_STORE);
+      Map<Key, Entity> entitiesByKey = ds.get(storeMgr.getCurrentTransaction(ec, ds), keys);
       int i = 0;
       for (Key key : keys) {
         if (i < startIdx) {
@@ -357,10 +359,11 @@ public abstract class AbstractFKStore {
    * @param sortPredicates Ordering required
    * @param keysOnly Whether to just returns the keys of the children
    * @param kindName Name of the kind that we are querying
+   * @param ec ExecutionContext
    * @return The PreparedQuery
    */
   PreparedQuery prepareChildrenQuery(Key parentKey, Iterable<FilterPredicate> filterPredicates,
-      Iterable<SortPredicate> sortPredicates, boolean keysOnly, String kindName) {
+      Iterable<SortPredicate> sortPredicates, boolean keysOnly, String kindName, ExecutionContext ec) {
     Query q = new Query(kindName, parentKey);
     if (keysOnly) {
       q.setKeysOnly();
@@ -377,8 +380,9 @@ public abstract class AbstractFKStore {
     }
 
     DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
-    return ds.prepare(q);
+    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, storeMgr.getDatastoreMetrics(ec), Path.SCO_STORE);
+    return ds.prepare(storeMgr.getCurrentTransaction(ec, ds), q);
   }
 
   /**
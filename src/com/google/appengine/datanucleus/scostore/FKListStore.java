@@ -50,11 +50,12 @@ import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
 import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
 import com.google.appengine.datanucleus.EntityUtils;
+import com.google.appengine.datanucleus.KeyCodec;
 import com.google.appengine.datanucleus.KeyRegistry;
 import com.google.appengine.datanucleus.MetaDataUtils;
 import com.google.appengine.datanucleus.StorageVersion;
@@ -225,15 +226,16 @@ public class FKListStore extends AbstractFKStore implements ListStore {
       return null;
     }
 
+    ExecutionContext ec = op.getExecutionContext();
     DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-    DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(config);
+    DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, storeMgr.getDatastoreMetrics(ec), Path.SCO_STORE);
     AbstractClassMetaData acmd = elementCmd;
     String kind =
         storeMgr.getIdentifierFactory().newDatastoreContainerIdentifier(acmd).getIdentifierName();
     Query q = new Query(kind);
-    ExecutionContext ec = op.getExecutionContext();
     Object id = ec.getApiAdapter().getTargetKeyForSingleFieldIdentity(op.getInternalObjectId());
-    Key key = id instanceof Key ? (Key) id : KeyFactory.stringToKey((String) id);
+    Key key = id instanceof Key ? (Key) id : KeyCodec.getInstance().stringToKey((String) id);
     q.setAncestor(key);
 
     // create an entity just to capture the name of the index property
@@ -241,7 +243,7 @@ public class FKListStore extends AbstractFKStore implements ListStore {
     orderMapping.setObject(ec, entity, new int[] {1}, oldIndex);
     String indexProp = entity.getProperties().keySet().iterator().next();
     q.addFilter(indexProp, Query.FilterOperator.GREATER_THAN_OR_EQUAL, oldIndex);
-    for (Entity shiftMe : service.prepare(service.getCurrentTransaction(null), q).asIterable()) {
+    for (Entity shiftMe : service.prepare(storeMgr.getCurrentTransaction(ec, service), q).asIterable()) {
       Long pos = (Long) shiftMe.getProperty(indexProp);
       shiftMe.setProperty(indexProp, pos + amount);
       EntityUtils.putEntityIntoDatastore(ec, shiftMe);
@@ -397,7 +399,8 @@ public class FKListStore extends AbstractFKStore implements ListStore {
     }
 
     DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
+    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, storeMgr.getDatastoreMetrics(ec), Path.SCO_STORE);
 
     Utils.Function<Entity, Object> func = new Utils.Function<Entity, java.lang.Object>() {
       @Override
@@ -596,7 +599,8 @@ public class FKListStore extends AbstractFKStore implements ListStore {
     if (orderMapping != null) {
       // need to shift indexes of following elements down
       DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-      DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(config);
+      DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, storeMgr.getDatastoreMetrics(ec), Path.SCO_STORE);
       AbstractClassMetaData acmd = elementCmd;
       String kind =
         storeMgr.getIdentifierFactory().newDatastoreContainerIdentifier(acmd).getIdentifierName();
@@ -609,7 +613,7 @@ public class FKListStore extends AbstractFKStore implements ListStore {
       orderMapping.setObject(ec, entity, new int[] {1}, index);
       String indexProp = entity.getProperties().keySet().iterator().next();
       q.addFilter(indexProp, Query.FilterOperator.GREATER_THAN, index);
-      for (Entity shiftMe : service.prepare(service.getCurrentTransaction(null), q).asIterable()) {
+      for (Entity shiftMe : service.prepare(storeMgr.getCurrentTransaction(ec, service), q).asIterable()) {
         Long pos = (Long) shiftMe.getProperty(indexProp);
         shiftMe.setProperty(indexProp, pos - 1);
         EntityUtils.putEntityIntoDatastore(ec, shiftMe);
@@ -667,9 +671,10 @@ public class FKListStore extends AbstractFKStore implements ListStore {
         List<Key> keys = (List<Key>)value;
         Key indexKey = keys.get(index);
         DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-        DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
+        DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, storeMgr.getDatastoreMetrics(ec), Path.SCO_STORE);
         try {
-          return EntityUtils.entityToPojo(ds.get(indexKey), elementCmd, clr, ec, false, ec.getFetchPlan());
+          return EntityUtils.entityToPojo(ds.get(storeMgr.getCurrentTransaction(ec, ds), indexKey), elementCmd, clr, ec, false, ec.getFetchPlan());
         } catch (EntityNotFoundException enfe) {
           throw new NucleusDataStoreException("Could not determine entity for index=" + index + " with key=" + indexKey, enfe);
         }
@@ -771,7 +776,7 @@ public class FKListStore extends AbstractFKStore implements ListStore {
         ApiAdapter apiAdapter = ec.getApiAdapter();
         Object keyOrString =
           apiAdapter.getTargetKeyForSingleFieldIdentity(apiAdapter.getIdForObject(ele));
-        Key key = keyOrString instanceof Key ? (Key) keyOrString : KeyFactory.stringToKey((String) keyOrString);
+        Key key = keyOrString instanceof Key ? (Key) keyOrString : KeyCodec.getInstance().stringToKey((String) keyOrString);
         if (key == null) {
           throw new NucleusUserException("Collection element does not have a primary key.");
         } else if (key.getParent() == null) {
@@ -794,10 +799,11 @@ public class FKListStore extends AbstractFKStore implements ListStore {
           Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN_OR_EQUAL, keys.get(keys.size() - 1));
       q.addSort(Entity.KEY_RESERVED_PROPERTY, Query.SortDirection.DESCENDING);
       DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-      DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(config);
+      DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, storeMgr.getDatastoreMetrics(ec), Path.SCO_STORE);
       int[] indices = new int[keys.size()];
       int index = 0;
-      for (Entity e : service.prepare(service.getCurrentTransaction(null), q).asIterable()) {
+      for (Entity e : service.prepare(storeMgr.getCurrentTransaction(ec, service), q).asIterable()) {
         if (keySet.contains(e.getKey())) {
           Long indexVal = (Long) orderMapping.getObject(ec, e, new int[1]);
           if (indexVal == null) {
@@ -848,9 +854,10 @@ public class FKListStore extends AbstractFKStore implements ListStore {
       }
 
       DatastoreServiceConfig config = storeMgr.getDefaultDatastoreServiceConfigForReads();
-      DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(config);
+      DatastoreService service = DatastoreServiceFactoryInternal.getDatastoreService(
+        config, storeMgr.getDatastoreMetrics(ec), Path.SCO_STORE);
       try {
-        Entity e = service.get(elementKey);
+        Entity e = service.get(storeMgr.getCurrentTransaction(ec, service), elementKey);
         Long indexVal = (Long) orderMapping.getObject(ec, e, new int[1]);
         if (indexVal == null) {
           throw new NucleusDataStoreException("Null index value");
@@ -0,0 +1,218 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.valuegenerator;
+
+import com.google.appengine.api.datastore.KeyRange;
+
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.store.valuegenerator.ValueGenerationBlock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link ValueGenerationBlock} for the ids of a {@link KeyRange}.
+ * A key range is just a start id and a size, so rather than keeping a list of the ids this hands them out
+ * arithmetically from a counter. Ids can be taken concurrently from multiple threads without locking via
+ * {@link #nextId()}. The block can be extended with further ranges by {@link #addBlock(ValueGenerationBlock)},
+ * which also doesn't lock.
+ * <p>
+ * No List of the ids is kept, since {@link ValueGenerationBlock} copies the List it is given, which would box
+ * every id of the range up front. So of the iteration methods inherited from it, only {@link #hasNext()} is
+ * supported (computed from the ranges). {@link #next()} and {@link #current()} see no ids: they return a
+ * ValueGeneration, which only DataNucleus can create, and neither it nor {@link SequenceGenerator} calls them.
+ * </p>
+ */
+class KeyRangeValueGenerationBlock extends ValueGenerationBlock {
+
+  /** Returned by {@link #nextId()} once the block is exhausted. Never a valid id. */
+  static final long NO_ID = -1;
+
+  /** The ranges of the block. Replaced (never modified) when the block is extended. */
+  private final AtomicReference<Segment[]> segments;
+
+  /** Offset of the next id to hand out. Can run past the end of the last range once exhausted. */
+  private final AtomicLong nextOffset = new AtomicLong();
+
+  KeyRangeValueGenerationBlock(KeyRange range) {
+    this(range.getStart().getId(), range.getSize());
+  }
+
+  KeyRangeValueGenerationBlock(long start, long size) {
+    this(new AtomicReference<Segment[]>(new Segment[] {new Segment(0, start, size)}));
+  }
+
+  private KeyRangeValueGenerationBlock(AtomicReference<Segment[]> segments) {
+    super(Collections.emptyList());
+    this.segments = segments;
+  }
+
+  /**
+   * @return The next id of the block, or {@link #NO_ID} if all ids have been handed out
+   */
+  long nextId() {
+    long offset = nextOffset.getAndIncrement();
+    return idAt(segments.get(), offset);
+  }
+
+  /**
+   * @param id An id returned by {@link #nextId()}
+   * @return Number of ids of the block remaining after the provided id
+   */
+  long remainingAfter(long id) {
+    Segment[] segs = segments.get();
+    Segment last = segs[segs.length - 1];
+    for (Segment seg : segs) {
+      if (id >= seg.start && id < seg.start + seg.size) {
+        return last.offset + last.size - (seg.offset + id - seg.start) - 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return Number of ids in the block
+   */
+  long getSize() {
+    long size = 0;
+    for (Segment seg : segments.get()) {
+      size += seg.size;
+    }
+    return size;
+  }
+
+  /**
+   * @return The id most recently handed out, or {@link #NO_ID} if none have been
+   */
+  long currentId() {
+    Segment[] segs = segments.get();
+    long offset = nextOffset.get() - 1;
+    for (int i = segs.length - 1; i >= 0; i--) {
+      if (offset >= segs[i].offset) {
+        return segs[i].start + Math.min(offset - segs[i].offset, segs[i].size - 1);
+      }
+    }
+    return NO_ID;
+  }
+
+  /**
+   * @return Whether {@link #nextId()} has ids left to hand out
+   */
+  @Override
+  public boolean hasNext() {
+    Segment[] segs = segments.get();
+    Segment last = segs[segs.length - 1];
+    return nextOffset.get() < last.offset + last.size;
+  }
+
+  /**
+   * Method to extend this block with the ids of the provided block (of a key range), handed out once those
+   * of this block have been. Ids being taken at the same time may skip some ids of the provided block, but no id is
+   * ever handed out twice.
+   * @param block The block to add. Its ids are taken from it
+   */
+  @Override
+  public void addBlock(ValueGenerationBlock block) {
+    if (block == null) {
+      return;
+    }
+    if (!(block instanceof KeyRangeValueGenerationBlock)) {
+      // The values of other blocks can't be read outside DataNucleus
+      throw new NucleusException("Block of ids " + this + " can only be extended by a block of a key range, not " +
+          block);
+    }
+    List<Segment> added = ((KeyRangeValueGenerationBlock) block).takeRemaining();
+    if (added.isEmpty()) {
+      return;
+    }
+
+    while (true) {
+      Segment[] segs = segments.get();
+      Segment last = segs[segs.length - 1];
+      // Offsets already taken from an exhausted block are past its end, so start beyond them
+      long offset = Math.max(last.offset + last.size, nextOffset.get());
+      Segment[] extended = Arrays.copyOf(segs, segs.length + added.size());
+      for (int i = 0; i < added.size(); i++) {
+        Segment seg = added.get(i);
+        extended[segs.length + i] = new Segment(offset, seg.start, seg.size);
+        offset += seg.size;
+      }
+      if (segments.compareAndSet(segs, extended)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Method to take all ids of the block that haven't been handed out, as if by {@link #nextId()}.
+   * @return The ranges of the ids taken
+   */
+  private List<Segment> takeRemaining() {
+    Segment[] segs = segments.get();
+    Segment last = segs[segs.length - 1];
+    long end = last.offset + last.size;
+    long from;
+    do {
+      from = nextOffset.get();
+    } while (from < end && !nextOffset.compareAndSet(from, end));
+
+    List<Segment> taken = new ArrayList<Segment>();
+    for (Segment seg : segs) {
+      long first = Math.max(from, seg.offset);
+      if (first < seg.offset + seg.size) {
+        taken.add(new Segment(0, seg.start + first - seg.offset, seg.offset + seg.size - first));
+      }
+    }
+    return taken;
+  }
+
+  private static long idAt(Segment[] segs, long offset) {
+    for (Segment seg : segs) {
+      if (offset >= seg.offset && offset < seg.offset + seg.size) {
+        return seg.start + offset - seg.offset;
+      }
+    }
+    return NO_ID;
+  }
+
+  /**
+   * A range of consecutive ids, handed out for the offsets [offset, offset + size) of the block.
+   */
+  private static final class Segment {
+    private final long offset;
+    private final long start;
+    private final long size;
+
+    Segment(long offset, long start, long size) {
+      this.offset = offset;
+      this.start = start;
+      this.size = size;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder str = new StringBuilder("KeyRangeValueGenerationBlock :");
+    for (Segment seg : segments.get()) {
+      str.append(" start=").append(seg.start).append(" size=").append(seg.size);
+    }
+    return str.append(" next=").append(nextOffset.get()).toString();
+  }
+}
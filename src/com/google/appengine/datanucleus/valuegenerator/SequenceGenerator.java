@@ -28,15 +28,20 @@ import org.datanucleus.metadata.SequenceMetaData;
 import org.datanucleus.store.StoreManager;
 
 import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics;
 import com.google.appengine.datanucleus.DatastoreServiceFactoryInternal;
 import com.google.appengine.datanucleus.EntityUtils;
-import com.google.appengine.datanucleus.Utils;
 
 import org.datanucleus.store.valuegenerator.AbstractDatastoreGenerator;
 import org.datanucleus.store.valuegenerator.ValueGenerationBlock;
+import org.datanucleus.util.NucleusLogger;
 
-import java.util.List;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * A database sequence abstraction on top of the
@@ -53,17 +58,36 @@ import java.util.Properties;
  * just by the child kind.  These id-spaces overlap, so you have to pick
  * one or the other and stick with it.
  *
+ * Ids are handed out from a {@link KeyRangeValueGenerationBlock} without locking. When the
+ * "key-prefetch-threshold" extension is set, the next block is allocated in the background once the number
+ * of ids remaining in the current block falls to that threshold, so that the insert that exhausts the block
+ * doesn't have to wait for the allocation.
+ *
  * @author Max Ross <maxr@google.com>
  */
 public class SequenceGenerator extends AbstractDatastoreGenerator {
 
   private static final String SEQUENCE_POSTFIX = "_SEQUENCE__";
   private static final String KEY_CACHE_SIZE_PROPERTY = "key-cache-size";
+  private static final String KEY_PREFETCH_THRESHOLD_PROPERTY = "key-prefetch-threshold";
 
   // can't be final because we need the storeMgr to derive it, and storeMgr
   // isn't set until setStoreManager is invoked.
   private String sequenceName;
 
+  /** Number of remaining ids at which to allocate the next block in the background. 0 means never. */
+  private int prefetchThreshold = 0;
+
+  /** The block ids are currently handed out from. */
+  private volatile KeyRangeValueGenerationBlock currentBlock;
+
+  /** Blocks reserved by {@link #allocate(int)}, to be used once the current block is exhausted. */
+  private final Queue<KeyRangeValueGenerationBlock> reservedBlocks =
+      new ConcurrentLinkedQueue<KeyRangeValueGenerationBlock>();
+
+  /** Background allocation of the next block, if in progress. Guarded by "this". */
+  private Future<KeyRangeValueGenerationBlock> prefetchedBlock;
+
   public SequenceGenerator(String name, Properties props) {
     super(name, props);
   }
@@ -90,6 +114,10 @@ public class SequenceGenerator extends AbstractDatastoreGenerator {
         } else {
           allocationSize = sequenceMetaData.getAllocationSize();
         }
+        if (sequenceMetaData.hasExtension(KEY_PREFETCH_THRESHOLD_PROPERTY)) {
+          prefetchThreshold =
+              Integer.parseInt(sequenceMetaData.getValueForExtension(KEY_PREFETCH_THRESHOLD_PROPERTY));
+        }
         sequenceName = sequenceMetaData.getDatastoreSequence();
       } else {
         // key cache size is passed in as a prop for JDO when the sequence
@@ -97,6 +125,9 @@ public class SequenceGenerator extends AbstractDatastoreGenerator {
         if (properties.getProperty(KEY_CACHE_SIZE_PROPERTY) != null) {
           allocationSize = Integer.parseInt(properties.getProperty(KEY_CACHE_SIZE_PROPERTY));
         }
+        if (properties.getProperty(KEY_PREFETCH_THRESHOLD_PROPERTY) != null) {
+          prefetchThreshold = Integer.parseInt(properties.getProperty(KEY_PREFETCH_THRESHOLD_PROPERTY));
+        }
       }
     }
     // derive the sequence name from the class meta data
@@ -129,21 +160,114 @@ public class SequenceGenerator extends AbstractDatastoreGenerator {
         SEQUENCE_POSTFIX + SEQUENCE_POSTFIX_APPENDAGE.get();
   }
 
+  @Override
+  public Object next() {
+    return nextValue();
+  }
+
+  @Override
+  public long nextValue() {
+    while (true) {
+      KeyRangeValueGenerationBlock block = currentBlock;
+      if (block != null) {
+        long id = block.nextId();
+        if (id != KeyRangeValueGenerationBlock.NO_ID) {
+          if (prefetchThreshold > 0 &&
+              block.remainingAfter(id) == Math.min(prefetchThreshold, block.getSize() - 1)) {
+            // Exactly one caller sees this id, so the next block is prefetched at most once per block
+            prefetchBlock();
+          }
+          return id;
+        }
+      }
+      replaceBlock(block);
+    }
+  }
+
+  @Override
+  public Object current() {
+    KeyRangeValueGenerationBlock block = currentBlock;
+    long id = block != null ? block.currentId() : KeyRangeValueGenerationBlock.NO_ID;
+    return id != KeyRangeValueGenerationBlock.NO_ID ? id : null;
+  }
+
+  @Override
+  public long currentValue() {
+    Object current = current();
+    if (current == null) {
+      throw new IllegalStateException("No value has been generated by sequence " + sequenceName);
+    }
+    return (Long) current;
+  }
+
+  @Override
+  public void allocate(int size) {
+    reservedBlocks.add((KeyRangeValueGenerationBlock) obtainGenerationBlock(size));
+  }
+
+  /**
+   * Replace the provided (exhausted) block with the next block, unless another thread already has.
+   * The next block is taken from those reserved by {@link #allocate(int)}, then the background
+   * allocation, and only otherwise allocated now.
+   */
+  private synchronized void replaceBlock(KeyRangeValueGenerationBlock exhausted) {
+    if (currentBlock != exhausted) {
+      return;
+    }
+    KeyRangeValueGenerationBlock next = reservedBlocks.poll();
+    if (next == null && prefetchedBlock != null) {
+      Future<KeyRangeValueGenerationBlock> future = prefetchedBlock;
+      prefetchedBlock = null;
+      try {
+        next = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted waiting for ids of sequence " + sequenceName, e);
+      } catch (ExecutionException e) {
+        // Fall back to allocating the block now
+        NucleusLogger.VALUEGENERATION.info("Background allocation of ids for sequence " + sequenceName +
+            " failed : " + e.getCause());
+      }
+    }
+    if (next == null) {
+      next = (KeyRangeValueGenerationBlock) obtainGenerationBlock();
+    }
+    currentBlock = next;
+  }
+
+  private synchronized void prefetchBlock() {
+    if (prefetchedBlock != null) {
+      return;
+    }
+    // Get the DatastoreService on this thread since the service used can be thread specific
+    final DatastoreService ds = getDatastoreService();
+    final long size = allocationSize;
+    prefetchedBlock = ((DatastoreManager) storeMgr).getBackgroundExecutor().submit(
+        new Callable<KeyRangeValueGenerationBlock>() {
+          public KeyRangeValueGenerationBlock call() {
+            return reserveBlock(ds, size);
+          }
+        });
+  }
+
+  private DatastoreService getDatastoreService() {
+    DatastoreManager datastoreMgr = (DatastoreManager) storeMgr;
+    DatastoreServiceConfig config = datastoreMgr.getDefaultDatastoreServiceConfigForWrites();
+    return DatastoreServiceFactoryInternal.getDatastoreService(
+        config, datastoreMgr.getDatastoreMetrics(), DatastoreMetrics.Path.SEQUENCE);
+  }
+
   protected ValueGenerationBlock reserveBlock(long size) {
+    return reserveBlock(getDatastoreService(), size);
+  }
+
+  private KeyRangeValueGenerationBlock reserveBlock(DatastoreService ds, long size) {
     if (sequenceName == null) {
       // shouldn't happen
       throw new IllegalStateException("sequence name is null");
     }
-    DatastoreServiceConfig config = ((DatastoreManager) storeMgr).getDefaultDatastoreServiceConfigForWrites();
-    DatastoreService ds = DatastoreServiceFactoryInternal.getDatastoreService(config);
     KeyRange range = ds.allocateIds(sequenceName, size);
-    // Too bad we can't pass an iterable and construct the ids on demand.
-    List<Long> ids = Utils.newArrayList();
-    long current = range.getStart().getId();
-    for (int i = 0; i < size; i++) {
-      ids.add(current + i);
-    }
-    return new ValueGenerationBlock(ids);
+    return new KeyRangeValueGenerationBlock(range);
   }
 
   // This postfix is for testing only. TODO Remove when local datastore id allocation behaviour mirrors prod
@@ -17,8 +17,8 @@
  **********************************************************************/
 package org.datanucleus.store.mapped.identifier;
 
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.exceptions.NucleusException;
@@ -82,14 +82,40 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
         return hm;
     }
 
-    protected Map<String, DatastoreIdentifier> tables = new WeakHashMap();
-    protected Map<String, DatastoreIdentifier> columns = new WeakHashMap();
-    protected Map<String, DatastoreIdentifier> foreignkeys = new WeakHashMap();
-    protected Map<String, DatastoreIdentifier> indexes = new WeakHashMap();
-    protected Map<String, DatastoreIdentifier> candidates = new WeakHashMap();
-    protected Map<String, DatastoreIdentifier> primarykeys = new WeakHashMap();
-    protected Map<String, DatastoreIdentifier> sequences = new WeakHashMap();
-    protected Map<String, DatastoreIdentifier> references = new WeakHashMap();
+    protected IdentifierInterner tables = new IdentifierInterner();
+    protected IdentifierInterner columns = new IdentifierInterner();
+    protected IdentifierInterner foreignkeys = new IdentifierInterner();
+    protected IdentifierInterner indexes = new IdentifierInterner();
+    protected IdentifierInterner candidates = new IdentifierInterner();
+    protected IdentifierInterner primarykeys = new IdentifierInterner();
+    protected IdentifierInterner sequences = new IdentifierInterner();
+    protected IdentifierInterner references = new IdentifierInterner();
+
+    /** Generators of identifiers from java names, by the type of identifier. */
+    private final Map<IdentifierType, IdentifierInterner.Generator> javaNameGenerators =
+        new EnumMap<IdentifierType, IdentifierInterner.Generator>(IdentifierType.class);
+
+    /** Generator of table identifiers from names used as is. */
+    private final IdentifierInterner.Generator containerGenerator = new IdentifierInterner.Generator()
+    {
+        public DatastoreIdentifier generate(String key)
+        {
+            String baseID = truncate(key, dba.getDatastoreIdentifierMaxLength(IdentifierType.TABLE));
+            TableIdentifier identifier = new TableIdentifier(AbstractIdentifierFactory.this, baseID);
+            setCatalogSchemaForTable(identifier);
+            return identifier;
+        }
+    };
+
+    /** Generator of column identifiers from names used as is. */
+    private final IdentifierInterner.Generator fieldGenerator = new IdentifierInterner.Generator()
+    {
+        public DatastoreIdentifier generate(String key)
+        {
+            String baseID = truncate(key, dba.getDatastoreIdentifierMaxLength(IdentifierType.COLUMN));
+            return new ColumnIdentifier(AbstractIdentifierFactory.this, baseID);
+        }
+    };
 
     /** Separator to use for words in the identifiers. */
     protected String wordSeparator = "_";
@@ -121,6 +147,12 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
         this.rdba = dba;
         this.clr = clr;
         this.quoteString = dba.getIdentifierQuoteString();
+        for (IdentifierType identifierType : new IdentifierType[] {IdentifierType.TABLE, IdentifierType.COLUMN,
+            IdentifierType.FOREIGN_KEY, IdentifierType.INDEX, IdentifierType.CANDIDATE_KEY, IdentifierType.PRIMARY_KEY,
+            IdentifierType.SEQUENCE})
+        {
+            javaNameGenerators.put(identifierType, new JavaNameGenerator(identifierType));
+        }
 
         // Set the identifier case to be used based on what the user has requested and what the datastore supports
         int userIdentifierCase = CASE_UPPER;
@@ -414,91 +446,108 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
      */
     public DatastoreIdentifier newIdentifier(IdentifierType identifierType, String name)
     {
-        DatastoreIdentifier identifier = null;
-        String key = name.replace(quoteString, ""); // Remove any user/JDBC supplied quotes
+        String key = removeQuotes(name); // Remove any user/JDBC supplied quotes
+        IdentifierInterner.Generator generator = javaNameGenerators.get(identifierType);
+        if (generator == null)
+        {
+            throw new NucleusException("identifier type " + identifierType + " not supported by this factory method").setFatal();
+        }
+        return getInternerForType(identifierType).intern(key, generator);
+    }
+
+    /**
+     * Accessor for the cache of identifiers of the specified type generated from java names.
+     * @param identifierType Type of identifier
+     * @return The cache
+     */
+    private IdentifierInterner getInternerForType(IdentifierType identifierType)
+    {
         if (identifierType == IdentifierType.TABLE)
         {
-            identifier = tables.get(key);
-            if (identifier == null)
-            {
-                String sqlIdentifier = generateIdentifierNameForJavaName(key);
-                sqlIdentifier = truncate(sqlIdentifier, dba.getDatastoreIdentifierMaxLength(identifierType));
-                identifier = new TableIdentifier(this, sqlIdentifier);
-                setCatalogSchemaForTable((TableIdentifier)identifier);
-                tables.put(key, identifier);
-            }
+            return tables;
         }
         else if (identifierType == IdentifierType.COLUMN)
         {
-            identifier = columns.get(key);
-            if (identifier == null)
-            {
-                String sqlIdentifier = generateIdentifierNameForJavaName(key);
-                sqlIdentifier = truncate(sqlIdentifier, dba.getDatastoreIdentifierMaxLength(identifierType));
-                identifier = new ColumnIdentifier(this, sqlIdentifier);
-                columns.put(key, identifier);
-            }
+            return columns;
         }
         else if (identifierType == IdentifierType.FOREIGN_KEY)
         {
-            identifier = foreignkeys.get(key);
-            if (identifier == null)
-            {
-                String sqlIdentifier = generateIdentifierNameForJavaName(key);
-                sqlIdentifier = truncate(sqlIdentifier, dba.getDatastoreIdentifierMaxLength(identifierType));
-                identifier = new ForeignKeyIdentifier(this, sqlIdentifier);
-                foreignkeys.put(key, identifier);
-            }
+            return foreignkeys;
         }
         else if (identifierType == IdentifierType.INDEX)
         {
-            identifier = indexes.get(key);
-            if (identifier == null)
-            {
-                String sqlIdentifier = generateIdentifierNameForJavaName(key);
-                sqlIdentifier = truncate(sqlIdentifier, dba.getDatastoreIdentifierMaxLength(identifierType));
-                identifier = new IndexIdentifier(this, sqlIdentifier);
-                indexes.put(key, identifier);
-            }
+            return indexes;
         }
         else if (identifierType == IdentifierType.CANDIDATE_KEY)
         {
-            identifier = candidates.get(key);
-            if (identifier == null)
-            {
-                String sqlIdentifier = generateIdentifierNameForJavaName(key);
-                sqlIdentifier = truncate(sqlIdentifier, dba.getDatastoreIdentifierMaxLength(identifierType));
-                identifier = new CandidateKeyIdentifier(this, sqlIdentifier);
-                candidates.put(key, identifier);
-            }
+            return candidates;
         }
         else if (identifierType == IdentifierType.PRIMARY_KEY)
         {
-            identifier = primarykeys.get(key);
-            if (identifier == null)
-            {
-                String sqlIdentifier = generateIdentifierNameForJavaName(key);
-                sqlIdentifier = truncate(sqlIdentifier, dba.getDatastoreIdentifierMaxLength(identifierType));
-                identifier = new PrimaryKeyIdentifier(this, sqlIdentifier);
-                primarykeys.put(key, identifier);
-            }
+            return primarykeys;
         }
-        else if (identifierType == IdentifierType.SEQUENCE)
+        return sequences;
+    }
+
+    /**
+     * Generator of identifiers of a type from (unquoted) java names, used when not already cached.
+     */
+    private class JavaNameGenerator implements IdentifierInterner.Generator
+    {
+        private final IdentifierType identifierType;
+
+        JavaNameGenerator(IdentifierType identifierType)
         {
-            identifier = sequences.get(key);
-            if (identifier == null)
+            this.identifierType = identifierType;
+        }
+
+        public DatastoreIdentifier generate(String key)
+        {
+            String sqlIdentifier = generateIdentifierNameForJavaName(key);
+            sqlIdentifier = truncate(sqlIdentifier, dba.getDatastoreIdentifierMaxLength(identifierType));
+            if (identifierType == IdentifierType.TABLE)
+            {
+                TableIdentifier identifier = new TableIdentifier(AbstractIdentifierFactory.this, sqlIdentifier);
+                setCatalogSchemaForTable(identifier);
+                return identifier;
+            }
+            else if (identifierType == IdentifierType.COLUMN)
+            {
+                return new ColumnIdentifier(AbstractIdentifierFactory.this, sqlIdentifier);
+            }
+            else if (identifierType == IdentifierType.FOREIGN_KEY)
+            {
+                return new ForeignKeyIdentifier(AbstractIdentifierFactory.this, sqlIdentifier);
+            }
+            else if (identifierType == IdentifierType.INDEX)
+            {
+                return new IndexIdentifier(AbstractIdentifierFactory.this, sqlIdentifier);
+            }
+            else if (identifierType == IdentifierType.CANDIDATE_KEY)
             {
-                String sqlIdentifier = generateIdentifierNameForJavaName(key);
-                sqlIdentifier = truncate(sqlIdentifier, dba.getDatastoreIdentifierMaxLength(identifierType));
-                identifier = new SequenceIdentifier(this, sqlIdentifier);
-                sequences.put(key, identifier);
+                return new CandidateKeyIdentifier(AbstractIdentifierFactory.this, sqlIdentifier);
             }
+            else if (identifierType == IdentifierType.PRIMARY_KEY)
+            {
+                return new PrimaryKeyIdentifier(AbstractIdentifierFactory.this, sqlIdentifier);
+            }
+            return new SequenceIdentifier(AbstractIdentifierFactory.this, sqlIdentifier);
         }
-        else
+    }
+
+    /**
+     * Method to remove any quotes from the provided name.
+     * @param name The name
+     * @return The name without quotes
+     */
+    protected String removeQuotes(String name)
+    {
+        if (quoteString == null || quoteString.length() == 0 || name.indexOf(quoteString) < 0)
         {
-            throw new NucleusException("identifier type " + identifierType + " not supported by this factory method").setFatal();
+            // Avoid String.replace which compiles a pattern on each call
+            return name;
         }
-        return identifier;
+        return StringUtils.replaceAll(name, quoteString, "");
     }
 
     /**
@@ -559,16 +608,7 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
      */
     public DatastoreIdentifier newDatastoreContainerIdentifier(String identifierName)
     {
-        String key = identifierName.replace(quoteString, ""); // Allow for quotes on input name
-        DatastoreIdentifier identifier = tables.get(key);
-        if (identifier == null)
-        {
-            String baseID = truncate(key, dba.getDatastoreIdentifierMaxLength(IdentifierType.TABLE));
-            identifier = new TableIdentifier(this, baseID);
-            setCatalogSchemaForTable((TableIdentifier)identifier);
-            tables.put(key, identifier);
-        }
-        return identifier;
+        return tables.intern(removeQuotes(identifierName), containerGenerator); // Allow for quotes on input name
     }
 
     /**
@@ -580,15 +620,7 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
      */
     public DatastoreIdentifier newDatastoreFieldIdentifier(String identifierName)
     {
-        String key = identifierName.replace(quoteString, ""); // Allow for quotes on input names
-        DatastoreIdentifier identifier = columns.get(key);
-        if (identifier == null)
-        {
-            String baseID = truncate(key, dba.getDatastoreIdentifierMaxLength(IdentifierType.COLUMN));
-            identifier = new ColumnIdentifier(this, baseID);
-            columns.put(key, identifier);
-        }
-        return identifier;
+        return columns.intern(removeQuotes(identifierName), fieldGenerator); // Allow for quotes on input names
     }
 
     /**
@@ -620,7 +652,7 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
                 String baseID = truncate(datastoreID, dba.getDatastoreIdentifierMaxLength(IdentifierType.COLUMN) - suffix.length());
                 identifier = new ColumnIdentifier(this, baseID + suffix);
             }
-            columns.put(key, identifier);
+            identifier = columns.put(key, identifier);
         }
         return identifier;
     }
@@ -638,7 +670,7 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
         {
             String baseID = truncate(sequenceName, dba.getDatastoreIdentifierMaxLength(IdentifierType.SEQUENCE));
             identifier = new ColumnIdentifier(this, baseID);
-            sequences.put(key, identifier);
+            identifier = sequences.put(key, identifier);
         }
         return identifier;
     }
@@ -659,7 +691,7 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
             int maxLength = dba.getDatastoreIdentifierMaxLength(IdentifierType.PRIMARY_KEY);
             String baseID = truncate(table.getIdentifier().getIdentifierName(), maxLength - suffix.length());
             identifier = new PrimaryKeyIdentifier(this, baseID + suffix);
-            primarykeys.put(key, identifier);
+            identifier = primarykeys.put(key, identifier);
         }
         return identifier;
     }
@@ -681,7 +713,7 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
             int maxLength = dba.getDatastoreIdentifierMaxLength(IdentifierType.CANDIDATE_KEY);
             String baseID = truncate(table.getIdentifier().getIdentifierName(), maxLength - suffix.length());
             identifier = new CandidateKeyIdentifier(this, baseID + suffix);
-            candidates.put(key, identifier);
+            identifier = candidates.put(key, identifier);
         }
         return identifier;
     }
@@ -715,7 +747,7 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
             int maxLength = dba.getDatastoreIdentifierMaxLength(IdentifierType.FOREIGN_KEY);
             String baseID = truncate(table.getIdentifier().getIdentifierName(), maxLength - suffix.length());
             identifier = new ForeignKeyIdentifier(this, baseID + suffix);
-            foreignkeys.put(key, identifier);
+            identifier = foreignkeys.put(key, identifier);
         }
         return identifier;
     }
@@ -746,7 +778,7 @@ public abstract class AbstractIdentifierFactory implements IdentifierFactory
             int maxLength = dba.getDatastoreIdentifierMaxLength(IdentifierType.INDEX);
             String baseID = truncate(table.getIdentifier().getIdentifierName(), maxLength - suffix.length());
             identifier = new IndexIdentifier(this, baseID + suffix);
-            indexes.put(key, identifier);
+            identifier = indexes.put(key, identifier);
         }
         return identifier;
     }
@@ -151,7 +151,7 @@ public class DN2IdentifierFactory extends DNIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -168,7 +168,7 @@ public class DN2IdentifierFactory extends DNIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -353,7 +353,7 @@ public class DNIdentifierFactory extends AbstractIdentifierFactory
             String baseID = truncate(datastoreID, 
                 dba.getDatastoreIdentifierMaxLength(IdentifierType.COLUMN) - suffix.length());
             identifier = new ColumnIdentifier(this, baseID + suffix);
-            references.put(key, identifier);
+            identifier = references.put(key, identifier);
         }
         return identifier;
     }
@@ -467,7 +467,7 @@ public class DNIdentifierFactory extends AbstractIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -484,7 +484,7 @@ public class DNIdentifierFactory extends AbstractIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -502,7 +502,7 @@ public class DNIdentifierFactory extends AbstractIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -519,7 +519,7 @@ public class DNIdentifierFactory extends AbstractIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -0,0 +1,174 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mapped.identifier;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.datanucleus.store.mapped.DatastoreIdentifier;
+
+/**
+ * Cache of identifiers keyed by the name they were generated from, safe for use by concurrent threads.
+ * Reads of an identifier already generated take no lock. When generated via {@link #intern(String, Generator)}
+ * each identifier is generated at most once, other threads asking for the same key waiting for it.
+ * The number of identifiers held is bounded; once full, identifiers for new keys are generated on each
+ * request rather than cached. Identifiers are held strongly, so those cached stay cached.
+ */
+public class IdentifierInterner
+{
+    /** Default maximum number of identifiers held. */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * Generator of the identifier for a key, on its first request.
+     */
+    public interface Generator
+    {
+        DatastoreIdentifier generate(String key);
+    }
+
+    /** Holder of the identifier for a key, the identifier being null until generated. */
+    private static class Entry
+    {
+        volatile DatastoreIdentifier identifier;
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final int maxSize;
+
+    public IdentifierInterner()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize Maximum number of identifiers to hold
+     */
+    public IdentifierInterner(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Accessor for the identifier for the provided key.
+     * @param key The key
+     * @return The identifier, or null if not yet generated
+     */
+    public DatastoreIdentifier get(String key)
+    {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.identifier : null;
+    }
+
+    /**
+     * Method to cache the provided identifier for the key, unless one is already cached.
+     * @param key The key
+     * @param identifier The identifier
+     * @return The identifier now cached for the key (which should be used in preference to the one passed in),
+     *     or the provided identifier if the cache is full
+     */
+    public DatastoreIdentifier put(String key, DatastoreIdentifier identifier)
+    {
+        Entry entry = getEntry(key);
+        if (entry == null)
+        {
+            return identifier;
+        }
+        synchronized (entry)
+        {
+            if (entry.identifier == null)
+            {
+                entry.identifier = identifier;
+            }
+            return entry.identifier;
+        }
+    }
+
+    /**
+     * Accessor for the identifier for the provided key, generating it if not yet generated.
+     * @param key The key
+     * @param generator Generator of the identifier, used if not yet generated
+     * @return The identifier
+     */
+    public DatastoreIdentifier intern(String key, Generator generator)
+    {
+        Entry entry = entries.get(key);
+        if (entry != null)
+        {
+            DatastoreIdentifier identifier = entry.identifier;
+            if (identifier != null)
+            {
+                return identifier;
+            }
+        }
+        else
+        {
+            entry = getEntry(key);
+            if (entry == null)
+            {
+                return generator.generate(key);
+            }
+        }
+
+        synchronized (entry)
+        {
+            if (entry.identifier == null)
+            {
+                // If this throws the entry stays empty and the next request tries again
+                entry.identifier = generator.generate(key);
+            }
+            return entry.identifier;
+        }
+    }
+
+    /**
+     * @return Number of keys held
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return The entry for the key, added if not present, or null if not present and the cache is full
+     */
+    private Entry getEntry(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            if (size.get() >= maxSize)
+            {
+                return null;
+            }
+            Entry newEntry = new Entry();
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null)
+            {
+                size.incrementAndGet();
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+}
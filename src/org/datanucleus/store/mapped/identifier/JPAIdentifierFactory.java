@@ -316,7 +316,7 @@ public class JPAIdentifierFactory extends AbstractIdentifierFactory
             String datastoreID = generateIdentifierNameForJavaName(name);
             String baseID = truncate(datastoreID, dba.getDatastoreIdentifierMaxLength(IdentifierType.COLUMN));
             identifier = new ColumnIdentifier(this, baseID);
-            references.put(key, identifier);
+            identifier = references.put(key, identifier);
         }
         return identifier;
     }
@@ -479,7 +479,7 @@ public class JPAIdentifierFactory extends AbstractIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -495,7 +495,7 @@ public class JPAIdentifierFactory extends AbstractIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -512,7 +512,7 @@ public class JPAIdentifierFactory extends AbstractIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -530,7 +530,7 @@ public class JPAIdentifierFactory extends AbstractIdentifierFactory
         if (identifier == null)
         {
             identifier = new ColumnIdentifier(this, name);
-            columns.put(name, identifier);
+            identifier = columns.put(name, identifier);
         }
         return identifier;
     }
@@ -17,6 +17,16 @@ package com.google.appengine.datanucleus;
 
 import junit.framework.TestSuite;
 
+import com.google.appengine.datanucleus.jdo.JDOParallelKindScanTest;
+import com.google.appengine.datanucleus.jdo.JDODatastoreMetricsTest;
+import com.google.appengine.datanucleus.jdo.JDORpcAccountingTest;
+import com.google.appengine.datanucleus.jdo.JDOEntityCacheTest;
+import com.google.appengine.datanucleus.jdo.JDOGroupCommitTest;
+import com.google.appengine.datanucleus.jdo.JDOPackedArraysTest;
+import com.google.appengine.datanucleus.jdo.JDOQueryRelationBatchTest;
+import com.google.appengine.datanucleus.jdo.JDOBatchUpdateTest;
+import com.google.appengine.datanucleus.jdo.JDOIndexUsageTest;
+import com.google.appengine.datanucleus.jdo.JDOCompositeIndexTest;
 import com.google.appengine.datanucleus.jdo.JDOPersistenceManagerFactoryTest;
 import com.google.appengine.datanucleus.jdo.JDOAbstractBaseClassTest;
 import com.google.appengine.datanucleus.jdo.JDOAncestorTest;
@@ -96,6 +106,7 @@ import com.google.appengine.datanucleus.jpa.JPAUpdateTest;
 import com.google.appengine.datanucleus.jpa.JPAVersionTest;
 import com.google.appengine.datanucleus.query.JDOQLCursorTest;
 import com.google.appengine.datanucleus.query.JDOQLDeleteTest;
+import com.google.appengine.datanucleus.query.JDOQLPrefetchTest;
 import com.google.appengine.datanucleus.query.JDOQLQueryOwnedJoinTest;
 import com.google.appengine.datanucleus.query.JDOQLQueryTest;
 import com.google.appengine.datanucleus.query.JDOQLQueryUnownedJoinTest;
@@ -107,6 +118,7 @@ import com.google.appengine.datanucleus.query.JPQLQueryUnownedJoinTest;
 import com.google.appengine.datanucleus.query.JoinHelperTest;
 import com.google.appengine.datanucleus.query.LazyResultTest;
 import com.google.appengine.datanucleus.query.SlicingIterableTest;
+import com.google.appengine.datanucleus.valuegenerator.KeyRangeValueGenerationBlockTest;
 
 /**
  * All tests for the app engine datanucleus plugin.
@@ -162,6 +174,8 @@ public class AllTests {
     suite.addTestSuite(JPAMetaDataValidatorTest.class);
     suite.addTestSuite(MetaDataValidatorTest.class);
     suite.addTestSuite(EntityUtilsTest.class);
+    suite.addTestSuite(IdentifierInternerTest.class);
+    suite.addTestSuite(KeyCodecTest.class);
     suite.addTestSuite(BigDecimalsTest.class);
     suite.addTestSuite(JDOBytesTest.class);
     suite.addTestSuite(JPABytesTest.class);
@@ -195,6 +209,7 @@ public class AllTests {
     suite.addTestSuite(JDOQLDeleteTest.class);
     suite.addTestSuite(JPASequenceTest.class);
     suite.addTestSuite(JDOSequenceTest.class);
+    suite.addTestSuite(KeyRangeValueGenerationBlockTest.class);
     suite.addTestSuite(JoinHelperTest.class);
     suite.addTestSuite(SlicingIterableTest.class);
     suite.addTestSuite(JDOQLQueryUnownedJoinTest.class);
@@ -203,7 +218,23 @@ public class AllTests {
     suite.addTestSuite(JPQLQueryOwnedJoinTest.class);
     suite.addTestSuite(JDOQLCursorTest.class);
     suite.addTestSuite(JPQLCursorTest.class);
+    suite.addTestSuite(JDOQLPrefetchTest.class);
     suite.addTestSuite(JDODatastoreBridgeTest.class);
+    suite.addTestSuite(JDOParallelKindScanTest.class);
+    suite.addTestSuite(JDODatastoreMetricsTest.class);
+    suite.addTestSuite(JDORpcAccountingTest.class);
+    suite.addTestSuite(JDOEntityCacheTest.class);
+    suite.addTestSuite(JDOGroupCommitTest.class);
+    suite.addTestSuite(GroupCommitterTest.class);
+    suite.addTestSuite(JDOPackedArraysTest.class);
+    suite.addTestSuite(JDOQueryRelationBatchTest.class);
+    suite.addTestSuite(JDOBatchUpdateTest.class);
+    suite.addTestSuite(JDOIndexUsageTest.class);
+    suite.addTestSuite(JDOCompositeIndexTest.class);
+    suite.addTestSuite(CompositeIndexCollectorTest.class);
+    suite.addTestSuite(MetaDataSnapshotTest.class);
+    suite.addTestSuite(MappingWarmUpTest.class);
+    suite.addTestSuite(KeyRegistryTest.class);
     suite.addTestSuite(JPADatastoreBridgeTest.class);
     suite.addTestSuite(JPANonWritableFieldsTest.class);
     suite.addTestSuite(JDOStorageVersionTest.class);
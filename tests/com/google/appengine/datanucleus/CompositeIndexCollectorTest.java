@@ -0,0 +1,126 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.datanucleus.CompositeIndexCollector.CompositeIndex;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+@SuppressWarnings("deprecation")
+public class CompositeIndexCollectorTest extends DatastoreTestCase {
+
+  private final CompositeIndexCollector collector = new CompositeIndexCollector();
+
+  private static SortPredicate asc(String propName) {
+    return new SortPredicate(propName, SortDirection.ASCENDING);
+  }
+
+  private static SortPredicate desc(String propName) {
+    return new SortPredicate(propName, SortDirection.DESCENDING);
+  }
+
+  public void testBuiltInIndexesNotCollected() {
+    collector.record(new Query("Flight"));
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addFilter("dest", FilterOperator.IN, Arrays.asList("mia", "sfo")));
+    collector.record(new Query("Flight").addSort("name", SortDirection.DESCENDING));
+    collector.record(new Query("Flight").addFilter("you", FilterOperator.GREATER_THAN, 3)
+        .addSort("you", SortDirection.ASCENDING).addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING));
+    collector.record(new Query("Flight", KeyFactory.createKey("Parent", 1))
+        .addFilter("origin", FilterOperator.EQUAL, "bos"));
+    // Sort on a property with an equality filter is dropped
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addSort("origin", SortDirection.ASCENDING));
+    assertTrue(collector.getShapes().isEmpty());
+  }
+
+  public void testIndexForShape() {
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addFilter("you", FilterOperator.LESS_THAN, 4).addSort("you", SortDirection.DESCENDING)
+        .addSort("name", SortDirection.ASCENDING));
+    collector.record(new Query("Flight", KeyFactory.createKey("Parent", 1))
+        .addSort("name", SortDirection.ASCENDING));
+    List<CompositeIndex> indexes = collector.getIndexes();
+    assertEquals(2, indexes.size());
+    assertEquals("Flight", indexes.get(0).getKind());
+    assertTrue(indexes.get(0).isAncestor());
+    assertEquals(Arrays.asList(asc("name")), indexes.get(0).getProperties());
+    assertFalse(indexes.get(1).isAncestor());
+    assertEquals(Arrays.asList(asc("origin"), desc("you"), asc("name")), indexes.get(1).getProperties());
+  }
+
+  public void testInequalityPropertyBeforeSorts() {
+    collector.record(new Query("Flight").addFilter("you", FilterOperator.GREATER_THAN, 3)
+        .addFilter("you", FilterOperator.LESS_THAN, 9).addSort("name", SortDirection.ASCENDING));
+    List<CompositeIndex> indexes = collector.getIndexes();
+    assertEquals(1, indexes.size());
+    assertEquals(Arrays.asList(asc("you"), asc("name")), indexes.get(0).getProperties());
+  }
+
+  public void testShapesSharingIndexMerged() {
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addFilter("dest", FilterOperator.EQUAL, "mia").addSort("you", SortDirection.DESCENDING));
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addSort("dest", SortDirection.ASCENDING).addSort("you", SortDirection.DESCENDING));
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addSort("dest", SortDirection.ASCENDING));
+    // Not served by the index above, the equality properties coming first
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addSort("you", SortDirection.DESCENDING));
+    assertEquals(4, collector.getShapes().size());
+
+    List<CompositeIndex> indexes = collector.getIndexes();
+    assertEquals(2, indexes.size());
+    assertEquals(Arrays.asList(asc("origin"), asc("dest"), desc("you")), indexes.get(0).getProperties());
+    assertEquals(Arrays.asList(asc("origin"), desc("you")), indexes.get(1).getProperties());
+  }
+
+  public void testDatastoreIndexesXml() throws Exception {
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addSort("you", SortDirection.DESCENDING));
+    StringWriter writer = new StringWriter();
+    collector.writeDatastoreIndexes(writer, false);
+    assertEquals("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+        "<datastore-indexes autoGenerate=\"false\">\n" +
+        "  <datastore-index kind=\"Flight\" ancestor=\"false\">\n" +
+        "    <property name=\"origin\" direction=\"asc\"/>\n" +
+        "    <property name=\"you\" direction=\"desc\"/>\n" +
+        "  </datastore-index>\n" +
+        "</datastore-indexes>\n", writer.toString());
+  }
+
+  public void testShapesWrittenAndRead() throws Exception {
+    collector.record(new Query("Flight").addFilter("origin", FilterOperator.EQUAL, "bos")
+        .addFilter("dest", FilterOperator.EQUAL, "mia").addSort("you", SortDirection.DESCENDING));
+    collector.record(new Query("Flight", KeyFactory.createKey("Parent", 1))
+        .addSort("name", SortDirection.ASCENDING));
+    StringWriter writer = new StringWriter();
+    collector.writeShapes(writer);
+
+    CompositeIndexCollector other = new CompositeIndexCollector();
+    other.readShapes(new StringReader(writer.toString() + writer.toString()));
+    assertEquals(collector.getShapes(), other.getShapes());
+  }
+}
@@ -117,14 +117,14 @@ public class DatastoreServiceRecordingImpl implements DatastoreService {
     Transaction txn =  delegate.beginTransaction();
     txnIdAnswer.setExpectedTxnId(txn.getId());
     recorder.beginTransaction();
-    return new TransactionRecordingImpl(txn, txnRecorder);
+    return new TransactionRecordingImpl(txnRecorder, txn);
   }
 
   public Transaction beginTransaction(TransactionOptions transactionOptions) {
     Transaction txn =  delegate.beginTransaction(transactionOptions);
     txnIdAnswer.setExpectedTxnId(txn.getId());
     recorder.beginTransaction(transactionOptions);
-    return new TransactionRecordingImpl(txn, txnRecorder);
+    return new TransactionRecordingImpl(txnRecorder, txn);
   }
 
   public Transaction getCurrentTransaction() {
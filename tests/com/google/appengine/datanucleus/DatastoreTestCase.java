@@ -18,6 +18,7 @@ package com.google.appengine.datanucleus;
 //import com.google.appengine.testing.cloudcover.util.CloudCoverLocalServiceTestHelper;
 
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.apphosting.api.ApiProxy;
 import junit.framework.TestCase;
@@ -51,7 +52,9 @@ public class DatastoreTestCase extends TestCase {
 
   private synchronized LocalServiceTestHelper getHelper() {
     if (helper == null) {
-      helper = new LocalServiceTestHelper(newLocalDatastoreServiceTestConfig()).setEnvAppId(getAppId());
+      // Memcache backs the entity cache
+      helper = new LocalServiceTestHelper(newLocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig()).setEnvAppId(getAppId());
     }
     return helper;
   }
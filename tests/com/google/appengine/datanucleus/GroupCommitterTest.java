@@ -0,0 +1,141 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class GroupCommitterTest extends DatastoreTestCase {
+
+  private static final int NUM_THREADS = 4;
+
+  private static final String KIND = "yar";
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(NUM_THREADS);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  private List<Future<List<Key>>> putConcurrently(final GroupCommitter committer, final DatastoreService ds,
+      int numThreads) {
+    List<Future<List<Key>>> futures = new ArrayList<Future<List<Key>>>();
+    for (int i = 0; i < numThreads; i++) {
+      // Created here since worker threads have no ApiProxy environment
+      final List<Entity> entities = Collections.singletonList(new Entity(KIND));
+      futures.add(executor.submit(new Callable<List<Key>>() {
+        public List<Key> call() {
+          return committer.put(ds, KIND, entities);
+        }
+      }));
+    }
+    return futures;
+  }
+
+  private static Throwable getFailure(Future<List<Key>> future) throws Exception {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail("expected the put to fail");
+      return null;
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+  }
+
+  public void testFailedPutFailsAllThreads() throws Exception {
+    final Throwable[] failures = {new DatastoreFailureException("boom"), new Error("boom")};
+    for (final Throwable failure : failures) {
+      // Long enough that the batch only goes once full
+      GroupCommitter committer = new GroupCommitter(NUM_THREADS, 10000, 10000);
+      committer.addKind(KIND);
+      DatastoreService ds = new BaseDatastoreServiceDelegate(null) {
+        @Override
+        public List<Key> put(Iterable<Entity> entityIterable) {
+          if (failure instanceof Error) {
+            throw (Error) failure;
+          }
+          throw (RuntimeException) failure;
+        }
+      };
+      // Every thread fails, rather than those not making the put waiting forever
+      for (Future<List<Key>> future : putConcurrently(committer, ds, NUM_THREADS)) {
+        assertSame(failure, getFailure(future));
+      }
+    }
+  }
+
+  public void testWaitForPutOfOtherThreadTimesOut() throws Exception {
+    GroupCommitter committer = new GroupCommitter(2, 50, 50);
+    committer.addKind(KIND);
+    final CountDownLatch putStarted = new CountDownLatch(1);
+    final CountDownLatch releasePut = new CountDownLatch(1);
+    DatastoreService ds = new BaseDatastoreServiceDelegate(null) {
+      @Override
+      public List<Key> put(Iterable<Entity> entityIterable) {
+        putStarted.countDown();
+        try {
+          releasePut.await();
+        } catch (InterruptedException e) {
+          throw new DatastoreFailureException("interrupted", e);
+        }
+        List<Key> keys = new ArrayList<Key>();
+        for (Entity entity : entityIterable) {
+          keys.add(entity.getKey());
+        }
+        return keys;
+      }
+    };
+    try {
+      List<Future<List<Key>>> futures = putConcurrently(committer, ds, 2);
+      assertTrue(putStarted.await(10, TimeUnit.SECONDS));
+      long deadline = System.currentTimeMillis() + 10000;
+      while (!futures.get(0).isDone() && !futures.get(1).isDone() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      // The thread waiting for the put gives up, while the thread making it is still in it
+      Future<List<Key>> waiting = futures.get(0).isDone() ? futures.get(0) : futures.get(1);
+      Future<List<Key>> putting = waiting == futures.get(0) ? futures.get(1) : futures.get(0);
+      assertTrue(getFailure(waiting) instanceof DatastoreTimeoutException);
+      assertFalse(putting.isDone());
+      releasePut.countDown();
+      assertEquals(1, putting.get(10, TimeUnit.SECONDS).size());
+    } finally {
+      releasePut.countDown();
+    }
+  }
+}
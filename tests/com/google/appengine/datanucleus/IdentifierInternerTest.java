@@ -0,0 +1,113 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import junit.framework.TestCase;
+
+import org.datanucleus.store.mapped.DatastoreIdentifier;
+import org.datanucleus.store.mapped.identifier.IdentifierInterner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.easymock.EasyMock.createMock;
+
+public class IdentifierInternerTest extends TestCase {
+
+  private static class CountingGenerator implements IdentifierInterner.Generator {
+    private final AtomicInteger numGenerated = new AtomicInteger();
+
+    public DatastoreIdentifier generate(String key) {
+      numGenerated.incrementAndGet();
+      return createMock(DatastoreIdentifier.class);
+    }
+  }
+
+  public void testIntern() {
+    IdentifierInterner interner = new IdentifierInterner();
+    CountingGenerator generator = new CountingGenerator();
+    assertNull(interner.get("yar"));
+    DatastoreIdentifier identifier = interner.intern("yar", generator);
+    assertSame(identifier, interner.intern("yar", generator));
+    assertSame(identifier, interner.get("yar"));
+    assertNotSame(identifier, interner.intern("yam", generator));
+    assertEquals(2, generator.numGenerated.get());
+    assertEquals(2, interner.size());
+  }
+
+  public void testPutKeepsExisting() {
+    IdentifierInterner interner = new IdentifierInterner();
+    DatastoreIdentifier first = createMock(DatastoreIdentifier.class);
+    assertSame(first, interner.put("yar", first));
+    assertSame(first, interner.put("yar", createMock(DatastoreIdentifier.class)));
+    assertSame(first, interner.get("yar"));
+  }
+
+  public void testBounded() {
+    IdentifierInterner interner = new IdentifierInterner(2);
+    CountingGenerator generator = new CountingGenerator();
+    interner.intern("a", generator);
+    interner.intern("b", generator);
+    DatastoreIdentifier c = interner.intern("c", generator);
+    assertNotNull(c);
+    assertNotSame(c, interner.intern("c", generator));
+    assertNull(interner.get("c"));
+    assertEquals(2, interner.size());
+    // Those already held are still held
+    interner.intern("a", generator);
+    assertEquals(4, generator.numGenerated.get());
+  }
+
+  public void testConcurrentInternGeneratesOnce() throws Exception {
+    final IdentifierInterner interner = new IdentifierInterner();
+    final CountingGenerator generator = new CountingGenerator();
+    final CountDownLatch start = new CountDownLatch(1);
+    int numThreads = 16;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<List<DatastoreIdentifier>>> futures = new ArrayList<Future<List<DatastoreIdentifier>>>();
+      for (int i = 0; i < numThreads; i++) {
+        futures.add(executor.submit(new Callable<List<DatastoreIdentifier>>() {
+          public List<DatastoreIdentifier> call() throws Exception {
+            start.await();
+            List<DatastoreIdentifier> identifiers = new ArrayList<DatastoreIdentifier>();
+            for (int j = 0; j < 100; j++) {
+              identifiers.add(interner.intern("key" + j, generator));
+            }
+            return identifiers;
+          }
+        }));
+      }
+      start.countDown();
+      List<DatastoreIdentifier> expected = futures.get(0).get();
+      for (Future<List<DatastoreIdentifier>> future : futures) {
+        List<DatastoreIdentifier> identifiers = future.get();
+        for (int j = 0; j < identifiers.size(); j++) {
+          assertSame(expected.get(j), identifiers.get(j));
+        }
+      }
+      assertEquals(100, generator.numGenerated.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
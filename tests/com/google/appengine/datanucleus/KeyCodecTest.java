@@ -0,0 +1,93 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+public class KeyCodecTest extends DatastoreTestCase {
+
+  public void testRoundTrip() {
+    KeyCodec codec = new KeyCodec(10);
+    Key key = KeyFactory.createKey(KeyFactory.createKey("Parent", 3), "Child", "yar");
+    String encoded = codec.keyToString(key);
+    assertEquals(KeyFactory.keyToString(key), encoded);
+    assertEquals(key, codec.stringToKey(encoded));
+    assertEquals(encoded, codec.keyToString(KeyFactory.stringToKey(encoded)));
+  }
+
+  public void testCanonicalInstances() {
+    KeyCodec codec = new KeyCodec(10);
+    String encoded = KeyFactory.keyToString(KeyFactory.createKey("Object", 23));
+    Key key = codec.stringToKey(encoded);
+    assertSame(key, codec.stringToKey(encoded));
+    assertSame(key, codec.decode(new String(encoded)));
+    // Different encoding of the same key
+    assertSame(key, codec.stringToKey(encoded + "="));
+  }
+
+  public void testDecodeName() {
+    KeyCodec codec = new KeyCodec(10);
+    assertNull(codec.decode("yar"));
+    assertNull(codec.decode("yar"));
+    assertNull(codec.decode("not a key!"));
+    assertNull(codec.decode(""));
+    try {
+      codec.stringToKey("yar");
+      fail("expected exception");
+    } catch (IllegalArgumentException iae) {
+      // expected
+    }
+  }
+
+  public void testCouldBeEncodedKey() {
+    assertTrue(KeyCodec.couldBeEncodedKey(KeyFactory.keyToString(KeyFactory.createKey("Object", "yar"))));
+    assertTrue(KeyCodec.couldBeEncodedKey("yar"));
+    assertFalse(KeyCodec.couldBeEncodedKey("yar.bar"));
+    assertFalse(KeyCodec.couldBeEncodedKey("yar@bar.com"));
+    assertFalse(KeyCodec.couldBeEncodedKey(""));
+    assertFalse(KeyCodec.couldBeEncodedKey(null));
+  }
+
+  public void testIncompleteKeyNotCached() {
+    KeyCodec codec = new KeyCodec(10);
+    Entity entity = new Entity("Object");
+    Key key = entity.getKey();
+    try {
+      codec.keyToString(key);
+      fail("expected exception");
+    } catch (IllegalArgumentException iae) {
+      // expected
+    }
+    DatastoreServiceFactory.getDatastoreService().put(entity);
+    assertEquals(KeyFactory.keyToString(key), codec.keyToString(key));
+  }
+
+  public void testBounded() {
+    KeyCodec codec = new KeyCodec(10);
+    Key first = KeyFactory.createKey("Object", 1);
+    String firstEncoded = codec.keyToString(first);
+    for (int i = 2; i < 100; i++) {
+      codec.keyToString(KeyFactory.createKey("Object", i));
+      // Keep the first entry in use
+      assertEquals(first, codec.stringToKey(firstEncoded));
+      assertTrue(codec.size() <= 40);
+    }
+    assertEquals(firstEncoded, codec.keyToString(first));
+  }
+}
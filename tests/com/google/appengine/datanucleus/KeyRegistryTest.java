@@ -0,0 +1,77 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+public class KeyRegistryTest extends DatastoreTestCase {
+
+  public void testReferenceEquality() {
+    KeyRegistry keyRegistry = new KeyRegistry();
+    Key parentKey = KeyFactory.createKey("Parent", 1);
+    String child = new String("child");
+    keyRegistry.registerParentKeyForOwnedObject(child, parentKey);
+    keyRegistry.registerUnownedObject(child);
+    assertSame(parentKey, keyRegistry.getParentKeyForOwnedObject(child));
+    assertTrue(keyRegistry.isUnowned(child));
+    // Equal but not the same
+    String otherChild = new String("child");
+    assertNull(keyRegistry.getParentKeyForOwnedObject(otherChild));
+    assertFalse(keyRegistry.isUnowned(otherChild));
+    assertEquals(1, keyRegistry.getParentKeyCount());
+    assertEquals(1, keyRegistry.getUnownedObjectCount());
+  }
+
+  public void testCollectedObjectsDropped() {
+    KeyRegistry keyRegistry = new KeyRegistry();
+    Object child = new Object();
+    Object otherChild = new Object();
+    keyRegistry.registerParentKeyForOwnedObject(child, KeyFactory.createKey("Parent", 1));
+    keyRegistry.registerUnownedObject(child);
+    keyRegistry.registerParentKeyForOwnedObject(otherChild, KeyFactory.createKey("Parent", 2));
+    keyRegistry.referencesCollected(child);
+    assertEquals(1, keyRegistry.getParentKeyCount());
+    assertEquals(0, keyRegistry.getUnownedObjectCount());
+    assertEquals(KeyFactory.createKey("Parent", 2), keyRegistry.getParentKeyForOwnedObject(otherChild));
+    assertNull(keyRegistry.getParentKeyForOwnedObject(child));
+    assertFalse(keyRegistry.isUnowned(child));
+  }
+
+  public void testClearedWhenOutermostFlushEnds() {
+    DatastoreOperationStatistics stats = new DatastoreOperationStatistics();
+    KeyRegistry keyRegistry = new KeyRegistry(stats);
+    Object child = new Object();
+    keyRegistry.flushStarted();
+    keyRegistry.registerParentKeyForOwnedObject(child, KeyFactory.createKey("Parent", 1));
+    keyRegistry.flushStarted();
+    keyRegistry.registerUnownedObject(new Object());
+    keyRegistry.flushEnded();
+    assertEquals(1, keyRegistry.getParentKeyCount());
+    assertEquals(0, stats.getKeyRegistryClears());
+    keyRegistry.flushEnded();
+    assertNull(keyRegistry.getParentKeyForOwnedObject(child));
+    assertEquals(1, stats.getKeyRegistryClears());
+    assertTrue(stats.getKeyRegistryEntries() >= 1);
+    assertEquals(stats.getKeyRegistryEntries(), stats.getKeyRegistryMaxEntries());
+
+    keyRegistry.clear();
+    assertEquals(2, stats.getKeyRegistryClears());
+    stats.reset();
+    assertEquals(0, stats.getKeyRegistryClears());
+    assertEquals(0, stats.getKeyRegistryEntries());
+  }
+}
@@ -0,0 +1,101 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.jdo.JDOTestCase;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasKeyAncestorKeyPkJDO;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+import com.google.appengine.datanucleus.test.jdo.IllegalMappingsJDO.HasMultiplePkIdFields;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.metadata.InvalidMetaDataException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.jdo.JDOFatalUserException;
+import javax.jdo.annotations.PersistenceCapable;
+
+public class MappingWarmUpTest extends JDOTestCase {
+
+  private boolean switched;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (switched) {
+      pm.close();
+      // Not one of the cached factories
+      pmf.close();
+    }
+    super.tearDown();
+  }
+
+  private void switchToWarmUp(String classNames) {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional,
+        Collections.singletonMap(DatastoreManager.WARM_UP_CLASSES_PROPERTY, classNames));
+    switched = true;
+  }
+
+  public void testClassesWarmedUpAtStartup() {
+    switchToWarmUp(Flight.class.getName() + ", " + HasKeyAncestorKeyPkJDO.class.getName() + ", java.lang.String");
+    DatastoreManager storeMgr = getDatastoreManagerForPM(pm);
+    assertEquals(2, storeMgr.awaitWarmUp());
+    assertTrue(storeMgr.managesClass(Flight.class.getName()));
+    assertTrue(storeMgr.managesClass(HasKeyAncestorKeyPkJDO.class.getName()));
+    assertFalse(storeMgr.managesClass(String.class.getName()));
+
+    Flight flight = new Flight("bos", "mia", "harold", 1, 2);
+    pm.makePersistent(flight);
+    assertEquals(kindForClass(Flight.class), KeyFactory.stringToKey(flight.getId()).getKind());
+  }
+
+  public void testWarmUp() {
+    DatastoreManager storeMgr = getDatastoreManagerForPM(pm);
+    assertEquals(0, storeMgr.awaitWarmUp());
+    assertEquals(2, storeMgr.warmUp(Arrays.asList(Flight.class.getName(), HasOneToManyListJDO.class.getName(),
+        Flight.class.getName(), "not.a.Class")));
+    assertTrue(storeMgr.managesClass(HasOneToManyListJDO.class.getName()));
+  }
+
+  public void testInvalidClassFailsOnFirstUse() {
+    switchToWarmUp(HasMultiplePkIdFields.class.getName());
+    DatastoreManager storeMgr = getDatastoreManagerForPM(pm);
+    assertEquals(0, storeMgr.awaitWarmUp());
+    assertFalse(storeMgr.managesClass(HasMultiplePkIdFields.class.getName()));
+    try {
+      pm.makePersistent(new HasMultiplePkIdFields());
+      fail("expected exception");
+    } catch (JDOFatalUserException e) {
+      // good
+      assertTrue(e.getCause() instanceof InvalidMetaDataException);
+    }
+  }
+
+  public void testClassNamesInPackage() {
+    ClassLoaderResolver clr = getDatastoreManagerForPM(pm).getNucleusContext().getClassLoaderResolver(null);
+    // Directory
+    Set<String> classNames = MappingWarmUp.getClassNamesInPackage(Flight.class.getPackage().getName(), clr);
+    assertTrue(classNames.contains(Flight.class.getName()));
+    assertTrue(classNames.contains(HasMultiplePkIdFields.class.getName()));
+    assertFalse(classNames.contains(MappingWarmUpTest.class.getName()));
+    // Jar
+    classNames = MappingWarmUp.getClassNamesInPackage(PersistenceCapable.class.getPackage().getName(), clr);
+    assertTrue(classNames.contains(PersistenceCapable.class.getName()));
+  }
+}
@@ -0,0 +1,140 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.datanucleus.MetaDataSnapshot.ClassSnapshot;
+import com.google.appengine.datanucleus.jdo.JDOTestCase;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasKeyAncestorKeyPkJDO;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.metadata.AbstractClassMetaData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class MetaDataSnapshotTest extends JDOTestCase {
+
+  private File snapshotFile;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (snapshotFile != null) {
+      pm.close();
+      // Not one of the cached factories
+      pmf.close();
+      snapshotFile.delete();
+    }
+    super.tearDown();
+  }
+
+  private MetaDataSnapshot createSnapshot(Class<?>... classes) {
+    DatastoreManager storeMgr = getDatastoreManagerForPM(pm);
+    ClassLoaderResolver clr = storeMgr.getNucleusContext().getClassLoaderResolver(null);
+    String[] classNames = new String[classes.length];
+    for (int i = 0; i < classes.length; i++) {
+      classNames[i] = classes[i].getName();
+    }
+    return MetaDataSnapshot.create(storeMgr, Arrays.asList(classNames), clr);
+  }
+
+  private void switchToSnapshot(MetaDataSnapshot snapshot) throws Exception {
+    snapshotFile = File.createTempFile("metadata", ".ser");
+    OutputStream out = new FileOutputStream(snapshotFile);
+    try {
+      snapshot.write(out);
+    } finally {
+      out.close();
+    }
+    switchDatasource(PersistenceManagerFactoryName.nontransactional,
+        Collections.singletonMap(DatastoreManager.METADATA_SNAPSHOT_PROPERTY, snapshotFile.getAbsolutePath()));
+  }
+
+  public void testSnapshotWrittenAndRead() throws Exception {
+    MetaDataSnapshot snapshot = createSnapshot(Flight.class, HasKeyAncestorKeyPkJDO.class);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    snapshot.write(out);
+    snapshot = MetaDataSnapshot.read(new ByteArrayInputStream(out.toByteArray()));
+
+    ClassSnapshot flight = snapshot.getClassSnapshot(Flight.class.getName());
+    assertEquals(kindForClass(Flight.class), flight.getKind());
+    AbstractClassMetaData cmd = getDatastoreManagerForPM(pm).getMetaDataManager().getMetaDataForClass(
+        Flight.class, getDatastoreManagerForPM(pm).getNucleusContext().getClassLoaderResolver(null));
+    assertEquals("flight_number", flight.getPropertyName(cmd.getMetaDataForMember("flightNumber")));
+    assertNotNull(flight.getMappingType("origin"));
+    assertNull(flight.getParentPkMemberName());
+
+    ClassSnapshot hasAncestor = snapshot.getClassSnapshot(HasKeyAncestorKeyPkJDO.class.getName());
+    assertEquals(HasKeyAncestorKeyPkJDO.class.getName(), hasAncestor.getParentPkClassName());
+    assertEquals("ancestorKey", hasAncestor.getParentPkMemberName());
+  }
+
+  public void testSnapshotUsedAtStartup() throws Exception {
+    MetaDataSnapshot snapshot = createSnapshot(Flight.class, HasKeyAncestorKeyPkJDO.class);
+    // The snapshot is trusted, so a kind set in it is used
+    snapshot.getClassSnapshot(Flight.class.getName()).setKind("SnapshotFlight");
+    switchToSnapshot(snapshot);
+
+    Flight flight = new Flight("bos", "mia", "harold", 1, 2);
+    pm.makePersistent(flight);
+    assertEquals("SnapshotFlight", KeyFactory.stringToKey(flight.getId()).getKind());
+    assertEquals(1, ds.prepare(new Query("SnapshotFlight")).countEntities());
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    assertEquals("harold", pm.getObjectById(Flight.class, flight.getId()).getName());
+
+    HasKeyAncestorKeyPkJDO hasAncestor = new HasKeyAncestorKeyPkJDO();
+    hasAncestor.setAncestorKey(KeyFactory.createKey("Parent", 33));
+    pm.makePersistent(hasAncestor);
+    assertEquals(KeyFactory.createKey("Parent", 33), hasAncestor.getKey().getParent());
+  }
+
+  public void testSnapshotUsedAfterMappingRelatedClass() throws Exception {
+    // Mapping the relation adds to the metadata of Flight, both before the snapshot is produced and once loaded
+    pm.makePersistent(new HasOneToManyListJDO());
+    MetaDataSnapshot snapshot = createSnapshot(Flight.class);
+    snapshot.getClassSnapshot(Flight.class.getName()).setKind("SnapshotFlight");
+    switchToSnapshot(snapshot);
+
+    HasOneToManyListJDO parent = new HasOneToManyListJDO();
+    Flight flight = new Flight("bos", "mia", "harold", 1, 2);
+    parent.addFlight(flight);
+    pm.makePersistent(parent);
+    assertEquals("SnapshotFlight", KeyFactory.stringToKey(flight.getId()).getKind());
+
+    Flight other = new Flight("bos", "mia", "maude", 1, 2);
+    pm.makePersistent(other);
+    assertEquals("SnapshotFlight", KeyFactory.stringToKey(other.getId()).getKind());
+  }
+
+  public void testChangedClassIgnored() throws Exception {
+    MetaDataSnapshot snapshot = new MetaDataSnapshot();
+    snapshot.putClassSnapshot(new ClassSnapshot(Flight.class.getName(), 1234L, "SnapshotFlight"));
+    switchToSnapshot(snapshot);
+
+    Flight flight = new Flight("bos", "mia", "harold", 1, 2);
+    pm.makePersistent(flight);
+    assertEquals(kindForClass(Flight.class), KeyFactory.stringToKey(flight.getId()).getKind());
+  }
+}
@@ -16,6 +16,7 @@ limitations under the License.
 package com.google.appengine.datanucleus;
 
 import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Text;
 import com.google.appengine.datanucleus.test.jdo.HasSerializableJDO;
 
 import junit.framework.TestCase;
@@ -26,6 +27,10 @@ import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.ExtensionMetaData;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 /**
  * SerializationManager tests.
@@ -98,4 +103,181 @@ public class SerializationManagerTest extends TestCase {
       // good
     }
   }
-}
\ No newline at end of file
+
+  public void testSerializationStrategyCachedPerMember() {
+    SerializationManager mgr = new SerializationManager();
+    AbstractMemberMetaData ammd = new AbstractMemberMetaData(null, "yar") {
+      @Override
+      public ExtensionMetaData[] getExtensions() {
+        ExtensionMetaData emd = new ExtensionMetaData(
+            "datanucleus",
+            SerializationManager.SERIALIZATION_STRATEGY_KEY,
+            HasSerializableJDO.ProtocolBufferSerializationStrategy.class.getName());
+        return new ExtensionMetaData[] {emd};
+      }
+    };
+    SerializationStrategy strategy = mgr.getSerializationStrategy(new ClassLoaderResolverImpl(), ammd);
+    assertSame(strategy, mgr.getSerializationStrategy(new ClassLoaderResolverImpl(), ammd));
+  }
+
+  public void testDefaultSerialization_LargeValue() {
+    // Bigger than the buffer that is kept for reuse
+    byte[] bytes = new byte[SerializationBuffer.MAX_RETAINED_SIZE * 2];
+    Arrays.fill(bytes, (byte) 7);
+    List<Object> value = new ArrayList<Object>();
+    value.add(bytes);
+    SerializationStrategy strategy = SerializationManager.DEFAULT_SERIALIZATION_STRATEGY;
+    List<?> result = (List<?>) strategy.deserialize(strategy.serialize(value), List.class);
+    assertTrue(Arrays.equals(bytes, (byte[]) result.get(0)));
+    assertEquals("small", strategy.deserialize(strategy.serialize("small"), String.class));
+  }
+
+  public static class Base implements Serializable {
+    int baseValue;
+  }
+
+  public static class Derived extends Base {
+    String name;
+    List<Derived> children = new ArrayList<Derived>();
+    int[] ints;
+  }
+
+  private static Derived newDerived(String name, int numChildren) {
+    Derived derived = new Derived();
+    derived.baseValue = numChildren;
+    derived.name = name;
+    derived.ints = new int[] {1, 2, numChildren};
+    for (int i = 0; i < numChildren; i++) {
+      derived.children.add(newDerived(name + i, 0));
+    }
+    return derived;
+  }
+
+  public void testCompactSerialization() {
+    CompactSerializationStrategy strategy = new CompactSerializationStrategy();
+    Derived derived = newDerived("yam", 3);
+    Blob blob = strategy.serialize(derived);
+    Derived result = (Derived) strategy.deserialize(blob, Base.class);
+    assertEquals(3, result.baseValue);
+    assertEquals("yam", result.name);
+    assertTrue(Arrays.equals(new int[] {1, 2, 3}, result.ints));
+    assertEquals(3, result.children.size());
+    assertEquals("yam2", result.children.get(2).name);
+
+    assertTrue(blob.getBytes().length <
+        SerializationManager.DEFAULT_SERIALIZATION_STRATEGY.serialize(derived).getBytes().length);
+
+    byte[] bytes = new byte[] {1, 2, 3};
+    assertTrue(Arrays.equals(bytes, (byte[]) strategy.deserialize(strategy.serialize(bytes), byte[].class)));
+  }
+
+  public void testCompactSerialization_WrongType() {
+    CompactSerializationStrategy strategy = new CompactSerializationStrategy();
+    try {
+      strategy.deserialize(strategy.serialize(new MySerializable1()), MySerializable2.class);
+      fail("Expected NucleusException");
+    } catch (NucleusException ne) {
+      // good
+    }
+    try {
+      // Not written by this strategy
+      strategy.deserialize(SerializationManager.DEFAULT_SERIALIZATION_STRATEGY.serialize("yar"), String.class);
+      fail("Expected NucleusException");
+    } catch (NucleusException ne) {
+      // good
+    }
+  }
+
+  public void testCompressedSerialization() {
+    CompressedSerializationStrategy strategy = new CompressedSerializationStrategy();
+    // Below the threshold so stored as is
+    Blob small = strategy.serialize("yar");
+    assertEquals("yar".length() + 8, small.getBytes().length);
+    assertEquals("yar", strategy.deserialize(small, String.class));
+
+    char[] chars = new char[10000];
+    Arrays.fill(chars, 'x');
+    String large = new String(chars);
+    Blob compressed = strategy.serialize(large);
+    assertTrue(compressed.getBytes().length < 200);
+    assertEquals(large, strategy.deserialize(compressed, String.class));
+    assertEquals(large, ((Text) strategy.deserialize(strategy.serialize(new Text(large)), Text.class)).getValue());
+
+    List<String> list = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      list.add("element");
+    }
+    Blob listBlob = strategy.serialize(list);
+    assertTrue(listBlob.getBytes().length <
+        SerializationManager.DEFAULT_SERIALIZATION_STRATEGY.serialize(list).getBytes().length);
+    assertEquals(list, strategy.deserialize(listBlob, List.class));
+
+    byte[] bytes = new byte[5000];
+    Arrays.fill(bytes, (byte) 3);
+    assertTrue(Arrays.equals(bytes, (byte[]) strategy.deserialize(strategy.serialize(bytes), byte[].class)));
+
+    // Written without the header
+    Blob uncompressed = SerializationManager.DEFAULT_SERIALIZATION_STRATEGY.serialize(list);
+    assertEquals(list, strategy.deserialize(uncompressed, List.class));
+
+    try {
+      strategy.deserialize(compressed, Integer.class);
+      fail("Expected NucleusException");
+    } catch (NucleusException ne) {
+      // good
+    }
+  }
+
+  public void testCompressedSerialization_IncompressibleValue() {
+    CompressedSerializationStrategy strategy = new CompressedSerializationStrategy(0, 9);
+    byte[] bytes = new byte[2000];
+    new Random(1).nextBytes(bytes);
+    Blob blob = strategy.serialize(bytes);
+    // Stored as is since deflating doesn't help
+    assertEquals(bytes.length + 8, blob.getBytes().length);
+    assertTrue(Arrays.equals(bytes, (byte[]) strategy.deserialize(blob, byte[].class)));
+  }
+
+  public void testCompressedSerialization_LegacyBytesLikeHeader() {
+    CompressedSerializationStrategy strategy = new CompressedSerializationStrategy();
+    // A byte array stored as is by the default strategy, starting like the header
+    byte[] legacy = new byte[] {(byte) 0xD7, 0x5A, 1, 0, 1, 2, 3, 4, 5, 6, 7, 8};
+    Blob blob = SerializationManager.DEFAULT_SERIALIZATION_STRATEGY.serialize(legacy);
+    assertFalse(CompressedSerializationStrategy.hasHeader(blob.getBytes()));
+    assertTrue(Arrays.equals(legacy, (byte[]) strategy.deserialize(blob, byte[].class)));
+
+    // Not recognised once the value following the header is changed
+    byte[] written = strategy.serialize("yar").getBytes();
+    assertTrue(CompressedSerializationStrategy.hasHeader(written));
+    written[written.length - 1]++;
+    assertFalse(CompressedSerializationStrategy.hasHeader(written));
+  }
+
+  public void testGetCompressedSerializer() {
+    SerializationManager mgr = new SerializationManager();
+    AbstractMemberMetaData ammd = new AbstractMemberMetaData(null, "yar") {
+      @Override
+      public ExtensionMetaData[] getExtensions() {
+        return new ExtensionMetaData[] {
+            new ExtensionMetaData("datanucleus", SerializationManager.SERIALIZATION_STRATEGY_KEY,
+                CompressedSerializationStrategy.class.getName()),
+            new ExtensionMetaData("datanucleus", CompressedSerializationStrategy.COMPRESSION_LEVEL_KEY, "9"),
+            new ExtensionMetaData("datanucleus", CompressedSerializationStrategy.COMPRESSION_THRESHOLD_KEY, "10")};
+      }
+
+      @Override
+      public String getValueForExtension(String key) {
+        for (ExtensionMetaData emd : getExtensions()) {
+          if (emd.getKey().equals(key)) {
+            return emd.getValue();
+          }
+        }
+        return null;
+      }
+    };
+    CompressedSerializationStrategy strategy =
+        (CompressedSerializationStrategy) mgr.getSerializationStrategy(new ClassLoaderResolverImpl(), ammd);
+    assertEquals(9, strategy.getLevel());
+    assertEquals(10, strategy.getThreshold());
+  }
+}
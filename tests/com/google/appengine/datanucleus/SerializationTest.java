@@ -18,14 +18,21 @@ package com.google.appengine.datanucleus;
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
 import com.google.appengine.datanucleus.jdo.JDOTestCase;
 import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasCompressedSerializableJDO;
+import com.google.appengine.datanucleus.test.jdo.HasLazySerializableJDO;
 import com.google.appengine.datanucleus.test.jdo.HasSerializableJDO;
 import com.google.apphosting.api.DatastorePb;
 
 import java.util.List;
 
+import javax.jdo.FetchPlan;
+import javax.jdo.JDOHelper;
+
 /**
  * Serialization tests.
  *
@@ -119,4 +126,126 @@ public class SerializationTest extends JDOTestCase {
     assertEquals(f.getOrigin(), f2.getOrigin());
     commitTxn();
   }
+
+  public void testCompressed() throws EntityNotFoundException {
+    StringBuilder description = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      description.append("a long and repetitive description ");
+    }
+    HasCompressedSerializableJDO pojo = new HasCompressedSerializableJDO();
+    pojo.setDescription(description.toString());
+    pojo.setText(new Text("short"));
+    pojo.setTags(Utils.newArrayList("a", "b"));
+    beginTxn();
+    pm.makePersistent(pojo);
+    commitTxn();
+
+    Entity e = ds.get(KeyFactory.createKey(kindForClass(HasCompressedSerializableJDO.class), pojo.getId()));
+    Blob descriptionBlob = (Blob) e.getProperty("description");
+    assertTrue(descriptionBlob.getBytes().length < description.length() / 10);
+    assertTrue(e.getProperty("text") instanceof Blob);
+    assertTrue(e.getProperty("tags") instanceof Blob);
+
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    beginTxn();
+    pojo = pm.getObjectById(HasCompressedSerializableJDO.class, pojo.getId());
+    assertEquals(description.toString(), pojo.getDescription());
+    assertEquals("short", pojo.getText().getValue());
+    assertEquals(Utils.newArrayList("a", "b"), pojo.getTags());
+    commitTxn();
+  }
+
+  private HasLazySerializableJDO persistLazy() {
+    HasLazySerializableJDO pojo = new HasLazySerializableJDO();
+    pojo.setName("name");
+    pojo.setCounted(new HasLazySerializableJDO.Counted("yar"));
+    beginTxn();
+    pm.makePersistent(pojo);
+    commitTxn();
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    HasLazySerializableJDO.Counted.NUM_DESERIALIZED.set(0);
+    return pojo;
+  }
+
+  public void testLazyDeserialization() {
+    persistLazy();
+    beginTxn();
+    List<HasLazySerializableJDO> results =
+        (List<HasLazySerializableJDO>) pm.newQuery(HasLazySerializableJDO.class).execute();
+    final HasLazySerializableJDO pojo = results.get(0);
+    assertEquals("name", pojo.getName());
+    assertEquals(0, HasLazySerializableJDO.Counted.NUM_DESERIALIZED.get());
+    // Deserialized from the Entity already read
+    assertEquals(0, RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        assertEquals("yar", pojo.getCounted().getStr());
+      }
+    }));
+    assertEquals(1, HasLazySerializableJDO.Counted.NUM_DESERIALIZED.get());
+    pojo.getCounted();
+    assertEquals(1, HasLazySerializableJDO.Counted.NUM_DESERIALIZED.get());
+    commitTxn();
+  }
+
+  public void testLazyDeserialization_UpdateOtherField() throws EntityNotFoundException {
+    HasLazySerializableJDO pojo = persistLazy();
+    Key key = KeyFactory.createKey(kindForClass(HasLazySerializableJDO.class), pojo.getId());
+    Blob before = (Blob) ds.get(key).getProperty("counted");
+    beginTxn();
+    pojo = ((List<HasLazySerializableJDO>) pm.newQuery(HasLazySerializableJDO.class).execute()).get(0);
+    pojo.setName("other name");
+    commitTxn();
+    assertEquals(0, HasLazySerializableJDO.Counted.NUM_DESERIALIZED.get());
+    Entity e = ds.get(key);
+    assertEquals("other name", e.getProperty("name"));
+    assertEquals(before, e.getProperty("counted"));
+  }
+
+  public void testLazyDeserialization_UpdateField() throws EntityNotFoundException {
+    HasLazySerializableJDO pojo = persistLazy();
+    beginTxn();
+    pojo = ((List<HasLazySerializableJDO>) pm.newQuery(HasLazySerializableJDO.class).execute()).get(0);
+    pojo.setCounted(new HasLazySerializableJDO.Counted("new yar"));
+    commitTxn();
+    Entity e = ds.get(KeyFactory.createKey(kindForClass(HasLazySerializableJDO.class), pojo.getId()));
+    HasLazySerializableJDO.Counted counted = (HasLazySerializableJDO.Counted)
+        SerializationManager.DEFAULT_SERIALIZATION_STRATEGY.deserialize((Blob) e.getProperty("counted"),
+            HasLazySerializableJDO.Counted.class);
+    assertEquals("new yar", counted.getStr());
+  }
+
+  public void testLazyDeserialization_Detach() {
+    persistLazy();
+    beginTxn();
+    // Loading fields on detach is the default, which deserializes the members not yet accessed
+    assertEquals(FetchPlan.DETACH_LOAD_FIELDS, pm.getFetchPlan().getDetachmentOptions());
+    HasLazySerializableJDO pojo =
+        ((List<HasLazySerializableJDO>) pm.newQuery(HasLazySerializableJDO.class).execute()).get(0);
+    pojo = pm.detachCopy(pojo);
+    commitTxn();
+    assertEquals("yar", pojo.getCounted().getStr());
+  }
+
+  public void testLazyDeserialization_DetachOnClose() {
+    persistLazy();
+    getExecutionContext().setProperty(JDOTestCase.PROP_DETACH_ON_CLOSE, true);
+    HasLazySerializableJDO pojo =
+        ((List<HasLazySerializableJDO>) pm.newQuery(HasLazySerializableJDO.class).execute()).get(0);
+    pm.close();
+    assertTrue(JDOHelper.isDetached(pojo));
+    assertEquals("yar", pojo.getCounted().getStr());
+  }
+
+  public void testLazyDeserialization_GetObjectById() {
+    HasLazySerializableJDO pojo = persistLazy();
+    beginTxn();
+    // Fetched along with the other members of the fetch plan, since DataNucleus asks for those being accessed
+    // the same way
+    pojo = pm.getObjectById(HasLazySerializableJDO.class, pojo.getId());
+    assertEquals(1, HasLazySerializableJDO.Counted.NUM_DESERIALIZED.get());
+    assertEquals("yar", pojo.getCounted().getStr());
+    commitTxn();
+  }
 }
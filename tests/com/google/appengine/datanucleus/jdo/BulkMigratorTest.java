@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.datanucleus.jdo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.identity.ObjectIdentity;
+
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.datanucleus.BulkMigrator;
+import com.google.appengine.datanucleus.Inner;
+import com.google.appengine.datanucleus.ParallelKindScan;
+import com.google.appengine.datanucleus.test.jdo.MigratorOneToManyChild;
+import com.google.appengine.datanucleus.test.jdo.MigratorOneToManyParent;
+import com.google.appengine.datanucleus.test.jdo.MigratorOneToOneChild;
+import com.google.appengine.datanucleus.test.jdo.MigratorOneToOneParent;
+
+/**
+ * Tests for the bulk migration of data from the StorageVersion "PARENTS_DO_NOT_REFER_TO_CHILDREN"
+ * to "READ_OWNED_CHILD_KEYS_FROM_PARENTS".
+ */
+@Inner("Solve the problem of lazy loading of classes; e.g. no SuperclassTableInheritanceJDO#ChildToParentWithoutDiscriminator")
+public class BulkMigratorTest extends JDOTestCase {
+
+  private PersistenceManagerFactory oldPMF;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    oldPMF = JDOHelper.getPersistenceManagerFactory("originalStorageVersion");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    oldPMF.close();
+    super.tearDown();
+  }
+
+  private BulkMigrator newMigrator(Class cls) {
+    return new BulkMigrator(((JDOPersistenceManagerFactory) oldPMF).getNucleusContext(), cls)
+        .setBatchSize(3).setPutBatchSize(2);
+  }
+
+  public void testMigrateOneToMany() throws EntityNotFoundException {
+    PersistenceManager oldPM = oldPMF.getPersistenceManager();
+    List<Key> parentKeys = new ArrayList<Key>();
+    List<List<Key>> childKeys = new ArrayList<List<Key>>();
+    for (int i = 0; i < 8; i++) {
+      MigratorOneToManyParent p = new MigratorOneToManyParent();
+      p.setName("Parent " + i);
+      for (int j = 0; j < i % 3; j++) {
+        MigratorOneToManyChild c = new MigratorOneToManyChild();
+        c.setName("Child " + j);
+        p.addChild(c);
+      }
+      oldPM.currentTransaction().begin();
+      oldPM.makePersistent(p);
+      oldPM.currentTransaction().commit();
+      parentKeys.add((Key) ((ObjectIdentity) oldPM.getObjectId(p)).getKey());
+      List<Key> keys = new ArrayList<Key>();
+      for (MigratorOneToManyChild c : p.getChildren()) {
+        keys.add((Key) ((ObjectIdentity) oldPM.getObjectId(c)).getKey());
+      }
+      childKeys.add(keys);
+    }
+    oldPM.close();
+
+    BulkMigrator migrator = newMigrator(MigratorOneToManyParent.class);
+    ParallelKindScan.Checkpoint checkpoint = migrator.migrate(migrator.split(2));
+    assertTrue(checkpoint.isComplete());
+    assertEquals(8, migrator.getProgress().getNumberOfEntitiesRead());
+    assertEquals(8, migrator.getProgress().getNumberOfEntitiesMigrated());
+    assertTrue(migrator.getProgress().getNumberOfChildQueries() <= 4);
+
+    for (int i = 0; i < parentKeys.size(); i++) {
+      Entity pEntity = ds.get(parentKeys.get(i));
+      assertTrue(pEntity.hasProperty("children"));
+      List<Key> stored = (List<Key>) pEntity.getProperty("children");
+      assertEquals(childKeys.get(i), stored == null ? new ArrayList<Key>() : stored);
+    }
+
+    // Entities now have their child keys, so a second migration has nothing to do
+    migrator = newMigrator(MigratorOneToManyParent.class);
+    migrator.migrate(migrator.split(1));
+    assertEquals(8, migrator.getProgress().getNumberOfEntitiesRead());
+    assertEquals(0, migrator.getProgress().getNumberOfEntitiesMigrated());
+    assertEquals(0, migrator.getProgress().getNumberOfPuts());
+  }
+
+  public void testMigrateOneToOne() throws EntityNotFoundException {
+    PersistenceManager oldPM = oldPMF.getPersistenceManager();
+    List<Key> parentKeys = new ArrayList<Key>();
+    List<Key> childKeys = new ArrayList<Key>();
+    for (int i = 0; i < 5; i++) {
+      MigratorOneToOneParent p = new MigratorOneToOneParent();
+      p.setName("Parent " + i);
+      MigratorOneToOneChild c = null;
+      if (i != 2) {
+        c = new MigratorOneToOneChild();
+        c.setName("Child " + i);
+        p.setChild(c);
+      }
+      oldPM.currentTransaction().begin();
+      oldPM.makePersistent(p);
+      oldPM.currentTransaction().commit();
+      parentKeys.add((Key) ((ObjectIdentity) oldPM.getObjectId(p)).getKey());
+      childKeys.add(c != null ? (Key) ((ObjectIdentity) oldPM.getObjectId(c)).getKey() : null);
+    }
+    oldPM.close();
+
+    BulkMigrator migrator = newMigrator(MigratorOneToOneParent.class);
+    migrator.migrate(migrator.split(1));
+    assertEquals(5, migrator.getProgress().getNumberOfEntitiesMigrated());
+    for (int i = 0; i < parentKeys.size(); i++) {
+      Entity pEntity = ds.get(parentKeys.get(i));
+      assertTrue(pEntity.hasProperty("child_id_OID"));
+      assertEquals(childKeys.get(i), pEntity.getProperty("child_id_OID"));
+    }
+  }
+
+  public void testClassWithoutRelations() {
+    PersistenceManager oldPM = oldPMF.getPersistenceManager();
+    MigratorOneToOneChild c = new MigratorOneToOneChild();
+    c.setName("Orphan");
+    oldPM.makePersistent(c);
+    oldPM.close();
+
+    BulkMigrator migrator = newMigrator(MigratorOneToOneChild.class);
+    migrator.migrate(migrator.split(1));
+    assertEquals(0, migrator.getProgress().getNumberOfEntitiesRead());
+    assertEquals(0, migrator.getProgress().getNumberOfPuts());
+  }
+}
@@ -56,8 +56,8 @@ public class JDOBatchDeleteTest extends JDOBatchTestCase {
     return new BatchRecorder(config) {
       boolean isBatchMethod(Method method) {
         return method.getName().equals("delete") && 
-          (method.getParameterTypes().length == 1 && Iterable.class.isAssignableFrom(method.getParameterTypes()[0])) ||
-          (method.getParameterTypes().length == 2 && Iterable.class.isAssignableFrom(method.getParameterTypes()[1]));
+          ((method.getParameterTypes().length == 1 && Iterable.class.isAssignableFrom(method.getParameterTypes()[0])) ||
+           (method.getParameterTypes().length == 2 && Iterable.class.isAssignableFrom(method.getParameterTypes()[1])));
       }
     };
   }
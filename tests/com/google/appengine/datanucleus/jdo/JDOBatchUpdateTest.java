@@ -0,0 +1,149 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.RpcAccounting;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.JDOOptimisticVerificationException;
+
+public class JDOBatchUpdateTest extends JDOTestCase {
+
+  private static final int NUM_FLIGHTS = 5;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (pm.currentTransaction().isActive()) {
+      pm.currentTransaction().rollback();
+    }
+    pm.close();
+    // Not one of the cached factories
+    pmf.close();
+    super.tearDown();
+  }
+
+  private void switchDatasource(boolean batchUpdates) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(DatastoreManager.FLUSH_BATCH_UPDATES_PROPERTY, Boolean.toString(batchUpdates));
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, props);
+  }
+
+  /**
+   * @return Detached copy of a persisted parent with its flights, with the parent and all flights changed
+   */
+  private HasOneToManyListJDO newChangedDetachedGraph() {
+    HasOneToManyListJDO parent = new HasOneToManyListJDO();
+    parent.setVal("yar");
+    for (int i = 0; i < NUM_FLIGHTS; i++) {
+      parent.addFlight(new Flight("bos", "mia", "harold" + i, i, i));
+    }
+    pm.makePersistent(parent);
+    pm.getFetchPlan().setGroup(FetchPlan.ALL);
+    HasOneToManyListJDO detached = pm.detachCopy(parent);
+    pm.close();
+
+    detached.setVal("yar2");
+    for (Flight flight : detached.getFlights()) {
+      flight.setName(flight.getName() + "2");
+    }
+    pm = pmf.getPersistenceManager();
+    return detached;
+  }
+
+  private int countRpcsAttaching(final HasOneToManyListJDO detached) {
+    return RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        pm.makePersistent(detached);
+      }
+    });
+  }
+
+  private void assertAttached(HasOneToManyListJDO detached) throws EntityNotFoundException {
+    Entity parentEntity = ds.get(KeyFactory.stringToKey(detached.getId()));
+    assertEquals("yar2", parentEntity.getProperty("val"));
+    for (Flight flight : detached.getFlights()) {
+      Entity flightEntity = ds.get(KeyFactory.stringToKey(flight.getId()));
+      assertTrue(((String) flightEntity.getProperty("name")).endsWith("2"));
+      assertEquals(2L, flightEntity.getProperty("VERSION"));
+    }
+  }
+
+  public void testAttachedGraphUpdatedTogether() throws EntityNotFoundException {
+    switchDatasource(false);
+    HasOneToManyListJDO detached = newChangedDetachedGraph();
+    int unbatchedRpcs = countRpcsAttaching(detached);
+    assertAttached(detached);
+    pm.close();
+    pmf.close();
+
+    switchDatasource(true);
+    detached = newChangedDetachedGraph();
+    int batchedRpcs = countRpcsAttaching(detached);
+    assertAttached(detached);
+    // A version check and a put per flight replaced by one get of all versions and one put of everything
+    assertEquals(unbatchedRpcs - 2 * NUM_FLIGHTS - 1 + 2, batchedRpcs);
+  }
+
+  public void testUpdateOfOneObjectInTransaction() {
+    switchDatasource(PersistenceManagerFactoryName.transactional);
+    Flight flight = new Flight("bos", "mia", "harold", 1, 2);
+    beginTxn();
+    pm.makePersistent(flight);
+    commitTxn();
+
+    beginTxn();
+    flight.setName("harold2");
+    commitTxn();
+    assertEquals("harold2", pm.getObjectById(Flight.class, flight.getId()).getName());
+  }
+
+  public void testConcurrentUpdateDetected() throws EntityNotFoundException {
+    switchDatasource(true);
+    HasOneToManyListJDO detached = newChangedDetachedGraph();
+    // Someone else updates one of the flights in the meantime
+    Flight updatedFlight = detached.getFlights().get(2);
+    Entity flightEntity = ds.get(KeyFactory.stringToKey(updatedFlight.getId()));
+    flightEntity.setProperty("name", "someone else");
+    flightEntity.setProperty("VERSION", 2L);
+    ds.put(flightEntity);
+
+    try {
+      pm.makePersistent(detached);
+      fail("expected optimistic exception");
+    } catch (JDOOptimisticVerificationException jove) {
+      // good
+    }
+    assertEquals("someone else",
+        ds.get(KeyFactory.stringToKey(updatedFlight.getId())).getProperty("name"));
+    // The stale flight was checked before anything was written, so only it was left out of the flush
+    assertEquals("yar2", ds.get(KeyFactory.stringToKey(detached.getId())).getProperty("val"));
+    for (Flight flight : detached.getFlights()) {
+      if (flight != updatedFlight) {
+        Entity otherEntity = ds.get(KeyFactory.stringToKey(flight.getId()));
+        assertTrue(((String) otherEntity.getProperty("name")).endsWith("2"));
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.datanucleus.CompositeIndexCollector;
+import com.google.appengine.datanucleus.CompositeIndexCollector.CompositeIndex;
+import com.google.appengine.datanucleus.CompositeIndexGenerator;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class JDOCompositeIndexTest extends JDOTestCase {
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (!pm.isClosed()) {
+      pm.close();
+    }
+    // Not one of the cached factories
+    if (!pmf.isClosed()) {
+      pmf.close();
+    }
+    super.tearDown();
+  }
+
+  private void runQueries() {
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    pm.newQuery(Flight.class, "origin == 'bos' && dest == 'mia'").execute();
+    javax.jdo.Query q = pm.newQuery(Flight.class, "you > 0");
+    q.setOrdering("you desc");
+    q.execute();
+    q = pm.newQuery(Flight.class, "origin == 'bos' && dest == 'mia'");
+    q.setOrdering("name asc");
+    q.execute();
+    q = pm.newQuery(Flight.class, "origin == 'bos'");
+    q.setOrdering("dest asc");
+    q.execute();
+  }
+
+  public void testShapesOfCompiledQueriesCollected() {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional,
+        Collections.singletonMap(DatastoreManager.COMPOSITE_INDEXES_PROPERTY, "true"));
+    CompositeIndexCollector collector = getDatastoreManagerForPM(pm).getCompositeIndexCollector();
+    assertNotNull(collector);
+    runQueries();
+
+    assertEquals(2, collector.getShapes().size());
+    // The index of the first query ordered to serve the second too
+    List<CompositeIndex> indexes = collector.getIndexes();
+    assertEquals(1, indexes.size());
+    assertEquals(kindForClass(Flight.class), indexes.get(0).getKind());
+    assertEquals(Arrays.asList(new SortPredicate("origin", SortDirection.ASCENDING),
+        new SortPredicate("dest", SortDirection.ASCENDING), new SortPredicate("name", SortDirection.ASCENDING)),
+        indexes.get(0).getProperties());
+  }
+
+  public void testShapesLoggedOnClose() throws Exception {
+    File log = File.createTempFile("query-shapes", ".log");
+    File xml = File.createTempFile("datastore-indexes", ".xml");
+    try {
+      log.delete();
+      switchDatasource(PersistenceManagerFactoryName.nontransactional,
+          Collections.singletonMap(DatastoreManager.COMPOSITE_INDEXES_LOG_PROPERTY, log.getAbsolutePath()));
+      runQueries();
+      pm.close();
+      pmf.close();
+      assertTrue(log.exists());
+
+      CompositeIndexGenerator generator = new CompositeIndexGenerator();
+      generator.addLog(log);
+      generator.addLog(log);
+      assertEquals(2, generator.getCollector().getShapes().size());
+      generator.write(xml, false);
+      assertTrue(xml.length() > 0);
+    } finally {
+      log.delete();
+      xml.delete();
+    }
+  }
+}
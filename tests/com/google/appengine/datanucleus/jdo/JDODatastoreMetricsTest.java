@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2013 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics;
+import com.google.appengine.datanucleus.DatastoreMetrics.Operation;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
+import com.google.appengine.datanucleus.DatastoreOperationStatistics;
+import com.google.appengine.datanucleus.DatastoreOperationStatistics.OperationStats;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+
+public class JDODatastoreMetricsTest extends JDOTestCase {
+
+  private DatastoreOperationStatistics stats;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    switchDatasource(PersistenceManagerFactoryName.transactional,
+        Collections.singletonMap(DatastoreManager.DATASTORE_METRICS_PROPERTY, "true"));
+    stats = getDatastoreManagerForPM(pm).getDatastoreOperationStatistics();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    pm.close();
+    // Not one of the cached factories, and closing it stops the recording
+    pmf.close();
+    super.tearDown();
+  }
+
+  private OperationStats getStats(Path path, Operation op, String kind) {
+    for (OperationStats opStats : stats.getSnapshot()) {
+      if (opStats.getPath() == path && opStats.getOperation() == op &&
+          (kind == null ? opStats.getKind() == null : kind.equals(opStats.getKind()))) {
+        return opStats;
+      }
+    }
+    return null;
+  }
+
+  public void testCallsAttributedToPaths() {
+    String kind = kindForClass(Flight.class);
+    Flight f = makePersistentInTxn(new Flight("bos", "mia", "harold", 1, 2), TXN_START_END);
+    OperationStats inserts = getStats(Path.INSERT, Operation.PUT, kind);
+    assertNotNull(inserts);
+    assertEquals(1, inserts.getCalls());
+    assertEquals(1, inserts.getEntities());
+    assertEquals(0, inserts.getFailures());
+    assertEquals(1, stats.getCalls(Operation.BEGIN_TRANSACTION));
+
+    String id = f.getId();
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    beginTxn();
+    pm.getObjectById(Flight.class, id);
+    commitTxn();
+    OperationStats fetches = getStats(Path.FETCH, Operation.GET, kind);
+    assertNotNull(fetches);
+    assertEquals(1, fetches.getCalls());
+
+    Query q = pm.newQuery(Flight.class);
+    List<Flight> flights = (List<Flight>) q.execute();
+    assertEquals(1, flights.size());
+    assertEquals(1, getStats(Path.QUERY, Operation.QUERY, kind).getCalls());
+
+    beginTxn();
+    pm.deletePersistent(pm.getObjectById(Flight.class, id));
+    commitTxn();
+    assertEquals(1, getStats(Path.DELETE, Operation.DELETE, kind).getCalls());
+
+    assertEquals(0, stats.getTotalFailures());
+    assertEquals(stats.getTotalCalls(), stats.getCalls(Path.INSERT) + stats.getCalls(Path.FETCH) +
+        stats.getCalls(Path.QUERY) + stats.getCalls(Path.DELETE) + stats.getCalls(Path.OTHER));
+  }
+
+  public void testQueryRecordedWhenRun() {
+    String kind = kindForClass(Flight.class);
+    makePersistentInTxn(new Flight("bos", "mia", "harold", 1, 2), TXN_START_END);
+    DatastoreService ds =
+        getStoreManager().getDatastoreServiceForReads(((JDOPersistenceManager) pm).getExecutionContext());
+    PreparedQuery pq = ds.prepare(new com.google.appengine.api.datastore.Query(kind));
+    assertNull(getStats(Path.OTHER, Operation.QUERY, kind));
+
+    Iterable<Entity> iterable = pq.asIterable();
+    assertNull(getStats(Path.OTHER, Operation.QUERY, kind));
+    assertTrue(iterable.iterator().hasNext());
+    assertTrue(iterable.iterator().hasNext());
+    OperationStats queries = getStats(Path.OTHER, Operation.QUERY, kind);
+    assertEquals(2, queries.getCalls());
+    assertEquals(0, queries.getEntities());
+
+    assertNotNull(pq.asSingleEntity());
+    queries = getStats(Path.OTHER, Operation.QUERY, kind);
+    assertEquals(3, queries.getCalls());
+    assertEquals(1, queries.getEntities());
+    long timed = 0;
+    for (long count : queries.getLatencyHistogram()) {
+      timed += count;
+    }
+    assertEquals(3, timed);
+  }
+
+  public void testKeysIteratedOnce() {
+    String kind = kindForClass(Flight.class);
+    Flight f = makePersistentInTxn(new Flight("bos", "mia", "harold", 1, 2), TXN_START_END);
+    DatastoreService ds =
+        getStoreManager().getDatastoreServiceForReads(((JDOPersistenceManager) pm).getExecutionContext());
+    final Iterator<Key> keys = Collections.singletonList(KeyFactory.stringToKey(f.getId())).iterator();
+    Iterable<Key> onlyOnce = new Iterable<Key>() {
+      public Iterator<Key> iterator() {
+        return keys;
+      }
+    };
+    assertEquals(1, ds.get(onlyOnce).size());
+    OperationStats gets = getStats(Path.OTHER, Operation.GET, kind);
+    assertEquals(1, gets.getCalls());
+    assertEquals(1, gets.getEntities());
+  }
+
+  public void testLatencyHistogram() {
+    makePersistentInTxn(new Flight("bos", "mia", "harold", 1, 2), TXN_START_END);
+    OperationStats inserts = getStats(Path.INSERT, Operation.PUT, kindForClass(Flight.class));
+    long[] histogram = inserts.getLatencyHistogram();
+    assertEquals(stats.getLatencyBucketBoundsMillis().length + 1, histogram.length);
+    long timed = 0;
+    for (long count : histogram) {
+      timed += count;
+    }
+    assertEquals(inserts.getCalls(), timed);
+    assertTrue(inserts.getMaxLatencyMillis() >= inserts.getMeanLatencyMillis());
+  }
+
+  public void testKeyRegistryOccupancy() {
+    HasOneToManyListJDO parent = new HasOneToManyListJDO();
+    parent.addFlight(new Flight("bos", "mia", "harold", 1, 2));
+    parent.addFlight(new Flight("bos", "mia", "harold", 1, 2));
+    makePersistentInTxn(parent, TXN_START_END);
+    assertTrue(stats.getKeyRegistryClears() > 0);
+    assertTrue(stats.getKeyRegistryMaxEntries() >= 2);
+    assertTrue(stats.getKeyRegistryEntries() >= stats.getKeyRegistryMaxEntries());
+  }
+
+  public void testFailuresRecorded() {
+    final String kind = kindForClass(Flight.class);
+    DatastoreMetrics.Listener listener = new DatastoreMetrics.Listener() {
+      public void callCompleted(Path path, Operation op, String k, int numEntities, long elapsedNanos,
+          boolean failed) {
+        throw new RuntimeException("Listener failures must not break persistence");
+      }
+    };
+    getStoreManager().getDatastoreMetrics().addListener(listener);
+    try {
+      beginTxn();
+      try {
+        // Entity groups differ so the second put in the txn fails
+        pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+        pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+        commitTxn();
+        fail("expected exception");
+      } catch (RuntimeException e) {
+        // expected
+        rollbackTxn();
+      }
+    } finally {
+      getStoreManager().getDatastoreMetrics().removeListener(listener);
+    }
+    assertEquals(1, getStats(Path.INSERT, Operation.PUT, kind).getFailures());
+  }
+
+  public void testCommitAndRollbackRecorded() {
+    Flight f = makePersistentInTxn(new Flight("bos", "mia", "harold", 1, 2), TXN_START_END);
+    assertEquals(1, stats.getCalls(Operation.COMMIT));
+
+    beginTxn();
+    pm.getObjectById(Flight.class, f.getId());
+    rollbackTxn();
+    assertEquals(1, stats.getCalls(Operation.ROLLBACK));
+
+    // Never begun, so nothing is committed
+    beginTxn();
+    commitTxn();
+    assertEquals(1, stats.getCalls(Operation.COMMIT));
+    assertEquals(0, stats.getTotalFailures());
+  }
+
+  public void testCallsOfOtherFactoriesNotCounted() {
+    PersistenceManagerFactory otherPmf = JDOHelper.getPersistenceManagerFactory(
+        Collections.singletonMap(DatastoreManager.DATASTORE_METRICS_PROPERTY, "true"),
+        PersistenceManagerFactoryName.transactional.name());
+    PersistenceManager otherPm = otherPmf.getPersistenceManager();
+    try {
+      DatastoreOperationStatistics otherStats = getDatastoreManagerForPM(otherPm).getDatastoreOperationStatistics();
+      assertNotSame(stats, otherStats);
+      otherPm.currentTransaction().begin();
+      otherPm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+      otherPm.currentTransaction().commit();
+      assertTrue(otherStats.getCalls(Operation.PUT) > 0);
+      assertEquals(0, stats.getTotalCalls());
+    } finally {
+      otherPm.close();
+      otherPmf.close();
+    }
+  }
+
+  public void testStatisticsNotEnabledByDefault() {
+    PersistenceManagerFactory defaultPmf =
+        JDOHelper.getPersistenceManagerFactory(PersistenceManagerFactoryName.nontransactional.name());
+    PersistenceManager defaultPm = defaultPmf.getPersistenceManager();
+    try {
+      assertNull(getDatastoreManagerForPM(defaultPm).getDatastoreOperationStatistics());
+    } finally {
+      defaultPm.close();
+      defaultPmf.close();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.EntityUtils;
+import com.google.appengine.datanucleus.RpcAccounting;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasEntityCacheJDO;
+
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.jdo.JDOObjectNotFoundException;
+
+public class JDOEntityCacheTest extends JDOTestCase {
+
+  @Override
+  protected PersistenceManagerFactoryName getPersistenceManagerFactoryName() {
+    return PersistenceManagerFactoryName.nontransactional;
+  }
+
+  private Long persist(String name) {
+    Long id = pm.makePersistent(new HasEntityCacheJDO(name)).getId();
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    return id;
+  }
+
+  private String getName(Long id) {
+    String name = pm.getObjectById(HasEntityCacheJDO.class, id).getName();
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    return name;
+  }
+
+  private void putDirectly(Long id, String name) {
+    Entity e = new Entity(KeyFactory.createKey(kindForClass(HasEntityCacheJDO.class), id));
+    e.setProperty("name", name);
+    ds.put(e);
+  }
+
+  public void testGetByKeyUsesCache() {
+    final Long id = persist("first");
+    assertEquals(1, RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        assertEquals("first", getName(id));
+      }
+    }));
+    assertEquals(0, RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        assertEquals("first", getName(id));
+      }
+    }));
+  }
+
+  public void testGetOfManyKeysUsesCache() {
+    Long id = persist("first");
+    assertEquals("first", getName(id));
+    putDirectly(id, "second");
+    Key key = KeyFactory.createKey(kindForClass(HasEntityCacheJDO.class), id);
+    Key flightKey = KeyFactory.stringToKey(pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2)).getId());
+    Map<Key, Entity> entities = EntityUtils.getEntitiesOutsideTransaction(ds, Arrays.asList(key, flightKey),
+        ((JDOPersistenceManager) pm).getExecutionContext());
+    // Taken from the cache, as a get of the one key would be, while the uncached kind is retrieved
+    assertEquals("first", entities.get(key).getProperty("name"));
+    assertEquals("harold", entities.get(flightKey).getProperty("name"));
+  }
+
+  public void testUncachedKindNotCached() {
+    final String id = pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2)).getId();
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    pm.getObjectById(Flight.class, id);
+    assertEquals(1, RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        pm.getObjectById(Flight.class, id).getName();
+      }
+    }));
+  }
+
+  public void testUpdateInvalidates() {
+    Long id = persist("first");
+    assertEquals("first", getName(id));
+    pm.getObjectById(HasEntityCacheJDO.class, id).setName("second");
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    assertEquals("second", getName(id));
+  }
+
+  public void testDeleteInvalidates() {
+    Long id = persist("first");
+    assertEquals("first", getName(id));
+    pm.deletePersistent(pm.getObjectById(HasEntityCacheJDO.class, id));
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    try {
+      pm.getObjectById(HasEntityCacheJDO.class, id);
+      fail("expected exception");
+    } catch (JDOObjectNotFoundException e) {
+      // expected
+    }
+  }
+
+  public void testTransactionalReadBypassesCache() {
+    Long id = persist("first");
+    assertEquals("first", getName(id));
+    // Not written through the plugin so the cache isn't invalidated
+    putDirectly(id, "second");
+    assertEquals("first", getName(id));
+    // This one begins datastore transactions
+    switchDatasource(PersistenceManagerFactoryName.transactional);
+    beginTxn();
+    assertEquals("second", pm.getObjectById(HasEntityCacheJDO.class, id).getName());
+    commitTxn();
+  }
+
+  public void testTransactionalWriteInvalidates() {
+    Long id = persist("first");
+    assertEquals("first", getName(id));
+    switchDatasource(PersistenceManagerFactoryName.transactional);
+    beginTxn();
+    pm.getObjectById(HasEntityCacheJDO.class, id).setName("second");
+    commitTxn();
+    switchDatasource(PersistenceManagerFactoryName.nontransactional);
+    assertEquals("second", getName(id));
+  }
+}
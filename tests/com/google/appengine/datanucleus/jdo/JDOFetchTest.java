@@ -16,8 +16,11 @@ limitations under the License.
 package com.google.appengine.datanucleus.jdo;
 
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.datanucleus.DatastoreManager;
 import com.google.appengine.datanucleus.DatastoreServiceInterceptor;
 import com.google.appengine.datanucleus.Utils;
 import com.google.appengine.datanucleus.WriteBlocker;
@@ -31,6 +34,7 @@ import com.google.appengine.datanucleus.test.jdo.Person;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.identity.StringIdentity;
@@ -507,4 +511,44 @@ public class JDOFetchTest extends JDOTestCase {
     assertEquals(1, flight.getYou());
     assertEquals(2, flight.getMe());
   }
+
+  public void testLowLevelCodeJoinsTxnOnceBegun() {
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    // The datastore txn is only begun by the first get, so low-level code can't see it before
+    assertNull(ds.getCurrentTransaction(null));
+    pm.getObjectById(Flight.class, KeyFactory.keyToString(key));
+    Transaction txn = ds.getCurrentTransaction(null);
+    assertNotNull(txn);
+    Entity child = new Entity("Child", key);
+    ds.put(txn, child);
+    rollbackTxn();
+    assertFalse(txn.isActive());
+    try {
+      ds.get(child.getKey());
+      fail("expected enfe");
+    } catch (EntityNotFoundException e) {
+      // good, rolled back with the JDO txn
+    }
+  }
+
+  public void testLowLevelCodeJoinsTxn_BeginEagerly() {
+    rollbackTxn();
+    Map<String, String> props = Utils.newHashMap();
+    props.put(DatastoreManager.BEGIN_TRANSACTIONS_EAGERLY_PROPERTY, Boolean.TRUE.toString());
+    switchDatasource(PersistenceManagerFactoryName.transactional, props);
+    Key key = ds.put(Flight.newFlightEntity("1", "yam", "bam", 1, 2));
+    beginTxn();
+    Transaction txn = ds.getCurrentTransaction(null);
+    assertNotNull(txn);
+    Entity child = new Entity("Child", key);
+    ds.put(txn, child);
+    rollbackTxn();
+    assertFalse(txn.isActive());
+    try {
+      ds.get(child.getKey());
+      fail("expected enfe");
+    } catch (EntityNotFoundException e) {
+      // good, rolled back with the JDO txn
+    }
+  }
 }
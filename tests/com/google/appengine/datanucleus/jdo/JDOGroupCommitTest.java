@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics;
+import com.google.appengine.datanucleus.test.jdo.HasGroupCommitJDO;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jdo.PersistenceManager;
+
+public class JDOGroupCommitTest extends JDOTestCase {
+
+  private static final int NUM_THREADS = 8;
+
+  @Override
+  protected void tearDown() throws Exception {
+    pm.close();
+    // Not one of the cached factories
+    pmf.close();
+    super.tearDown();
+  }
+
+  private void switchDatasource(int maxBatchSize, int maxDelayMillis) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(DatastoreManager.GROUP_COMMIT_MAX_BATCH_SIZE_PROPERTY, Integer.toString(maxBatchSize));
+    props.put(DatastoreManager.GROUP_COMMIT_MAX_DELAY_PROPERTY, Integer.toString(maxDelayMillis));
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, props);
+  }
+
+  public void testPut() throws EntityNotFoundException {
+    switchDatasource(100, 5);
+    HasGroupCommitJDO pojo = pm.makePersistent(new HasGroupCommitJDO("yar"));
+    assertNotNull(pojo.getId());
+    assertEquals("yar",
+        ds.get(KeyFactory.createKey(kindForClass(HasGroupCommitJDO.class), pojo.getId())).getProperty("name"));
+  }
+
+  public void testConcurrentPutsCoalesced() throws Exception {
+    // Long enough that the batch only goes once full
+    switchDatasource(NUM_THREADS, 10000);
+    final AtomicInteger numPuts = new AtomicInteger();
+    DatastoreMetrics.Listener listener = new DatastoreMetrics.Listener() {
+      public void callCompleted(DatastoreMetrics.Path path, DatastoreMetrics.Operation op, String kind,
+          int numEntities, long elapsedNanos, boolean failed) {
+        if (op == DatastoreMetrics.Operation.PUT) {
+          numPuts.incrementAndGet();
+        }
+      }
+    };
+    final ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    getStoreManager().getDatastoreMetrics().addListener(listener);
+    try {
+      List<Future<Long>> futures = new ArrayList<Future<Long>>();
+      for (int i = 0; i < NUM_THREADS; i++) {
+        final String name = "name" + i;
+        futures.add(executor.submit(new Callable<Long>() {
+          public Long call() throws Exception {
+            ApiProxy.setEnvironmentForCurrentThread(env);
+            try {
+              start.await();
+              PersistenceManager threadPm = pmf.getPersistenceManager();
+              try {
+                return threadPm.makePersistent(new HasGroupCommitJDO(name)).getId();
+              } finally {
+                threadPm.close();
+              }
+            } finally {
+              ApiProxy.clearEnvironmentForCurrentThread();
+            }
+          }
+        }));
+      }
+      start.countDown();
+      Set<Long> ids = new HashSet<Long>();
+      for (int i = 0; i < NUM_THREADS; i++) {
+        Long id = futures.get(i).get();
+        ids.add(id);
+        // Each thread got the key of its own entity
+        assertEquals("name" + i,
+            ds.get(KeyFactory.createKey(kindForClass(HasGroupCommitJDO.class), id)).getProperty("name"));
+      }
+      assertEquals(NUM_THREADS, ids.size());
+      assertEquals(1, numPuts.get());
+    } finally {
+      getStoreManager().getDatastoreMetrics().removeListener(listener);
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.IndexUsageRecorder;
+import com.google.appengine.datanucleus.IndexUsageRecorder.UnqueriedProperty;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.Query;
+
+public class JDOIndexUsageTest extends JDOTestCase {
+
+  @Override
+  protected void tearDown() throws Exception {
+    pm.close();
+    // Not one of the cached factories
+    pmf.close();
+    super.tearDown();
+  }
+
+  private UnqueriedProperty getUnqueried(IndexUsageRecorder recorder, String kind, String propertyName) {
+    for (UnqueriedProperty property : recorder.getUnqueriedProperties()) {
+      if (property.getKind().equals(kind) && property.getPropertyName().equals(propertyName)) {
+        return property;
+      }
+    }
+    return null;
+  }
+
+  public void testUnqueriedPropertiesReported() {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional,
+        Collections.singletonMap(DatastoreManager.INDEX_USAGE_PROPERTY, "true"));
+    IndexUsageRecorder recorder = getDatastoreManagerForPM(pm).getIndexUsageRecorder();
+    assertNotNull(recorder);
+    String kind = kindForClass(Flight.class);
+
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    pm.makePersistent(new Flight("bos", "sfo", "harold", 3, 4));
+    pm.makePersistent(new Flight("lax", "sfo", "jimmy", 5, 6));
+    Query q = pm.newQuery(Flight.class, "origin == :o");
+    q.setOrdering("you desc");
+    @SuppressWarnings("unchecked")
+    List<Flight> flights = (List<Flight>) q.execute("bos");
+    assertEquals(2, flights.size());
+
+    assertNull(getUnqueried(recorder, kind, "origin"));
+    assertNull(getUnqueried(recorder, kind, "you"));
+    UnqueriedProperty name = getUnqueried(recorder, kind, "name");
+    assertNotNull(name);
+    assertEquals(3, name.getPuts());
+    assertEquals(3, name.getIndexedValues());
+    assertEquals(6, name.getEstimatedIndexWrites());
+    assertNotNull(getUnqueried(recorder, kind, "dest"));
+    assertNotNull(getUnqueried(recorder, kind, "flight_number"));
+    assertTrue(recorder.getReport(), recorder.getReport().contains(kind + ".name"));
+    assertFalse(recorder.getReport(), recorder.getReport().contains(kind + ".origin"));
+
+    recorder.reset();
+    assertTrue(recorder.getUnqueriedProperties().isEmpty());
+  }
+
+  public void testRecorderDisabledByDefault() {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, Collections.<String, String>emptyMap());
+    assertNull(getDatastoreManagerForPM(pm).getIndexUsageRecorder());
+  }
+
+  public void testListedPropertiesWrittenUnindexed() throws EntityNotFoundException {
+    String kind = kindForClass(Flight.class);
+    Map<String, String> props =
+        Collections.singletonMap(DatastoreManager.UNINDEXED_PROPERTIES_PROPERTY, kind + ".dest, " + kind + ".me");
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, props);
+    Flight f = new Flight("bos", "mia", "harold", 1, 2);
+    pm.makePersistent(f);
+
+    Entity entity = ds.get(KeyFactory.stringToKey(f.getId()));
+    assertEquals("mia", entity.getProperty("dest"));
+    assertTrue(entity.isUnindexedProperty("dest"));
+    assertTrue(entity.isUnindexedProperty("me"));
+    assertFalse(entity.isUnindexedProperty("origin"));
+    assertFalse(entity.isUnindexedProperty("name"));
+
+    // Still unindexed once updated
+    f.setDest("sfo");
+    pm.close();
+    entity = ds.get(KeyFactory.stringToKey(f.getId()));
+    assertEquals("sfo", entity.getProperty("dest"));
+    assertTrue(entity.isUnindexedProperty("dest"));
+    pm = pmf.getPersistenceManager();
+  }
+}
@@ -1560,6 +1560,22 @@ abstract class JDOOneToManyPolymorphicTestCase extends JDOTestCase {
         putParamList.add(params);
       }
     }
+
+    /** Number of entities put, counting each entity of a batch put (as made for the updates of a flush). */
+    int countEntitiesPut() {
+      int num = 0;
+      for (Object[] params : putParamList) {
+        Object entities = params[params.length - 1];
+        if (entities instanceof Iterable) {
+          for (Object entity : (Iterable<?>) entities) {
+            num++;
+          }
+        } else {
+          num++;
+        }
+      }
+      return num;
+    }
   }
 
   PutPolicy setupPutPolicy(HasOneToManyJDO pojo, BidirectionalSuperclassTableChildJDO.BidirTop bidir, StartEnd startEnd)
@@ -1599,8 +1615,8 @@ abstract class JDOOneToManyPolymorphicTestCase extends JDOTestCase {
     } finally {
       DatastoreServiceInterceptor.uninstall();
     }
-    // 1 put for each child update
-    assertEquals(2, policy.putParamList.size());
+    // each child put once
+    assertEquals(2, policy.countEntitiesPut());
   }
 
   void testOnlyOneParentPutOnParentAndChildUpdate(HasOneToManyJDO pojo, BidirectionalSuperclassTableChildJDO.BidirTop bidir, StartEnd startEnd)
@@ -1616,8 +1632,8 @@ abstract class JDOOneToManyPolymorphicTestCase extends JDOTestCase {
     } finally {
       DatastoreServiceInterceptor.uninstall();
     }
-    // 1 put for the parent update, 1 put for each child update
-    assertEquals(3, policy.putParamList.size());
+    // the parent put once, each child put once
+    assertEquals(3, policy.countEntitiesPut());
   }
 
   void testOnlyOneParentPutOnChildDelete(HasOneToManyJDO pojo, BidirectionalSuperclassTableChildJDO.BidirTop bidir, StartEnd startEnd)
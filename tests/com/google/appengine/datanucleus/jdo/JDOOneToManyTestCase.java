@@ -1501,6 +1501,22 @@ abstract class JDOOneToManyTestCase extends JDOTestCase {
         putParamList.add(params);
       }
     }
+
+    /** Number of entities put, counting each entity of a batch put (as made for the updates of a flush). */
+    int countEntitiesPut() {
+      int num = 0;
+      for (Object[] params : putParamList) {
+        Object entities = params[params.length - 1];
+        if (entities instanceof Iterable) {
+          for (Object entity : (Iterable<?>) entities) {
+            num++;
+          }
+        } else {
+          num++;
+        }
+      }
+      return num;
+    }
   }
 
   PutPolicy setupPutPolicy(HasOneToManyJDO pojo, BidirectionalChildJDO bidir, StartEnd startEnd)
@@ -1543,8 +1559,8 @@ abstract class JDOOneToManyTestCase extends JDOTestCase {
     } finally {
       DatastoreServiceInterceptor.uninstall();
     }
-    // 1 put for each child update
-    assertEquals(3, policy.putParamList.size());
+    // each child put once
+    assertEquals(3, policy.countEntitiesPut());
   }
 
   void testOnlyOneParentPutOnParentAndChildUpdate(HasOneToManyJDO pojo, BidirectionalChildJDO bidir, StartEnd startEnd)
@@ -1561,8 +1577,8 @@ abstract class JDOOneToManyTestCase extends JDOTestCase {
     } finally {
       DatastoreServiceInterceptor.uninstall();
     }
-    // 1 put for the parent update, 1 put for each child update
-    assertEquals(4, policy.putParamList.size());
+    // the parent put once, each child put once
+    assertEquals(4, policy.countEntitiesPut());
   }
 
   void testOnlyOneParentPutOnChildDelete(HasOneToManyJDO pojo, BidirectionalChildJDO bidir, StartEnd startEnd)
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.datanucleus.PackedArrays;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.test.jdo.HasPackedArraysJDO;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class JDOPackedArraysTest extends JDOTestCase {
+
+  @Override
+  protected PersistenceManagerFactoryName getPersistenceManagerFactoryName() {
+    return PersistenceManagerFactoryName.nontransactional;
+  }
+
+  private HasPackedArraysJDO persistAndReload(HasPackedArraysJDO pojo) {
+    Long id = pm.makePersistent(pojo).getId();
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    return pm.getObjectById(HasPackedArraysJDO.class, id);
+  }
+
+  public void testRoundTrip() throws EntityNotFoundException {
+    HasPackedArraysJDO pojo = new HasPackedArraysJDO();
+    pojo.setLongs(new long[] {Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE});
+    pojo.setDoubles(new double[] {-1.5, 0, Math.PI, Double.NaN});
+    pojo.setIntegers(new Integer[] {3, 2, 1});
+    pojo.setLongList(Utils.newArrayList(5L, 6L, 7L));
+    pojo.setFloatSet(Utils.newHashSet(1.5f, 2.5f));
+    pojo = persistAndReload(pojo);
+
+    Entity e = ds.get(KeyFactory.createKey(kindForClass(HasPackedArraysJDO.class), pojo.getId()));
+    for (String property : Arrays.asList("longs", "doubles", "integers", "longList", "floatSet")) {
+      assertTrue(property, e.getProperty(property) instanceof Blob);
+      assertTrue(property, e.isUnindexedProperty(property));
+    }
+    // Header plus 8 bytes per element
+    assertEquals(4 + 5 * 8, ((Blob) e.getProperty("longs")).getBytes().length);
+
+    assertTrue(Arrays.equals(new long[] {Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE}, pojo.getLongs()));
+    assertTrue(Arrays.equals(new double[] {-1.5, 0, Math.PI, Double.NaN}, pojo.getDoubles()));
+    assertTrue(Arrays.equals(new Integer[] {3, 2, 1}, pojo.getIntegers()));
+    assertEquals(Utils.newArrayList(5L, 6L, 7L), pojo.getLongList());
+    assertEquals(Utils.newHashSet(1.5f, 2.5f), pojo.getFloatSet());
+  }
+
+  public void testEmpty() {
+    HasPackedArraysJDO pojo = new HasPackedArraysJDO();
+    pojo.setLongs(new long[0]);
+    pojo.setLongList(Utils.<Long>newArrayList());
+    pojo = persistAndReload(pojo);
+    assertEquals(0, pojo.getLongs().length);
+    assertTrue(pojo.getLongList().isEmpty());
+  }
+
+  public void testNullElementsNotPacked() throws EntityNotFoundException {
+    HasPackedArraysJDO pojo = new HasPackedArraysJDO();
+    pojo.setIntegers(new Integer[] {3, null, 1});
+    pojo = persistAndReload(pojo);
+
+    Entity e = ds.get(KeyFactory.createKey(kindForClass(HasPackedArraysJDO.class), pojo.getId()));
+    assertTrue(e.getProperty("integers") instanceof List);
+    assertTrue(Arrays.equals(new Integer[] {3, null, 1}, pojo.getIntegers()));
+  }
+
+  public void testReadMultiValuedProperties() {
+    // As written before the members were packed
+    Entity e = new Entity(kindForClass(HasPackedArraysJDO.class));
+    e.setProperty("longs", Utils.newArrayList(1L, 2L));
+    e.setProperty("doubles", Utils.newArrayList(1.5d));
+    e.setProperty("integers", Utils.newArrayList(4L));
+    e.setProperty("longList", Utils.newArrayList(5L, 6L));
+    e.setProperty("floatSet", Utils.newArrayList(2.5d));
+    ds.put(e);
+
+    HasPackedArraysJDO pojo = pm.getObjectById(HasPackedArraysJDO.class, e.getKey().getId());
+    assertTrue(Arrays.equals(new long[] {1, 2}, pojo.getLongs()));
+    assertTrue(Arrays.equals(new double[] {1.5}, pojo.getDoubles()));
+    assertTrue(Arrays.equals(new Integer[] {4}, pojo.getIntegers()));
+    assertEquals(Utils.newArrayList(5L, 6L), pojo.getLongList());
+    assertEquals(Utils.newHashSet(2.5f), pojo.getFloatSet());
+  }
+
+  public void testReadOtherElementType() {
+    // As written when the members had other element types
+    Entity e = new Entity(kindForClass(HasPackedArraysJDO.class));
+    e.setUnindexedProperty("longs", PackedArrays.pack(new int[] {-1, 2}));
+    e.setUnindexedProperty("doubles", PackedArrays.pack(new float[] {1.5f}));
+    e.setUnindexedProperty("longList", PackedArrays.pack(new short[] {7}));
+    ds.put(e);
+
+    HasPackedArraysJDO pojo = pm.getObjectById(HasPackedArraysJDO.class, e.getKey().getId());
+    assertTrue(Arrays.equals(new long[] {-1, 2}, pojo.getLongs()));
+    assertTrue(Arrays.equals(new double[] {1.5}, pojo.getDoubles()));
+    assertEquals(Utils.newArrayList(7L), pojo.getLongList());
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.datanucleus.BackgroundExecutor;
+import com.google.appengine.datanucleus.JDODatastoreBridge;
+import com.google.appengine.datanucleus.ParallelKindScan;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JDOParallelKindScanTest extends JDOTestCase {
+
+  private Set<Key> putFlights(int num) {
+    Set<Key> keys = new HashSet<Key>();
+    for (int i = 0; i < num; i++) {
+      keys.add(ds.put(Flight.newFlightEntity("harold" + i, "bos", "mia", 23, 24)));
+    }
+    return keys;
+  }
+
+  private ParallelKindScan newScan() {
+    return new JDODatastoreBridge().newParallelKindScan(pm, Flight.class).setBatchSize(7);
+  }
+
+  public void testScanVisitsEveryEntityOnce() {
+    Set<Key> keys = putFlights(50);
+    final List<Key> seen = Collections.synchronizedList(new ArrayList<Key>());
+    ParallelKindScan scan = newScan();
+    ParallelKindScan.Checkpoint checkpoint = scan.split(4);
+    assertTrue(checkpoint.getNumberOfRanges() > 1);
+    scan.execute(checkpoint, new ParallelKindScan.EntityBatchConsumer() {
+      public void consume(List<Entity> batch) {
+        for (Entity e : batch) {
+          seen.add(e.getKey());
+        }
+      }
+    });
+    assertTrue(checkpoint.isComplete());
+    assertEquals(50, checkpoint.getNumberOfEntitiesScanned());
+    assertEquals(50, seen.size());
+    assertEquals(keys, new HashSet<Key>(seen));
+  }
+
+  public void testEmptyKind() {
+    ParallelKindScan scan = newScan();
+    ParallelKindScan.Checkpoint checkpoint = scan.split(4);
+    assertEquals(1, checkpoint.getNumberOfRanges());
+    scan.execute(checkpoint, new ParallelKindScan.EntityBatchConsumer() {
+      public void consume(List<Entity> batch) {
+        fail("No entities expected");
+      }
+    });
+    assertTrue(checkpoint.isComplete());
+  }
+
+  private static ParallelKindScan.Checkpoint roundTrip(ParallelKindScan.Checkpoint checkpoint) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(checkpoint);
+    oos.close();
+    return (ParallelKindScan.Checkpoint) new ObjectInputStream(
+        new ByteArrayInputStream(baos.toByteArray())).readObject();
+  }
+
+  public void testResumeAfterFailure() throws Exception {
+    Set<Key> keys = putFlights(30);
+    final Set<Key> seen = Collections.synchronizedSet(new HashSet<Key>());
+    final AtomicBoolean fail = new AtomicBoolean(true);
+    ParallelKindScan scan = newScan().setParallelism(1);
+    ParallelKindScan.Checkpoint checkpoint = scan.split(1);
+    ParallelKindScan.EntityBatchConsumer consumer = new ParallelKindScan.EntityBatchConsumer() {
+      public void consume(List<Entity> batch) {
+        if (seen.size() > 0 && fail.get()) {
+          throw new IllegalStateException("boom");
+        }
+        for (Entity e : batch) {
+          seen.add(e.getKey());
+        }
+      }
+    };
+    try {
+      scan.execute(checkpoint, consumer);
+      fail("expected exception");
+    } catch (IllegalStateException ise) {
+      // expected
+    }
+    assertFalse(checkpoint.isComplete());
+    assertEquals(7, checkpoint.getNumberOfEntitiesScanned());
+
+    // Resumed from a persisted checkpoint
+    checkpoint = roundTrip(checkpoint);
+    assertEquals(7, checkpoint.getNumberOfEntitiesScanned());
+    fail.set(false);
+    scan.execute(checkpoint, consumer);
+    assertTrue(checkpoint.isComplete());
+    assertEquals(30, checkpoint.getNumberOfEntitiesScanned());
+    assertEquals(keys, seen);
+  }
+
+  public void testFailureStopsRangesStartedEarlier() throws InterruptedException {
+    List<Key> keys = new ArrayList<Key>(new TreeSet<Key>(putFlights(50)));
+    final Key firstKey = keys.get(0);
+    final CountDownLatch firstRangeStarted = new CountDownLatch(1);
+    final CountDownLatch failedRangeDone = new CountDownLatch(1);
+    final AtomicInteger numBatchesConsumed = new AtomicInteger();
+    // Two threads, so both ranges are read at the same time, counting the end of the range that fails
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>()) {
+      @Override
+      protected void afterExecute(Runnable r, Throwable t) {
+        failedRangeDone.countDown();
+      }
+    };
+    ParallelKindScan scan = newScan().setParallelism(2).setExecutor(new BackgroundExecutor(pool));
+    ParallelKindScan.Checkpoint checkpoint = scan.split(Collections.singletonList(keys.get(25)));
+    assertEquals(2, checkpoint.getNumberOfRanges());
+    try {
+      scan.execute(checkpoint, new ParallelKindScan.EntityBatchConsumer() {
+        public void consume(List<Entity> batch) {
+          try {
+            if (batch.get(0).getKey().equals(firstKey)) {
+              // First batch of the first range, finishing once the second range has failed and stopped the scan
+              firstRangeStarted.countDown();
+              assertTrue(failedRangeDone.await(10, TimeUnit.SECONDS));
+            } else {
+              assertTrue(firstRangeStarted.await(10, TimeUnit.SECONDS));
+              throw new IllegalStateException("boom");
+            }
+          } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+          }
+          numBatchesConsumed.incrementAndGet();
+        }
+      });
+      fail("expected exception");
+    } catch (IllegalStateException ise) {
+      assertEquals("boom", ise.getMessage());
+    } finally {
+      pool.shutdown();
+    }
+    // The first range stopped at its next batch boundary rather than reading its 4 batches
+    assertEquals(1, numBatchesConsumed.get());
+    assertFalse(checkpoint.isComplete());
+  }
+
+  public void testJDOBatchConsumer() {
+    putFlights(10);
+    final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+    ParallelKindScan scan = newScan();
+    scan.execute(scan.split(2), new JDODatastoreBridge().toJDOBatchConsumer(pmf, Flight.class,
+        new ParallelKindScan.PojoBatchConsumer<Flight>() {
+          public void consume(List<Flight> batch) {
+            for (Flight f : batch) {
+              names.add(f.getName());
+            }
+          }
+        }));
+    assertEquals(10, names.size());
+    assertTrue(names.contains("harold0"));
+  }
+}
@@ -0,0 +1,308 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.dev.LocalDatastoreService;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics;
+import com.google.appengine.datanucleus.DatastoreMetrics.Operation;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
+import com.google.appengine.datanucleus.RpcAccounting;
+import com.google.appengine.datanucleus.query.JDOCursorHelper;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.DatastorePb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.Query;
+
+public class JDOQueryRelationBatchTest extends JDOTestCase {
+
+  private static final int NUM_PARENTS = 5;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (pm.currentTransaction().isActive()) {
+      pm.currentTransaction().rollback();
+    }
+    pm.close();
+    // Not one of the cached factories
+    pmf.close();
+    super.tearDown();
+  }
+
+  private void switchDatasource(int relationBatchSize) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(DatastoreManager.QUERY_RELATION_BATCH_SIZE_PROPERTY, Integer.toString(relationBatchSize));
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, props);
+  }
+
+  private void persistParentsWithFlights() {
+    for (int i = 0; i < NUM_PARENTS; i++) {
+      HasOneToManyListJDO parent = new HasOneToManyListJDO();
+      parent.setVal("yar" + i);
+      parent.addFlight(new Flight("bos", "mia", "harold" + i, i, i));
+      parent.addFlight(new Flight("mia", "bos", "harold" + i, i, i));
+      pm.makePersistent(parent);
+    }
+    pm.close();
+    pm = pmf.getPersistenceManager();
+  }
+
+  /**
+   * @return Number of RPCs made running the query and loading the flights of all results
+   */
+  private int countRpcsLoadingFlights(final Query q) {
+    pm.getFetchPlan().setGroup(FetchPlan.ALL);
+    return RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        List<HasOneToManyListJDO> parents = (List<HasOneToManyListJDO>) q.execute();
+        assertEquals(NUM_PARENTS, parents.size());
+        for (HasOneToManyListJDO parent : parents) {
+          assertEquals(2, parent.getFlights().size());
+          assertEquals(parent.getVal().replace("yar", "harold"), parent.getFlights().get(0).getName());
+        }
+      }
+    });
+  }
+
+  public void testRelationsOfPageRetrievedTogether() {
+    switchDatasource(1);
+    persistParentsWithFlights();
+    int unbatchedRpcs = countRpcsLoadingFlights(pm.newQuery(HasOneToManyListJDO.class));
+    pm.close();
+    pmf.close();
+
+    switchDatasource(100);
+    int batchedRpcs = countRpcsLoadingFlights(pm.newQuery(HasOneToManyListJDO.class));
+    // One get per parent replaced by a single get for all of them
+    assertEquals(unbatchedRpcs - NUM_PARENTS + 1, batchedRpcs);
+  }
+
+  public void testRelationsOfRangeRetrievedTogether() {
+    switchDatasource(100);
+    persistParentsWithFlights();
+    pm.getFetchPlan().setGroup(FetchPlan.ALL);
+    Query q = pm.newQuery(HasOneToManyListJDO.class);
+    q.setRange(0, NUM_PARENTS);
+    final Iterator<HasOneToManyListJDO> iter = ((List<HasOneToManyListJDO>) q.execute()).iterator();
+    assertEquals(1, RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        assertEquals(2, iter.next().getFlights().size());
+      }
+    }));
+    // The relations of the whole page were retrieved with the first result
+    assertEquals(0, RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        while (iter.hasNext()) {
+          assertEquals(2, iter.next().getFlights().size());
+        }
+      }
+    }));
+  }
+
+  public void testRelationsOfIteratedResultsRetrievedTogether() {
+    switchDatasource(100);
+    persistParentsWithFlights();
+    pm.getFetchPlan().setGroup(FetchPlan.ALL);
+    final Iterator<HasOneToManyListJDO> iter =
+        ((List<HasOneToManyListJDO>) pm.newQuery(HasOneToManyListJDO.class).execute()).iterator();
+    final List<String> vals = new ArrayList<String>();
+    RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        HasOneToManyListJDO parent = iter.next();
+        assertEquals(2, parent.getFlights().size());
+        vals.add(parent.getVal());
+      }
+    });
+    // The relations of the whole page were retrieved with the first result
+    assertEquals(0, RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        HasOneToManyListJDO parent = iter.next();
+        assertEquals(2, parent.getFlights().size());
+        vals.add(parent.getVal());
+      }
+    }));
+
+    // The cursor points after the result most recently returned, although the page was read ahead of it
+    Query q = pm.newQuery(HasOneToManyListJDO.class);
+    Map<String, Object> extensionMap = new HashMap<String, Object>();
+    extensionMap.put(JDOCursorHelper.CURSOR_EXTENSION, JDOCursorHelper.getCursor(iter));
+    q.setExtensions(extensionMap);
+    for (HasOneToManyListJDO parent : (List<HasOneToManyListJDO>) q.execute()) {
+      vals.add(parent.getVal());
+    }
+    assertEquals(NUM_PARENTS, new HashSet<String>(vals).size());
+    assertEquals(NUM_PARENTS, vals.size());
+  }
+
+  public void testCursorOfIteratorSkipsFromStartOfPage() {
+    switchDatasource(2);
+    persistParentsWithFlights();
+    pm.getFetchPlan().setGroup(FetchPlan.ALL);
+    Iterator<HasOneToManyListJDO> iter =
+        ((List<HasOneToManyListJDO>) pm.newQuery(HasOneToManyListJDO.class).execute()).iterator();
+    List<String> vals = new ArrayList<String>();
+    for (int i = 0; i < 3; i++) {
+      vals.add(iter.next().getVal());
+    }
+
+    // The third result is the first of the second page, which was read ahead of it
+    final List<Integer> offsets = new ArrayList<Integer>();
+    final ApiProxy.Delegate original = ApiProxy.getDelegate();
+    ApiProxy.setDelegate(new ApiProxy.Delegate() {
+      private void record(String pkg, String method, byte[] bytes) {
+        if (pkg.equals(LocalDatastoreService.PACKAGE) && method.equals("RunQuery")) {
+          DatastorePb.Query query = new DatastorePb.Query();
+          query.mergeFrom(bytes);
+          offsets.add(query.getOffset());
+        }
+      }
+      public byte[] makeSyncCall(ApiProxy.Environment environment, String pkg, String method, byte[] bytes) {
+        record(pkg, method, bytes);
+        return original.makeSyncCall(environment, pkg, method, bytes);
+      }
+      public Future makeAsyncCall(ApiProxy.Environment environment, String pkg, String method, byte[] bytes,
+          ApiProxy.ApiConfig apiConfig) {
+        record(pkg, method, bytes);
+        return original.makeAsyncCall(environment, pkg, method, bytes, apiConfig);
+      }
+      public void log(ApiProxy.Environment environment, ApiProxy.LogRecord logRecord) {
+        original.log(environment, logRecord);
+      }
+      public void flushLogs(ApiProxy.Environment environment) {
+        original.flushLogs(environment);
+      }
+      public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+        return original.getRequestThreads(environment);
+      }
+    });
+    Cursor cursor;
+    try {
+      cursor = JDOCursorHelper.getCursor(iter);
+    } finally {
+      ApiProxy.setDelegate(original);
+    }
+    // Skipped from the start of the page rather than of the results
+    assertEquals(Collections.singletonList(1), offsets);
+
+    Query q = pm.newQuery(HasOneToManyListJDO.class);
+    Map<String, Object> extensionMap = new HashMap<String, Object>();
+    extensionMap.put(JDOCursorHelper.CURSOR_EXTENSION, cursor);
+    q.setExtensions(extensionMap);
+    for (HasOneToManyListJDO parent : (List<HasOneToManyListJDO>) q.execute()) {
+      vals.add(parent.getVal());
+    }
+    assertEquals(NUM_PARENTS, new HashSet<String>(vals).size());
+    assertEquals(NUM_PARENTS, vals.size());
+  }
+
+  public void testDeletedChildIgnored() {
+    switchDatasource(100);
+    persistParentsWithFlights();
+    HasOneToManyListJDO first = (HasOneToManyListJDO) ((List<?>) pm.newQuery(HasOneToManyListJDO.class).execute()).get(0);
+    String flightId = first.getFlights().get(0).getId();
+    pm.close();
+    ds.delete(KeyFactory.stringToKey(flightId));
+
+    pm = pmf.getPersistenceManager();
+    pm.getFetchPlan().setGroup(FetchPlan.ALL);
+    List<HasOneToManyListJDO> parents = (List<HasOneToManyListJDO>) pm.newQuery(HasOneToManyListJDO.class).execute();
+    int numFlights = 0;
+    for (HasOneToManyListJDO parent : parents) {
+      numFlights += parent.getFlights().size();
+    }
+    assertEquals(NUM_PARENTS * 2 - 1, numFlights);
+  }
+
+  /**
+   * @return Number of batch gets made retrieving related objects ahead while running the provided block
+   */
+  private int countGetsAhead(Runnable block) {
+    final AtomicInteger count = new AtomicInteger();
+    DatastoreMetrics.Listener listener = new DatastoreMetrics.Listener() {
+      public void callCompleted(Path path, Operation op, String kind, int numEntities, long elapsedNanos,
+          boolean failed) {
+        if (path == Path.QUERY && op == Operation.GET) {
+          count.incrementAndGet();
+        }
+      }
+    };
+    getStoreManager().getDatastoreMetrics().addListener(listener);
+    try {
+      block.run();
+    } finally {
+      getStoreManager().getDatastoreMetrics().removeListener(listener);
+    }
+    return count.get();
+  }
+
+  private String persistParentWithFlightInTxn() {
+    switchDatasource(PersistenceManagerFactoryName.transactional);
+    HasOneToManyListJDO parent = new HasOneToManyListJDO();
+    parent.addFlight(new Flight("bos", "mia", "harold", 1, 2));
+    beginTxn();
+    pm.makePersistent(parent);
+    commitTxn();
+    pm.close();
+    pm = pmf.getPersistenceManager();
+    pm.getFetchPlan().setGroup(FetchPlan.ALL);
+    return parent.getId();
+  }
+
+  public void testNotRetrievedAheadInTransaction() {
+    final String id = persistParentWithFlightInTxn();
+    beginTxn();
+    // Begins the datastore transaction
+    pm.getObjectById(HasOneToManyListJDO.class, id);
+    assertEquals(0, countGetsAhead(new Runnable() {
+      public void run() {
+        Iterator<HasOneToManyListJDO> iter =
+            ((List<HasOneToManyListJDO>) pm.newQuery(HasOneToManyListJDO.class).execute()).iterator();
+        assertEquals(1, iter.next().getFlights().size());
+      }
+    }));
+    commitTxn();
+  }
+
+  public void testRetrievedAheadInTransactionNotBegun() {
+    persistParentWithFlightInTxn();
+    beginTxn();
+    assertEquals(1, countGetsAhead(new Runnable() {
+      public void run() {
+        Iterator<HasOneToManyListJDO> iter =
+            ((List<HasOneToManyListJDO>) pm.newQuery(HasOneToManyListJDO.class).execute()).iterator();
+        assertEquals(1, iter.next().getFlights().size());
+      }
+    }));
+    // Neither the query nor the related objects began it
+    assertFalse(getStoreManager().getDatastoreTransaction(getExecutionContext()).isStarted());
+    commitTxn();
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.datanucleus.jdo;
+
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.DatastoreMetrics.Path;
+import com.google.appengine.datanucleus.RpcAccounting;
+import com.google.appengine.datanucleus.test.jdo.Flight;
+import com.google.appengine.datanucleus.test.jdo.HasOneToManyListJDO;
+
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.JDOUserException;
+
+public class JDORpcAccountingTest extends JDOTestCase {
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (pm.currentTransaction().isActive()) {
+      pm.currentTransaction().rollback();
+    }
+    pm.close();
+    // Not one of the cached factories
+    pmf.close();
+    super.tearDown();
+  }
+
+  private void switchDatasource(int budget, int repeatedRpcThreshold, String action) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(DatastoreManager.RPC_BUDGET_PROPERTY, Integer.toString(budget));
+    props.put(DatastoreManager.REPEATED_RPC_THRESHOLD_PROPERTY, Integer.toString(repeatedRpcThreshold));
+    props.put(DatastoreManager.RPC_BUDGET_ACTION_PROPERTY, action);
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, props);
+  }
+
+  private RpcAccounting getRpcAccounting() {
+    return getDatastoreManagerForPM(pm).getRpcAccounting(((JDOPersistenceManager) pm).getExecutionContext());
+  }
+
+  private void persistParentsWithFlights(int numParents) {
+    for (int i = 0; i < numParents; i++) {
+      HasOneToManyListJDO parent = new HasOneToManyListJDO();
+      parent.addFlight(new Flight("bos", "mia", "harold" + i, i, i));
+      pm.makePersistent(parent);
+    }
+    pm.close();
+    pm = pmf.getPersistenceManager();
+  }
+
+  public void testBudgetExceededThrows() {
+    switchDatasource(2, 0, RpcAccounting.ACTION_EXCEPTION);
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    assertEquals(2, getRpcAccounting().getRpcCount());
+    int numFlights = countForClass(Flight.class);
+    try {
+      pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+      fail("expected exception");
+    } catch (JDOUserException e) {
+      // expected
+    }
+    // Thrown before the put was made
+    assertEquals(numFlights, countForClass(Flight.class));
+
+    getRpcAccounting().reset();
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    assertEquals(1, getRpcAccounting().getRpcCount());
+  }
+
+  public void testBudgetExceededLogs() {
+    switchDatasource(1, 0, RpcAccounting.ACTION_LOG);
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    assertEquals(2, countForClass(Flight.class));
+    assertEquals(2, getRpcAccounting().getRpcCount());
+    assertEquals(Integer.valueOf(2), getRpcAccounting().getRpcCountsByPath().get(Path.INSERT));
+  }
+
+  public void testAccountingStartsAfreshForEachPersistenceManager() {
+    switchDatasource(2, 0, RpcAccounting.ACTION_EXCEPTION);
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    RpcAccounting first = getRpcAccounting();
+    assertEquals(2, first.getRpcCount());
+    pm.close();
+
+    // The ExecutionContext of the closed PersistenceManager may be pooled and handed to this one
+    pm = pmf.getPersistenceManager();
+    RpcAccounting second = getRpcAccounting();
+    assertNotSame(first, second);
+    assertEquals(0, second.getRpcCount());
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+    assertEquals(2, second.getRpcCount());
+  }
+
+  public void testRepeatedSingleEntityRpcsDetected() {
+    switchDatasource(0, 3, RpcAccounting.ACTION_EXCEPTION);
+    persistParentsWithFlights(3);
+    List<HasOneToManyListJDO> parents = (List<HasOneToManyListJDO>) pm.newQuery(HasOneToManyListJDO.class).execute();
+    assertEquals(3, parents.size());
+    // Loading the relation of each object in turn is the N+1 pattern
+    parents.get(0).getFlights().size();
+    parents.get(1).getFlights().size();
+    try {
+      parents.get(2).getFlights().size();
+      fail("expected exception");
+    } catch (JDOUserException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("N+1"));
+    }
+  }
+
+  public void testRpcAccountingNotEnabledByDefault() {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, new HashMap<String, String>());
+    assertNull(getRpcAccounting());
+  }
+
+  public void testAssertMaxRpcs() {
+    switchDatasource(PersistenceManagerFactoryName.nontransactional, new HashMap<String, String>());
+    final Flight f = new Flight("bos", "mia", "harold", 1, 2);
+    RpcAccounting.assertMaxRpcs(getStoreManager(), 1, new Runnable() {
+      public void run() {
+        pm.makePersistent(f);
+      }
+    });
+    assertEquals(2, RpcAccounting.countRpcs(getStoreManager(), new Runnable() {
+      public void run() {
+        pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+        pm.makePersistent(new Flight("bos", "mia", "harold", 1, 2));
+      }
+    }));
+    try {
+      RpcAccounting.assertMaxRpcs(getStoreManager(), 0, new Runnable() {
+        public void run() {
+          pm.deletePersistent(f);
+        }
+      });
+      fail("expected AssertionError");
+    } catch (AssertionError e) {
+      // expected
+    }
+  }
+}
@@ -15,6 +15,7 @@
  **********************************************************************/
 package com.google.appengine.datanucleus.jdo;
 
+import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
@@ -27,13 +28,23 @@ import com.google.appengine.datanucleus.Utils;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequence;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceOnNonPkFields;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithNoSequenceName;
+import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithPrefetch;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithSequenceGenerator;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithSequenceGenerator2;
 import com.google.appengine.datanucleus.test.jdo.SequenceExamplesJDO.HasSequenceWithUnencodedStringPk;
 import com.google.appengine.datanucleus.valuegenerator.SequenceGenerator;
+import com.google.apphosting.api.ApiProxy;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.jdo.PersistenceManager;
 import javax.jdo.datastore.Sequence;
 
 /**
@@ -43,20 +54,23 @@ public class JDOSequenceTest extends JDOTestCase {
 
   private final List<String> sequenceNames = Utils.newArrayList();
   private final List<Long> sequenceBatchSizes = Utils.newArrayList();
+  private DatastoreService sequenceDs;
 
   @Override
   protected void setUp() throws Exception {
     super.setUp();
     DatastoreServiceConfig config = getStoreManager().getDefaultDatastoreServiceConfigForReads();
-    DatastoreServiceFactoryInternal.setDatastoreService(
-        new BaseDatastoreServiceDelegate(DatastoreServiceFactoryInternal.getDatastoreService(config)) {
+    sequenceDs = new BaseDatastoreServiceDelegate(DatastoreServiceFactoryInternal.getDatastoreService(config)) {
       @Override
       public KeyRange allocateIds(String kind, long size) {
-        sequenceNames.add(kind);
-        sequenceBatchSizes.add(size);
+        synchronized (sequenceNames) {
+          sequenceNames.add(kind);
+          sequenceBatchSizes.add(size);
+        }
         return super.allocateIds(kind, size);
       }
-    });
+    };
+    DatastoreServiceFactoryInternal.setDatastoreService(sequenceDs);
     SequenceTestLock.LOCK.acquire();
     SequenceGenerator.setSequencePostfixAppendage("JDO");
   }
@@ -122,6 +136,78 @@ public class JDOSequenceTest extends JDOTestCase {
     assertEquals(Utils.newArrayList(12L), sequenceBatchSizes);
   }
   
+  public void testPrefetchNextBlock() throws EntityNotFoundException {
+    String kind = getKind(HasSequenceWithPrefetch.class);
+    List<Long> ids = Utils.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      HasSequenceWithPrefetch pojo = new HasSequenceWithPrefetch();
+      beginTxn();
+      pm.makePersistent(pojo);
+      commitTxn();
+      ds.get(KeyFactory.createKey(kind, pojo.getId()));
+      ids.add(pojo.getId());
+    }
+    for (int i = 1; i < ids.size(); i++) {
+      assertTrue(ids.get(i - 1) < ids.get(i));
+    }
+    // The second block was allocated in the background once the second id was used
+    synchronized (sequenceNames) {
+      assertEquals(Utils.newArrayList("jdoprefetch", "jdoprefetch"), sequenceNames);
+      assertEquals(Utils.newArrayList(3L, 3L), sequenceBatchSizes);
+    }
+  }
+
+  public void testConcurrentInserts() throws Exception {
+    final int numThreads = 4;
+    final int numPerThread = 30;
+    final ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+      for (int i = 0; i < numThreads; i++) {
+        futures.add(executor.submit(new Callable<List<Long>>() {
+          public List<Long> call() {
+            ApiProxy.setEnvironmentForCurrentThread(env);
+            DatastoreServiceFactoryInternal.setDatastoreService(sequenceDs);
+            List<Long> ids = new ArrayList<Long>();
+            PersistenceManager threadPm = pmf.getPersistenceManager();
+            try {
+              for (int j = 0; j < numPerThread; j++) {
+                HasSequenceWithSequenceGenerator pojo = new HasSequenceWithSequenceGenerator();
+                threadPm.currentTransaction().begin();
+                threadPm.makePersistent(pojo);
+                threadPm.currentTransaction().commit();
+                ids.add(pojo.getId());
+              }
+            } finally {
+              if (threadPm.currentTransaction().isActive()) {
+                threadPm.currentTransaction().rollback();
+              }
+              threadPm.close();
+              DatastoreServiceFactoryInternal.setDatastoreService(null);
+              ApiProxy.clearEnvironmentForCurrentThread();
+            }
+            return ids;
+          }
+        }));
+      }
+      // Ids taken from the blocks by all threads (and the blocks replaced as they're exhausted) are unique
+      Set<Long> ids = new HashSet<Long>();
+      for (Future<List<Long>> future : futures) {
+        for (Long id : future.get()) {
+          assertTrue("Duplicate id " + id, ids.add(id));
+        }
+      }
+      assertEquals(numThreads * numPerThread, ids.size());
+      // Blocks of 12 ids, each allocated once
+      synchronized (sequenceNames) {
+        assertEquals(numThreads * numPerThread / 12, sequenceNames.size());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   public void testDirectSequenceAccess() throws Exception {
     // in order to make sure we get a fresh block of ids when we persist
     // we need to make sure we don't reuse the pmf
@@ -24,6 +24,9 @@ import com.google.appengine.datanucleus.test.jdo.SuperclassTableInheritanceJDO.*
 
 import junit.framework.Assert;
 
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.metadata.AbstractClassMetaData;
+
 import javax.jdo.Extent;
 import javax.jdo.JDOFatalUserException;
 import javax.jdo.Query;
@@ -696,6 +699,40 @@ public class JDOSuperclassTableInheritanceTest extends JDOTestCase {
     }
   }
 
+  public void testClassNameForDiscriminatorValue() {
+    DatastoreManager storeMgr = getStoreManager();
+    ClassLoaderResolver clr = getExecutionContext().getClassLoaderResolver();
+    for (Class<?> cls : Arrays.asList(Parent.class, Child11.class, Child12.class)) {
+      storeMgr.getDatastoreClass(cls.getName(), clr);
+    }
+    AbstractClassMetaData parentCmd = storeMgr.getMetaDataManager().getMetaDataForClass(Parent.class, clr);
+    AbstractClassMetaData child11Cmd = storeMgr.getMetaDataManager().getMetaDataForClass(Child11.class, clr);
+    Assert.assertEquals(Parent.class.getName(), storeMgr.getClassNameForDiscriminatorValue(parentCmd, "P"));
+    Assert.assertEquals(Child12.class.getName(), storeMgr.getClassNameForDiscriminatorValue(parentCmd, "C12"));
+    // Same map for the whole hierarchy
+    Assert.assertEquals(Child12.class.getName(), storeMgr.getClassNameForDiscriminatorValue(child11Cmd, "C12"));
+    Assert.assertNull(storeMgr.getClassNameForDiscriminatorValue(parentCmd, "X"));
+
+    // Added when registered
+    storeMgr.getDatastoreClass(Child22.class.getName(), clr);
+    Assert.assertEquals(Child22.class.getName(), storeMgr.getClassNameForDiscriminatorValue(parentCmd, "C22"));
+  }
+
+  public void testQueryParentResolvesSubclasses() {
+    newChild12(TXN_START_END, "A", 112, 2, null, null);
+    newChild22(TXN_START_END, "B", "Child22", Boolean.TRUE, null);
+
+    beginTxn();
+    Query q = pm.newQuery(Parent.class);
+    q.setOrdering("parentStr asc");
+    @SuppressWarnings("unchecked")
+    List<Parent> r = (List<Parent>) q.execute();
+    Assert.assertEquals(2, r.size());
+    Assert.assertEquals(Child12.class, r.get(0).getClass());
+    Assert.assertEquals(Child22.class, r.get(1).getClass());
+    commitTxn();
+  }
+
   private Parent newParent(StartEnd startEnd, String parentStr) {
     Parent p = new Parent();
     p.setParentStr(parentStr);
@@ -324,11 +324,9 @@ public class JDOTransactionTest extends DatastoreTestCase {
       PersistenceManager pm, boolean explicitDemarcation,
       boolean nonTransactionalRead, QueryRunner queryRunner) throws EntityNotFoundException {
 
-    EasyMock.expect(mockDatastoreService.beginTransaction(EasyMock.isA(TransactionOptions.class))).andReturn(mockTxn);
-    if (queryRunner.isAncestor()) {
-      EasyMock.expect(mockDatastoreService.getCurrentTransaction(null)).andReturn(mockTxn);
-    }
     if (queryRunner.isAncestor()) {
+      // The datastore txn is begun by the first ancestor query, non-ancestor queries don't need it
+      EasyMock.expect(mockDatastoreService.beginTransaction(EasyMock.isA(TransactionOptions.class))).andReturn(mockTxn);
       EasyMock.expect(mockDatastoreService.prepare(
           EasyMock.isA(com.google.appengine.api.datastore.Transaction.class),
           EasyMock.isA(com.google.appengine.api.datastore.Query.class))).andReturn(null);
@@ -340,7 +338,9 @@ public class JDOTransactionTest extends DatastoreTestCase {
     }
     EasyMock.expect(mockTxn.getId()).andAnswer(txnIdAnswer).anyTimes();
     EasyMock.expect(mockTxn.getApp()).andReturn("test").anyTimes();
-    mockTxn.commit();
+    if (queryRunner.isAncestor()) {
+      mockTxn.commit();
+    }
     EasyMock.replay(mockDatastoreService, mockTxn);
 
     Transaction txn = pm.currentTransaction();
@@ -631,11 +631,7 @@ public class JDOTransactionTest extends DatastoreTestCase {
         JDOTestCase.PersistenceManagerFactoryName.transactional.name());
     PersistenceManager pm = pmf.getPersistenceManager();
     try {
-      EasyMock.expect(mockDatastoreService.beginTransaction(EasyMock.isA(TransactionOptions.class))).andReturn(mockTxn);
-      EasyMock.expect(mockTxn.getId()).andAnswer(txnIdAnswer);
-      EasyMock.expect(mockTxn.getId()).andAnswer(txnIdAnswer);
-      mockTxn.commit();
-      EasyMock.expectLastCall();
+      // The datastore txn is only begun on first use, so an empty txn makes no RPCs
       EasyMock.replay(mockDatastoreService, mockTxn);
       pm.currentTransaction().begin();
       pm.currentTransaction().commit();
@@ -649,6 +645,24 @@ public class JDOTransactionTest extends DatastoreTestCase {
     }
   }
 
+  public void testEmptyTxnBlockRollback_Txn() {
+    PersistenceManagerFactory pmf = getPersistenceManagerFactory(
+        JDOTestCase.PersistenceManagerFactoryName.transactional.name());
+    PersistenceManager pm = pmf.getPersistenceManager();
+    try {
+      EasyMock.replay(mockDatastoreService, mockTxn);
+      pm.currentTransaction().begin();
+      pm.currentTransaction().rollback();
+      EasyMock.verify(mockDatastoreService, mockTxn);
+    } finally {
+      if (pm.currentTransaction().isActive()) {
+        pm.currentTransaction().rollback();
+      }
+      pm.close();
+      pmf.close();
+    }
+  }
+
   public void testEmptyTxnBlock_NoTxn() {
     PersistenceManagerFactory pmf = getPersistenceManagerFactory(
         JDOTestCase.PersistenceManagerFactoryName.nontransactional.name());
@@ -976,6 +976,22 @@ abstract class JPAOneToManyPolymorphicTestCase extends JPATestCase {
         putParamList.add(params);
       }
     }
+
+    /** Number of entities put, counting each entity of a batch put (as made for the updates of a flush). */
+    int countEntitiesPut() {
+      int num = 0;
+      for (Object[] params : putParamList) {
+        Object entities = params[params.length - 1];
+        if (entities instanceof Iterable) {
+          for (Object entity : (Iterable<?>) entities) {
+            num++;
+          }
+        } else {
+          num++;
+        }
+      }
+      return num;
+    }
   }
 
   PutPolicy setupPutPolicy(HasOneToManyJPA pojo, BidirTop bidir,
@@ -1021,8 +1037,8 @@ abstract class JPAOneToManyPolymorphicTestCase extends JPATestCase {
     } finally {
       DatastoreServiceInterceptor.uninstall();
     }
-    // 1 put for each child update
-    assertEquals(3, policy.putParamList.size());
+    // each child put once
+    assertEquals(3, policy.countEntitiesPut());
   }
 
   void testOnlyOneParentPutOnParentAndChildUpdate(HasOneToManyJPA pojo, BidirTop bidir,
@@ -1039,8 +1055,8 @@ abstract class JPAOneToManyPolymorphicTestCase extends JPATestCase {
     } finally {
       DatastoreServiceInterceptor.uninstall();
     }
-    // 1 put for the parent update, 1 put for each child update
-    assertEquals(4, policy.putParamList.size());
+    // the parent put once, each child put once
+    assertEquals(4, policy.countEntitiesPut());
   }
 
   void testOnlyOneParentPutOnChildDelete(HasOneToManyJPA pojo, BidirTop bidir,
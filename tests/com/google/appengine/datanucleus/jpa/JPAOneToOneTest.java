@@ -991,6 +991,22 @@ public class JPAOneToOneTest extends JPATestCase {
         putParamList.add(params);
       }
     }
+
+    /** Number of entities put, counting each entity of a batch put (as made for the updates of a flush). */
+    int countEntitiesPut() {
+      int num = 0;
+      for (Object[] params : putParamList) {
+        Object entities = params[params.length - 1];
+        if (entities instanceof Iterable) {
+          for (Object entity : (Iterable<?>) entities) {
+            num++;
+          }
+        } else {
+          num++;
+        }
+      }
+      return num;
+    }
   }
 
   PutPolicy setupPutPolicy(HasOneToOneJPA pojo, HasOneToOneParentJPA hasParent, StartEnd startEnd)
@@ -1041,8 +1057,8 @@ public class JPAOneToOneTest extends JPATestCase {
     } finally {
       DatastoreServiceInterceptor.uninstall();
     }
-    // 1 put for each child update
-    assertEquals(3, policy.putParamList.size());
+    // each child put once
+    assertEquals(3, policy.countEntitiesPut());
   }
 
   public void testOnlyOneParentPutOnParentAndChildUpdate() throws Throwable {
@@ -1067,8 +1083,8 @@ public class JPAOneToOneTest extends JPATestCase {
     } finally {
       DatastoreServiceInterceptor.uninstall();
     }
-    // 1 put for the parent update, 1 put for each child update
-    assertEquals(4, policy.putParamList.size());
+    // the parent put once, each child put once
+    assertEquals(4, policy.countEntitiesPut());
   }
 
   public void testOnlyOneParentPutOnChildDelete() throws Throwable {
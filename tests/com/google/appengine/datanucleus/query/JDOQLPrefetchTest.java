@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.datanucleus.query;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.dev.LocalDatastoreService;
+import com.google.appengine.datanucleus.BackgroundExecutor;
+import com.google.appengine.datanucleus.DatastoreManager;
+import com.google.appengine.datanucleus.Utils;
+import com.google.appengine.datanucleus.jdo.JDOTestCase;
+import com.google.appengine.datanucleus.test.jpa.Book;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jdo.JDOUserException;
+import javax.jdo.Query;
+
+/**
+ * Tests for queries whose result pages are fetched in the background.
+ */
+public class JDOQLPrefetchTest extends JDOTestCase {
+
+  private List<Key> putBooks(int num) {
+    List<Key> keys = Utils.newArrayList();
+    for (int i = 0; i < num; i++) {
+      keys.add(ds.put(Book.newBookEntity("auth" + i, "34", "yar")));
+    }
+    return keys;
+  }
+
+  private Query newPrefetchQuery(int depth, int pageSize) {
+    Query q = pm.newQuery("select from " + Book.class.getName());
+    q.addExtension(DatastoreManager.QUERYEXT_PREFETCH_DEPTH, depth);
+    q.getFetchPlan().setFetchSize(pageSize);
+    return q;
+  }
+
+  public void testAllResultsReturnedInOrder() {
+    List<Key> keys = putBooks(23);
+    for (int depth = 1; depth <= 3; depth++) {
+      beginTxn();
+      List<Key> results = Utils.newArrayList();
+      for (Object b : (List) newPrefetchQuery(depth, 5).execute()) {
+        results.add(KeyFactory.stringToKey(((Book) b).getId()));
+      }
+      assertEquals(keys, results);
+      commitTxn();
+    }
+  }
+
+  public void testExactMultipleOfPageSize() {
+    List<Key> keys = putBooks(10);
+    beginTxn();
+    assertEquals(keys.size(), ((List) newPrefetchQuery(2, 5).execute()).size());
+    commitTxn();
+  }
+
+  public void testNoResults() {
+    beginTxn();
+    assertTrue(((List) newPrefetchQuery(2, 5).execute()).isEmpty());
+    commitTxn();
+  }
+
+  public void testFetchOverlapsWithConversion() throws InterruptedException {
+    putBooks(15);
+    QueryRecordingDelegate recorder = new QueryRecordingDelegate(2).install();
+    try {
+      beginTxn();
+      Iterator<Book> bookIter = ((List<Book>) newPrefetchQuery(1, 5).execute()).iterator();
+      bookIter.next();
+      // The second page is fetched while the first is being converted, and not on the thread converting it
+      assertTrue(recorder.await());
+      assertFalse(recorder.threads.contains(Thread.currentThread()));
+      int num = 1;
+      while (bookIter.hasNext()) {
+        bookIter.next();
+        num++;
+      }
+      assertEquals(15, num);
+      commitTxn();
+    } finally {
+      recorder.uninstall();
+    }
+  }
+
+  public void testRequestThreadsUsedOnAppEngine() throws InterruptedException {
+    List<Key> keys = putBooks(12);
+    final AtomicInteger numThreadsCreated = new AtomicInteger();
+    ThreadFactory requestThreadFactory = new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        numThreadsCreated.incrementAndGet();
+        return new Thread(r, "request-thread");
+      }
+    };
+    Map<String, Object> attributes = ApiProxy.getCurrentEnvironment().getAttributes();
+    attributes.put("com.google.appengine.api.ThreadManager.REQUEST_THREAD_FACTORY", requestThreadFactory);
+    QueryRecordingDelegate recorder = new QueryRecordingDelegate(3).install();
+    try {
+      beginTxn();
+      assertEquals(keys.size(), ((List) newPrefetchQuery(2, 5).execute()).size());
+      commitTxn();
+      assertTrue(recorder.await());
+      assertTrue(numThreadsCreated.get() > 0);
+      for (Thread thread : recorder.threads) {
+        assertEquals("request-thread", thread.getName());
+      }
+    } finally {
+      recorder.uninstall();
+      attributes.remove("com.google.appengine.api.ThreadManager.REQUEST_THREAD_FACTORY");
+    }
+  }
+
+  public void testInvalidPrefetchDepth() {
+    Query q = pm.newQuery("select from " + Book.class.getName());
+    q.addExtension(DatastoreManager.QUERYEXT_PREFETCH_DEPTH, "lots");
+    beginTxn();
+    try {
+      q.execute();
+      fail("expected exception");
+    } catch (JDOUserException e) {
+      // good
+    }
+    rollbackTxn();
+  }
+
+  public void testGetCursor_Iterator() {
+    List<Key> keys = putBooks(7);
+    beginTxn();
+    Iterator<Book> bookIter = ((List<Book>) newPrefetchQuery(2, 3).execute()).iterator();
+    int index = 0;
+    while (bookIter.hasNext()) {
+      bookIter.next();
+      Cursor c = JDOCursorHelper.getCursor(bookIter);
+      assertNotNull(c);
+      Query q = pm.newQuery("select from " + Book.class.getName());
+      q.addExtension(JDOCursorHelper.QUERY_CURSOR_PROPERTY_NAME, c);
+      List<Key> remaining = Utils.newArrayList();
+      for (Object b : (Iterable) q.execute()) {
+        remaining.add(KeyFactory.stringToKey(((Book) b).getId()));
+      }
+      assertEquals(keys.subList(++index, keys.size()), remaining);
+    }
+    commitTxn();
+  }
+
+  public void testCloseCancelsFetchesNotStarted() throws InterruptedException {
+    putBooks(12);
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    final CountDownLatch release = new CountDownLatch(1);
+    QueryRecordingDelegate recorder = new QueryRecordingDelegate(1).install();
+    try {
+      // Keeps the fetch of the first page queued until released
+      executorService.execute(new Runnable() {
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      PrefetchingQueryResultIterable iterable = new PrefetchingQueryResultIterable(
+          ds.prepare(new com.google.appengine.api.datastore.Query(kindForClass(Book.class))), null, 2,
+          new BackgroundExecutor(executorService));
+      Iterator<Entity> iter = iterable.iterator();
+      iterable.close();
+      release.countDown();
+      executorService.shutdown();
+      assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+      assertTrue(recorder.threads.isEmpty());
+      try {
+        iter.next();
+        fail("expected exception");
+      } catch (IllegalStateException e) {
+        // good
+      }
+    } finally {
+      release.countDown();
+      executorService.shutdownNow();
+      recorder.uninstall();
+    }
+  }
+
+  public void testCloseStopsChainedFetches() throws InterruptedException {
+    putBooks(12);
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    final CountDownLatch fetchStarted = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    QueryRecordingDelegate recorder = new QueryRecordingDelegate(1) {
+      @Override
+      void record(String pkg, String method) {
+        super.record(pkg, method);
+        if (pkg.equals(LocalDatastoreService.PACKAGE) && method.equals("RunQuery")) {
+          // Closed while the first page is being fetched
+          fetchStarted.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }.install();
+    try {
+      PrefetchingQueryResultIterable iterable = new PrefetchingQueryResultIterable(
+          ds.prepare(new com.google.appengine.api.datastore.Query(kindForClass(Book.class))),
+          FetchOptions.Builder.withChunkSize(5), 2, new BackgroundExecutor(executorService));
+      iterable.iterator();
+      assertTrue(fetchStarted.await(10, TimeUnit.SECONDS));
+      iterable.close();
+      release.countDown();
+      executorService.shutdown();
+      assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+      // The first page isn't followed by the fetch of the second
+      assertEquals(1, recorder.numQueries.get());
+    } finally {
+      release.countDown();
+      executorService.shutdownNow();
+      recorder.uninstall();
+    }
+  }
+
+  /**
+   * Delegate recording the threads that the queries are run on.
+   */
+  private static class QueryRecordingDelegate implements ApiProxy.Delegate {
+    private ApiProxy.Delegate original;
+    private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private final AtomicInteger numQueries = new AtomicInteger();
+    private final CountDownLatch queries;
+
+    QueryRecordingDelegate(int numQueries) {
+      queries = new CountDownLatch(numQueries);
+    }
+
+    boolean await() throws InterruptedException {
+      return queries.await(10, TimeUnit.SECONDS);
+    }
+
+    void record(String pkg, String method) {
+      if (pkg.equals(LocalDatastoreService.PACKAGE) && method.equals("RunQuery")) {
+        threads.add(Thread.currentThread());
+        numQueries.incrementAndGet();
+        queries.countDown();
+      }
+    }
+
+    public byte[] makeSyncCall(ApiProxy.Environment environment, String pkg, String method, byte[] bytes)
+        throws ApiProxy.ApiProxyException {
+      record(pkg, method);
+      return original.makeSyncCall(environment, pkg, method, bytes);
+    }
+
+    public Future makeAsyncCall(ApiProxy.Environment environment, String pkg, String method, byte[] bytes,
+        ApiProxy.ApiConfig apiConfig) {
+      record(pkg, method);
+      return original.makeAsyncCall(environment, pkg, method, bytes, apiConfig);
+    }
+
+    public void log(ApiProxy.Environment environment, ApiProxy.LogRecord logRecord) {
+      original.log(environment, logRecord);
+    }
+
+    public void flushLogs(ApiProxy.Environment environment) {
+      original.flushLogs(environment);
+    }
+
+    public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+      return original.getRequestThreads(environment);
+    }
+
+    QueryRecordingDelegate install() {
+      original = ApiProxy.getDelegate();
+      ApiProxy.setDelegate(this);
+      return this;
+    }
+
+    void uninstall() {
+      ApiProxy.setDelegate(original);
+    }
+  }
+}
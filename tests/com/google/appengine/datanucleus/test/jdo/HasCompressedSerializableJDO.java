@@ -0,0 +1,81 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.test.jdo;
+
+import com.google.appengine.api.datastore.Text;
+
+import java.util.ArrayList;
+
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.Extensions;
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+@PersistenceCapable(detachable = "true")
+public class HasCompressedSerializableJDO {
+
+  @PrimaryKey
+  @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+  private Long id;
+
+  @Persistent(serialized = "true")
+  @Extension(vendorName = "datanucleus", key = "serialization-strategy",
+      value = "com.google.appengine.datanucleus.CompressedSerializationStrategy")
+  private String description;
+
+  @Persistent(serialized = "true")
+  @Extension(vendorName = "datanucleus", key = "serialization-strategy",
+      value = "com.google.appengine.datanucleus.CompressedSerializationStrategy")
+  private Text text;
+
+  @Persistent(serialized = "true")
+  @Extensions({
+      @Extension(vendorName = "datanucleus", key = "serialization-strategy",
+          value = "com.google.appengine.datanucleus.CompressedSerializationStrategy"),
+      @Extension(vendorName = "datanucleus", key = "compression-threshold", value = "0"),
+      @Extension(vendorName = "datanucleus", key = "compression-level", value = "9")})
+  private ArrayList<String> tags;
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public void setDescription(String description) {
+    this.description = description;
+  }
+
+  public Text getText() {
+    return text;
+  }
+
+  public void setText(Text text) {
+    this.text = text;
+  }
+
+  public ArrayList<String> getTags() {
+    return tags;
+  }
+
+  public void setTags(ArrayList<String> tags) {
+    this.tags = tags;
+  }
+}
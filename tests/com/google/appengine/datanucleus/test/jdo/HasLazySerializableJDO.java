@@ -0,0 +1,83 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.test.jdo;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+@PersistenceCapable(detachable = "true")
+public class HasLazySerializableJDO {
+
+  @PrimaryKey
+  @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+  private Long id;
+
+  private String name;
+
+  @Persistent(serialized = "true", defaultFetchGroup = "true")
+  @Extension(vendorName = "datanucleus", key = "gae.lazy-deserialize", value = "true")
+  private Counted counted;
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public Counted getCounted() {
+    return counted;
+  }
+
+  public void setCounted(Counted counted) {
+    this.counted = counted;
+  }
+
+  /**
+   * Value that counts the number of times it is deserialized.
+   */
+  public static class Counted implements Serializable {
+    public static final AtomicInteger NUM_DESERIALIZED = new AtomicInteger();
+
+    private String str;
+
+    public Counted(String str) {
+      this.str = str;
+    }
+
+    public String getStr() {
+      return str;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      NUM_DESERIALIZED.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.test.jdo;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+@PersistenceCapable(detachable = "true")
+public class HasPackedArraysJDO {
+
+  @PrimaryKey
+  @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+  private Long id;
+
+  @Persistent
+  @Extension(vendorName = "datanucleus", key = "gae.packed", value = "true")
+  private long[] longs;
+
+  @Persistent
+  @Extension(vendorName = "datanucleus", key = "gae.packed", value = "true")
+  private double[] doubles;
+
+  @Persistent
+  @Extension(vendorName = "datanucleus", key = "gae.packed", value = "true")
+  private Integer[] integers;
+
+  @Persistent
+  @Extension(vendorName = "datanucleus", key = "gae.packed", value = "true")
+  private List<Long> longList;
+
+  @Persistent
+  @Extension(vendorName = "datanucleus", key = "gae.packed", value = "true")
+  private Set<Float> floatSet;
+
+  public Long getId() {
+    return id;
+  }
+
+  public long[] getLongs() {
+    return longs;
+  }
+
+  public void setLongs(long[] longs) {
+    this.longs = longs;
+  }
+
+  public double[] getDoubles() {
+    return doubles;
+  }
+
+  public void setDoubles(double[] doubles) {
+    this.doubles = doubles;
+  }
+
+  public Integer[] getIntegers() {
+    return integers;
+  }
+
+  public void setIntegers(Integer[] integers) {
+    this.integers = integers;
+  }
+
+  public List<Long> getLongList() {
+    return longList;
+  }
+
+  public void setLongList(List<Long> longList) {
+    this.longList = longList;
+  }
+
+  public Set<Float> getFloatSet() {
+    return floatSet;
+  }
+
+  public void setFloatSet(Set<Float> floatSet) {
+    this.floatSet = floatSet;
+  }
+}
@@ -120,6 +120,21 @@ public final class SequenceExamplesJDO {
     }
   }
 
+  @PersistenceCapable(identityType = IdentityType.APPLICATION)
+  @Sequence(name = "jdo3", datastoreSequence = "jdoprefetch", strategy = SequenceStrategy.NONTRANSACTIONAL,
+            extensions = {@Extension(vendorName = "datanucleus", key="key-cache-size", value="3"),
+                          @Extension(vendorName = "datanucleus", key="key-prefetch-threshold", value="1")})
+  public static class HasSequenceWithPrefetch {
+
+    @PrimaryKey
+    @Persistent(valueStrategy = IdGeneratorStrategy.SEQUENCE, sequence = "jdo3")
+    private Long id;
+
+    public Long getId() {
+      return id;
+    }
+  }
+
   @PersistenceCapable(identityType = IdentityType.APPLICATION)
   public static class HasSequenceWithUnencodedStringPk {
 
@@ -0,0 +1,173 @@
+/**********************************************************************
+Copyright (c) 2013 Google Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+**********************************************************************/
+package com.google.appengine.datanucleus.valuegenerator;
+
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.store.valuegenerator.ValueGenerationBlock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class KeyRangeValueGenerationBlockTest extends TestCase {
+
+  private static final int NUM_THREADS = 8;
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(NUM_THREADS);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  private List<Future<List<Long>>> takeIdsConcurrently(final KeyRangeValueGenerationBlock block,
+      final AtomicBoolean stopWhenExhausted) {
+    List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+    for (int i = 0; i < NUM_THREADS; i++) {
+      futures.add(executor.submit(new Callable<List<Long>>() {
+        public List<Long> call() {
+          List<Long> ids = new ArrayList<Long>();
+          while (true) {
+            long id = block.nextId();
+            if (id != KeyRangeValueGenerationBlock.NO_ID) {
+              ids.add(id);
+            } else if (stopWhenExhausted.get()) {
+              return ids;
+            }
+          }
+        }
+      }));
+    }
+    return futures;
+  }
+
+  private static Set<Long> uniqueIds(List<Future<List<Long>>> futures, int expectedNum) throws Exception {
+    Set<Long> ids = new HashSet<Long>();
+    for (Future<List<Long>> future : futures) {
+      for (Long id : future.get()) {
+        assertTrue("Duplicate id " + id, ids.add(id));
+      }
+    }
+    assertEquals(expectedNum, ids.size());
+    return ids;
+  }
+
+  public void testConcurrentNextId() throws Exception {
+    KeyRangeValueGenerationBlock block = new KeyRangeValueGenerationBlock(1000, 100000);
+    Set<Long> ids = uniqueIds(takeIdsConcurrently(block, new AtomicBoolean(true)), 100000);
+    assertEquals(1000L, (long) Collections.min(ids));
+    assertEquals(100999L, (long) Collections.max(ids));
+    assertEquals(100999L, block.currentId());
+  }
+
+  public void testAddBlock() {
+    KeyRangeValueGenerationBlock block = new KeyRangeValueGenerationBlock(1, 3);
+    assertEquals(KeyRangeValueGenerationBlock.NO_ID, block.currentId());
+    assertEquals(1, block.nextId());
+    block.addBlock(new KeyRangeValueGenerationBlock(100, 2));
+    block.addBlock(new KeyRangeValueGenerationBlock(500, 1));
+    assertEquals(6, block.getSize());
+    assertEquals(4, block.remainingAfter(2));
+    List<Long> ids = new ArrayList<Long>();
+    for (long id = block.nextId(); id != KeyRangeValueGenerationBlock.NO_ID; id = block.nextId()) {
+      ids.add(id);
+    }
+    assertEquals(Arrays.asList(2L, 3L, 100L, 101L, 500L), ids);
+    assertEquals(500L, block.currentId());
+    assertEquals(0, block.remainingAfter(500));
+
+    assertFalse(block.hasNext());
+
+    try {
+      block.addBlock(new ValueGenerationBlock(Arrays.asList(1000L)));
+      fail("expected exception");
+    } catch (NucleusException e) {
+      // good
+    }
+  }
+
+  public void testAddLargeBlock() {
+    KeyRangeValueGenerationBlock block = new KeyRangeValueGenerationBlock(1, 1);
+    // The ids of the ranges aren't materialized
+    block.addBlock(new KeyRangeValueGenerationBlock(1000, 500000000));
+    assertEquals(500000001, block.getSize());
+    assertEquals(1L, block.nextId());
+    assertTrue(block.hasNext());
+    assertEquals(1000L, block.nextId());
+    assertEquals(500000000 - 1, block.remainingAfter(1000));
+  }
+
+  public void testAddBlockTakesRemainingIds() {
+    KeyRangeValueGenerationBlock block = new KeyRangeValueGenerationBlock(1, 2);
+    KeyRangeValueGenerationBlock other = new KeyRangeValueGenerationBlock(10, 3);
+    assertEquals(10, other.nextId());
+    block.addBlock(other);
+    assertEquals(KeyRangeValueGenerationBlock.NO_ID, other.nextId());
+    assertEquals(4, block.getSize());
+    assertEquals(1, block.nextId());
+    assertEquals(2, block.nextId());
+    assertEquals(11, block.nextId());
+    assertEquals(12, block.nextId());
+    assertEquals(KeyRangeValueGenerationBlock.NO_ID, block.nextId());
+  }
+
+  public void testAddBlockAfterExhausted() {
+    KeyRangeValueGenerationBlock block = new KeyRangeValueGenerationBlock(1, 1);
+    assertEquals(1, block.nextId());
+    assertEquals(KeyRangeValueGenerationBlock.NO_ID, block.nextId());
+    assertEquals(KeyRangeValueGenerationBlock.NO_ID, block.nextId());
+    block.addBlock(new KeyRangeValueGenerationBlock(10, 2));
+    assertEquals(10, block.nextId());
+    assertEquals(11, block.nextId());
+    assertEquals(KeyRangeValueGenerationBlock.NO_ID, block.nextId());
+  }
+
+  public void testAddBlockWhileTakingIds() throws Exception {
+    KeyRangeValueGenerationBlock block = new KeyRangeValueGenerationBlock(0, 1000);
+    AtomicBoolean allAdded = new AtomicBoolean(false);
+    List<Future<List<Long>>> futures = takeIdsConcurrently(block, allAdded);
+    for (int i = 1; i <= 100; i++) {
+      block.addBlock(new KeyRangeValueGenerationBlock(i * 1000, 1000));
+    }
+    allAdded.set(true);
+    // Ids being taken while a block is added may skip some of its ids, but none is handed out twice
+    Set<Long> ids = new HashSet<Long>();
+    for (Future<List<Long>> future : futures) {
+      for (Long id : future.get()) {
+        assertTrue("Duplicate id " + id, ids.add(id));
+        assertTrue(id >= 0 && id < 101000);
+      }
+    }
+    assertTrue(ids.size() > 0);
+  }
+}